@@ -0,0 +1,98 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+
+package com.disneystreaming.pg2k4j;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when reading the slot should pause, so that a backlog builds up in
+ * the WAL of the database rather than in the buffers of the
+ * {@link com.amazonaws.services.kinesis.producer.KinesisProducer}.
+ * <p>
+ * Reading pauses once either the number of records outstanding in the
+ * producer or the number of bytes in flight reaches its high watermark, and
+ * only resumes once both have fallen back to their low watermark, which is
+ * half the high watermark. The gap between the two keeps reading from
+ * flapping between paused and resumed on every record.
+ */
+public class AdmissionController {
+
+    private final long maxOutstandingRecords;
+    private final long maxInFlightBytes;
+    private final AtomicLong inFlightBytes = new AtomicLong();
+    private boolean paused;
+
+    /**
+     * @param maxOutstandingRecordsInput high watermark on the number of
+     *                                   records outstanding in the producer
+     * @param maxInFlightBytesInput      high watermark on the number of bytes
+     *                                   in flight
+     */
+    public AdmissionController(final long maxOutstandingRecordsInput,
+                               final long maxInFlightBytesInput) {
+        this.maxOutstandingRecords = maxOutstandingRecordsInput;
+        this.maxInFlightBytes = maxInFlightBytesInput;
+    }
+
+    /**
+     * @param bytes size of a record handed to the producer
+     */
+    public void acquire(final long bytes) {
+        inFlightBytes.addAndGet(bytes);
+    }
+
+    /**
+     * May be called from any thread.
+     *
+     * @param bytes size of a record which succeeded or failed
+     */
+    public void release(final long bytes) {
+        inFlightBytes.addAndGet(-bytes);
+    }
+
+    public long getInFlightBytes() {
+        return inFlightBytes.get();
+    }
+
+    /**
+     * Must only be called from a single thread: the one reading the slot,
+     * or the one draining the {@link SpillStage} when records are spilled.
+     *
+     * @param outstandingRecords number of records outstanding in the producer
+     * @return whether reading the slot should pause
+     */
+    public boolean isPaused(final long outstandingRecords) {
+        final long bytes = inFlightBytes.get();
+        if (paused) {
+            paused = outstandingRecords > maxOutstandingRecords / 2
+                    || bytes > maxInFlightBytes / 2;
+        } else {
+            paused = outstandingRecords >= maxOutstandingRecords
+                    || bytes >= maxInFlightBytes;
+        }
+        return paused;
+    }
+}
@@ -0,0 +1,96 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+
+package com.disneystreaming.pg2k4j;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Spins for a while, then yields for a while, then parks for a time which
+ * doubles on every idle pass up to a maximum. Any pass which does work
+ * starts over with spinning, so latency stays low under load while an idle
+ * database costs next to no CPU.
+ */
+public class BackoffIdleStrategy implements IdleStrategy {
+
+    public static final int DEFAULT_MAX_SPINS = 100;
+    public static final int DEFAULT_MAX_YIELDS = 100;
+    public static final long DEFAULT_MIN_PARK_NANOS =
+            TimeUnit.MICROSECONDS.toNanos(1);
+    public static final long DEFAULT_MAX_PARK_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final int maxSpins;
+    private final int maxYields;
+    private final long minParkNanos;
+    private final long maxParkNanos;
+    private int spins;
+    private int yields;
+    private long parkNanos;
+
+    /**
+     * @param maxSpinsInput     idle passes to spin for
+     * @param maxYieldsInput    idle passes to yield for, after spinning
+     * @param minParkNanosInput time to park for on the first idle pass after
+     *                          yielding
+     * @param maxParkNanosInput time parking backs off to
+     */
+    public BackoffIdleStrategy(final int maxSpinsInput,
+                               final int maxYieldsInput,
+                               final long minParkNanosInput,
+                               final long maxParkNanosInput) {
+        this.maxSpins = maxSpinsInput;
+        this.maxYields = maxYieldsInput;
+        this.minParkNanos = minParkNanosInput;
+        this.maxParkNanos = maxParkNanosInput;
+        reset();
+    }
+
+    @Override
+    public void idle() {
+        if (spins < maxSpins) {
+            spins++;
+            Thread.onSpinWait();
+        } else if (yields < maxYields) {
+            yields++;
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(parkNanos);
+            parkNanos = Math.min(parkNanos * 2, maxParkNanos);
+        }
+    }
+
+    @Override
+    public void reset() {
+        spins = 0;
+        yields = 0;
+        parkNanos = minParkNanos;
+    }
+
+    long getParkNanos() {
+        return parkNanos;
+    }
+}
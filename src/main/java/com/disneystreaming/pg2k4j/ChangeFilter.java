@@ -0,0 +1,240 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+
+package com.disneystreaming.pg2k4j;
+
+import com.disneystreaming.pg2k4j.models.Change;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Client side view of the table, action, column and row filters configured
+ * in {@link ReplicationConfiguration}. Decoders consult it so that changes
+ * which were not filtered out on the server are dropped before any further
+ * work is done on them, and so that the values of columns which are not
+ * published are skipped rather than decoded.
+ */
+public class ChangeFilter {
+
+    private final Set<String> relevantTables;
+    private final Set<String> excludedTables;
+    private final Set<String> actions;
+    private final Map<String, Set<String>> includedColumns;
+    private final Map<String, Set<String>> excludedColumns;
+    private final RowFilter rowFilter;
+
+    /**
+     * @param relevantTablesInput tables to keep, null to keep all tables
+     * @param excludedTablesInput tables to drop, may be null
+     * @param actionsInput        kinds of change to keep, null to keep all
+     */
+    public ChangeFilter(final Set<String> relevantTablesInput,
+                        final Set<String> excludedTablesInput,
+                        final Set<String> actionsInput) {
+        this(relevantTablesInput, excludedTablesInput, actionsInput, null,
+                null);
+    }
+
+    /**
+     * @param relevantTablesInput  tables to keep, null to keep all tables
+     * @param excludedTablesInput  tables to drop, may be null
+     * @param actionsInput         kinds of change to keep, null to keep all
+     * @param includedColumnsInput by table, the only columns to keep, may
+     *                             be null
+     * @param excludedColumnsInput by table, columns to drop, may be null
+     */
+    public ChangeFilter(final Set<String> relevantTablesInput,
+                        final Set<String> excludedTablesInput,
+                        final Set<String> actionsInput,
+                        final Map<String, Set<String>> includedColumnsInput,
+                        final Map<String, Set<String>> excludedColumnsInput) {
+        this(relevantTablesInput, excludedTablesInput, actionsInput,
+                includedColumnsInput, excludedColumnsInput, null);
+    }
+
+    /**
+     * @param relevantTablesInput  tables to keep, null to keep all tables
+     * @param excludedTablesInput  tables to drop, may be null
+     * @param actionsInput         kinds of change to keep, null to keep all
+     * @param includedColumnsInput by table, the only columns to keep, may
+     *                             be null
+     * @param excludedColumnsInput by table, columns to drop, may be null
+     * @param rowFilterInput       rows to keep, null to keep all rows
+     */
+    public ChangeFilter(final Set<String> relevantTablesInput,
+                        final Set<String> excludedTablesInput,
+                        final Set<String> actionsInput,
+                        final Map<String, Set<String>> includedColumnsInput,
+                        final Map<String, Set<String>> excludedColumnsInput,
+                        final RowFilter rowFilterInput) {
+        this.relevantTables = relevantTablesInput;
+        this.excludedTables = excludedTablesInput;
+        this.actions = actionsInput;
+        this.includedColumns = nullIfEmpty(includedColumnsInput);
+        this.excludedColumns = nullIfEmpty(excludedColumnsInput);
+        this.rowFilter = rowFilterInput;
+    }
+
+    private static Map<String, Set<String>> nullIfEmpty(
+            final Map<String, Set<String>> columns) {
+        if (columns == null || columns.isEmpty()) {
+            return null;
+        }
+        return columns;
+    }
+
+    public static ChangeFilter fromConfiguration(
+            final ReplicationConfiguration replicationConfiguration) {
+        return new ChangeFilter(replicationConfiguration.getRelevantTables(),
+                replicationConfiguration.getExcludedTables(),
+                replicationConfiguration.getActions(),
+                replicationConfiguration.getIncludedColumns(),
+                replicationConfiguration.getExcludedColumns(),
+                RowFilter.fromConfiguration(replicationConfiguration));
+    }
+
+    public boolean isRelevantTable(final String table) {
+        return (relevantTables == null || relevantTables.contains(table))
+                && (excludedTables == null || !excludedTables.contains(table));
+    }
+
+    public boolean isRelevantAction(final String kind) {
+        return actions == null || actions.contains(kind);
+    }
+
+    public boolean isRelevant(final String kind, final String table) {
+        return isRelevantAction(kind) && isRelevantTable(table);
+    }
+
+    /**
+     * @return whether columns of any table may not be published
+     */
+    public boolean hasColumnFilters() {
+        return includedColumns != null || excludedColumns != null;
+    }
+
+    /**
+     * @param table name of the table
+     * @return whether some columns of the table may not be published
+     */
+    public boolean hasColumnFilter(final String table) {
+        return getIncludedColumns(table) != null
+                || getExcludedColumns(table) != null;
+    }
+
+    public boolean isRelevantColumn(final String table, final String column) {
+        final Set<String> included = getIncludedColumns(table);
+        final Set<String> excluded = getExcludedColumns(table);
+        return (included == null || included.contains(column))
+                && (excluded == null || !excluded.contains(column));
+    }
+
+    /**
+     * @param table       name of the table
+     * @param columnNames names of the columns of a row of the table
+     * @return for every column whether it is published, or null if they all
+     * are, so that rows can be projected with {@link #project(List,
+     * boolean[])} while they are decoded
+     */
+    public boolean[] getColumnMask(final String table,
+                                   final List<String> columnNames) {
+        if (table == null || columnNames == null
+                || !hasColumnFilter(table)) {
+            return null;
+        }
+        final boolean[] columnMask = new boolean[columnNames.size()];
+        for (int i = 0; i < columnMask.length; i++) {
+            columnMask[i] = isRelevantColumn(table, columnNames.get(i));
+        }
+        return columnMask;
+    }
+
+    /**
+     * @param columnData names, types or values of the columns of a row
+     * @param columnMask as returned by {@link #getColumnMask(String, List)}
+     * @param <T>        type of the column data
+     * @return the data of the published columns
+     */
+    public static <T> List<T> project(final List<T> columnData,
+                                      final boolean[] columnMask) {
+        if (columnData == null || columnMask == null) {
+            return columnData;
+        }
+        final List<T> projected = new ArrayList<>(columnData.size());
+        for (int i = 0; i < columnData.size(); i++) {
+            if (i >= columnMask.length || columnMask[i]) {
+                projected.add(columnData.get(i));
+            }
+        }
+        return projected;
+    }
+
+    /**
+     * @param table name of the table
+     * @return the only columns of the table to publish, or null
+     */
+    public Set<String> getIncludedColumns(final String table) {
+        if (includedColumns == null) {
+            return null;
+        }
+        return includedColumns.get(table);
+    }
+
+    /**
+     * @param table name of the table
+     * @return columns of the table never to publish, or null
+     */
+    public Set<String> getExcludedColumns(final String table) {
+        if (excludedColumns == null) {
+            return null;
+        }
+        return excludedColumns.get(table);
+    }
+
+    /**
+     * @param change a change which passed the table and action filters
+     * @return whether the row it holds passes the row filter of its table
+     */
+    public boolean isRelevantRow(final Change change) {
+        return rowFilter == null || rowFilter.test(change);
+    }
+
+    public boolean hasRowFilters() {
+        return rowFilter != null;
+    }
+
+    /**
+     * @return whether every change is relevant, in which case decoders can
+     * skip consulting the filter altogether
+     */
+    public boolean isPassAll() {
+        return relevantTables == null && excludedTables == null
+                && actions == null && !hasColumnFilters()
+                && !hasRowFilters();
+    }
+}
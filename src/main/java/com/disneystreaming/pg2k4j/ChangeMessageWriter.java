@@ -0,0 +1,87 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+
+package com.disneystreaming.pg2k4j;
+
+import com.disneystreaming.pg2k4j.models.Change;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.BiConsumer;
+
+/**
+ * {@link SlotMessageHandler} which serializes every change it receives on
+ * its own, as a {@link com.disneystreaming.pg2k4j.models.SlotMessage}
+ * holding just that change, and passes it to the payload consumer together
+ * with the change it was serialized from. Unlike {@link SlotMessageWriter},
+ * nothing is buffered until the transaction commits.
+ */
+public class ChangeMessageWriter implements SlotMessageHandler {
+
+    private static final String XID_FIELD = "xid";
+    private static final String CHANGE_FIELD = "change";
+
+    private final ObjectMapper objectMapper;
+    private final ObjectWriter changeWriter;
+    private final BiConsumer<Change, ByteBuffer> payloadConsumer;
+    private long xid;
+
+    public ChangeMessageWriter(
+            final ObjectMapper objectMapperInput,
+            final BiConsumer<Change, ByteBuffer> payloadConsumerInput) {
+        this.objectMapper = objectMapperInput;
+        this.changeWriter = objectMapperInput.writerFor(Change.class);
+        this.payloadConsumer = payloadConsumerInput;
+    }
+
+    @Override
+    public void onBegin(final long xidInput) {
+        this.xid = xidInput;
+    }
+
+    @Override
+    public void onChange(final Change change) throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (JsonGenerator generator = objectMapper.getFactory()
+                .createGenerator(outputStream)) {
+            generator.writeStartObject();
+            generator.writeNumberField(XID_FIELD, xid);
+            generator.writeArrayFieldStart(CHANGE_FIELD);
+            changeWriter.writeValue(generator, change);
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+        payloadConsumer.accept(change,
+                ByteBuffer.wrap(outputStream.toByteArray()));
+    }
+
+    @Override
+    public void onCommit() {
+    }
+}
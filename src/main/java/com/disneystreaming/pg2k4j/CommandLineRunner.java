@@ -10,7 +10,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import picocli.CommandLine;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 public class CommandLineRunner implements
         PostgresConfiguration,
@@ -146,6 +153,410 @@ public class CommandLineRunner implements
     )
     private String slotName;
 
+    @CommandLine.Option(
+            names = {"--outputplugin"},
+            description = "Logical decoding output plugin to read changes "
+                    + "with. Either wal2json or pgoutput.",
+            required = false,
+            defaultValue = ReplicationConfiguration.DEFAULT_OUTPUT_PLUGIN
+    )
+    private String outputPlugin;
+
+    @CommandLine.Option(
+            names = {"--publicationname"},
+            description = "Publication to stream changes for when using the "
+                    + "pgoutput plugin. Created if it does not exist.",
+            required = false,
+            defaultValue = ReplicationConfiguration.DEFAULT_PUBLICATION_NAME
+    )
+    private String publicationName;
+
+    @CommandLine.Option(
+            names = {"--relevanttables"},
+            description = "Comma separated list of tables to publish changes"
+                    + " for. Changes to all tables are published if omitted.",
+            required = false,
+            split = ","
+    )
+    private Set<String> relevantTables;
+
+    @CommandLine.Option(
+            names = {"--excludedtables"},
+            description = "Comma separated list of tables to never publish "
+                    + "changes for.",
+            required = false,
+            split = ","
+    )
+    private Set<String> excludedTables;
+
+    @CommandLine.Option(
+            names = {"--actions"},
+            description = "Comma separated list of the kinds of change "
+                    + "(insert, update, delete) to publish. All kinds are "
+                    + "published if omitted.",
+            required = false,
+            split = ","
+    )
+    private Set<String> actions;
+
+    @CommandLine.Option(
+            names = {"--includedcolumns"},
+            description = "Comma separated list of the only columns of a "
+                    + "table to publish the values of, as table=columns. "
+                    + "May be repeated for several tables.",
+            required = false
+    )
+    private Map<String, String> includedColumns;
+
+    @CommandLine.Option(
+            names = {"--excludedcolumns"},
+            description = "Comma separated list of columns of a table to "
+                    + "never publish the values of, as table=columns. May be "
+                    + "repeated for several tables.",
+            required = false
+    )
+    private Map<String, String> excludedColumns;
+
+    @CommandLine.Option(
+            names = {"--rowfilter"},
+            description = "Condition the rows of a table have to meet to be "
+                    + "published, as table=condition, e.g. "
+                    + "orders=\"tenant_id in (1, 2) and deleted_at is null\". "
+                    + "May be repeated for several tables.",
+            required = false
+    )
+    private Map<String, String> rowFilters;
+
+    @CommandLine.Option(
+            names = {"--pushdownfilters"},
+            description = "Whether table, action and column filters are "
+                    + "applied by the output plugin on the server, as far as "
+                    + "it supports them. Only enable for wal2json "
+                    + "versions with add-tables, filter-tables and "
+                    + "actions support, as older ones reject them.",
+            required = false,
+            arity = "1",
+            defaultValue = "false"
+    )
+    private boolean pushDownFilters;
+
+    @CommandLine.Option(
+            names = {"--rawpassthrough"},
+            description = "Put wal2json output on the stream as is, without "
+                    + "parsing it. Ignored when using pgoutput or when "
+                    + "filters are configured but not pushed down.",
+            required = false
+    )
+    private boolean rawPassthrough;
+
+    @CommandLine.Option(
+            names = {"--recordperchange"},
+            description = "Put every change on the stream as a record of "
+                    + "its own, partitioned by table and primary key, "
+                    + "rather than one record per transaction.",
+            required = false
+    )
+    private boolean recordPerChange;
+
+    @CommandLine.Option(
+            names = {"--schemadeltaencoding"},
+            description = "Put a schema message on the stream for every "
+                    + "shape of a table, and leave column names and types "
+                    + "out of the changes referring to it. Consumers decode "
+                    + "them with SchemaDeltaDecoder. Requires "
+                    + "--recordperchange.",
+            required = false
+    )
+    private boolean schemaDeltaEncoding;
+
+    @CommandLine.Option(
+            names = {"--schemaannounceintervalmillis"},
+            description = "Longest time a schema message is not put on a "
+                    + "shard again with --schemadeltaencoding, so that "
+                    + "consumers which start reading a shard past it learn "
+                    + "it within that time.",
+            required = false,
+            defaultValue = "60000"
+    )
+    private long schemaAnnounceIntervalMillis;
+
+    @CommandLine.Option(
+            names = {"--wal2jsonformatversion"},
+            description = "wal2json output format, 1 for one JSON object "
+                    + "per transaction or 2 for one JSON object per row. "
+                    + "Version 2 streams large transactions as they are "
+                    + "decoded.",
+            required = false,
+            defaultValue = "1"
+    )
+    private int wal2JsonFormatVersion;
+
+    @CommandLine.Option(
+            names = {"--wal2jsonwriteinchunks"},
+            description = "Have wal2json write format version 1 output "
+                    + "after every change rather than buffering whole "
+                    + "transactions on the server.",
+            required = false
+    )
+    private boolean wal2JsonWriteInChunks;
+
+    @CommandLine.Option(
+            names = {"--initialsnapshot"},
+            description = "When creating the slot, export a snapshot and "
+                    + "put every row of the relevant tables on the stream "
+                    + "as a read change before streaming starts.",
+            required = false
+    )
+    private boolean initialSnapshot;
+
+    @CommandLine.Option(
+            names = {"--snapshotstatedirectory"},
+            description = "Local directory recording how far the initial "
+                    + "snapshot was read, so that a slot whose snapshot was "
+                    + "not read in full is created again. Defaults to the "
+                    + "spill directory, or to the working directory without "
+                    + "one.",
+            required = false
+    )
+    private String snapshotStateDirectory;
+
+    @CommandLine.Option(
+            names = {"--snapshotworkers"},
+            description = "Number of connections reading the initial "
+                    + "snapshot in parallel.",
+            required = false,
+            defaultValue = "4"
+    )
+    private int snapshotWorkers;
+
+    @CommandLine.Option(
+            names = {"--snapshotrangerows"},
+            description = "Approximate number of rows in each primary key "
+                    + "range a table is split into for the initial "
+                    + "snapshot.",
+            required = false,
+            defaultValue = "100000"
+    )
+    private long snapshotRangeRows;
+
+    @CommandLine.Option(
+            names = {"--incrementalsnapshots"},
+            description = "Snapshot the tables requested with "
+                    + "pg_logical_emit_message(false, 'pg2k4j.snapshot', "
+                    + "'schema.table') in chunks, while streaming. Requires "
+                    + "the output plugin to emit logical decoding messages, "
+                    + "as wal2json does in both formats and pgoutput does "
+                    + "from Postgres 14.",
+            required = false
+    )
+    private boolean incrementalSnapshots;
+
+    @CommandLine.Option(
+            names = {"--incrementalsnapshotchunkrows"},
+            description = "Number of rows read in each chunk of an "
+                    + "incremental snapshot.",
+            required = false,
+            defaultValue = "1024"
+    )
+    private int incrementalSnapshotChunkRows;
+
+    @CommandLine.Option(
+            names = {"--acknowledgementwindowsize"},
+            description = "Maximum number of records in flight to Kinesis "
+                    + "at once. The slot is only flushed up to the last "
+                    + "record for which it and every record before it were "
+                    + "acknowledged.",
+            required = false,
+            defaultValue = "65536"
+    )
+    private int acknowledgementWindowSize;
+
+    @CommandLine.Option(
+            names = {"--maxoutstandingrecords"},
+            description = "Number of records outstanding in the Kinesis "
+                    + "producer at which reading the slot pauses. Reading "
+                    + "resumes once half as many are left.",
+            required = false,
+            defaultValue = "10000"
+    )
+    private long maxOutstandingRecords;
+
+    @CommandLine.Option(
+            names = {"--maxinflightbytes"},
+            description = "Number of bytes in flight to Kinesis at which "
+                    + "reading the slot pauses. Reading resumes once half as "
+                    + "many are left.",
+            required = false,
+            defaultValue = "67108864"
+    )
+    private long maxInFlightBytes;
+
+    @CommandLine.Option(
+            names = {"--pipelineworkers"},
+            description = "Number of threads decoding wal2json messages in "
+                    + "parallel. Messages are still put on the stream in "
+                    + "order. Ignored when using pgoutput.",
+            required = false,
+            defaultValue = "1"
+    )
+    private int pipelineWorkers;
+
+    @CommandLine.Option(
+            names = {"--pipelinedepth"},
+            description = "Number of messages which can be waiting to be "
+                    + "decoded before reading the slot pauses.",
+            required = false,
+            defaultValue = "1024"
+    )
+    private int pipelineDepth;
+
+    @CommandLine.Option(
+            names = {"--partitionkeystrategy"},
+            description = "How records are spread over shards. random "
+                    + "(default): at random. shardrange: at random, one "
+                    + "hash key per shard, requires --shardcount. "
+                    + "keycolumns: by primary key when a record holds a "
+                    + "single change, at random otherwise. legacy: the "
+                    + "original, slower, random partitioning.",
+            required = false,
+            defaultValue = ReplicationConfiguration
+                    .DEFAULT_PARTITION_KEY_STRATEGY
+    )
+    private String partitionKeyStrategy;
+
+    @CommandLine.Option(
+            names = {"--shardcount"},
+            description = "Number of shards of the stream, which must evenly "
+                    + "split the hash key space.",
+            required = false
+    )
+    private int shardCount;
+
+    @CommandLine.Option(
+            names = {"--streamroute"},
+            description = "Put the changes of the tables matching a regular "
+                    + "expression on another stream, as "
+                    + "schema\\.table_pattern=stream, optionally followed by "
+                    + ":strategy and, for shardrange, :shardcount. Can be "
+                    + "repeated, the first matching route wins. Requires "
+                    + "--recordperchange.",
+            required = false
+    )
+    private List<String> streamRoutes;
+
+    @CommandLine.Option(
+            names = {"--idlestrategy"},
+            description = "How the read loop waits when there is nothing to "
+                    + "read. backoff: spin, then yield, then park for "
+                    + "exponentially longer. spin: never stop spinning.",
+            required = false,
+            defaultValue = ReplicationConfiguration.DEFAULT_IDLE_STRATEGY
+    )
+    private String idleStrategy;
+
+    @CommandLine.Option(
+            names = {"--idlemaxparkmicros"},
+            description = "Longest time the backoff idle strategy parks the "
+                    + "read loop for, in microseconds.",
+            required = false,
+            defaultValue = "10000"
+    )
+    private long idleMaxParkMicros;
+
+    @CommandLine.Option(
+            names = {"--reconnectminbackoffmillis"},
+            description = "Shortest delay before reconnecting to postgres "
+                    + "after the replication stream failed.",
+            required = false,
+            defaultValue = "50"
+    )
+    private long reconnectMinBackoffMillis;
+
+    @CommandLine.Option(
+            names = {"--reconnectmaxbackoffmillis"},
+            description = "Longest delay before reconnecting to postgres. "
+                    + "The delay doubles, with jitter, on every consecutive "
+                    + "failure up to this value.",
+            required = false,
+            defaultValue = "30000"
+    )
+    private long reconnectMaxBackoffMillis;
+
+    @CommandLine.Option(
+            names = {"--spilldirectory"},
+            description = "Directory to spill records to before putting "
+                    + "them on the stream. Records are acknowledged to the "
+                    + "slot once spilled, so a backlog builds up in this "
+                    + "directory rather than in the WAL while Kinesis falls "
+                    + "behind. Records are put on the stream directly if "
+                    + "omitted.",
+            required = false
+    )
+    private String spillDirectory;
+
+    @CommandLine.Option(
+            names = {"--spillsegmentbytes"},
+            description = "Size of each file records are spilled to.",
+            required = false,
+            defaultValue = "67108864"
+    )
+    private int spillSegmentBytes;
+
+    @CommandLine.Option(
+            names = {"--spillmaxbytes"},
+            description = "Total size of spill files past which reading the "
+                    + "slot pauses.",
+            required = false,
+            defaultValue = "8589934592"
+    )
+    private long spillMaxBytes;
+
+    @CommandLine.Option(
+            names = {"--batchmaxbytes"},
+            description = "Pack serialized messages into records of up to "
+                    + "this many bytes, e.g. 1000000. Consumers split them "
+                    + "up with SlotMessageBatchDecoder. Each message is put "
+                    + "in a record of its own if 0. Must not exceed "
+                    + "--maxrecordbytes. Does not apply with "
+                    + "--recordperchange.",
+            required = false,
+            defaultValue = "0"
+    )
+    private int batchMaxBytes;
+
+    @CommandLine.Option(
+            names = {"--batchmaxdelaymillis"},
+            description = "Longest time a message waits for a batch to fill "
+                    + "up.",
+            required = false,
+            defaultValue = "100"
+    )
+    private long batchMaxDelayMillis;
+
+    @CommandLine.Option(
+            names = {"--maxrecordbytes"},
+            description = "Largest record to put on the stream. Larger "
+                    + "messages are split into ordered chunks, which "
+                    + "consumers put back together with "
+                    + "SlotMessageReassembler.",
+            required = false,
+            defaultValue = "1000000"
+    )
+    private int maxRecordBytes;
+
+    @CommandLine.Option(
+            names = {"--messageflushbytes"},
+            description = "Size from which the changes of a transaction "
+                    + "serialized so far are put on the stream as a message "
+                    + "of their own, sharing the xid of the transaction. "
+                    + "Every transaction is a single message, held in "
+                    + "memory until it commits, if 0. Does not apply with "
+                    + "--recordperchange.",
+            required = false,
+            defaultValue = "0"
+    )
+    private int messageFlushBytes;
+
     @CommandLine.Option(
             names = {"--pgsslmode"},
             description = "Refer to "
@@ -216,6 +627,17 @@ public class CommandLineRunner implements
         }
     }
 
+    private static Map<String, Set<String>> toColumnSets(
+            final Map<String, String> columns) {
+        if (columns == null) {
+            return null;
+        }
+        final Map<String, Set<String>> columnSets = new HashMap<>();
+        columns.forEach((table, names) -> columnSets.put(table,
+                new HashSet<>(Arrays.asList(names.split(",")))));
+        return columnSets;
+    }
+
     private static String makeProfile(final String awsProfile) {
         final String prefix = "profile ";
         if (!awsProfile.startsWith(prefix)) {
@@ -248,6 +670,209 @@ public class CommandLineRunner implements
         return slotName;
     }
 
+    @Override
+    public String getOutputPlugin() {
+        return outputPlugin;
+    }
+
+    @Override
+    public String getPublicationName() {
+        return publicationName;
+    }
+
+    @Override
+    public Set<String> getRelevantTables() {
+        return relevantTables;
+    }
+
+    @Override
+    public Set<String> getExcludedTables() {
+        return excludedTables;
+    }
+
+    @Override
+    public Set<String> getActions() {
+        return actions;
+    }
+
+    @Override
+    public Map<String, Set<String>> getIncludedColumns() {
+        return toColumnSets(includedColumns);
+    }
+
+    @Override
+    public Map<String, Set<String>> getExcludedColumns() {
+        return toColumnSets(excludedColumns);
+    }
+
+    @Override
+    public Map<String, String> getRowFilters() {
+        return rowFilters;
+    }
+
+    @Override
+    public boolean getPushDownFilters() {
+        return pushDownFilters;
+    }
+
+    @Override
+    public boolean getRawPassthrough() {
+        return rawPassthrough;
+    }
+
+    @Override
+    public boolean getRecordPerChange() {
+        return recordPerChange;
+    }
+
+    @Override
+    public boolean getSchemaDeltaEncoding() {
+        return schemaDeltaEncoding;
+    }
+
+    @Override
+    public long getSchemaAnnounceIntervalMillis() {
+        return schemaAnnounceIntervalMillis;
+    }
+
+    @Override
+    public int getWal2JsonFormatVersion() {
+        return wal2JsonFormatVersion;
+    }
+
+    @Override
+    public boolean getWal2JsonWriteInChunks() {
+        return wal2JsonWriteInChunks;
+    }
+
+    @Override
+    public boolean getInitialSnapshot() {
+        return initialSnapshot;
+    }
+
+    @Override
+    public String getSnapshotStateDirectory() {
+        if (snapshotStateDirectory == null) {
+            return ReplicationConfiguration.super.getSnapshotStateDirectory();
+        }
+        return snapshotStateDirectory;
+    }
+
+    @Override
+    public int getSnapshotWorkers() {
+        return snapshotWorkers;
+    }
+
+    @Override
+    public long getSnapshotRangeRows() {
+        return snapshotRangeRows;
+    }
+
+    @Override
+    public boolean getIncrementalSnapshots() {
+        return incrementalSnapshots;
+    }
+
+    @Override
+    public int getIncrementalSnapshotChunkRows() {
+        return incrementalSnapshotChunkRows;
+    }
+
+    @Override
+    public int getAcknowledgementWindowSize() {
+        return acknowledgementWindowSize;
+    }
+
+    @Override
+    public long getMaxOutstandingRecords() {
+        return maxOutstandingRecords;
+    }
+
+    @Override
+    public long getMaxInFlightBytes() {
+        return maxInFlightBytes;
+    }
+
+    @Override
+    public int getPipelineWorkers() {
+        return pipelineWorkers;
+    }
+
+    @Override
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    @Override
+    public String getPartitionKeyStrategy() {
+        return partitionKeyStrategy;
+    }
+
+    @Override
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    @Override
+    public List<String> getStreamRoutes() {
+        return streamRoutes;
+    }
+
+    @Override
+    public String getIdleStrategy() {
+        return idleStrategy;
+    }
+
+    @Override
+    public long getIdleMaxParkNanos() {
+        return TimeUnit.MICROSECONDS.toNanos(idleMaxParkMicros);
+    }
+
+    @Override
+    public long getReconnectMinBackoffMillis() {
+        return reconnectMinBackoffMillis;
+    }
+
+    @Override
+    public long getReconnectMaxBackoffMillis() {
+        return reconnectMaxBackoffMillis;
+    }
+
+    @Override
+    public String getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    @Override
+    public int getSpillSegmentBytes() {
+        return spillSegmentBytes;
+    }
+
+    @Override
+    public long getSpillMaxBytes() {
+        return spillMaxBytes;
+    }
+
+    @Override
+    public int getBatchMaxBytes() {
+        return batchMaxBytes;
+    }
+
+    @Override
+    public long getBatchMaxDelayMillis() {
+        return batchMaxDelayMillis;
+    }
+
+    @Override
+    public int getMaxRecordBytes() {
+        return maxRecordBytes;
+    }
+
+    @Override
+    public int getMessageFlushBytes() {
+        return messageFlushBytes;
+    }
+
     @Override
     public String getHost() {
         return pgHost;
@@ -0,0 +1,95 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+
+package com.disneystreaming.pg2k4j;
+
+import com.amazonaws.services.kinesis.producer.UserRecord;
+import com.disneystreaming.pg2k4j.models.Change;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Splits the 128 bit hash key space of the stream into equal ranges and
+ * puts every record at the middle of a range picked at random. The explicit
+ * hash keys and partition keys of the ranges are computed up front, so that
+ * nothing but the record itself is allocated per record.
+ * <p>
+ * When the number of ranges matches the number of shards of a stream whose
+ * shards evenly split the hash key space, every range falls within exactly
+ * one shard, so records are spread evenly over the shards.
+ */
+public class HashKeyRangePartitionKeyStrategy
+        implements PartitionKeyStrategy {
+
+    private static final int hashKeyBits = 128;
+
+    private final String[] partitionKeys;
+    private final String[] explicitHashKeys;
+
+    /**
+     * @param ranges number of ranges to split the hash key space into
+     */
+    public HashKeyRangePartitionKeyStrategy(final int ranges) {
+        if (ranges < 1) {
+            throw new IllegalArgumentException(
+                    "Number of hash key ranges must be positive, was "
+                            + ranges);
+        }
+        this.partitionKeys = new String[ranges];
+        this.explicitHashKeys = new String[ranges];
+        final BigInteger doubleRanges = BigInteger.valueOf(2L * ranges);
+        for (int i = 0; i < ranges; i++) {
+            partitionKeys[i] = Integer.toString(i);
+            explicitHashKeys[i] = BigInteger.ONE.shiftLeft(hashKeyBits)
+                    .multiply(BigInteger.valueOf(2L * i + 1))
+                    .divide(doubleRanges).toString();
+        }
+    }
+
+    @Override
+    public UserRecord createUserRecord(final String streamName,
+                                       final Change change,
+                                       final ByteBuffer data) {
+        return createUserRecord(streamName,
+                ThreadLocalRandom.current().nextInt(partitionKeys.length),
+                data);
+    }
+
+    UserRecord createUserRecord(final String streamName, final int range,
+                                final ByteBuffer data) {
+        return new UserRecord(streamName, partitionKeys[range],
+                explicitHashKeys[range], data);
+    }
+
+    int getRanges() {
+        return partitionKeys.length;
+    }
+
+    String getExplicitHashKey(final int range) {
+        return explicitHashKeys[range];
+    }
+}
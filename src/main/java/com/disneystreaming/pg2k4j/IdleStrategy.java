@@ -0,0 +1,68 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+
+package com.disneystreaming.pg2k4j;
+
+/**
+ * Decides how the thread reading the slot waits when a pass of the read loop
+ * found nothing to do, trading latency against CPU use.
+ */
+public interface IdleStrategy {
+
+    String BACKOFF = "backoff";
+    String SPIN = "spin";
+
+    /**
+     * Called after a pass of the read loop which found nothing to do.
+     */
+    void idle();
+
+    /**
+     * Called after a pass of the read loop which did some work.
+     */
+    void reset();
+
+    /**
+     * @param replicationConfiguration {@link ReplicationConfiguration}
+     * @return the configured idle strategy
+     */
+    static IdleStrategy fromConfiguration(
+            final ReplicationConfiguration replicationConfiguration) {
+        final String name = replicationConfiguration.getIdleStrategy();
+        switch (name) {
+            case BACKOFF:
+                return new BackoffIdleStrategy(
+                        BackoffIdleStrategy.DEFAULT_MAX_SPINS,
+                        BackoffIdleStrategy.DEFAULT_MAX_YIELDS,
+                        BackoffIdleStrategy.DEFAULT_MIN_PARK_NANOS,
+                        replicationConfiguration.getIdleMaxParkNanos());
+            case SPIN:
+                return new BusySpinIdleStrategy();
+            default:
+                throw new IllegalArgumentException(
+                        "Unknown idle strategy " + name);
+        }
+    }
+}
@@ -0,0 +1,465 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import com.disneystreaming.pg2k4j.models.Change;
+import org.postgresql.replication.LogSequenceNumber;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+/**
+ * Snapshots tables while the slot keeps streaming, without holding a
+ * transaction open, following DBLog's watermark algorithm.
+ * <p>
+ * A snapshot is requested by writing a logical decoding message
+ * <pre>
+ * select pg_logical_emit_message(false, 'pg2k4j.snapshot', 'schema.table')
+ * </pre>
+ * and reaches pg2k4j through the slot, like any change. The table is then
+ * read in chunks of its primary key, in order, one chunk at a time. Each
+ * chunk is selected between a low and a high watermark message written to
+ * the WAL, so that when the watermarks come back through the slot, the
+ * changes streamed between them are exactly those which may have been made
+ * around the time the chunk was read. Rows of the chunk such a change
+ * touches are dropped, as the stream already carries a newer version of
+ * them, and the remaining rows are passed on as {@link InitialSnapshot}
+ * reads when the high watermark is streamed. At most one chunk is held in
+ * memory.
+ * <p>
+ * The next chunk is only read once the rows of the previous one were
+ * confirmed, so a chunk whose rows failed to be put on the stream is read
+ * again after reconnecting. Progress is not kept across restarts: a
+ * snapshot interrupted by one has to be requested again.
+ * <p>
+ * Everything happens on the thread reading the slot: chunks are read by
+ * {@link #poll(PostgresConnector, LogSequenceNumber)}, and watermarks are
+ * handled by the {@link SlotMessageHandler} returned by
+ * {@link #wrap(SlotMessageHandler, Supplier)}.
+ */
+public class IncrementalSnapshot {
+
+    public static final String SIGNAL_PREFIX = "pg2k4j.snapshot";
+    public static final String WATERMARK_PREFIX = "pg2k4j.watermark";
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(IncrementalSnapshot.class);
+
+    private static final String LOW_WATERMARK = "low:";
+    private static final String HIGH_WATERMARK = "high:";
+    private static final String DEFAULT_SCHEMA = "public";
+    private static final long SNAPSHOT_XID = 0;
+
+    private final ChangeFilter changeFilter;
+    private final int chunkRows;
+    private final Deque<String> requestedTables = new ArrayDeque<>();
+    private InitialSnapshot.SnapshotTable table;
+    private List<String> lowerKey;
+    private Chunk chunk;
+
+    public IncrementalSnapshot(
+            final ReplicationConfiguration replicationConfiguration) {
+        this.changeFilter =
+                ChangeFilter.fromConfiguration(replicationConfiguration);
+        this.chunkRows =
+                replicationConfiguration.getIncrementalSnapshotChunkRows();
+    }
+
+    /**
+     * Queue a table to snapshot, unless it already is.
+     *
+     * @param qualifiedName `schema.table`, or `table` for a table in the
+     *                      public schema
+     */
+    void request(final String qualifiedName) {
+        if (qualifiedName == null
+                || requestedTables.contains(qualifiedName)
+                || (table != null && qualifiedName.equals(
+                table.getSchema() + "." + table.getName()))) {
+            return;
+        }
+        logger.info("Snapshot of {} requested", qualifiedName);
+        requestedTables.add(qualifiedName);
+    }
+
+    /**
+     * Read the next chunk, unless the current one was not confirmed yet.
+     *
+     * @param postgresConnector {@link PostgresConnector}
+     * @param confirmedLsn      LSN up to which every record was confirmed
+     * @throws SQLException
+     */
+    void poll(final PostgresConnector postgresConnector,
+              final LogSequenceNumber confirmedLsn) throws SQLException {
+        if (chunk != null) {
+            if (!chunk.isConfirmed(confirmedLsn)) {
+                return;
+            }
+            completeChunk();
+        }
+        final Connection connection = postgresConnector.getQueryConnection();
+        while (table == null && !requestedTables.isEmpty()) {
+            table = findTable(connection, requestedTables.poll());
+            lowerKey = null;
+        }
+        if (table == null) {
+            return;
+        }
+        final String id = UUID.randomUUID().toString();
+        postgresConnector.emitMessage(WATERMARK_PREFIX, LOW_WATERMARK + id);
+        final Chunk selected = selectChunk(connection, id);
+        postgresConnector.emitMessage(WATERMARK_PREFIX, HIGH_WATERMARK + id);
+        chunk = selected;
+    }
+
+    /**
+     * Forget the chunk being read when the connection is lost, as its
+     * watermarks may never be streamed. It is read again, unless its rows
+     * were already confirmed.
+     *
+     * @param confirmedLsn LSN up to which every record was confirmed
+     */
+    void reset(final LogSequenceNumber confirmedLsn) {
+        if (chunk != null && chunk.isConfirmed(confirmedLsn)) {
+            completeChunk();
+        }
+        chunk = null;
+    }
+
+    /**
+     * @param delegate    {@link SlotMessageHandler} receiving the changes
+     * @param lsnSupplier supplies the LSN of the message being decoded
+     * @return a handler which passes everything on to the delegate, taking
+     * note of snapshot requests and watermarks along the way
+     */
+    SlotMessageHandler wrap(final SlotMessageHandler delegate,
+                            final Supplier<LogSequenceNumber> lsnSupplier) {
+        return new WatermarkHandler(delegate, lsnSupplier);
+    }
+
+    private void completeChunk() {
+        if (chunk.getSelectedRows() < chunkRows) {
+            logger.info("Finished snapshot of {}", table.getQualifiedName());
+            table = null;
+            lowerKey = null;
+        } else {
+            lowerKey = chunk.getLastKey();
+        }
+        chunk = null;
+    }
+
+    private InitialSnapshot.SnapshotTable findTable(
+            final Connection connection, final String qualifiedName)
+            throws SQLException {
+        String schema = DEFAULT_SCHEMA;
+        String name = qualifiedName;
+        final int dot = qualifiedName.indexOf('.');
+        if (dot != -1) {
+            schema = qualifiedName.substring(0, dot);
+            name = qualifiedName.substring(dot + 1);
+        }
+        if (!changeFilter.isRelevantTable(name)) {
+            logger.warn("Not snapshotting {} as it is not relevant",
+                    qualifiedName);
+            return null;
+        }
+        final InitialSnapshot.SnapshotTable found =
+                readTable(connection, schema, name);
+        if (found == null) {
+            logger.warn("Not snapshotting {} as it does not exist",
+                    qualifiedName);
+            return null;
+        }
+        if (found.getKeyNames().isEmpty()) {
+            logger.warn("Not snapshotting {} as it has no primary key",
+                    qualifiedName);
+            return null;
+        }
+        logger.info("Starting snapshot of {}", found.getQualifiedName());
+        return found;
+    }
+
+    InitialSnapshot.SnapshotTable readTable(final Connection connection,
+                                            final String schema,
+                                            final String name)
+            throws SQLException {
+        return InitialSnapshot.readTable(connection, schema, name,
+                changeFilter);
+    }
+
+    /**
+     * Select the next chunk of the table, in the order of its primary key,
+     * starting after the last row of the previous chunk.
+     *
+     * @param connection connection in autocommit mode
+     * @param id         id of the watermarks the chunk is selected between
+     * @return the chunk
+     * @throws SQLException
+     */
+    Chunk selectChunk(final Connection connection, final String id)
+            throws SQLException {
+        final List<String> columnNames = table.getColumnNames();
+        final List<String> keyNames = table.getKeyNames();
+        final int[] keyColumns = new int[keyNames.size()];
+        final List<String> keyColumnNames = new ArrayList<>();
+        final List<String> keyParameters = new ArrayList<>();
+        for (int i = 0; i < keyNames.size(); i++) {
+            keyColumns[i] = columnNames.indexOf(keyNames.get(i));
+            keyColumnNames.add(
+                    InitialSnapshot.quoteIdentifier(keyNames.get(i)));
+            keyParameters.add("?::" + table.getColumnTypes()
+                    .get(keyColumns[i]));
+        }
+        final StringBuilder sql = new StringBuilder("select ")
+                .append(table.getSelectList())
+                .append(" from ").append(table.getQualifiedName());
+        if (lowerKey != null) {
+            sql.append(" where (").append(String.join(", ", keyColumnNames))
+                    .append(") > (").append(String.join(", ", keyParameters))
+                    .append(")");
+        }
+        sql.append(" order by ").append(String.join(", ", keyColumnNames))
+                .append(" limit ").append(chunkRows);
+        final Chunk selected = new Chunk(id);
+        try (PreparedStatement st = connection.prepareStatement(
+                sql.toString())) {
+            if (lowerKey != null) {
+                for (int i = 0; i < lowerKey.size(); i++) {
+                    st.setString(i + 1, lowerKey.get(i));
+                }
+            }
+            try (ResultSet rs = st.executeQuery()) {
+                while (rs.next()) {
+                    final List<Object> values = new ArrayList<>();
+                    for (int i = 0; i < columnNames.size(); i++) {
+                        final String text = rs.getString(i + 1);
+                        if (text == null) {
+                            values.add(null);
+                        } else {
+                            values.add(table.bind(i, text));
+                        }
+                    }
+                    final List<String> keyText = new ArrayList<>();
+                    final List<Object> keyValues = new ArrayList<>();
+                    for (int keyColumn : keyColumns) {
+                        keyText.add(rs.getString(keyColumn + 1));
+                        keyValues.add(values.get(keyColumn));
+                    }
+                    selected.add(toKey(keyValues), table.toChange(values),
+                            keyText);
+                }
+            }
+        }
+        logger.debug("Selected {} rows of {}", selected.getSelectedRows(),
+                table.getQualifiedName());
+        return selected;
+    }
+
+    /**
+     * Drop the rows of the chunk a streamed change touched, whether by their
+     * current key, or by their new key for inserts and updates.
+     */
+    private void removeChangedRows(final Change change) {
+        if (!table.getSchema().equals(change.getSchema())
+                || !table.getName().equals(change.getTable())) {
+            return;
+        }
+        chunk.remove(toKey(change.getKeyvalues()));
+        final List<Object> newKey = new ArrayList<>();
+        for (String keyName : table.getKeyNames()) {
+            final int index = change.getTableSchema().indexOf(keyName);
+            if (index == -1) {
+                return;
+            }
+            newKey.add(change.getColumnvalues().get(index));
+        }
+        chunk.remove(toKey(newKey));
+    }
+
+    /**
+     * Values bound from wal2json and from Postgres' output functions may be
+     * of different classes, so keys are compared as strings.
+     */
+    private static List<String> toKey(final List<Object> keyValues) {
+        if (keyValues == null) {
+            return null;
+        }
+        final List<String> key = new ArrayList<>(keyValues.size());
+        for (Object keyValue : keyValues) {
+            key.add(String.valueOf(keyValue));
+        }
+        return key;
+    }
+
+    private final class WatermarkHandler implements SlotMessageHandler {
+        private final SlotMessageHandler delegate;
+        private final Supplier<LogSequenceNumber> lsnSupplier;
+        private boolean inTransaction;
+
+        WatermarkHandler(final SlotMessageHandler delegateInput,
+                         final Supplier<LogSequenceNumber> lsnSupplierInput) {
+            this.delegate = delegateInput;
+            this.lsnSupplier = lsnSupplierInput;
+        }
+
+        @Override
+        public void onBegin(final long xid) throws IOException {
+            inTransaction = true;
+            delegate.onBegin(xid);
+        }
+
+        @Override
+        public void onChange(final Change change) throws IOException {
+            if (chunk != null && chunk.isWindowOpen()) {
+                removeChangedRows(change);
+            }
+            delegate.onChange(change);
+        }
+
+        @Override
+        public void onCommit() throws IOException {
+            inTransaction = false;
+            delegate.onCommit();
+        }
+
+        @Override
+        public void onMessage(final String prefix, final String content)
+                throws IOException {
+            if (SIGNAL_PREFIX.equals(prefix)) {
+                request(content);
+            } else if (WATERMARK_PREFIX.equals(prefix) && chunk != null) {
+                onWatermark(content);
+            }
+            delegate.onMessage(prefix, content);
+        }
+
+        private void onWatermark(final String content) throws IOException {
+            if ((LOW_WATERMARK + chunk.getId()).equals(content)) {
+                chunk.openWindow();
+            } else if ((HIGH_WATERMARK + chunk.getId()).equals(content)
+                    && chunk.isWindowOpen()) {
+                final List<Change> rows = new ArrayList<>();
+                for (Change row : chunk.closeWindow(lsnSupplier.get())) {
+                    if (changeFilter.isRelevantRow(row)) {
+                        rows.add(row);
+                    }
+                }
+                if (rows.isEmpty()) {
+                    return;
+                }
+                if (!inTransaction) {
+                    delegate.onBegin(SNAPSHOT_XID);
+                }
+                for (Change row : rows) {
+                    delegate.onChange(row);
+                }
+                if (!inTransaction) {
+                    delegate.onCommit();
+                }
+            }
+        }
+    }
+
+    static final class Chunk {
+        private final String id;
+        private final Map<List<String>, Change> rows = new LinkedHashMap<>();
+        private int selectedRows;
+        private List<String> lastKey;
+        private boolean windowOpen;
+        private boolean emitted;
+        private int emittedRows;
+        private LogSequenceNumber emittedLsn;
+
+        Chunk(final String idInput) {
+            this.id = idInput;
+        }
+
+        void add(final List<String> key, final Change row,
+                 final List<String> keyText) {
+            rows.put(key, row);
+            selectedRows++;
+            lastKey = keyText;
+        }
+
+        void remove(final List<String> key) {
+            if (key != null) {
+                rows.remove(key);
+            }
+        }
+
+        void openWindow() {
+            windowOpen = true;
+        }
+
+        /**
+         * @param lsn LSN of the high watermark, which the rows are put on
+         *            the stream under
+         * @return the rows no change touched while the window was open
+         */
+        List<Change> closeWindow(final LogSequenceNumber lsn) {
+            windowOpen = false;
+            emitted = true;
+            emittedRows = rows.size();
+            emittedLsn = lsn;
+            final List<Change> remaining = new ArrayList<>(rows.values());
+            rows.clear();
+            return remaining;
+        }
+
+        boolean isConfirmed(final LogSequenceNumber confirmedLsn) {
+            return emitted && (emittedRows == 0
+                    || confirmedLsn.asLong() >= emittedLsn.asLong());
+        }
+
+        String getId() {
+            return id;
+        }
+
+        boolean isWindowOpen() {
+            return windowOpen;
+        }
+
+        int getSelectedRows() {
+            return selectedRows;
+        }
+
+        List<String> getLastKey() {
+            return lastKey;
+        }
+    }
+}
@@ -0,0 +1,736 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import com.disneystreaming.pg2k4j.models.Change;
+import com.disneystreaming.pg2k4j.models.InsertChange;
+import com.disneystreaming.pg2k4j.models.TableSchema;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyInputStream;
+import org.postgresql.replication.LogSequenceNumber;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Reads every row of the relevant tables as of the snapshot a slot exported
+ * when it was created, so that consumers of the stream start from the full
+ * contents of the database rather than from the changes made since.
+ * <p>
+ * Each table is split into ranges of its primary key, which are read
+ * concurrently by worker connections that all imported the exported
+ * snapshot with SET TRANSACTION SNAPSHOT, and therefore see exactly the rows
+ * the slot does not stream. Tables whose primary key is not a single
+ * integral column are read as a single range, concurrently with other
+ * tables. Ranges are read with COPY in binary format. Columns of the types
+ * {@link PgTypes} decodes the binary format of, such as integers, numerics,
+ * booleans and text, are copied as is, and others are rendered by the output
+ * function of their type, so that values are bound the same way as those
+ * wal2json writes.
+ * <p>
+ * Every row is handed to the {@link SlotMessageHandler} of the worker which
+ * read it as an {@link InsertChange} of kind {@value #READ_KIND}, within a
+ * single transaction with xid 0 spanning all the ranges the worker read.
+ * Each worker has a handler of its own, obtained from the supplier on the
+ * worker's thread.
+ */
+public class InitialSnapshot implements PostgresConnector.SnapshotReader {
+
+    public static final String READ_KIND = "read";
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(InitialSnapshot.class);
+
+    private static final byte[] BINARY_SIGNATURE = "PGCOPY\n\377\r\n\0"
+            .getBytes(StandardCharsets.ISO_8859_1);
+    private static final short END_OF_COPY = -1;
+    private static final int NULL_FIELD = -1;
+    private static final long SNAPSHOT_XID = 0;
+    private static final int COPY_BUFFER_BYTES = 64 * 1024;
+    private static final String COLUMNS_QUERY = "select n.nspname, c.relname,"
+            + " c.reltuples::bigint, a.attname, a.atttypid,"
+            + " format_type(a.atttypid, a.atttypmod),"
+            + " array_position(i.indkey::smallint[], a.attnum)"
+            + " from pg_class c"
+            + " join pg_namespace n on n.oid = c.relnamespace"
+            + " join pg_attribute a on a.attrelid = c.oid"
+            + " and a.attnum > 0 and not a.attisdropped"
+            + " left join pg_index i on i.indrelid = c.oid and i.indisprimary";
+    private static final String ORDER_BY =
+            " order by n.nspname, c.relname, a.attnum";
+    private static final String TABLES_QUERY = COLUMNS_QUERY
+            + " where c.relkind = 'r' and c.relpersistence = 'p'"
+            + " and n.nspname not in ('pg_catalog', 'information_schema')"
+            + ORDER_BY;
+    private static final String TABLE_QUERY = COLUMNS_QUERY
+            + " where c.relkind = 'r' and n.nspname = ? and c.relname = ?"
+            + ORDER_BY;
+
+    private final PostgresConfiguration postgresConfiguration;
+    private final ChangeFilter changeFilter;
+    private final int workers;
+    private final long rangeRows;
+    private final Supplier<SlotMessageHandler> handlerSupplier;
+
+    public InitialSnapshot(
+            final PostgresConfiguration postgresConfigurationInput,
+            final ReplicationConfiguration replicationConfiguration,
+            final Supplier<SlotMessageHandler> handlerSupplierInput) {
+        this.postgresConfiguration = postgresConfigurationInput;
+        this.changeFilter =
+                ChangeFilter.fromConfiguration(replicationConfiguration);
+        this.workers = replicationConfiguration.getSnapshotWorkers();
+        this.rangeRows = replicationConfiguration.getSnapshotRangeRows();
+        this.handlerSupplier = handlerSupplierInput;
+    }
+
+    /**
+     * Read the snapshot, returning once every worker is done. If a worker
+     * fails, the others stop after the range they are reading.
+     *
+     * @param snapshotName    name of the exported snapshot
+     * @param consistentPoint LSN the slot starts streaming from
+     * @throws SQLException
+     * @throws IOException
+     */
+    @Override
+    public void read(final String snapshotName,
+                     final LogSequenceNumber consistentPoint)
+            throws SQLException, IOException {
+        final List<SnapshotRange> ranges;
+        try (Connection connection = openSnapshotConnection(snapshotName)) {
+            ranges = planRanges(connection);
+        }
+        final int workerCount = Math.min(workers, ranges.size());
+        logger.info("Reading {} ranges of snapshot {} with {} workers",
+                ranges.size(), snapshotName, workerCount);
+        if (workerCount == 0) {
+            return;
+        }
+        final Queue<SnapshotRange> queue = new ConcurrentLinkedQueue<>(ranges);
+        final AtomicInteger workerNumber = new AtomicInteger();
+        final ExecutorService executorService = Executors.newFixedThreadPool(
+                workerCount, runnable -> {
+                    final Thread thread = new Thread(runnable,
+                            "pg2k4j-snapshot-"
+                                    + workerNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        try {
+            final List<Future<Long>> futures = new ArrayList<>();
+            for (int i = 0; i < workerCount; i++) {
+                futures.add(executorService.submit(
+                        () -> readRanges(snapshotName, queue)));
+            }
+            long rows = 0;
+            for (Future<Long> future : futures) {
+                rows += future.get();
+            }
+            logger.info("Read {} rows from snapshot {}", rows, snapshotName);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading snapshot "
+                    + snapshotName, ie);
+        } catch (ExecutionException ee) {
+            final Throwable cause = ee.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to read snapshot " + snapshotName,
+                    cause);
+        } finally {
+            queue.clear();
+            executorService.shutdown();
+            awaitTermination(executorService);
+        }
+    }
+
+    /**
+     * The work done by each worker: read ranges off the queue until it is
+     * empty, on a connection of its own.
+     *
+     * @param snapshotName name of the exported snapshot
+     * @param queue        ranges left to read
+     * @return number of rows read
+     * @throws SQLException
+     * @throws IOException
+     */
+    long readRanges(final String snapshotName,
+                    final Queue<SnapshotRange> queue)
+            throws SQLException, IOException {
+        final SlotMessageHandler handler = handlerSupplier.get();
+        long rows = 0;
+        try (Connection connection = openSnapshotConnection(snapshotName)) {
+            final PGConnection pgConnection =
+                    connection.unwrap(PGConnection.class);
+            handler.onBegin(SNAPSHOT_XID);
+            SnapshotRange range = queue.poll();
+            while (range != null) {
+                logger.debug("Reading {}", range);
+                try (DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(new PGCopyInputStream(
+                                pgConnection, range.getCopySql()),
+                                COPY_BUFFER_BYTES))) {
+                    rows += readRows(in, range.getTable(), changeFilter,
+                            handler);
+                }
+                range = queue.poll();
+            }
+            handler.onCommit();
+        } catch (SQLException | IOException | RuntimeException e) {
+            queue.clear();
+            throw e;
+        }
+        return rows;
+    }
+
+    /**
+     * Open a connection whose transaction sees the exported snapshot.
+     *
+     * @param snapshotName name of the exported snapshot
+     * @return the connection, in a read only repeatable read transaction
+     * @throws SQLException
+     */
+    Connection openSnapshotConnection(final String snapshotName)
+            throws SQLException {
+        final Connection connection = createConnection();
+        try {
+            connection.setAutoCommit(false);
+            connection.setTransactionIsolation(
+                    Connection.TRANSACTION_REPEATABLE_READ);
+            connection.setReadOnly(true);
+            try (Statement st = connection.createStatement()) {
+                st.execute("set transaction snapshot '" + snapshotName + "'");
+            }
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    Connection createConnection() throws SQLException {
+        return DriverManager.getConnection(postgresConfiguration.getUrl(),
+                postgresConfiguration.getQueryConnectionProperties());
+    }
+
+    /**
+     * @param connection connection seeing the exported snapshot
+     * @return the ranges to read, table by table
+     * @throws SQLException
+     */
+    List<SnapshotRange> planRanges(final Connection connection)
+            throws SQLException {
+        final List<SnapshotRange> ranges = new ArrayList<>();
+        for (SnapshotTable table : readTables(connection)) {
+            ranges.addAll(splitTable(connection, table));
+        }
+        return ranges;
+    }
+
+    private List<SnapshotTable> readTables(final Connection connection)
+            throws SQLException {
+        try (Statement st = connection.createStatement();
+             ResultSet rs = st.executeQuery(TABLES_QUERY)) {
+            return readTables(rs, changeFilter);
+        }
+    }
+
+    /**
+     * @param connection   connection to read the table's columns with
+     * @param schema       schema of the table
+     * @param name         name of the table
+     * @param changeFilter decides which of the table's columns are published
+     * @return the table, or null if there is no such table
+     * @throws SQLException
+     */
+    static SnapshotTable readTable(final Connection connection,
+                                   final String schema, final String name,
+                                   final ChangeFilter changeFilter)
+            throws SQLException {
+        try (PreparedStatement st = connection.prepareStatement(
+                TABLE_QUERY)) {
+            st.setString(1, schema);
+            st.setString(2, name);
+            try (ResultSet rs = st.executeQuery()) {
+                final List<SnapshotTable> tables =
+                        readTables(rs, changeFilter);
+                if (tables.isEmpty()) {
+                    return null;
+                }
+                return tables.get(0);
+            }
+        }
+    }
+
+    private static List<SnapshotTable> readTables(
+            final ResultSet rs, final ChangeFilter changeFilter)
+            throws SQLException {
+        final List<SnapshotTable> tables = new ArrayList<>();
+        SnapshotTable table = null;
+        while (rs.next()) {
+            final String schema = rs.getString(1);
+            final String name = rs.getString(2);
+            if (!changeFilter.isRelevantTable(name)) {
+                continue;
+            }
+            if (table == null || !table.schema.equals(schema)
+                    || !table.name.equals(name)) {
+                table = new SnapshotTable(schema, name, rs.getLong(3));
+                tables.add(table);
+            }
+            final String columnName = rs.getString(4);
+            final int keyPosition = rs.getInt(7);
+            final boolean published =
+                    changeFilter.isRelevantColumn(name, columnName);
+            if (!published && keyPosition == 0) {
+                continue;
+            }
+            final int typeOid = rs.getInt(5);
+            table.addColumn(columnName, rs.getString(6), typeOid,
+                    keyPosition, published);
+        }
+        return tables;
+    }
+
+    /**
+     * Split a table into ranges of its primary key holding about
+     * {@link ReplicationConfiguration#getSnapshotRangeRows()} rows each, as
+     * estimated from the table's statistics. Tables without statistics are
+     * split into as many ranges as there are workers.
+     */
+    private List<SnapshotRange> splitTable(final Connection connection,
+                                           final SnapshotTable table)
+            throws SQLException {
+        final SnapshotRange whole = new SnapshotRange(table, null, null);
+        long rangeCount = workers;
+        if (table.rowEstimate > 0) {
+            rangeCount = (table.rowEstimate + rangeRows - 1) / rangeRows;
+        }
+        if (!table.isSplittable() || rangeCount <= 1) {
+            return Collections.singletonList(whole);
+        }
+        final String key = quoteIdentifier(table.keyNames.get(0));
+        try (Statement st = connection.createStatement();
+             ResultSet rs = st.executeQuery("select min(" + key + "), max("
+                     + key + ") from " + table.getQualifiedName())) {
+            rs.next();
+            final long min = rs.getLong(1);
+            if (rs.wasNull()) {
+                return Collections.singletonList(whole);
+            }
+            final List<Long> bounds = split(min, rs.getLong(2), rangeCount);
+            final List<SnapshotRange> ranges = new ArrayList<>();
+            Long lower = null;
+            for (Long upper : bounds) {
+                ranges.add(new SnapshotRange(table, lower, upper));
+                lower = upper;
+            }
+            ranges.add(new SnapshotRange(table, lower, null));
+            return ranges;
+        }
+    }
+
+    /**
+     * @param min   smallest key
+     * @param max   largest key
+     * @param count number of ranges to split the keys into
+     * @return the distinct bounds between evenly sized ranges, each the
+     * lowest key of the range above it
+     */
+    static List<Long> split(final long min, final long max,
+                            final long count) {
+        final List<Long> bounds = new ArrayList<>();
+        final BigInteger lowest = BigInteger.valueOf(min);
+        final BigInteger width = BigInteger.valueOf(max).subtract(lowest);
+        long previous = min;
+        for (long i = 1; i < count; i++) {
+            final long bound = lowest.add(width
+                    .multiply(BigInteger.valueOf(i))
+                    .divide(BigInteger.valueOf(count)))
+                    .longValue();
+            if (bound > previous) {
+                bounds.add(bound);
+                previous = bound;
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * Read the rows of a binary COPY, handing each to the handler.
+     *
+     * @param in      binary COPY output
+     * @param table   table the rows are read from
+     * @param handler {@link SlotMessageHandler} receiving the rows
+     * @return number of rows read
+     * @throws IOException
+     */
+    static long readRows(final DataInputStream in, final SnapshotTable table,
+                         final SlotMessageHandler handler)
+            throws IOException {
+        return readRows(in, table, new ChangeFilter(null, null, null),
+                handler);
+    }
+
+    /**
+     * Read the rows of a binary COPY, handing those which pass the row
+     * filter of the table to the handler.
+     *
+     * @param in           binary COPY output
+     * @param table        table the rows are read from
+     * @param changeFilter decides which rows are published
+     * @param handler      {@link SlotMessageHandler} receiving the rows
+     * @return number of rows read
+     * @throws IOException
+     */
+    static long readRows(final DataInputStream in, final SnapshotTable table,
+                         final ChangeFilter changeFilter,
+                         final SlotMessageHandler handler)
+            throws IOException {
+        final byte[] signature = new byte[BINARY_SIGNATURE.length];
+        in.readFully(signature);
+        if (!Arrays.equals(BINARY_SIGNATURE, signature)) {
+            throw new IOException("Unexpected binary COPY signature");
+        }
+        in.readInt();
+        in.readFully(new byte[in.readInt()]);
+        long rows = 0;
+        short fieldCount = in.readShort();
+        while (fieldCount != END_OF_COPY) {
+            if (fieldCount != table.columnNames.size()) {
+                throw new IOException("Expected " + table.columnNames.size()
+                        + " fields but found " + fieldCount);
+            }
+            final List<Object> values = new ArrayList<>(fieldCount);
+            for (int i = 0; i < fieldCount; i++) {
+                final int length = in.readInt();
+                if (length == NULL_FIELD) {
+                    values.add(null);
+                } else {
+                    final byte[] bytes = new byte[length];
+                    in.readFully(bytes);
+                    values.add(table.bindBinary(i, bytes));
+                }
+            }
+            final Change change = table.toChange(values);
+            if (changeFilter.isRelevantRow(change)) {
+                handler.onChange(change);
+            }
+            rows++;
+            fieldCount = in.readShort();
+        }
+        return rows;
+    }
+
+    static String quoteIdentifier(final String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+
+    private static void awaitTermination(
+            final ExecutorService executorService) {
+        try {
+            executorService.awaitTermination(Long.MAX_VALUE,
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            executorService.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static final class SnapshotTable {
+        private final String schema;
+        private final String name;
+        private final long rowEstimate;
+        private final List<String> columnNames = new ArrayList<>();
+        private final List<String> columnTypes = new ArrayList<>();
+        private final List<Integer> typeOids = new ArrayList<>();
+        private final List<String> keyNames = new ArrayList<>();
+        private final List<Integer> keyPositions = new ArrayList<>();
+        private final List<String> publishedNames = new ArrayList<>();
+        private final List<String> publishedTypes = new ArrayList<>();
+        private final List<Boolean> published = new ArrayList<>();
+        private boolean projected;
+        private int keyTypeOid;
+        private TableSchema tableSchema;
+
+        SnapshotTable(final String schemaInput, final String nameInput,
+                      final long rowEstimateInput) {
+            this.schema = schemaInput;
+            this.name = nameInput;
+            this.rowEstimate = rowEstimateInput;
+        }
+
+        /**
+         * @param columnName  name of the column
+         * @param columnType  name of the column's type
+         * @param typeOid     oid of the column's type
+         * @param keyPosition position of the column in the primary key,
+         *                    starting at 1, or 0 if it is not part of it
+         */
+        void addColumn(final String columnName, final String columnType,
+                       final int typeOid, final int keyPosition) {
+            addColumn(columnName, columnType, typeOid, keyPosition, true);
+        }
+
+        /**
+         * @param columnName   name of the column
+         * @param columnType   name of the column's type
+         * @param typeOid      oid of the column's type
+         * @param keyPosition  position of the column in the primary key,
+         *                     starting at 1, or 0 if it is not part of it
+         * @param isPublished  whether the column's values are published, as
+         *                     opposed to only read to split the table by
+         */
+        void addColumn(final String columnName, final String columnType,
+                       final int typeOid, final int keyPosition,
+                       final boolean isPublished) {
+            columnNames.add(columnName);
+            columnTypes.add(columnType);
+            typeOids.add(typeOid);
+            published.add(isPublished);
+            if (isPublished) {
+                publishedNames.add(columnName);
+                publishedTypes.add(columnType);
+            } else {
+                projected = true;
+            }
+            if (keyPosition > 0) {
+                int index = 0;
+                while (index < keyPositions.size()
+                        && keyPositions.get(index) < keyPosition) {
+                    index++;
+                }
+                keyPositions.add(index, keyPosition);
+                keyNames.add(index, columnName);
+                keyTypeOid = typeOid;
+            }
+        }
+
+        /**
+         * @return whether the table is keyed by a single integral column
+         */
+        boolean isSplittable() {
+            return keyNames.size() == 1 && (keyTypeOid == PgTypes.INT2_OID
+                    || keyTypeOid == PgTypes.INT4_OID
+                    || keyTypeOid == PgTypes.INT8_OID);
+        }
+
+        String getSchema() {
+            return schema;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        List<String> getColumnNames() {
+            return columnNames;
+        }
+
+        List<String> getColumnTypes() {
+            return columnTypes;
+        }
+
+        List<String> getKeyNames() {
+            return keyNames;
+        }
+
+        String getQualifiedName() {
+            return quoteIdentifier(schema) + "." + quoteIdentifier(name);
+        }
+
+        /**
+         * @return the columns of the table, each rendered by the output
+         * function of its type, as format does, and nulls kept
+         */
+        String getSelectList() {
+            final StringBuilder selectList = new StringBuilder();
+            for (int i = 0; i < columnNames.size(); i++) {
+                final String column = quoteIdentifier(columnNames.get(i));
+                if (i > 0) {
+                    selectList.append(", ");
+                }
+                selectList.append("case when num_nulls(").append(column)
+                        .append(") = 0 then format('%s', ").append(column)
+                        .append(") end");
+            }
+            return selectList.toString();
+        }
+
+        /**
+         * @return the columns of the table for a binary COPY, those of a
+         * type {@link PgTypes} decodes the binary format of as they are, and
+         * others rendered as in {@link #getSelectList()}
+         */
+        String getCopySelectList() {
+            final StringBuilder selectList = new StringBuilder();
+            for (int i = 0; i < columnNames.size(); i++) {
+                final String column = quoteIdentifier(columnNames.get(i));
+                if (i > 0) {
+                    selectList.append(", ");
+                }
+                if (PgTypes.hasBinaryFormat(typeOids.get(i))) {
+                    selectList.append(column);
+                } else {
+                    selectList.append("case when num_nulls(").append(column)
+                            .append(") = 0 then format('%s', ")
+                            .append(column).append(") end");
+                }
+            }
+            return selectList.toString();
+        }
+
+        /**
+         * @param column index of the column
+         * @param text   value of the column, as rendered by
+         *               {@link #getSelectList()}
+         * @return the value bound by {@link PgTypes}
+         */
+        Object bind(final int column, final String text) {
+            return PgTypes.fromText(typeOids.get(column), text);
+        }
+
+        /**
+         * @param column index of the column
+         * @param bytes  value of the column in a binary COPY, as selected by
+         *               {@link #getCopySelectList()}
+         * @return the value bound by {@link PgTypes}
+         */
+        Object bindBinary(final int column, final byte[] bytes) {
+            final int typeOid = typeOids.get(column);
+            if (PgTypes.hasBinaryFormat(typeOid)) {
+                return PgTypes.fromBinary(typeOid, bytes);
+            }
+            return PgTypes.fromText(typeOid,
+                    new String(bytes, StandardCharsets.UTF_8));
+        }
+
+        /**
+         * @return the shape of the published columns, built once all
+         * columns have been added
+         */
+        TableSchema getTableSchema() {
+            if (tableSchema == null) {
+                List<String> primaryKey = null;
+                if (!keyNames.isEmpty()) {
+                    primaryKey = keyNames;
+                }
+                tableSchema = TableSchema.of(schema, name, publishedNames,
+                        publishedTypes, primaryKey);
+            }
+            return tableSchema;
+        }
+
+        Change toChange(final List<Object> values) {
+            if (!projected) {
+                return new InsertChange(READ_KIND, getTableSchema(), values);
+            }
+            final List<Object> publishedValues =
+                    new ArrayList<>(publishedNames.size());
+            for (int i = 0; i < values.size(); i++) {
+                if (published.get(i)) {
+                    publishedValues.add(values.get(i));
+                }
+            }
+            return new InsertChange(READ_KIND, getTableSchema(),
+                    publishedValues);
+        }
+    }
+
+    static final class SnapshotRange {
+        private final SnapshotTable table;
+        private final Long lower;
+        private final Long upper;
+
+        SnapshotRange(final SnapshotTable tableInput, final Long lowerInput,
+                      final Long upperInput) {
+            this.table = tableInput;
+            this.lower = lowerInput;
+            this.upper = upperInput;
+        }
+
+        SnapshotTable getTable() {
+            return table;
+        }
+
+        /**
+         * @return a binary COPY of the range, with the columns selected by
+         * {@link SnapshotTable#getCopySelectList()}
+         */
+        String getCopySql() {
+            final StringBuilder sql = new StringBuilder("copy (select ")
+                    .append(table.getCopySelectList())
+                    .append(" from ").append(table.getQualifiedName());
+            final List<String> conditions = new ArrayList<>();
+            if (lower != null) {
+                conditions.add(quoteIdentifier(table.keyNames.get(0))
+                        + " >= " + lower);
+            }
+            if (upper != null) {
+                conditions.add(quoteIdentifier(table.keyNames.get(0))
+                        + " < " + upper);
+            }
+            if (!conditions.isEmpty()) {
+                sql.append(" where ").append(String.join(" and ",
+                        conditions));
+            }
+            return sql.append(") to stdout with (format binary)").toString();
+        }
+
+        @Override
+        public String toString() {
+            return table.getQualifiedName() + " from " + lower + " to "
+                    + upper;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+
+package com.disneystreaming.pg2k4j;
+
+import com.amazonaws.services.kinesis.producer.UserRecord;
+import com.disneystreaming.pg2k4j.models.Change;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Puts records holding a single change in the hash key range picked by
+ * hashing the schema, table and key values of the changed row, so that all
+ * changes to a row land on the same shard, in order. Records holding a whole
+ * transaction, or a change to a row whose key is not known, go to a range
+ * picked at random.
+ * <p>
+ * Only the hash codes of the key values are combined, which are stable
+ * across restarts for the types values are decoded into.
+ */
+public class KeyColumnsPartitionKeyStrategy
+        extends HashKeyRangePartitionKeyStrategy {
+
+    private static final int hashMultiplier = 31;
+    private static final int hashSpreader = 0x9E3779B9;
+
+    /**
+     * @param ranges number of ranges to split the hash key space into
+     */
+    public KeyColumnsPartitionKeyStrategy(final int ranges) {
+        super(ranges);
+    }
+
+    @Override
+    public UserRecord createUserRecord(final String streamName,
+                                       final Change change,
+                                       final ByteBuffer data) {
+        final List<Object> keyValues = getKeyValues(change);
+        if (keyValues == null) {
+            return super.createUserRecord(streamName, change, data);
+        }
+        return createUserRecord(streamName, getRange(change, keyValues),
+                data);
+    }
+
+    int getRange(final Change change, final List<Object> keyValues) {
+        int hash = change.getSchema().hashCode() * hashMultiplier
+                + change.getTable().hashCode();
+        for (int i = 0; i < keyValues.size(); i++) {
+            hash = hash * hashMultiplier + Objects.hashCode(keyValues.get(i));
+        }
+        return Math.floorMod(hash * hashSpreader, getRanges());
+    }
+
+    private static List<Object> getKeyValues(final Change change) {
+        if (change == null) {
+            return null;
+        }
+        final List<Object> keyValues = change.getKeyvalues();
+        if (keyValues == null || keyValues.isEmpty()) {
+            return null;
+        }
+        return keyValues;
+    }
+}
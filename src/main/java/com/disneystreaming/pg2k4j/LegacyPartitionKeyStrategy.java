@@ -0,0 +1,55 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+
+package com.disneystreaming.pg2k4j;
+
+import com.amazonaws.services.kinesis.producer.UserRecord;
+import com.disneystreaming.pg2k4j.models.Change;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * The original partitioning of pg2k4j: the current time as partition key,
+ * and a random 128 bit explicit hash key generated for every record. Kept
+ * to benchmark the other strategies against.
+ */
+public class LegacyPartitionKeyStrategy implements PartitionKeyStrategy {
+
+    private static final int randomBigIntBits = 128;
+    private static final int bigIntToStringRadx = 10;
+
+    @Override
+    public UserRecord createUserRecord(final String streamName,
+                                       final Change change,
+                                       final ByteBuffer data) {
+        Random r = new Random();
+        return new UserRecord(streamName, Long.toString(System
+                .currentTimeMillis()),
+                new BigInteger(randomBigIntBits, r)
+                        .toString(bigIntToStringRadx), data);
+    }
+}
@@ -0,0 +1,167 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+
+package com.disneystreaming.pg2k4j;
+
+import org.postgresql.replication.LogSequenceNumber;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Keeps track of the records which are in flight to Kinesis, in the order
+ * they were handed to the producer, so that the flushed LSN reported back
+ * to Postgres only ever covers records which have all been acknowledged.
+ * <p>
+ * Records are registered by the thread reading the slot, and are assigned
+ * consecutive sequence numbers which index a ring buffer of their LSNs.
+ * Producer callbacks acknowledge sequence numbers in any order and, without
+ * taking any lock, advance the tail of the window over the acknowledged
+ * prefix, raising the confirmed LSN as they go. The confirmed LSN is
+ * therefore that of the highest record below which every record has been
+ * acknowledged.
+ */
+public class LsnAcknowledgementTracker {
+
+    private static final long UNACKNOWLEDGED = -1;
+    private static final long FULL_WINDOW_PARK_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final int mask;
+    private final AtomicLongArray lsns;
+    private final AtomicLongArray acknowledged;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong confirmedLsn =
+            new AtomicLong(LogSequenceNumber.INVALID_LSN.asLong());
+    private volatile long head;
+    private volatile Throwable failure;
+
+    /**
+     * @param capacity maximum number of records in flight, rounded up to a
+     *                 power of two
+     */
+    public LsnAcknowledgementTracker(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException(
+                    "Capacity must be positive, was " + capacity);
+        }
+        final int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = Math.max(size, 1) - 1;
+        this.lsns = new AtomicLongArray(mask + 1);
+        this.acknowledged = new AtomicLongArray(mask + 1);
+        for (int i = 0; i <= mask; i++) {
+            acknowledged.set(i, UNACKNOWLEDGED);
+        }
+    }
+
+    /**
+     * Register a record which is about to be handed to the producer. Must
+     * only be called from a single thread. Waits for room in the window if
+     * it is full.
+     *
+     * @param lsn LSN up to which the slot can be flushed once this record,
+     *            and every record registered before it, is acknowledged
+     * @return the sequence number to acknowledge the record with
+     * @throws IllegalStateException if a record failed while waiting, or
+     *                               the thread was interrupted, in which case
+     *                               its interrupt status is kept
+     */
+    public long register(final LogSequenceNumber lsn) {
+        final long sequence = head;
+        while (sequence - tail.get() > mask) {
+            if (failure != null) {
+                throw new IllegalStateException("A record in flight failed "
+                        + "while waiting for room in the window", failure);
+            }
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting "
+                        + "for room in the window");
+            }
+            LockSupport.parkNanos(FULL_WINDOW_PARK_NANOS);
+        }
+        lsns.set(index(sequence), lsn.asLong());
+        head = sequence + 1;
+        return sequence;
+    }
+
+    /**
+     * Acknowledge a record, from any thread.
+     *
+     * @param sequence sequence number returned when the record was registered
+     */
+    public void acknowledge(final long sequence) {
+        acknowledged.set(index(sequence), sequence);
+        long current = tail.get();
+        while (current < head
+                && acknowledged.get(index(current)) == current) {
+            final long lsn = lsns.get(index(current));
+            if (tail.compareAndSet(current, current + 1)) {
+                confirmedLsn.accumulateAndGet(lsn, Math::max);
+            }
+            current = tail.get();
+        }
+    }
+
+    /**
+     * Record that a record could not be put on the stream. It is never
+     * acknowledged, so the confirmed LSN stops short of it.
+     *
+     * @param t cause of the failure
+     */
+    public void fail(final Throwable t) {
+        failure = t;
+    }
+
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return the LSN below which every registered record has been
+     * acknowledged, or {@link LogSequenceNumber#INVALID_LSN} if none has
+     */
+    public LogSequenceNumber getConfirmedLsn() {
+        return LogSequenceNumber.valueOf(confirmedLsn.get());
+    }
+
+    /**
+     * @return number of registered records which are not acknowledged yet,
+     * or which are acknowledged but follow a record which is not
+     */
+    public long getInFlightCount() {
+        return head - tail.get();
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    private int index(final long sequence) {
+        return (int) (sequence & mask);
+    }
+}
@@ -0,0 +1,92 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+
+package com.disneystreaming.pg2k4j;
+
+import com.amazonaws.services.kinesis.producer.UserRecord;
+import com.disneystreaming.pg2k4j.models.Change;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decides which shard the records put on the stream land on, by choosing
+ * their partition key and, optionally, their explicit hash key.
+ * Implementations are called from several threads at once when a
+ * {@link SlotMessagePipeline} is used.
+ */
+public interface PartitionKeyStrategy {
+
+    String RANDOM = "random";
+    String SHARD_RANGE = "shardrange";
+    String KEY_COLUMNS = "keycolumns";
+    String LEGACY = "legacy";
+    int RANDOM_HASH_KEY_RANGES = 1024;
+    int KEY_COLUMNS_HASH_KEY_RANGES = 4096;
+
+    /**
+     * @param streamName name of the stream the record is put on
+     * @param change     the only change held by the record, or null if the
+     *                   record holds a whole transaction
+     * @param data       data of the record
+     * @return the record
+     */
+    UserRecord createUserRecord(String streamName, Change change,
+                                ByteBuffer data);
+
+    /**
+     * @param replicationConfiguration {@link ReplicationConfiguration}
+     * @return the configured strategy
+     */
+    static PartitionKeyStrategy fromConfiguration(
+            final ReplicationConfiguration replicationConfiguration) {
+        return fromName(replicationConfiguration.getPartitionKeyStrategy(),
+                replicationConfiguration.getShardCount());
+    }
+
+    /**
+     * @param name       name of the strategy
+     * @param shardCount number of shards of the stream, only used by the
+     *                   shardrange strategy
+     * @return the named strategy
+     */
+    static PartitionKeyStrategy fromName(final String name,
+                                         final int shardCount) {
+        switch (name) {
+            case RANDOM:
+                return new HashKeyRangePartitionKeyStrategy(
+                        RANDOM_HASH_KEY_RANGES);
+            case SHARD_RANGE:
+                return new HashKeyRangePartitionKeyStrategy(shardCount);
+            case KEY_COLUMNS:
+                return new KeyColumnsPartitionKeyStrategy(
+                        KEY_COLUMNS_HASH_KEY_RANGES);
+            case LEGACY:
+                return new LegacyPartitionKeyStrategy();
+            default:
+                throw new IllegalArgumentException(
+                        "Unknown partition key strategy " + name);
+        }
+    }
+}
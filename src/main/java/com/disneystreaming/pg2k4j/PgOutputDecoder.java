@@ -0,0 +1,453 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+
+package com.disneystreaming.pg2k4j;
+
+import com.disneystreaming.pg2k4j.models.Change;
+import com.disneystreaming.pg2k4j.models.DeleteChange;
+import com.disneystreaming.pg2k4j.models.InsertChange;
+import com.disneystreaming.pg2k4j.models.OldKeys;
+import com.disneystreaming.pg2k4j.models.TableSchema;
+import com.disneystreaming.pg2k4j.models.UpdateChange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decoder for the binary logical replication protocol (version 1) emitted
+ * by the built in pgoutput plugin.
+ * <p>
+ * Relation messages are cached for the lifetime of the replication
+ * connection, which is also the lifetime the server assumes when deciding
+ * whether to resend them, so a new decoder must be created for every
+ * connection. Insert, Update and Delete messages are turned into the same
+ * {@link com.disneystreaming.pg2k4j.models.Change} models wal2json output is
+ * bound to, including the wal2json conventions of leaving unchanged TOAST
+ * columns out and of reporting the replica identity of updated rows as
+ * `oldkeys`. Columns the {@link ChangeFilter} does not publish are left out
+ * the same way, their values skipped without being decoded.
+ */
+public class PgOutputDecoder implements SlotMessageDecoder {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(PgOutputDecoder.class);
+
+    private static final char BEGIN = 'B';
+    private static final char COMMIT = 'C';
+    private static final char RELATION = 'R';
+    private static final char INSERT = 'I';
+    private static final char UPDATE = 'U';
+    private static final char DELETE = 'D';
+    private static final char MESSAGE = 'M';
+    private static final char KEY_TUPLE = 'K';
+    private static final char OLD_TUPLE = 'O';
+    private static final char NEW_TUPLE = 'N';
+    private static final char NULL_VALUE = 'n';
+    private static final char UNCHANGED_TOAST_VALUE = 'u';
+    private static final char TEXT_VALUE = 't';
+    private static final int KEY_COLUMN_FLAG = 1;
+    private static final String PG_CATALOG = "pg_catalog";
+    private static final String INSERT_KIND = "insert";
+    private static final String UPDATE_KIND = "update";
+    private static final String DELETE_KIND = "delete";
+
+    private final ChangeFilter changeFilter;
+    private final TypeNameResolver typeNameResolver;
+    private final Map<Integer, Relation> relations = new HashMap<>();
+    private final Map<Long, String> typeNames = new HashMap<>();
+    private boolean inTransaction;
+
+    public PgOutputDecoder(final ChangeFilter changeFilterInput,
+                           final TypeNameResolver typeNameResolverInput) {
+        this.changeFilter = changeFilterInput;
+        this.typeNameResolver = typeNameResolverInput;
+    }
+
+    @Override
+    public void decode(final ByteBuffer msg, final SlotMessageHandler handler)
+            throws IOException {
+        final ByteBuffer buffer = msg.slice();
+        final char messageType = (char) buffer.get();
+        switch (messageType) {
+            case BEGIN:
+                skip(buffer, Long.BYTES + Long.BYTES);
+                inTransaction = true;
+                handler.onBegin(Integer.toUnsignedLong(buffer.getInt()));
+                break;
+            case COMMIT:
+                inTransaction = false;
+                handler.onCommit();
+                break;
+            case RELATION:
+                decodeRelation(buffer);
+                break;
+            case INSERT:
+                decodeInsert(buffer, handler);
+                break;
+            case UPDATE:
+                decodeUpdate(buffer, handler);
+                break;
+            case DELETE:
+                decodeDelete(buffer, handler);
+                break;
+            case MESSAGE:
+                decodeMessage(buffer, handler);
+                break;
+            default:
+                logger.trace("Ignoring pgoutput message of type {}",
+                        messageType);
+        }
+    }
+
+    @Override
+    public boolean isInTransaction() {
+        return inTransaction;
+    }
+
+    private void decodeRelation(final ByteBuffer buffer) throws IOException {
+        final int relationId = buffer.getInt();
+        String schema = readString(buffer);
+        if (schema.isEmpty()) {
+            schema = PG_CATALOG;
+        }
+        final String table = readString(buffer);
+        buffer.get();
+        final int columnCount = buffer.getShort();
+        final Relation relation = new Relation(schema, table, columnCount,
+                changeFilter.isRelevantTable(table));
+        for (int i = 0; i < columnCount; i++) {
+            final boolean key = (buffer.get() & KEY_COLUMN_FLAG) != 0;
+            final String name = readString(buffer);
+            final int typeOid = buffer.getInt();
+            final int typeModifier = buffer.getInt();
+            relation.addColumn(name, getTypeName(typeOid, typeModifier),
+                    typeOid, key);
+        }
+        relation.columnMask = changeFilter.getColumnMask(table,
+                relation.columnNames);
+        relation.tableSchema = TableSchema.of(schema, table,
+                relation.columnNames, relation.columnTypes,
+                relation.keyColumnNames);
+        logger.debug("Received relation {}.{}", schema, table);
+        relations.put(relationId, relation);
+    }
+
+    private void decodeInsert(final ByteBuffer buffer,
+                              final SlotMessageHandler handler)
+            throws IOException {
+        final Relation relation = getRelation(buffer.getInt());
+        expectTuple(buffer, NEW_TUPLE);
+        final TupleData tuple = readTuple(buffer, relation);
+        if (relation.relevant && changeFilter.isRelevantAction(INSERT_KIND)) {
+            publish(new InsertChange(INSERT_KIND, tuple.getTableSchema(),
+                    tuple.getColumnvalues()), handler);
+        }
+    }
+
+    private void decodeUpdate(final ByteBuffer buffer,
+                              final SlotMessageHandler handler)
+            throws IOException {
+        final Relation relation = getRelation(buffer.getInt());
+        char tupleType = (char) buffer.get();
+        OldKeys oldKeys = null;
+        if (tupleType == KEY_TUPLE || tupleType == OLD_TUPLE) {
+            oldKeys = readTuple(buffer, relation)
+                    .getOldKeys(tupleType == KEY_TUPLE);
+            tupleType = (char) buffer.get();
+        }
+        if (tupleType != NEW_TUPLE) {
+            throw new IOException(String.format(
+                    "Unexpected tuple type %s in update", tupleType));
+        }
+        final TupleData tuple = readTuple(buffer, relation);
+        if (oldKeys == null) {
+            oldKeys = tuple.getOldKeys(true);
+        }
+        if (relation.relevant && changeFilter.isRelevantAction(UPDATE_KIND)) {
+            publish(new UpdateChange(UPDATE_KIND, tuple.getTableSchema(),
+                    tuple.getColumnvalues(), oldKeys), handler);
+        }
+    }
+
+    private void decodeDelete(final ByteBuffer buffer,
+                              final SlotMessageHandler handler)
+            throws IOException {
+        final Relation relation = getRelation(buffer.getInt());
+        final char tupleType = (char) buffer.get();
+        if (tupleType != KEY_TUPLE && tupleType != OLD_TUPLE) {
+            throw new IOException(String.format(
+                    "Unexpected tuple type %s in delete", tupleType));
+        }
+        final OldKeys oldKeys = readTuple(buffer, relation)
+                .getOldKeys(tupleType == KEY_TUPLE);
+        if (relation.relevant && changeFilter.isRelevantAction(DELETE_KIND)) {
+            publish(new DeleteChange(DELETE_KIND, relation.table,
+                    relation.schema, oldKeys), handler);
+        }
+    }
+
+    private void publish(final Change change,
+                         final SlotMessageHandler handler)
+            throws IOException {
+        if (changeFilter.isRelevantRow(change)) {
+            handler.onChange(change);
+        }
+    }
+
+    /**
+     * Logical decoding messages are only sent when the `messages` option is
+     * set, which servers before Postgres 14 do not support.
+     */
+    private static void decodeMessage(final ByteBuffer buffer,
+                                      final SlotMessageHandler handler)
+            throws IOException {
+        skip(buffer, Byte.BYTES + Long.BYTES);
+        final String prefix = readString(buffer);
+        final int length = buffer.getInt();
+        final String content = new String(buffer.array(),
+                buffer.arrayOffset() + buffer.position(), length,
+                StandardCharsets.UTF_8);
+        skip(buffer, length);
+        handler.onMessage(prefix, content);
+    }
+
+    private Relation getRelation(final int relationId) throws IOException {
+        final Relation relation = relations.get(relationId);
+        if (relation == null) {
+            throw new IOException(String.format(
+                    "Received change for unknown relation %d", relationId));
+        }
+        return relation;
+    }
+
+    private String getTypeName(final int typeOid, final int typeModifier)
+            throws IOException {
+        final long typeKey = ((long) typeOid << Integer.SIZE)
+                | Integer.toUnsignedLong(typeModifier);
+        String typeName = typeNames.get(typeKey);
+        if (typeName == null) {
+            try {
+                typeName = typeNameResolver.getTypeName(typeOid,
+                        typeModifier);
+            } catch (SQLException sqlException) {
+                throw new IOException(String.format(
+                        "Unable to resolve name of type %d", typeOid),
+                        sqlException);
+            }
+            typeNames.put(typeKey, typeName);
+        }
+        return typeName;
+    }
+
+    private static TupleData readTuple(final ByteBuffer buffer,
+                                       final Relation relation)
+            throws IOException {
+        final int columnCount = buffer.getShort();
+        final TupleData tuple = new TupleData(relation, columnCount);
+        for (int i = 0; i < columnCount; i++) {
+            final char valueType = (char) buffer.get();
+            final boolean omitted = !relation.isPublished(i);
+            if (omitted) {
+                tuple.omitted[i] = true;
+                tuple.hasOmitted = true;
+            }
+            if (valueType == TEXT_VALUE) {
+                final int length = buffer.getInt();
+                if (!omitted) {
+                    final String text = new String(buffer.array(),
+                            buffer.arrayOffset() + buffer.position(), length,
+                            StandardCharsets.UTF_8);
+                    tuple.values[i] = PgTypes.fromText(
+                            relation.typeOids.get(i), text);
+                }
+                skip(buffer, length);
+            } else if (valueType == UNCHANGED_TOAST_VALUE) {
+                tuple.omitted[i] = true;
+                tuple.hasOmitted = true;
+            } else if (valueType != NULL_VALUE) {
+                throw new IOException(String.format(
+                        "Unexpected tuple value type %s", valueType));
+            }
+        }
+        return tuple;
+    }
+
+    private static void expectTuple(final ByteBuffer buffer,
+                                    final char expected) throws IOException {
+        final char tupleType = (char) buffer.get();
+        if (tupleType != expected) {
+            throw new IOException(String.format(
+                    "Expected tuple type %s but found %s", expected,
+                    tupleType));
+        }
+    }
+
+    private static String readString(final ByteBuffer buffer) {
+        final int start = buffer.position();
+        int end = start;
+        while (buffer.get(end) != 0) {
+            end++;
+        }
+        buffer.position(end + 1);
+        return new String(buffer.array(), buffer.arrayOffset() + start,
+                end - start, StandardCharsets.UTF_8);
+    }
+
+    private static void skip(final ByteBuffer buffer, final int bytes) {
+        buffer.position(buffer.position() + bytes);
+    }
+
+    /**
+     * Resolves the name wal2json would report for a column's type.
+     */
+    @FunctionalInterface
+    public interface TypeNameResolver {
+        String getTypeName(int typeOid, int typeModifier)
+                throws SQLException;
+    }
+
+    private static final class Relation {
+        private final String schema;
+        private final String table;
+        private final boolean relevant;
+        private final List<String> columnNames;
+        private final List<String> columnTypes;
+        private final List<Integer> typeOids;
+        private final List<Boolean> keyColumns;
+        private final List<String> keyColumnNames;
+        private boolean[] columnMask;
+        private TableSchema tableSchema;
+
+        private Relation(final String schemaInput, final String tableInput,
+                         final int columnCount, final boolean relevantInput) {
+            this.schema = schemaInput;
+            this.table = tableInput;
+            this.relevant = relevantInput;
+            this.columnNames = new ArrayList<>(columnCount);
+            this.columnTypes = new ArrayList<>(columnCount);
+            this.typeOids = new ArrayList<>(columnCount);
+            this.keyColumns = new ArrayList<>(columnCount);
+            this.keyColumnNames = new ArrayList<>();
+        }
+
+        private void addColumn(final String name, final String type,
+                               final int typeOid, final boolean key) {
+            columnNames.add(name);
+            columnTypes.add(type);
+            typeOids.add(typeOid);
+            keyColumns.add(key);
+            if (key) {
+                keyColumnNames.add(name);
+            }
+        }
+
+        private boolean isPublished(final int column) {
+            return columnMask == null || column >= columnMask.length
+                    || columnMask[column];
+        }
+    }
+
+    private static final class TupleData {
+        private final Relation relation;
+        private final Object[] values;
+        /**
+         * Columns left out of the change, either because they are unchanged
+         * TOAST values or because they are not published.
+         */
+        private final boolean[] omitted;
+        private boolean hasOmitted;
+
+        private TupleData(final Relation relationInput,
+                          final int columnCount) {
+            this.relation = relationInput;
+            this.values = new Object[columnCount];
+            this.omitted = new boolean[columnCount];
+        }
+
+        /**
+         * @return the shape of the relation, or of the columns of the tuple
+         * which were not omitted
+         */
+        private TableSchema getTableSchema() {
+            if (!hasOmitted) {
+                return relation.tableSchema;
+            }
+            return TableSchema.of(relation.schema, relation.table,
+                    select(relation.columnNames, false),
+                    select(relation.columnTypes, false),
+                    relation.keyColumnNames);
+        }
+
+        private List<Object> getColumnvalues() {
+            final List<Object> columnValues = new ArrayList<>(values.length);
+            for (int i = 0; i < values.length; i++) {
+                if (!omitted[i]) {
+                    columnValues.add(values[i]);
+                }
+            }
+            return columnValues;
+        }
+
+        /**
+         * @param keyOnly whether only the replica identity columns should be
+         *                reported, rather than the whole old row
+         * @return the tuple as {@link OldKeys}
+         */
+        private OldKeys getOldKeys(final boolean keyOnly) {
+            final List<Object> keyValues = new ArrayList<>();
+            for (int i = 0; i < values.length; i++) {
+                if (isReported(i, keyOnly)) {
+                    keyValues.add(values[i]);
+                }
+            }
+            return new OldKeys(select(relation.columnTypes, keyOnly),
+                    keyValues, select(relation.columnNames, keyOnly));
+        }
+
+        private List<String> select(final List<String> columnData,
+                                    final boolean keyOnly) {
+            final List<String> selected = new ArrayList<>(values.length);
+            for (int i = 0; i < values.length; i++) {
+                if (isReported(i, keyOnly)) {
+                    selected.add(columnData.get(i));
+                }
+            }
+            return selected;
+        }
+
+        private boolean isReported(final int column, final boolean keyOnly) {
+            return !omitted[column]
+                    && (!keyOnly || relation.keyColumns.get(column));
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+
+package com.disneystreaming.pg2k4j;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Conversion of the text representation of Postgres values into the Java
+ * values wal2json output binds to, so that changes read without wal2json
+ * serialize the same way as those read through it.
+ */
+public final class PgTypes {
+
+    static final int BOOL_OID = 16;
+    static final int INT8_OID = 20;
+    static final int INT2_OID = 21;
+    static final int INT4_OID = 23;
+    static final int TEXT_OID = 25;
+    static final int OID_OID = 26;
+    static final int FLOAT4_OID = 700;
+    static final int FLOAT8_OID = 701;
+    static final int BPCHAR_OID = 1042;
+    static final int VARCHAR_OID = 1043;
+    static final int NUMERIC_OID = 1700;
+
+    private static final String TRUE_TEXT = "t";
+    private static final String NAN_TEXT = "NaN";
+    private static final String INFINITY_TEXT = "Infinity";
+
+    /**
+     * Postgres renders floating point values in exponential notation from
+     * these magnitudes on, so only smaller integral values read as integers.
+     */
+    private static final double FLOAT4_EXPONENTIAL_MAGNITUDE = 1e6;
+    private static final double FLOAT8_EXPONENTIAL_MAGNITUDE = 1e15;
+    private static final int NUMERIC_NEGATIVE = 0x4000;
+    private static final int NUMERIC_SPECIAL = 0xC000;
+    private static final int NUMERIC_DIGIT_DECIMALS = 4;
+    private static final BigInteger NUMERIC_BASE = BigInteger.valueOf(10000);
+
+    private PgTypes() {
+    }
+
+    /**
+     * @param typeOid oid of the column's type
+     * @return whether wal2json writes values of this type as json numbers
+     */
+    static boolean isNumeric(final int typeOid) {
+        switch (typeOid) {
+            case INT8_OID:
+            case INT2_OID:
+            case INT4_OID:
+            case OID_OID:
+            case FLOAT4_OID:
+            case FLOAT8_OID:
+            case NUMERIC_OID:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Convert a value in Postgres text format into the value Jackson would
+     * produce when reading the same column from wal2json output. Numbers
+     * become the smallest fitting integral type or a Double, booleans become
+     * Booleans and everything else is left as text. Non finite numbers have
+     * no json representation and are mapped to null.
+     *
+     * @param typeOid oid of the column's type
+     * @param text    value in Postgres text format, possibly null
+     * @return the converted value
+     */
+    public static Object fromText(final int typeOid, final String text) {
+        if (text == null) {
+            return null;
+        } else if (typeOid == BOOL_OID) {
+            return TRUE_TEXT.equals(text);
+        } else if (isNumeric(typeOid)) {
+            return parseNumber(text);
+        } else {
+            return text;
+        }
+    }
+
+    /**
+     * @param typeOid oid of the column's type
+     * @return whether {@link #fromBinary} decodes the binary format of the
+     * type, rather than it having to be rendered as text
+     */
+    static boolean hasBinaryFormat(final int typeOid) {
+        switch (typeOid) {
+            case BOOL_OID:
+            case TEXT_OID:
+            case BPCHAR_OID:
+            case VARCHAR_OID:
+                return true;
+            default:
+                return isNumeric(typeOid);
+        }
+    }
+
+    /**
+     * Convert a value in Postgres binary format into the same value
+     * {@link #fromText} produces from its text format, as rendered by
+     * Postgres 12 and later.
+     *
+     * @param typeOid oid of the column's type, for which
+     *                {@link #hasBinaryFormat} holds
+     * @param bytes   value in Postgres binary format, possibly null
+     * @return the converted value
+     */
+    public static Object fromBinary(final int typeOid, final byte[] bytes) {
+        if (bytes == null) {
+            return null;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        switch (typeOid) {
+            case BOOL_OID:
+                return bytes[0] != 0;
+            case INT2_OID:
+                return (int) buffer.getShort();
+            case INT4_OID:
+                return buffer.getInt();
+            case INT8_OID:
+                return narrow(buffer.getLong());
+            case OID_OID:
+                return narrow(Integer.toUnsignedLong(buffer.getInt()));
+            case FLOAT4_OID:
+                final float floatValue = buffer.getFloat();
+                return fromFloat(floatValue, shortestDecimal(floatValue),
+                        FLOAT4_EXPONENTIAL_MAGNITUDE);
+            case FLOAT8_OID:
+                final double doubleValue = buffer.getDouble();
+                return fromFloat(doubleValue, doubleValue,
+                        FLOAT8_EXPONENTIAL_MAGNITUDE);
+            case NUMERIC_OID:
+                return fromNumeric(buffer);
+            default:
+                return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static Number fromFloat(final double value, final double decimal,
+                                    final double exponentialMagnitude) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return null;
+        }
+        if (value == Math.rint(value)
+                && Math.abs(value) < exponentialMagnitude) {
+            return narrow((long) value);
+        }
+        return decimal;
+    }
+
+    /**
+     * @return the shortest decimal reading back as the float, which is how
+     * Postgres renders it, as a double
+     */
+    private static double shortestDecimal(final float value) {
+        if (Float.isNaN(value) || Float.isInfinite(value) || value == 0) {
+            return value;
+        }
+        final BigDecimal exact = new BigDecimal(value);
+        int precision = 1;
+        BigDecimal rounded = exact.round(
+                new MathContext(precision, RoundingMode.HALF_EVEN));
+        while (rounded.floatValue() != value) {
+            precision++;
+            rounded = exact.round(
+                    new MathContext(precision, RoundingMode.HALF_EVEN));
+        }
+        return rounded.doubleValue();
+    }
+
+    /**
+     * Decode a numeric, made of its number of base 10000 digits, the weight
+     * of the first one, its sign and its display scale, followed by the
+     * digits.
+     */
+    private static Number fromNumeric(final ByteBuffer buffer) {
+        final int digits = buffer.getShort();
+        final int weight = buffer.getShort();
+        final int sign = Short.toUnsignedInt(buffer.getShort());
+        final int displayScale = Short.toUnsignedInt(buffer.getShort());
+        if ((sign & NUMERIC_SPECIAL) == NUMERIC_SPECIAL) {
+            return null;
+        }
+        BigInteger unscaled = BigInteger.ZERO;
+        for (int i = 0; i < digits; i++) {
+            unscaled = unscaled.multiply(NUMERIC_BASE)
+                    .add(BigInteger.valueOf(buffer.getShort()));
+        }
+        if (sign == NUMERIC_NEGATIVE) {
+            unscaled = unscaled.negate();
+        }
+        final BigDecimal value = new BigDecimal(unscaled,
+                (digits - 1 - weight) * NUMERIC_DIGIT_DECIMALS)
+                .setScale(displayScale, RoundingMode.DOWN);
+        return parseNumber(value.toPlainString());
+    }
+
+    private static Number narrow(final long value) {
+        if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            return (int) value;
+        }
+        return value;
+    }
+
+    static Number parseNumber(final String text) {
+        if (text.endsWith(NAN_TEXT) || text.endsWith(INFINITY_TEXT)) {
+            return null;
+        }
+        if (text.indexOf('.') != -1 || text.indexOf('e') != -1
+                || text.indexOf('E') != -1) {
+            return Double.valueOf(text);
+        }
+        final long value;
+        try {
+            value = Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            return new BigInteger(text);
+        }
+        return narrow(value);
+    }
+}
@@ -29,23 +29,61 @@ import org.postgresql.PGConnection;
 import org.postgresql.replication.LogSequenceNumber;
 import org.postgresql.replication.PGReplicationConnection;
 import org.postgresql.replication.PGReplicationStream;
+import org.postgresql.replication.fluent.logical.ChainedLogicalStreamBuilder;
 import org.postgresql.util.PSQLException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Array;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 public class PostgresConnector implements AutoCloseable {
 
+    /**
+     * Suffix of the local file recording how far the snapshot exported by a
+     * slot was read, named after the slot.
+     */
+    static final String SNAPSHOT_STATE_SUFFIX = ".snapshot";
+
     private static final String alreadyExistsSqlState = "42710";
     private static final String currentlyRunningProcessOnSlotSqlState = "55006";
+    private static final String createSlotExportingSnapshotCommand =
+            "CREATE_REPLICATION_SLOT %s LOGICAL %s EXPORT_SNAPSHOT";
+    private static final int publicationColumnListsMajorVersion = 15;
+    private static final List<String> publicationActions =
+            Arrays.asList("insert", "update", "delete", "truncate");
+    private static final String slotExistsQuery =
+            "select 1 from pg_replication_slots where slot_name = ?";
+    private static final String publishedColumnsQuery = "select "
+            + "quote_ident(a.attname) from pg_attribute a join pg_class c on "
+            + "c.oid = a.attrelid where a.attrelid = ?::regclass and "
+            + "a.attnum > 0 and not a.attisdropped and ((coalesce(a.attname "
+            + "= any(?::text[]), true) and not coalesce(a.attname = any("
+            + "?::text[]), false)) or c.relreplident = 'f' or exists (select "
+            + "1 from pg_index i where i.indrelid = c.oid and a.attnum = any("
+            + "i.indkey) and (i.indisreplident or (c.relreplident = 'd' and "
+            + "i.indisprimary)))) order by a.attnum";
 
     private static final Logger logger =
             LoggerFactory.getLogger(PostgresConnector.class);
@@ -53,40 +91,84 @@ public class PostgresConnector implements AutoCloseable {
     private final Connection queryConnection;
     private final Connection streamingConnection;
     private final PGReplicationStream pgReplicationStream;
+    private final LogSequenceNumber startLsn;
+
+    PostgresConnector(final PostgresConfiguration postgresConfiguration,
+                      final ReplicationConfiguration replicationConfiguration)
+            throws SQLException, IOException {
+        this(postgresConfiguration, replicationConfiguration,
+                LogSequenceNumber.INVALID_LSN);
+    }
+
+    PostgresConnector(final PostgresConfiguration postgresConfiguration,
+                      final ReplicationConfiguration replicationConfiguration,
+                      final LogSequenceNumber startLsnInput)
+            throws SQLException, IOException {
+        this(postgresConfiguration, replicationConfiguration, startLsnInput,
+                null);
+    }
 
     /**
      * Initializes {@link #queryConnection} which {@link #getCurrentLSN()} uses
      * Initializes {@link #streamingConnection} for opening up
      * {@link #pgReplicationStream}
      * Initializes {@link #pgReplicationStream} for reading the replication slot
+     * When the pgoutput plugin is used, creates the publication the slot
+     * streams changes for if it does not already exist
+     * When a {@link SnapshotReader} is given and the slot does not exist
+     * yet, creates it with an exported snapshot which is read before
+     * streaming starts, see {@link #readSnapshot}. A slot whose snapshot is
+     * recorded locally as not read in full, as the process stopped while
+     * reading it, is dropped and created again, see
+     * {@link #createReplicationSlotForSnapshot}
      *
      * @param postgresConfiguration
      * @param replicationConfiguration
+     * @param startLsnInput LSN to resume streaming from, or
+     *                      {@link LogSequenceNumber#INVALID_LSN} to resume
+     *                      from the position the slot last confirmed
+     * @param snapshotReader reads the snapshot exported when the slot is
+     *                       created, or null to not export one
      * @throws SQLException
+     * @throws IOException if the snapshot could not be read
      */
     PostgresConnector(final PostgresConfiguration postgresConfiguration,
-                      final ReplicationConfiguration replicationConfiguration)
-            throws SQLException {
+                      final ReplicationConfiguration replicationConfiguration,
+                      final LogSequenceNumber startLsnInput,
+                      final SnapshotReader snapshotReader)
+            throws SQLException, IOException {
+        startLsn = startLsnInput;
         logger.debug("Connecting to {}", postgresConfiguration.getUrl());
         queryConnection = createConnection(postgresConfiguration.getUrl(),
                 postgresConfiguration.getQueryConnectionProperties());
         streamingConnection = createConnection(postgresConfiguration.getUrl(),
                 postgresConfiguration.getReplicationProperties());
         logger.debug("Connected to postgres");
+        if (replicationConfiguration.isPgOutput()) {
+            createPublication(replicationConfiguration);
+        }
         PGConnection pgConnection =
                 streamingConnection.unwrap(PGConnection.class);
         PGReplicationConnection pgReplicationConnection =
                 pgConnection.getReplicationAPI();
+        ExportedSnapshot exportedSnapshot = null;
         try {
             logger.info("Attempting to create replication slot {}",
                     replicationConfiguration.getSlotName());
-            pgReplicationConnection.createReplicationSlot()
-                    .logical()
-                    .withOutputPlugin(
-                            replicationConfiguration.getOutputPlugin())
-                    .withSlotName(replicationConfiguration.getSlotName())
-                    .make();
-            logger.info("Created replication slot");
+            if (snapshotReader == null) {
+                pgReplicationConnection.createReplicationSlot()
+                        .logical()
+                        .withOutputPlugin(
+                                replicationConfiguration.getOutputPlugin())
+                        .withSlotName(replicationConfiguration.getSlotName())
+                        .make();
+            } else {
+                exportedSnapshot = createReplicationSlotForSnapshot(
+                        replicationConfiguration, pgReplicationConnection);
+            }
+            if (snapshotReader == null || exportedSnapshot != null) {
+                logger.info("Created replication slot");
+            }
         } catch (SQLException e) {
             if (e.getSQLState().equals(alreadyExistsSqlState)) {
                 logger.info("Slot {} already exists",
@@ -95,10 +177,204 @@ public class PostgresConnector implements AutoCloseable {
                 throw(e);
             }
         }
+        if (exportedSnapshot != null) {
+            readSnapshot(replicationConfiguration, pgReplicationConnection,
+                    snapshotReader, exportedSnapshot);
+        }
         pgReplicationStream = getPgReplicationStream(replicationConfiguration,
                 pgReplicationConnection);
     }
 
+    /**
+     * Create the slot with an exported snapshot, unless it exists already
+     * and its snapshot is not recorded as being read. Progress is recorded
+     * in a local file of the snapshot state directory rather than in the
+     * database, which pg2k4j only reads: the snapshot is recorded as being
+     * read before the slot is created, and as read once it is read in full.
+     * A slot recorded as being read was left behind by a process which
+     * stopped while reading its snapshot, so streaming from it would leave
+     * out the rows it did not get to; it is dropped and created again with
+     * a fresh snapshot. A slot without a record, such as one which predates
+     * the state directory, is kept and taken to have had its snapshot read.
+     *
+     * @param replicationConfiguration
+     * @param pgReplicationConnection
+     * @return the exported snapshot, or null if the slot exists already
+     * @throws SQLException
+     * @throws IOException if the snapshot state could not be read or written
+     */
+    ExportedSnapshot createReplicationSlotForSnapshot(
+            final ReplicationConfiguration replicationConfiguration,
+            final PGReplicationConnection pgReplicationConnection)
+            throws SQLException, IOException {
+        final String slotName = replicationConfiguration.getSlotName();
+        final Path statePath = getSnapshotStatePath(replicationConfiguration);
+        if (slotExists(slotName)) {
+            final SnapshotState state = readSnapshotState(statePath);
+            if (state != SnapshotState.READING) {
+                if (state == null) {
+                    logger.warn("Slot {} already exists and {} records no "
+                            + "snapshot for it, so its snapshot is taken "
+                            + "as read", slotName, statePath);
+                } else {
+                    logger.info("Slot {} already exists", slotName);
+                }
+                return null;
+            }
+            logger.warn("Dropping replication slot {} as {} records its "
+                    + "snapshot was not read in full", slotName, statePath);
+            pgReplicationConnection.dropReplicationSlot(slotName);
+        }
+        writeSnapshotState(statePath, SnapshotState.READING, null);
+        return createReplicationSlotExportingSnapshot(
+                replicationConfiguration);
+    }
+
+    boolean slotExists(final String slotName) throws SQLException {
+        try (PreparedStatement st = queryConnection.prepareStatement(
+                slotExistsQuery)) {
+            st.setString(1, slotName);
+            try (ResultSet rs = st.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    /**
+     * @param replicationConfiguration
+     * @return the file recording how far the snapshot of the slot was read
+     */
+    Path getSnapshotStatePath(
+            final ReplicationConfiguration replicationConfiguration) {
+        return Paths.get(replicationConfiguration.getSnapshotStateDirectory(),
+                replicationConfiguration.getSlotName()
+                        + SNAPSHOT_STATE_SUFFIX);
+    }
+
+    /**
+     * @param statePath file recording the snapshot state of a slot
+     * @return the recorded state, or null if there is none
+     * @throws IOException
+     */
+    SnapshotState readSnapshotState(final Path statePath)
+            throws IOException {
+        if (!Files.exists(statePath)) {
+            return null;
+        }
+        final String content = new String(Files.readAllBytes(statePath),
+                StandardCharsets.UTF_8).trim();
+        final String[] fields = content.split(" ", 2);
+        try {
+            return SnapshotState.valueOf(fields[0]);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown snapshot state " + content
+                    + " in " + statePath, e);
+        }
+    }
+
+    /**
+     * Record the snapshot state of a slot, replacing the file atomically so
+     * that a process stopping while doing so leaves the previous state.
+     *
+     * @param statePath       file recording the snapshot state of a slot
+     * @param state           state of the snapshot
+     * @param consistentPoint LSN the snapshot was exported at, or null if
+     *                        it is not known yet
+     * @throws IOException
+     */
+    void writeSnapshotState(final Path statePath, final SnapshotState state,
+                            final LogSequenceNumber consistentPoint)
+            throws IOException {
+        String content = state.name();
+        if (consistentPoint != null) {
+            content += " " + consistentPoint.asString();
+        }
+        final Path directory = statePath.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        final Path tempPath = Files.createTempFile(directory,
+                statePath.getFileName().toString(), ".tmp");
+        try (FileChannel channel = FileChannel.open(tempPath,
+                StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap((content + "\n")
+                    .getBytes(StandardCharsets.UTF_8)));
+            channel.force(true);
+        }
+        Files.move(tempPath, statePath, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Create the slot on the streaming connection, exporting the snapshot
+     * the slot starts streaming from. The pgjdbc replication API offers no
+     * way of doing so, hence the replication command is issued as is.
+     *
+     * @param replicationConfiguration
+     * @return the exported snapshot, valid until the streaming connection
+     * runs another command
+     * @throws SQLException
+     */
+    ExportedSnapshot createReplicationSlotExportingSnapshot(
+            final ReplicationConfiguration replicationConfiguration)
+            throws SQLException {
+        try (Statement st = streamingConnection.createStatement()) {
+            try (ResultSet rs = st.executeQuery(String.format(
+                    createSlotExportingSnapshotCommand,
+                    replicationConfiguration.getSlotName(),
+                    replicationConfiguration.getOutputPlugin()))) {
+                rs.next();
+                return new ExportedSnapshot(
+                        rs.getString("snapshot_name"),
+                        LogSequenceNumber.valueOf(
+                                rs.getString("consistent_point")));
+            }
+        }
+    }
+
+    /**
+     * Have the {@link SnapshotReader} read the snapshot exported when the
+     * slot was created, before streaming starts. As the slot only streams
+     * changes committed after the snapshot, it is of no use without it, so
+     * if reading fails the slot is dropped again, to be created with a fresh
+     * snapshot by the next connector, and the connections are closed. Once
+     * the snapshot is read in full, that is recorded in its state file, see
+     * {@link #createReplicationSlotForSnapshot}.
+     *
+     * @param replicationConfiguration
+     * @param pgReplicationConnection
+     * @param snapshotReader           {@link SnapshotReader}
+     * @param exportedSnapshot         snapshot exported by the slot
+     * @throws SQLException
+     * @throws IOException
+     */
+    void readSnapshot(final ReplicationConfiguration replicationConfiguration,
+                      final PGReplicationConnection pgReplicationConnection,
+                      final SnapshotReader snapshotReader,
+                      final ExportedSnapshot exportedSnapshot)
+            throws SQLException, IOException {
+        logger.info("Reading snapshot {} exported at {}",
+                exportedSnapshot.getName(),
+                exportedSnapshot.getConsistentPoint());
+        try {
+            snapshotReader.read(exportedSnapshot.getName(),
+                    exportedSnapshot.getConsistentPoint());
+        } catch (SQLException | IOException | RuntimeException e) {
+            logger.error("Dropping replication slot {} as its snapshot "
+                    + "could not be read", replicationConfiguration
+                    .getSlotName());
+            try {
+                pgReplicationConnection.dropReplicationSlot(
+                        replicationConfiguration.getSlotName());
+            } catch (SQLException dropException) {
+                e.addSuppressed(dropException);
+            }
+            close();
+            throw e;
+        }
+        writeSnapshotState(getSnapshotStatePath(replicationConfiguration),
+                SnapshotState.READ, exportedSnapshot.getConsistentPoint());
+        logger.info("Read snapshot {}", exportedSnapshot.getName());
+    }
+
     public PGReplicationStream getPgReplicationStream() {
         return pgReplicationStream;
     }
@@ -121,11 +397,68 @@ public class PostgresConnector implements AutoCloseable {
         }
     }
 
+    /**
+     * Resolve the name of a type the same way wal2json reports it in
+     * `columntypes`.
+     *
+     * @param typeOid      oid of the type
+     * @param typeModifier type modifier of the column, -1 if there is none
+     * @return name of the type
+     * @throws SQLException
+     */
+    public String getTypeName(final int typeOid, final int typeModifier)
+            throws SQLException {
+        try (PreparedStatement st = queryConnection.prepareStatement(
+                "select format_type(?::oid, ?)")) {
+            st.setLong(1, Integer.toUnsignedLong(typeOid));
+            st.setInt(2, typeModifier);
+            try (ResultSet rs = st.executeQuery()) {
+                rs.next();
+                return rs.getString(1);
+            }
+        }
+    }
+
+    /**
+     * Write a logical decoding message which is not transactional, so that
+     * it is streamed at its position in the WAL.
+     *
+     * @param prefix  prefix of the message
+     * @param content content of the message
+     * @throws SQLException
+     */
+    public void emitMessage(final String prefix, final String content)
+            throws SQLException {
+        try (PreparedStatement st = queryConnection.prepareStatement(
+                "select pg_logical_emit_message(false, ?, ?)")) {
+            st.setString(1, prefix);
+            st.setString(2, content);
+            st.executeQuery().close();
+        }
+    }
+
+    /**
+     * @return the connection used for queries, which is in autocommit mode
+     */
+    Connection getQueryConnection() {
+        return queryConnection;
+    }
+
     public void setStreamLsn(final LogSequenceNumber lsn) {
         pgReplicationStream.setAppliedLSN(lsn);
         pgReplicationStream.setFlushedLSN(lsn);
     }
 
+    /**
+     * Send a status update to the server straight away, which also serves as
+     * a keepalive while the stream is not being read.
+     *
+     * @throws SQLException
+     */
+    public void forceUpdateStatus() throws SQLException {
+        pgReplicationStream.forceUpdateStatus();
+    }
+
     public LogSequenceNumber getLastReceivedLsn() {
         return pgReplicationStream.getLastReceiveLSN();
     }
@@ -161,6 +494,166 @@ public class PostgresConnector implements AutoCloseable {
         }
     }
 
+    /**
+     * Create the publication the pgoutput plugin streams changes for, unless
+     * it already exists. When relevant tables are configured only those
+     * tables, less any excluded ones, are published, so that changes to
+     * other tables are never decoded nor sent by the server. Otherwise all
+     * tables are published. Likewise only the configured actions are
+     * published. When column filters are pushed down, which takes Postgres
+     * 15, published tables get column lists leaving out the columns which
+     * are not published, though never their replica identity.
+     *
+     * @param replicationConfiguration
+     * @throws SQLException
+     */
+    void createPublication(
+            final ReplicationConfiguration replicationConfiguration)
+            throws SQLException {
+        final String publicationName =
+                replicationConfiguration.getPublicationName();
+        try (PreparedStatement st = queryConnection.prepareStatement(
+                "select 1 from pg_publication where pubname = ?")) {
+            st.setString(1, publicationName);
+            try (ResultSet rs = st.executeQuery()) {
+                if (rs.next()) {
+                    logger.info("Publication {} already exists",
+                            publicationName);
+                    return;
+                }
+            }
+        }
+        ChangeFilter columnFilter = null;
+        if (replicationConfiguration.getPushDownFilters()
+                && queryConnection.getMetaData().getDatabaseMajorVersion()
+                >= publicationColumnListsMajorVersion) {
+            columnFilter =
+                    ChangeFilter.fromConfiguration(replicationConfiguration);
+        }
+        String sql = String.format("create publication %s %s",
+                InitialSnapshot.quoteIdentifier(publicationName),
+                getPublicationTarget(
+                        replicationConfiguration.getRelevantTables(),
+                        replicationConfiguration.getExcludedTables(),
+                        columnFilter));
+        if (replicationConfiguration.getActions() != null) {
+            sql += String.format(" with (publish = '%s')",
+                    getPublishedActions(replicationConfiguration.getActions()));
+        }
+        logger.info("Creating publication: {}", sql);
+        try (Statement st = queryConnection.createStatement()) {
+            st.execute(sql);
+        }
+    }
+
+    /**
+     * @param actions kinds of change to publish
+     * @return the value of the publish option of a publication publishing
+     * them
+     * @throws IllegalArgumentException if an action is not one a
+     *                                  publication can publish
+     */
+    static String getPublishedActions(final Set<String> actions) {
+        final List<String> publishedActions = new ArrayList<>(actions.size());
+        for (String action : actions) {
+            final String publishedAction = action.trim().toLowerCase(
+                    Locale.ROOT);
+            if (!publicationActions.contains(publishedAction)) {
+                throw new IllegalArgumentException(String.format(
+                        "Cannot publish action %s, expected one of %s",
+                        action, publicationActions));
+            }
+            publishedActions.add(publishedAction);
+        }
+        return String.join(", ", publishedActions);
+    }
+
+    /**
+     * @param relevantTables tables to publish, or null to publish all tables
+     * @param excludedTables tables never to publish, may be null
+     * @param columnFilter   column filters to turn into column lists, or
+     *                       null to publish all columns
+     * @return the target of the publication
+     * @throws SQLException
+     */
+    String getPublicationTarget(final Set<String> relevantTables,
+                                final Set<String> excludedTables,
+                                final ChangeFilter columnFilter)
+            throws SQLException {
+        if (relevantTables == null) {
+            return "for all tables";
+        }
+        final List<String> qualifiedTables = new ArrayList<>();
+        try (PreparedStatement st = queryConnection.prepareStatement(
+                "select quote_ident(schemaname) || '.' || quote_ident("
+                        + "tablename), tablename from pg_tables "
+                        + "where tablename = any(?)"
+        )) {
+            st.setArray(1, queryConnection.createArrayOf("text",
+                    relevantTables.stream()
+                            .filter(table -> excludedTables == null
+                                    || !excludedTables.contains(table))
+                            .toArray()));
+            try (ResultSet rs = st.executeQuery()) {
+                while (rs.next()) {
+                    final String qualifiedTable = rs.getString(1);
+                    final String table = rs.getString(2);
+                    if (columnFilter != null
+                            && columnFilter.hasColumnFilter(table)) {
+                        qualifiedTables.add(qualifiedTable + " ("
+                                + String.join(", ", getPublishedColumns(
+                                qualifiedTable,
+                                columnFilter.getIncludedColumns(table),
+                                columnFilter.getExcludedColumns(table)))
+                                + ")");
+                    } else {
+                        qualifiedTables.add(qualifiedTable);
+                    }
+                }
+            }
+        }
+        if (qualifiedTables.isEmpty()) {
+            logger.warn("None of the relevant tables {} exist, creating an "
+                    + "empty publication", relevantTables);
+            return "";
+        }
+        return "for table " + String.join(", ", qualifiedTables);
+    }
+
+    /**
+     * @param qualifiedTable  quoted name of the table
+     * @param includedColumns the only columns to publish, may be null
+     * @param excludedColumns columns never to publish, may be null
+     * @return the quoted names of the columns to publish, including the
+     * replica identity, without which updates and deletes would fail
+     * @throws SQLException
+     */
+    private List<String> getPublishedColumns(
+            final String qualifiedTable, final Set<String> includedColumns,
+            final Set<String> excludedColumns) throws SQLException {
+        final List<String> columns = new ArrayList<>();
+        try (PreparedStatement st = queryConnection.prepareStatement(
+                publishedColumnsQuery)) {
+            st.setString(1, qualifiedTable);
+            st.setArray(2, toTextArray(includedColumns));
+            st.setArray(3, toTextArray(excludedColumns));
+            try (ResultSet rs = st.executeQuery()) {
+                while (rs.next()) {
+                    columns.add(rs.getString(1));
+                }
+            }
+        }
+        return columns;
+    }
+
+    private Array toTextArray(final Set<String> values)
+            throws SQLException {
+        if (values == null) {
+            return null;
+        }
+        return queryConnection.createArrayOf("text", values.toArray());
+    }
+
     /**
      * Retry initializing the stream according to settings in
      * ReplicationConfiguration. Do this because only one PID
@@ -218,18 +711,63 @@ public class PostgresConnector implements AutoCloseable {
             final ReplicationConfiguration replicationConfiguration,
             final PGReplicationConnection pgReplicationConnection)
             throws SQLException {
-        return pgReplicationConnection
+        final ChainedLogicalStreamBuilder builder = pgReplicationConnection
                 .replicationStream()
                 .logical()
                 .withStatusInterval(replicationConfiguration
                         .getStatusIntervalValue(),
                         replicationConfiguration.getStatusIntervalTimeUnit())
                 .withSlotOptions(replicationConfiguration.getSlotOptions())
-                .withSlotName(replicationConfiguration.getSlotName()).start();
+                .withSlotName(replicationConfiguration.getSlotName());
+        if (!startLsn.equals(LogSequenceNumber.INVALID_LSN)) {
+            logger.info("Resuming replication from {}", startLsn);
+            builder.withStartPosition(startLsn);
+        }
+        final PGReplicationStream stream = builder.start();
+        stream.setAppliedLSN(startLsn);
+        stream.setFlushedLSN(startLsn);
+        return stream;
     }
 
     Connection createConnection(final String url, final Properties properties)
             throws SQLException {
         return DriverManager.getConnection(url, properties);
     }
+
+    /**
+     * Reads the contents of the database as of the snapshot exported when
+     * the slot was created, which is everything the slot will not stream.
+     */
+    @FunctionalInterface
+    public interface SnapshotReader {
+        void read(String snapshotName, LogSequenceNumber consistentPoint)
+                throws SQLException, IOException;
+    }
+
+    /**
+     * How far the snapshot exported by a slot was read.
+     */
+    enum SnapshotState {
+        READING,
+        READ
+    }
+
+    static final class ExportedSnapshot {
+        private final String name;
+        private final LogSequenceNumber consistentPoint;
+
+        ExportedSnapshot(final String nameInput,
+                         final LogSequenceNumber consistentPointInput) {
+            this.name = nameInput;
+            this.consistentPoint = consistentPointInput;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        LogSequenceNumber getConsistentPoint() {
+            return consistentPoint;
+        }
+    }
 }
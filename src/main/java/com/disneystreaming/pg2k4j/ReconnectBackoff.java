@@ -0,0 +1,80 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Spaces out attempts to reconnect to Postgres. The delay before each
+ * attempt is drawn at random between the minimum and a ceiling which
+ * doubles with every consecutive failure, up to the maximum, so that
+ * many instances failing together do not reconnect in lockstep.
+ */
+public class ReconnectBackoff {
+
+    private final long minDelayMillis;
+    private final long maxDelayMillis;
+    private long ceilingMillis;
+
+    /**
+     * @param minDelayMillisInput delay before the first reconnect attempt
+     * @param maxDelayMillisInput longest delay between reconnect attempts
+     */
+    public ReconnectBackoff(final long minDelayMillisInput,
+                            final long maxDelayMillisInput) {
+        if (minDelayMillisInput < 0
+                || maxDelayMillisInput < minDelayMillisInput) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid reconnect backoff of %d to %d ms",
+                    minDelayMillisInput, maxDelayMillisInput));
+        }
+        this.minDelayMillis = minDelayMillisInput;
+        this.maxDelayMillis = maxDelayMillisInput;
+        reset();
+    }
+
+    /**
+     * @return how long to wait before the next reconnect attempt
+     */
+    public long nextDelayMillis() {
+        final long delay = ThreadLocalRandom.current().nextLong(
+                minDelayMillis, ceilingMillis + 1);
+        ceilingMillis = Math.min(maxDelayMillis,
+                Math.max(ceilingMillis * 2, 1));
+        return delay;
+    }
+
+    /**
+     * Called once a connection is healthy again, so that the next failure
+     * is retried promptly.
+     */
+    public void reset() {
+        ceilingMillis = minDelayMillis;
+    }
+
+    long getCeilingMillis() {
+        return ceilingMillis;
+    }
+}
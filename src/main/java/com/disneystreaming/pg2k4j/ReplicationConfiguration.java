@@ -25,17 +25,56 @@
 
 package com.disneystreaming.pg2k4j;
 
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 public interface ReplicationConfiguration {
 
     int DEFAULT_STATUS_INTERVAL_VALUE = 20;
     TimeUnit DEFAULT_STATUS_INTERVAL_TIME_UNIT = TimeUnit.SECONDS;
     boolean DEFAULT_INCLUDE_XIDS = true;
-    String DEFAULT_OUTPUT_PLUGIN = "wal2json";
+    String WAL2JSON_OUTPUT_PLUGIN = "wal2json";
+    String PGOUTPUT_OUTPUT_PLUGIN = "pgoutput";
+    String DEFAULT_OUTPUT_PLUGIN = WAL2JSON_OUTPUT_PLUGIN;
+    String DEFAULT_PUBLICATION_NAME = "pg2k4j";
+    String PGOUTPUT_PROTOCOL_VERSION = "1";
+    boolean DEFAULT_PUSH_DOWN_FILTERS = false;
+    boolean DEFAULT_RAW_PASSTHROUGH = false;
+    boolean DEFAULT_RECORD_PER_CHANGE = false;
+    boolean DEFAULT_SCHEMA_DELTA_ENCODING = false;
+    long DEFAULT_SCHEMA_ANNOUNCE_INTERVAL_MILLIS = 60000;
+    int WAL2JSON_FORMAT_VERSION_1 = 1;
+    int WAL2JSON_FORMAT_VERSION_2 = 2;
+    int DEFAULT_WAL2JSON_FORMAT_VERSION = WAL2JSON_FORMAT_VERSION_1;
+    boolean DEFAULT_WAL2JSON_WRITE_IN_CHUNKS = false;
+    boolean DEFAULT_INITIAL_SNAPSHOT = false;
+    int DEFAULT_SNAPSHOT_WORKERS = 4;
+    String DEFAULT_SNAPSHOT_STATE_DIRECTORY = ".";
+    long DEFAULT_SNAPSHOT_RANGE_ROWS = 100000;
+    boolean DEFAULT_INCREMENTAL_SNAPSHOTS = false;
+    int DEFAULT_INCREMENTAL_SNAPSHOT_CHUNK_ROWS = 1024;
+    Pattern WAL2JSON_SPECIAL_CHARACTERS = Pattern.compile("([ ',.*])");
     int DEFAULT_UPDATE_IDLE_SLOT_INTERVAL = 300;
+    int DEFAULT_ACKNOWLEDGEMENT_WINDOW_SIZE = 65536;
+    long DEFAULT_MAX_OUTSTANDING_RECORDS = 10000;
+    long DEFAULT_MAX_IN_FLIGHT_BYTES = 64 * 1024 * 1024;
+    int DEFAULT_PIPELINE_WORKERS = 1;
+    int DEFAULT_PIPELINE_DEPTH = 1024;
+    String DEFAULT_PARTITION_KEY_STRATEGY = PartitionKeyStrategy.RANDOM;
+    String DEFAULT_IDLE_STRATEGY = IdleStrategy.BACKOFF;
+    long DEFAULT_RECONNECT_MIN_BACKOFF_MILLIS = 50;
+    long DEFAULT_RECONNECT_MAX_BACKOFF_MILLIS = 30000;
+    int DEFAULT_SPILL_SEGMENT_BYTES = 64 * 1024 * 1024;
+    long DEFAULT_SPILL_MAX_BYTES = 8L * 1024 * 1024 * 1024;
+    int DEFAULT_BATCH_MAX_BYTES = 0;
+    long DEFAULT_BATCH_MAX_DELAY_MILLIS = 100;
+    int DEFAULT_MAX_RECORD_BYTES = 1000 * 1000;
+    int DEFAULT_MESSAGE_FLUSH_BYTES = 0;
     int DEFAULT_EXISTING_PROCESS_RETRY_LIMIT = 30;
     int DEFAULT_EXISTING_PROCESS_RETRY_SLEEP_SECONDS = 30;
 
@@ -57,17 +96,244 @@ public interface ReplicationConfiguration {
         return DEFAULT_OUTPUT_PLUGIN;
     }
 
+    /**
+     * @return name of the publication to stream changes for when using the
+     * pgoutput plugin. The publication is created if it doesn't exist yet.
+     * The name is quoted, so it is taken exactly as given, case included.
+     */
+    default String getPublicationName() {
+        return DEFAULT_PUBLICATION_NAME;
+    }
+
+    default boolean isPgOutput() {
+        return PGOUTPUT_OUTPUT_PLUGIN.equals(getOutputPlugin());
+    }
+
     default Properties getSlotOptions() {
         Properties properties = new Properties();
-        properties.setProperty("include-xids", String.valueOf(
-                getIncludeXids()));
+        if (isPgOutput()) {
+            properties.setProperty("proto_version",
+                    PGOUTPUT_PROTOCOL_VERSION);
+            properties.setProperty("publication_names",
+                    InitialSnapshot.quoteIdentifier(getPublicationName()));
+            if (getIncrementalSnapshots()) {
+                properties.setProperty("messages", "true");
+            }
+        } else {
+            properties.setProperty("include-xids", String.valueOf(
+                    getIncludeXids()));
+            if (getWal2JsonFormatVersion() == WAL2JSON_FORMAT_VERSION_2) {
+                properties.setProperty("format-version",
+                        String.valueOf(WAL2JSON_FORMAT_VERSION_2));
+            } else if (getWal2JsonWriteInChunks()) {
+                properties.setProperty("write-in-chunks", "true");
+            }
+            if (getPushDownFilters()) {
+                setWal2JsonFilterOptions(properties);
+            }
+            if (getRecordPerChange()) {
+                properties.setProperty("include-pk", "true");
+            }
+        }
         return properties;
     }
 
+    /**
+     * Translate the configured filters into wal2json options so that
+     * irrelevant changes are dropped by the server rather than shipped to
+     * pg2k4j and thrown away there. Tables are matched regardless of their
+     * schema, the same way {@link ChangeFilter} matches them.
+     *
+     * @param properties slot options to add the filter options to
+     */
+    default void setWal2JsonFilterOptions(final Properties properties) {
+        if (getRelevantTables() != null) {
+            properties.setProperty("add-tables",
+                    toWal2JsonTables(getRelevantTables()));
+        }
+        if (getExcludedTables() != null) {
+            properties.setProperty("filter-tables",
+                    toWal2JsonTables(getExcludedTables()));
+        }
+        if (getActions() != null) {
+            properties.setProperty("actions",
+                    String.join(",", getActions()));
+        }
+    }
+
+    static String toWal2JsonTables(final Set<String> tables) {
+        return tables.stream()
+                .map(table -> "*." + WAL2JSON_SPECIAL_CHARACTERS
+                        .matcher(table)
+                        .replaceAll("\\\\$1"))
+                .sorted()
+                .collect(Collectors.joining(","));
+    }
+
     default int getUpdateIdleSlotInterval() {
         return DEFAULT_UPDATE_IDLE_SLOT_INTERVAL;
     }
 
+    /**
+     * @return maximum number of records which can be in flight to Kinesis
+     * at once, as tracked by {@link LsnAcknowledgementTracker}. Reading the
+     * slot waits once this many records are awaiting acknowledgement.
+     */
+    default int getAcknowledgementWindowSize() {
+        return DEFAULT_ACKNOWLEDGEMENT_WINDOW_SIZE;
+    }
+
+    /**
+     * @return number of records outstanding in the KinesisProducer at which
+     * reading the slot pauses. Reading resumes once half as many are left.
+     */
+    default long getMaxOutstandingRecords() {
+        return DEFAULT_MAX_OUTSTANDING_RECORDS;
+    }
+
+    /**
+     * @return number of bytes in flight to Kinesis at which reading the slot
+     * pauses. Reading resumes once half as many are left.
+     */
+    default long getMaxInFlightBytes() {
+        return DEFAULT_MAX_IN_FLIGHT_BYTES;
+    }
+
+    /**
+     * @return number of threads decoding wal2json messages. With more than
+     * one, messages are decoded in parallel by a
+     * {@link SlotMessagePipeline} and put on the stream in order.
+     */
+    default int getPipelineWorkers() {
+        return DEFAULT_PIPELINE_WORKERS;
+    }
+
+    /**
+     * @return number of messages which can be waiting in the
+     * {@link SlotMessagePipeline} before reading the slot pauses
+     */
+    default int getPipelineDepth() {
+        return DEFAULT_PIPELINE_DEPTH;
+    }
+
+    /**
+     * @return name of the {@link PartitionKeyStrategy} deciding which shard
+     * records land on: random, shardrange, keycolumns or legacy. Random by
+     * default, which spreads records over shards as they always were;
+     * keycolumns keeps the records of a row on the same shard.
+     */
+    default String getPartitionKeyStrategy() {
+        return DEFAULT_PARTITION_KEY_STRATEGY;
+    }
+
+    /**
+     * @return number of shards of the stream, which must evenly split the
+     * hash key space, or 0 if it is not known. Used by the shardrange
+     * partition key strategy, and by schema delta encoding to put schema
+     * messages on every shard rather than on every hash key.
+     */
+    default int getShardCount() {
+        return 0;
+    }
+
+    /**
+     * @return routes sending the changes of some tables to streams of their
+     * own, see {@link StreamRouter}, or null to put every change on the same
+     * stream. Routes only apply to records holding a single change.
+     */
+    default List<String> getStreamRoutes() {
+        return null;
+    }
+
+    /**
+     * @return name of the {@link IdleStrategy} the read loop waits with when
+     * there is nothing to read: backoff or spin
+     */
+    default String getIdleStrategy() {
+        return DEFAULT_IDLE_STRATEGY;
+    }
+
+    /**
+     * @return longest time the backoff idle strategy parks the read loop for
+     */
+    default long getIdleMaxParkNanos() {
+        return BackoffIdleStrategy.DEFAULT_MAX_PARK_NANOS;
+    }
+
+    /**
+     * @return shortest delay before reconnecting to Postgres after the
+     * replication stream failed
+     */
+    default long getReconnectMinBackoffMillis() {
+        return DEFAULT_RECONNECT_MIN_BACKOFF_MILLIS;
+    }
+
+    /**
+     * @return longest delay before reconnecting to Postgres, reached after
+     * consecutive failures
+     */
+    default long getReconnectMaxBackoffMillis() {
+        return DEFAULT_RECONNECT_MAX_BACKOFF_MILLIS;
+    }
+
+    /**
+     * @return directory records are spilled to, and acknowledged to the
+     * slot from, before they are put on the stream, or null to put them on
+     * the stream directly
+     */
+    default String getSpillDirectory() {
+        return null;
+    }
+
+    /**
+     * @return size of each file records are spilled to
+     */
+    default int getSpillSegmentBytes() {
+        return DEFAULT_SPILL_SEGMENT_BYTES;
+    }
+
+    /**
+     * @return total size of spill files past which reading the slot pauses
+     */
+    default long getSpillMaxBytes() {
+        return DEFAULT_SPILL_MAX_BYTES;
+    }
+
+    /**
+     * @return largest record to pack serialized messages into, or 0 to put
+     * each message in a record of its own. Batching does not apply when a
+     * record is put per change. Must not exceed {@link #getMaxRecordBytes()}.
+     */
+    default int getBatchMaxBytes() {
+        return DEFAULT_BATCH_MAX_BYTES;
+    }
+
+    /**
+     * @return longest time a message waits for a batch to fill up
+     */
+    default long getBatchMaxDelayMillis() {
+        return DEFAULT_BATCH_MAX_DELAY_MILLIS;
+    }
+
+    /**
+     * @return largest record to put on the stream. Larger serialized
+     * messages are split into chunks of this size.
+     */
+    default int getMaxRecordBytes() {
+        return DEFAULT_MAX_RECORD_BYTES;
+    }
+
+    /**
+     * @return size from which the changes of a transaction serialized so far
+     * are put on the stream as a message of their own, sharing the xid of
+     * the transaction, or 0 to put every transaction on the stream as a
+     * single message, which is then held in memory until it commits. Does
+     * not apply with {@link #getRecordPerChange()}.
+     */
+    default int getMessageFlushBytes() {
+        return DEFAULT_MESSAGE_FLUSH_BYTES;
+    }
+
     default int getExisitingProcessRetryLimit() {
         return DEFAULT_EXISTING_PROCESS_RETRY_LIMIT;
     }
@@ -79,4 +345,180 @@ public interface ReplicationConfiguration {
     default Set<String> getRelevantTables() {
         return null;
     }
+
+    /**
+     * @return tables whose changes should never be published, or null
+     */
+    default Set<String> getExcludedTables() {
+        return null;
+    }
+
+    /**
+     * @return kinds of change (insert, update, delete) to publish, or null
+     * to publish all of them
+     */
+    default Set<String> getActions() {
+        return null;
+    }
+
+    /**
+     * @return by table, the only columns whose values are published, or
+     * null. Tables are matched regardless of their schema. Leaving out key
+     * columns leaves their rows to be partitioned as if they had no key.
+     */
+    default Map<String, Set<String>> getIncludedColumns() {
+        return null;
+    }
+
+    /**
+     * @return by table, columns whose values are never published, or null
+     */
+    default Map<String, Set<String>> getExcludedColumns() {
+        return null;
+    }
+
+    /**
+     * @return by table, the {@link RowFilter} expression rows have to match
+     * to be published, or null. Filters see the published columns only.
+     */
+    default Map<String, String> getRowFilters() {
+        return null;
+    }
+
+    /**
+     * @return whether the table and action filters should be passed on to
+     * the output plugin, so that they are applied by the server. Off by
+     * default, as wal2json versions which predate the add-tables,
+     * filter-tables and actions options reject the slot options, so only
+     * enable it against a wal2json which has them. Column filters have no
+     * wal2json counterpart, and are only pushed down as the column lists of
+     * a pgoutput publication created by pg2k4j on Postgres 15 or later.
+     */
+    default boolean getPushDownFilters() {
+        return DEFAULT_PUSH_DOWN_FILTERS;
+    }
+
+    /**
+     * @return whether wal2json output should be put on the stream exactly as
+     * it was read off the slot, rather than parsed and re-serialized. Only
+     * takes effect when no filtering is left to be done by pg2k4j itself.
+     */
+    default boolean getRawPassthrough() {
+        return DEFAULT_RAW_PASSTHROUGH;
+    }
+
+    /**
+     * @return whether every change should be put on the stream as a record
+     * of its own, partitioned by its table and primary key, rather than one
+     * record per transaction. With wal2json this relies on the include-pk
+     * option to learn the primary key of inserted rows.
+     */
+    default boolean getRecordPerChange() {
+        return DEFAULT_RECORD_PER_CHANGE;
+    }
+
+    /**
+     * @return whether changes should refer to the shape of their row by the
+     * id of a schema message, put on the stream whenever a shard may not
+     * have seen it yet, rather than carry their column names and types.
+     * Requires record per change.
+     */
+    default boolean getSchemaDeltaEncoding() {
+        return DEFAULT_SCHEMA_DELTA_ENCODING;
+    }
+
+    /**
+     * @return longest time a schema message is not put on a shard again
+     * with schema delta encoding, so that consumers which start reading the
+     * shard past it, such as from a checkpoint or from its latest records,
+     * learn it within that time
+     */
+    default long getSchemaAnnounceIntervalMillis() {
+        return DEFAULT_SCHEMA_ANNOUNCE_INTERVAL_MILLIS;
+    }
+
+    /**
+     * @return wal2json output format to request. Version 1 emits every
+     * transaction as a single JSON object, version 2 emits one JSON object
+     * per row, framed by begin and commit objects.
+     */
+    default int getWal2JsonFormatVersion() {
+        return DEFAULT_WAL2JSON_FORMAT_VERSION;
+    }
+
+    /**
+     * @return whether wal2json should write format version 1 output after
+     * every change rather than once the whole transaction was decoded.
+     * Version 2 output is always written one row at a time.
+     */
+    default boolean getWal2JsonWriteInChunks() {
+        return DEFAULT_WAL2JSON_WRITE_IN_CHUNKS;
+    }
+
+    /**
+     * @return whether wal2json spreads each transaction over several
+     * messages, which then have to be decoded in order by a single
+     * {@link SlotMessageDecoder}
+     */
+    default boolean isWal2JsonIncremental() {
+        return !isPgOutput()
+                && (getWal2JsonFormatVersion() == WAL2JSON_FORMAT_VERSION_2
+                || getWal2JsonWriteInChunks());
+    }
+
+    /**
+     * @return whether the slot should be created with an exported snapshot,
+     * whose contents are read by an {@link InitialSnapshot} and put on the
+     * stream before any change is streamed. Only applies when pg2k4j creates
+     * the slot.
+     */
+    default boolean getInitialSnapshot() {
+        return DEFAULT_INITIAL_SNAPSHOT;
+    }
+
+    /**
+     * @return local directory recording how far the initial snapshot of the
+     * slot was read, so that a slot whose snapshot was not read in full is
+     * created again. Defaults to the spill directory, or to the working
+     * directory without one.
+     */
+    default String getSnapshotStateDirectory() {
+        if (getSpillDirectory() != null) {
+            return getSpillDirectory();
+        }
+        return DEFAULT_SNAPSHOT_STATE_DIRECTORY;
+    }
+
+    /**
+     * @return number of connections reading the initial snapshot in
+     * parallel
+     */
+    default int getSnapshotWorkers() {
+        return DEFAULT_SNAPSHOT_WORKERS;
+    }
+
+    /**
+     * @return approximate number of rows in each of the primary key ranges
+     * a table is split into for the initial snapshot
+     */
+    default long getSnapshotRangeRows() {
+        return DEFAULT_SNAPSHOT_RANGE_ROWS;
+    }
+
+    /**
+     * @return whether tables can be snapshotted while streaming, when
+     * requested with a logical decoding message, see
+     * {@link IncrementalSnapshot}
+     */
+    default boolean getIncrementalSnapshots() {
+        return DEFAULT_INCREMENTAL_SNAPSHOTS;
+    }
+
+    /**
+     * @return number of rows read in each chunk of an incremental snapshot,
+     * which bounds the number of rows held in memory
+     */
+    default int getIncrementalSnapshotChunkRows() {
+        return DEFAULT_INCREMENTAL_SNAPSHOT_CHUNK_ROWS;
+    }
 }
@@ -0,0 +1,651 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import com.disneystreaming.pg2k4j.models.Change;
+import com.disneystreaming.pg2k4j.models.TableSchema;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
+
+/**
+ * Row level filters, one per table, written in a small subset of SQL:
+ * <pre>
+ * tenant_id in (1, 2, 3) and deleted_at is null
+ * not (status = 'archived' or amount &lt; 0.5)
+ * </pre>
+ * Comparisons (=, !=, &lt;&gt;, &lt;, &lt;=, &gt;, &gt;=) and in lists take a
+ * column on the left and a number, string or boolean literal on the right.
+ * In lists match values of the same kind, numbers being compared by value.
+ * As in SQL, comparing a null, or values which cannot be compared, is
+ * neither true nor false but unknown, which `not` leaves unknown, `and`
+ * only makes false along with a false operand, and `or` only makes true
+ * along with a true one. Rows are only kept when their filter is true, so
+ * `not (deleted_at = 'x')` drops rows where deleted_at is null.
+ * <p>
+ * Each filter is parsed once, and compiled against the shape of its table
+ * the first time a row of that shape is tested, into a condition reading
+ * values by their index. Rows lacking a column their filter refers
+ * to, such as deletes which only carry their replica identity, cannot be
+ * told apart and are kept. Tables are matched regardless of their schema,
+ * and rows of tables without a filter are kept.
+ */
+public class RowFilter {
+
+    private static final int INCOMPARABLE = Integer.MIN_VALUE;
+
+    private final Map<String, Expression> expressions;
+    private final Map<String, CompiledExpression> compiledExpressions =
+            new ConcurrentHashMap<>();
+
+    /**
+     * @param filters by table, the expression rows have to match
+     * @throws IllegalArgumentException if an expression is invalid
+     */
+    public RowFilter(final Map<String, String> filters) {
+        this.expressions = new HashMap<>();
+        filters.forEach((table, filter) ->
+                expressions.put(table, new Parser(filter).parse()));
+    }
+
+    /**
+     * @param replicationConfiguration {@link ReplicationConfiguration}
+     * @return a filter for the configured row filters, or null if there are
+     * none
+     */
+    static RowFilter fromConfiguration(
+            final ReplicationConfiguration replicationConfiguration) {
+        final Map<String, String> filters =
+                replicationConfiguration.getRowFilters();
+        if (filters == null || filters.isEmpty()) {
+            return null;
+        }
+        return new RowFilter(filters);
+    }
+
+    /**
+     * @param change a change, or a row read by a snapshot
+     * @return whether the row matches the filter of its table
+     */
+    public boolean test(final Change change) {
+        final Expression expression = expressions.get(change.getTable());
+        if (expression == null) {
+            return true;
+        }
+        final TableSchema tableSchema = change.getTableSchema();
+        CompiledExpression compiled =
+                compiledExpressions.get(change.getTable());
+        if (compiled == null || compiled.tableSchema != tableSchema) {
+            compiled = new CompiledExpression(tableSchema,
+                    expression.compile(tableSchema));
+            compiledExpressions.put(change.getTable(), compiled);
+        }
+        return compiled.condition == null || compiled.condition.evaluate(
+                change.getColumnvalues()) == Truth.TRUE;
+    }
+
+    private static Object valueAt(final List<Object> values,
+                                  final int index) {
+        if (index >= values.size()) {
+            return null;
+        }
+        return values.get(index);
+    }
+
+    /**
+     * @return the sign of the comparison of the value with the literal, or
+     * {@link #INCOMPARABLE} if the value is null or cannot be compared
+     */
+    static int compare(final Object value, final Object literal) {
+        if (value == null) {
+            return INCOMPARABLE;
+        }
+        if (literal instanceof Long) {
+            if (isIntegral(value)) {
+                return Long.compare(((Number) value).longValue(),
+                        (Long) literal);
+            }
+            return compareDecimal(value, BigDecimal.valueOf((Long) literal));
+        }
+        if (literal instanceof BigDecimal) {
+            return compareDecimal(value, (BigDecimal) literal);
+        }
+        if (literal instanceof Boolean) {
+            if (value instanceof Boolean) {
+                return Boolean.compare((Boolean) value, (Boolean) literal);
+            }
+            return INCOMPARABLE;
+        }
+        return Integer.signum(value.toString().compareTo((String) literal));
+    }
+
+    private static int compareDecimal(final Object value,
+                                      final BigDecimal literal) {
+        final BigDecimal decimal = toDecimal(value);
+        if (decimal == null) {
+            return INCOMPARABLE;
+        }
+        return decimal.compareTo(literal);
+    }
+
+    private static boolean isIntegral(final Object value) {
+        return value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte;
+    }
+
+    private static BigDecimal toDecimal(final Object value) {
+        if (value instanceof BigDecimal) {
+            return (BigDecimal) value;
+        } else if (value instanceof BigInteger) {
+            return new BigDecimal((BigInteger) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            final double number = ((Number) value).doubleValue();
+            if (Double.isNaN(number) || Double.isInfinite(number)) {
+                return null;
+            }
+            return BigDecimal.valueOf(number);
+        } else if (value instanceof Number) {
+            return BigDecimal.valueOf(((Number) value).longValue());
+        } else if (value instanceof String) {
+            try {
+                return new BigDecimal((String) value);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the value as the key it is looked up by in an in list:
+     * integral numbers as Longs, other numbers as BigDecimals without
+     * trailing zeros, strings and booleans as they are
+     */
+    static Object toKey(final Object value) {
+        if (value == null || value instanceof Long) {
+            return value;
+        }
+        if (isIntegral(value)) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Number) {
+            final BigDecimal decimal = toDecimal(value);
+            if (decimal == null) {
+                return null;
+            }
+            return toKey(decimal);
+        }
+        return value;
+    }
+
+    private static Object toKey(final BigDecimal decimal) {
+        final BigDecimal stripped = decimal.stripTrailingZeros();
+        if (stripped.scale() <= 0) {
+            try {
+                return stripped.longValueExact();
+            } catch (ArithmeticException e) {
+                return stripped;
+            }
+        }
+        return stripped;
+    }
+
+    /**
+     * Truth value of a condition in SQL's three valued logic.
+     */
+    enum Truth {
+        TRUE, FALSE, UNKNOWN;
+
+        static Truth of(final boolean value) {
+            if (value) {
+                return TRUE;
+            }
+            return FALSE;
+        }
+
+        Truth not() {
+            if (this == TRUE) {
+                return FALSE;
+            } else if (this == FALSE) {
+                return TRUE;
+            }
+            return UNKNOWN;
+        }
+    }
+
+    /**
+     * An expression bound to the columns of a table.
+     */
+    interface Condition {
+        /**
+         * @param values values of the columns of a row
+         * @return whether the row matches, which is unknown where nulls
+         * decide
+         */
+        Truth evaluate(List<Object> values);
+    }
+
+    /**
+     * An expression as parsed, before it is bound to the columns of a
+     * table.
+     */
+    interface Expression {
+        /**
+         * @param tableSchema shape of the rows to test
+         * @return a condition over the values of the columns, or null if a
+         * column the expression refers to is missing
+         */
+        Condition compile(TableSchema tableSchema);
+    }
+
+    private static final class CompiledExpression {
+        private final TableSchema tableSchema;
+        private final Condition condition;
+
+        private CompiledExpression(final TableSchema tableSchemaInput,
+                                   final Condition conditionInput) {
+            this.tableSchema = tableSchemaInput;
+            this.condition = conditionInput;
+        }
+    }
+
+    private static final class And implements Expression {
+        private final Expression left;
+        private final Expression right;
+
+        private And(final Expression leftInput,
+                    final Expression rightInput) {
+            this.left = leftInput;
+            this.right = rightInput;
+        }
+
+        @Override
+        public Condition compile(final TableSchema tableSchema) {
+            final Condition compiledLeft = left.compile(tableSchema);
+            final Condition compiledRight = right.compile(tableSchema);
+            if (compiledLeft == null || compiledRight == null) {
+                return null;
+            }
+            return values -> {
+                final Truth truth = compiledLeft.evaluate(values);
+                if (truth == Truth.FALSE) {
+                    return Truth.FALSE;
+                }
+                final Truth other = compiledRight.evaluate(values);
+                if (other == Truth.FALSE) {
+                    return Truth.FALSE;
+                } else if (truth == Truth.TRUE && other == Truth.TRUE) {
+                    return Truth.TRUE;
+                }
+                return Truth.UNKNOWN;
+            };
+        }
+    }
+
+    private static final class Or implements Expression {
+        private final Expression left;
+        private final Expression right;
+
+        private Or(final Expression leftInput, final Expression rightInput) {
+            this.left = leftInput;
+            this.right = rightInput;
+        }
+
+        @Override
+        public Condition compile(final TableSchema tableSchema) {
+            final Condition compiledLeft = left.compile(tableSchema);
+            final Condition compiledRight = right.compile(tableSchema);
+            if (compiledLeft == null || compiledRight == null) {
+                return null;
+            }
+            return values -> {
+                final Truth truth = compiledLeft.evaluate(values);
+                if (truth == Truth.TRUE) {
+                    return Truth.TRUE;
+                }
+                final Truth other = compiledRight.evaluate(values);
+                if (other == Truth.TRUE) {
+                    return Truth.TRUE;
+                } else if (truth == Truth.FALSE && other == Truth.FALSE) {
+                    return Truth.FALSE;
+                }
+                return Truth.UNKNOWN;
+            };
+        }
+    }
+
+    private static final class Not implements Expression {
+        private final Expression negated;
+
+        private Not(final Expression negatedInput) {
+            this.negated = negatedInput;
+        }
+
+        @Override
+        public Condition compile(final TableSchema tableSchema) {
+            final Condition compiled = negated.compile(tableSchema);
+            if (compiled == null) {
+                return null;
+            }
+            return values -> compiled.evaluate(values).not();
+        }
+    }
+
+    private static final class Comparison implements Expression {
+        private final String column;
+        private final IntPredicate operator;
+        private final Object literal;
+
+        private Comparison(final String columnInput,
+                           final IntPredicate operatorInput,
+                           final Object literalInput) {
+            this.column = columnInput;
+            this.operator = operatorInput;
+            this.literal = literalInput;
+        }
+
+        @Override
+        public Condition compile(final TableSchema tableSchema) {
+            final int index = tableSchema.indexOf(column);
+            if (index == -1) {
+                return null;
+            }
+            return values -> {
+                final int comparison = compare(valueAt(values, index),
+                        literal);
+                if (comparison == INCOMPARABLE) {
+                    return Truth.UNKNOWN;
+                }
+                return Truth.of(operator.test(comparison));
+            };
+        }
+    }
+
+    private static final class In implements Expression {
+        private final String column;
+        private final Set<Object> keys;
+        private final boolean negated;
+
+        private In(final String columnInput, final Set<Object> keysInput,
+                   final boolean negatedInput) {
+            this.column = columnInput;
+            this.keys = keysInput;
+            this.negated = negatedInput;
+        }
+
+        @Override
+        public Condition compile(final TableSchema tableSchema) {
+            final int index = tableSchema.indexOf(column);
+            if (index == -1) {
+                return null;
+            }
+            return values -> {
+                final Object key = toKey(valueAt(values, index));
+                if (key == null) {
+                    return Truth.UNKNOWN;
+                }
+                return Truth.of(keys.contains(key) != negated);
+            };
+        }
+    }
+
+    private static final class IsNull implements Expression {
+        private final String column;
+        private final boolean negated;
+
+        private IsNull(final String columnInput,
+                       final boolean negatedInput) {
+            this.column = columnInput;
+            this.negated = negatedInput;
+        }
+
+        @Override
+        public Condition compile(final TableSchema tableSchema) {
+            final int index = tableSchema.indexOf(column);
+            if (index == -1) {
+                return null;
+            }
+            return values -> Truth.of(
+                    (valueAt(values, index) == null) != negated);
+        }
+    }
+
+    /**
+     * Recursive descent parser of row filter expressions, in which `not`
+     * binds tighter than `and`, which binds tighter than `or`. Unquoted
+     * column names are folded to lower case, as Postgres does.
+     */
+    static final class Parser {
+        private final String text;
+        private int position;
+
+        Parser(final String textInput) {
+            this.text = textInput;
+        }
+
+        Expression parse() {
+            final Expression expression = parseOr();
+            skipWhitespace();
+            if (position < text.length()) {
+                throw error("unexpected `" + text.substring(position)
+                        + "`");
+            }
+            return expression;
+        }
+
+        private Expression parseOr() {
+            Expression expression = parseAnd();
+            while (acceptKeyword("or")) {
+                expression = new Or(expression, parseAnd());
+            }
+            return expression;
+        }
+
+        private Expression parseAnd() {
+            Expression expression = parseUnary();
+            while (acceptKeyword("and")) {
+                expression = new And(expression, parseUnary());
+            }
+            return expression;
+        }
+
+        private Expression parseUnary() {
+            if (acceptKeyword("not")) {
+                return new Not(parseUnary());
+            }
+            if (accept("(")) {
+                final Expression expression = parseOr();
+                expect(")");
+                return expression;
+            }
+            return parseCondition();
+        }
+
+        private Expression parseCondition() {
+            final String column = parseIdentifier();
+            if (acceptKeyword("is")) {
+                final boolean negated = acceptKeyword("not");
+                if (!acceptKeyword("null")) {
+                    throw error("expected null");
+                }
+                return new IsNull(column, negated);
+            }
+            final boolean negated = acceptKeyword("not");
+            if (acceptKeyword("in")) {
+                expect("(");
+                final Set<Object> keys = new HashSet<>();
+                keys.add(toKey(parseLiteral()));
+                while (accept(",")) {
+                    keys.add(toKey(parseLiteral()));
+                }
+                expect(")");
+                return new In(column, keys, negated);
+            }
+            if (negated) {
+                throw error("expected in");
+            }
+            final IntPredicate operator = parseOperator();
+            return new Comparison(column, operator, parseLiteral());
+        }
+
+        private IntPredicate parseOperator() {
+            if (accept("<=")) {
+                return comparison -> comparison <= 0;
+            } else if (accept(">=")) {
+                return comparison -> comparison >= 0;
+            } else if (accept("<>") || accept("!=")) {
+                return comparison -> comparison != 0;
+            } else if (accept("=")) {
+                return comparison -> comparison == 0;
+            } else if (accept("<")) {
+                return comparison -> comparison < 0;
+            } else if (accept(">")) {
+                return comparison -> comparison > 0;
+            }
+            throw error("expected a comparison operator");
+        }
+
+        private String parseIdentifier() {
+            skipWhitespace();
+            if (accept("\"")) {
+                return parseQuoted('"');
+            }
+            final int start = position;
+            while (position < text.length() && isIdentifierPart(
+                    text.charAt(position), position == start)) {
+                position++;
+            }
+            if (position == start) {
+                throw error("expected a column name");
+            }
+            return text.substring(start, position).toLowerCase(Locale.ROOT);
+        }
+
+        private Object parseLiteral() {
+            skipWhitespace();
+            if (accept("'")) {
+                return parseQuoted('\'');
+            } else if (acceptKeyword("true")) {
+                return Boolean.TRUE;
+            } else if (acceptKeyword("false")) {
+                return Boolean.FALSE;
+            } else if (acceptKeyword("null")) {
+                throw error("null cannot be compared, use is null");
+            }
+            final int start = position;
+            while (position < text.length() && isNumberPart(
+                    text.charAt(position))) {
+                position++;
+            }
+            try {
+                final BigDecimal number =
+                        new BigDecimal(text.substring(start, position));
+                if (number.scale() <= 0) {
+                    return toKey(number);
+                }
+                return number;
+            } catch (NumberFormatException e) {
+                position = start;
+                throw error("expected a number, string or boolean");
+            }
+        }
+
+        private String parseQuoted(final char quote) {
+            final StringBuilder quoted = new StringBuilder();
+            while (position < text.length()) {
+                final char c = text.charAt(position++);
+                if (c != quote) {
+                    quoted.append(c);
+                } else if (position < text.length()
+                        && text.charAt(position) == quote) {
+                    quoted.append(quote);
+                    position++;
+                } else {
+                    return quoted.toString();
+                }
+            }
+            throw error("unterminated " + quote);
+        }
+
+        private boolean acceptKeyword(final String keyword) {
+            skipWhitespace();
+            final int end = position + keyword.length();
+            if (text.regionMatches(true, position, keyword, 0,
+                    keyword.length()) && (end == text.length()
+                    || !isIdentifierPart(text.charAt(end), false))) {
+                position = end;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean accept(final String symbol) {
+            skipWhitespace();
+            if (text.startsWith(symbol, position)) {
+                position += symbol.length();
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(final String symbol) {
+            if (!accept(symbol)) {
+                throw error("expected " + symbol);
+            }
+        }
+
+        private void skipWhitespace() {
+            while (position < text.length()
+                    && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+        private static boolean isIdentifierPart(final char c,
+                                                final boolean first) {
+            return c == '_' || Character.isLetter(c)
+                    || (!first && (c == '$' || Character.isDigit(c)));
+        }
+
+        private static boolean isNumberPart(final char c) {
+            return Character.isDigit(c) || c == '-' || c == '+' || c == '.'
+                    || c == 'e' || c == 'E';
+        }
+
+        private IllegalArgumentException error(final String message) {
+            return new IllegalArgumentException("Invalid row filter `" + text
+                    + "` at position " + position + ": " + message);
+        }
+    }
+}
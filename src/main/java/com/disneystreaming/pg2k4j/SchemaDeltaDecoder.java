@@ -0,0 +1,189 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import com.disneystreaming.pg2k4j.models.Change;
+import com.disneystreaming.pg2k4j.models.DeleteChange;
+import com.disneystreaming.pg2k4j.models.InsertChange;
+import com.disneystreaming.pg2k4j.models.OldKeys;
+import com.disneystreaming.pg2k4j.models.TableSchema;
+import com.disneystreaming.pg2k4j.models.UpdateChange;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns the messages written by a {@link SchemaDeltaWriter} back into
+ * changes, for consumers of the stream. Schema messages are remembered and
+ * yield no changes; the changes of the messages which follow are bound to
+ * the shapes they refer to. Messages holding changes with their column
+ * names, as written without schema delta encoding, are bound as they are.
+ * <p>
+ * Schema messages are put on every shard ahead of the first change
+ * referring to them, again on every new connection of the writer, and again
+ * once the writer's announce interval has passed, so a decoder has to be
+ * kept for every shard and read it in order. A change referring to a schema
+ * the decoder has not read, such as one read right after resuming from a
+ * checkpoint or starting at the latest record, is reported with an
+ * {@link UnknownSchemaException}; its schema message follows within the
+ * announce interval. The producer may also put a schema message after a
+ * change referring to it when it retries a failed put, so consumers should
+ * hold on to such changes until their schema message is read rather than
+ * drop them.
+ */
+public class SchemaDeltaDecoder {
+
+    private static final String TABLE_SCHEMA_FIELD = "tableschema";
+    private static final String ID_FIELD = "id";
+    private static final String SCHEMA_FIELD = "schema";
+    private static final String TABLE_FIELD = "table";
+    private static final String COLUMN_NAMES_FIELD = "columnnames";
+    private static final String COLUMN_TYPES_FIELD = "columntypes";
+    private static final String KEY_NAMES_FIELD = "keynames";
+    private static final String CHANGE_FIELD = "change";
+    private static final String KIND_FIELD = "kind";
+    private static final String SCHEMA_ID_FIELD = "schemaid";
+    private static final String COLUMN_VALUES_FIELD = "columnvalues";
+    private static final String OLD_KEYS_FIELD = "oldkeys";
+    private static final String KEY_VALUES_FIELD = "keyvalues";
+    private static final String UPDATE_KIND = "update";
+    private static final String DELETE_KIND = "delete";
+    private static final TypeReference<List<Object>> VALUES_TYPE =
+            new TypeReference<List<Object>>() { };
+    private static final TypeReference<List<String>> STRINGS_TYPE =
+            new TypeReference<List<String>>() { };
+
+    private final ObjectMapper objectMapper;
+    private final Map<String, TableSchema> schemas = new HashMap<>();
+
+    public SchemaDeltaDecoder(final ObjectMapper objectMapperInput) {
+        this.objectMapper = objectMapperInput;
+    }
+
+    /**
+     * @param message message written by pg2k4j, reassembled and split out
+     *                of its batch if need be, which is not consumed
+     * @return the changes the message holds, none for a schema message
+     * @throws UnknownSchemaException if a change refers to a schema message
+     *                                which was not read yet
+     * @throws IOException            if the message cannot be parsed
+     */
+    public List<Change> decode(final ByteBuffer message) throws IOException {
+        final JsonNode root;
+        try (JsonParser parser = objectMapper.getFactory().createParser(
+                message.array(), message.arrayOffset() + message.position(),
+                message.remaining())) {
+            root = objectMapper.readTree(parser);
+        }
+        final JsonNode tableSchema = root.get(TABLE_SCHEMA_FIELD);
+        if (tableSchema != null) {
+            addSchema(tableSchema);
+            return Collections.emptyList();
+        }
+        final JsonNode changeNodes = root.get(CHANGE_FIELD);
+        if (changeNodes == null) {
+            return Collections.emptyList();
+        }
+        final List<Change> changes = new ArrayList<>(changeNodes.size());
+        for (JsonNode changeNode : changeNodes) {
+            changes.add(toChange(changeNode));
+        }
+        return changes;
+    }
+
+    /**
+     * @param schemaId id of a schema message
+     * @return the shape it describes, or null if it was not read yet
+     */
+    public TableSchema getTableSchema(final String schemaId) {
+        return schemas.get(schemaId);
+    }
+
+    private void addSchema(final JsonNode node) throws IOException {
+        final String id = node.get(ID_FIELD).asText();
+        List<String> keyNames = null;
+        if (node.hasNonNull(KEY_NAMES_FIELD)) {
+            keyNames = toList(node.get(KEY_NAMES_FIELD), STRINGS_TYPE);
+        }
+        schemas.put(id, TableSchema.of(node.get(SCHEMA_FIELD).asText(),
+                node.get(TABLE_FIELD).asText(),
+                toList(node.get(COLUMN_NAMES_FIELD), STRINGS_TYPE),
+                toList(node.get(COLUMN_TYPES_FIELD), STRINGS_TYPE),
+                keyNames));
+    }
+
+    private Change toChange(final JsonNode node) throws IOException {
+        final JsonNode oldKeysNode = node.get(OLD_KEYS_FIELD);
+        if (!node.has(SCHEMA_ID_FIELD) && (oldKeysNode == null
+                || !oldKeysNode.has(SCHEMA_ID_FIELD))) {
+            return objectMapper.treeToValue(node, Change.class);
+        }
+        final String kind = node.get(KIND_FIELD).asText();
+        OldKeys oldKeys = null;
+        TableSchema keySchema = null;
+        if (oldKeysNode != null) {
+            keySchema =
+                    getSchema(oldKeysNode.get(SCHEMA_ID_FIELD).asText());
+            oldKeys = new OldKeys(keySchema.getColumnTypes(),
+                    toList(oldKeysNode.get(KEY_VALUES_FIELD), VALUES_TYPE),
+                    keySchema.getColumnNames());
+        }
+        if (DELETE_KIND.equals(kind)) {
+            return new DeleteChange(kind, keySchema, oldKeys);
+        }
+        final TableSchema rowSchema =
+                getSchema(node.get(SCHEMA_ID_FIELD).asText());
+        final List<Object> values =
+                toList(node.get(COLUMN_VALUES_FIELD), VALUES_TYPE);
+        if (UPDATE_KIND.equals(kind)) {
+            return new UpdateChange(kind, rowSchema, values, oldKeys);
+        }
+        return new InsertChange(kind, rowSchema, values);
+    }
+
+    private TableSchema getSchema(final String schemaId)
+            throws UnknownSchemaException {
+        final TableSchema tableSchema = schemas.get(schemaId);
+        if (tableSchema == null) {
+            throw new UnknownSchemaException(schemaId);
+        }
+        return tableSchema;
+    }
+
+    private <T> List<T> toList(final JsonNode node,
+                               final TypeReference<List<T>> type)
+            throws IOException {
+        return objectMapper.readerFor(type).readValue(node);
+    }
+}
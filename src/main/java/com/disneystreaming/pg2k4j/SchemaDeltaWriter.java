@@ -0,0 +1,312 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import com.disneystreaming.pg2k4j.models.Change;
+import com.disneystreaming.pg2k4j.models.DeleteChange;
+import com.disneystreaming.pg2k4j.models.SchemaDictionary;
+import com.disneystreaming.pg2k4j.models.TableSchema;
+import com.disneystreaming.pg2k4j.models.UpdateChange;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link SlotMessageHandler} which, like {@link ChangeMessageWriter},
+ * serializes every change it receives on its own, but leaves the column
+ * names and types out of it. Each change instead refers to the shape of its
+ * row, and of its old keys, by the id of a schema message describing it:
+ * <pre>
+ * {"tableschema":{"id":"5c1f0e9a2b7d4e63","schema":"public","table":"users",
+ *     "columnnames":["id","name"],"columntypes":["integer","text"],
+ *     "keynames":["id"]}}
+ * {"xid":1,"change":[{"kind":"insert","schemaid":"5c1f0e9a2b7d4e63",
+ *     "columnvalues":[1,"a"]}]}
+ * {"xid":2,"change":[{"kind":"delete","oldkeys":{
+ *     "schemaid":"9a0b3c7e11f2d845","keyvalues":[1]}}]}
+ * </pre>
+ * Ids are derived from the content of the shape alone, so the same shape
+ * is always described by the same message, across restarts too. The payload
+ * consumer receives the schema messages of every change along with it, for
+ * them to be put on the stream ahead of the change wherever a consumer may
+ * not have read them yet.
+ * Consumers turn the messages back into changes with a
+ * {@link SchemaDeltaDecoder}.
+ */
+public class SchemaDeltaWriter implements SlotMessageHandler {
+
+    private static final String XID_FIELD = "xid";
+    private static final String CHANGE_FIELD = "change";
+    private static final String KIND_FIELD = "kind";
+    private static final String SCHEMA_ID_FIELD = "schemaid";
+    private static final String COLUMN_VALUES_FIELD = "columnvalues";
+    private static final String OLD_KEYS_FIELD = "oldkeys";
+    private static final String KEY_VALUES_FIELD = "keyvalues";
+
+    private final ObjectMapper objectMapper;
+    private final SchemaCatalog schemaCatalog;
+    private final PayloadConsumer payloadConsumer;
+    private long xid;
+
+    /**
+     * @param schemaCatalogInput {@link SchemaCatalog} shared by every writer
+     *                           putting changes on the same stream
+     */
+    public SchemaDeltaWriter(final ObjectMapper objectMapperInput,
+                             final SchemaCatalog schemaCatalogInput,
+                             final PayloadConsumer payloadConsumerInput) {
+        this.objectMapper = objectMapperInput;
+        this.schemaCatalog = schemaCatalogInput;
+        this.payloadConsumer = payloadConsumerInput;
+    }
+
+    @Override
+    public void onBegin(final long xidInput) {
+        this.xid = xidInput;
+    }
+
+    @Override
+    public void onChange(final Change change) throws IOException {
+        final List<SchemaMessage> schemaMessages = new ArrayList<>(2);
+        SchemaMessage rowSchema = null;
+        if (!(change instanceof DeleteChange)) {
+            rowSchema = schemaCatalog.get(change.getTableSchema());
+            schemaMessages.add(rowSchema);
+        }
+        TableSchema keySchema = null;
+        List<Object> keyValues = null;
+        if (change instanceof UpdateChange) {
+            final UpdateChange updateChange = (UpdateChange) change;
+            keySchema = TableSchema.ofKeys(change.getSchema(),
+                    change.getTable(), updateChange.getOldkeys().getKeynames(),
+                    updateChange.getOldkeys().getKeytypes());
+            keyValues = updateChange.getOldkeys().getKeyvalues();
+        } else if (change instanceof DeleteChange) {
+            keySchema = change.getTableSchema();
+            keyValues = change.getColumnvalues();
+        }
+        SchemaMessage oldKeysSchema = null;
+        if (keySchema != null) {
+            oldKeysSchema = schemaCatalog.get(keySchema);
+            schemaMessages.add(oldKeysSchema);
+        }
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (JsonGenerator generator = objectMapper.getFactory()
+                .createGenerator(outputStream)) {
+            generator.writeStartObject();
+            generator.writeNumberField(XID_FIELD, xid);
+            generator.writeArrayFieldStart(CHANGE_FIELD);
+            generator.writeStartObject();
+            generator.writeStringField(KIND_FIELD, change.getKind());
+            if (rowSchema != null) {
+                generator.writeStringField(SCHEMA_ID_FIELD, rowSchema.getId());
+                generator.writeFieldName(COLUMN_VALUES_FIELD);
+                generator.writeObject(change.getColumnvalues());
+            }
+            if (oldKeysSchema != null) {
+                generator.writeObjectFieldStart(OLD_KEYS_FIELD);
+                generator.writeStringField(SCHEMA_ID_FIELD,
+                        oldKeysSchema.getId());
+                generator.writeFieldName(KEY_VALUES_FIELD);
+                generator.writeObject(keyValues);
+                generator.writeEndObject();
+            }
+            generator.writeEndObject();
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+        payloadConsumer.accept(change, schemaMessages,
+                ByteBuffer.wrap(outputStream.toByteArray()));
+    }
+
+    @Override
+    public void onCommit() {
+    }
+
+    /**
+     * Receives every serialized change, with the schema messages it refers
+     * to.
+     */
+    @FunctionalInterface
+    public interface PayloadConsumer {
+        /**
+         * @param change         the change serialized into the payload
+         * @param schemaMessages schema messages the payload refers to
+         * @param payload        serialized change
+         */
+        void accept(Change change, List<SchemaMessage> schemaMessages,
+                    ByteBuffer payload);
+    }
+
+    /**
+     * A serialized schema message.
+     */
+    public static final class SchemaMessage {
+        private final String id;
+        private final byte[] data;
+
+        SchemaMessage(final String idInput, final byte[] dataInput) {
+            this.id = idInput;
+            this.data = dataInput;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return the serialized message, in a buffer of its own
+         */
+        public ByteBuffer getData() {
+            return ByteBuffer.wrap(data);
+        }
+    }
+
+    /**
+     * The schema messages of the shapes written so far, serialized once per
+     * shape and shared by the writers of a stream, which may run on several
+     * threads. Shapes are looked up by identity first, as they are interned
+     * by the {@link SchemaDictionary}, and by id otherwise. Like the
+     * dictionary, the catalog starts over once it holds
+     * {@link SchemaDictionary#DEFAULT_MAX_ENTRIES} shapes, which only costs
+     * serializing them again into the same bytes.
+     */
+    public static final class SchemaCatalog {
+
+        private static final String TABLE_SCHEMA_FIELD = "tableschema";
+        private static final String ID_FIELD = "id";
+        private static final String SCHEMA_FIELD = "schema";
+        private static final String TABLE_FIELD = "table";
+        private static final String COLUMN_NAMES_FIELD = "columnnames";
+        private static final String COLUMN_TYPES_FIELD = "columntypes";
+        private static final String KEY_NAMES_FIELD = "keynames";
+
+        private static final int ID_BYTES = 8;
+        private static final int HEX_RADIX = 16;
+        private static final int NIBBLE_BITS = 4;
+        private static final int NIBBLE_MASK = 0xf;
+
+        private final ObjectMapper objectMapper;
+        private final Map<TableSchema, SchemaMessage> bySchema =
+                new ConcurrentHashMap<>();
+        private final Map<String, SchemaMessage> byId =
+                new ConcurrentHashMap<>();
+
+        public SchemaCatalog(final ObjectMapper objectMapperInput) {
+            this.objectMapper = objectMapperInput;
+        }
+
+        /**
+         * @param tableSchema shape of a row or of old keys
+         * @return the schema message describing the shape
+         * @throws IOException
+         */
+        SchemaMessage get(final TableSchema tableSchema) throws IOException {
+            final SchemaMessage schemaMessage = bySchema.get(tableSchema);
+            if (schemaMessage != null) {
+                return schemaMessage;
+            }
+            final String id = getId(tableSchema);
+            SchemaMessage created = byId.get(id);
+            if (created == null) {
+                if (byId.size() >= SchemaDictionary.DEFAULT_MAX_ENTRIES) {
+                    byId.clear();
+                }
+                created = byId.computeIfAbsent(id, k -> new SchemaMessage(k,
+                        serialize(k, tableSchema)));
+            }
+            if (bySchema.size() >= SchemaDictionary.DEFAULT_MAX_ENTRIES) {
+                bySchema.clear();
+            }
+            bySchema.put(tableSchema, created);
+            return created;
+        }
+
+        private String getId(final TableSchema tableSchema)
+                throws IOException {
+            final byte[] content = objectMapper.writeValueAsBytes(
+                    Arrays.asList(tableSchema.getSchema(),
+                            tableSchema.getTable(),
+                            tableSchema.getColumnNames(),
+                            tableSchema.getColumnTypes(),
+                            tableSchema.getKeyNames()));
+            final byte[] digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256")
+                        .digest(content);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            final StringBuilder id = new StringBuilder(2 * ID_BYTES);
+            for (int i = 0; i < ID_BYTES; i++) {
+                id.append(Character.forDigit(
+                        (digest[i] >> NIBBLE_BITS) & NIBBLE_MASK, HEX_RADIX));
+                id.append(Character.forDigit(digest[i] & NIBBLE_MASK,
+                        HEX_RADIX));
+            }
+            return id.toString();
+        }
+
+        private byte[] serialize(final String id,
+                                 final TableSchema tableSchema) {
+            final ByteArrayOutputStream outputStream =
+                    new ByteArrayOutputStream();
+            try (JsonGenerator generator = objectMapper.getFactory()
+                    .createGenerator(outputStream)) {
+                generator.writeStartObject();
+                generator.writeObjectFieldStart(TABLE_SCHEMA_FIELD);
+                generator.writeStringField(ID_FIELD, id);
+                generator.writeStringField(SCHEMA_FIELD,
+                        tableSchema.getSchema());
+                generator.writeStringField(TABLE_FIELD,
+                        tableSchema.getTable());
+                generator.writeFieldName(COLUMN_NAMES_FIELD);
+                generator.writeObject(tableSchema.getColumnNames());
+                generator.writeFieldName(COLUMN_TYPES_FIELD);
+                generator.writeObject(tableSchema.getColumnTypes());
+                if (tableSchema.getKeyNames() != null) {
+                    generator.writeFieldName(KEY_NAMES_FIELD);
+                    generator.writeObject(tableSchema.getKeyNames());
+                }
+                generator.writeEndObject();
+                generator.writeEndObject();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return outputStream.toByteArray();
+        }
+    }
+}
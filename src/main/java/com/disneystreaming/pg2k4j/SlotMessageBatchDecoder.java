@@ -0,0 +1,76 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits the data of a record written by pg2k4j back into the serialized
+ * messages it holds, for consumers of the stream. Records which are not a
+ * batch made by {@link SlotMessageBatcher} hold a single message.
+ */
+public final class SlotMessageBatchDecoder {
+
+    private SlotMessageBatchDecoder() {
+    }
+
+    /**
+     * @param data data of a record, which is not consumed
+     * @return whether the record is a batch of messages
+     */
+    public static boolean isBatch(final ByteBuffer data) {
+        return data.remaining() >= Integer.BYTES
+                && data.getInt(data.position()) == SlotMessageBatcher.MAGIC;
+    }
+
+    /**
+     * @param data data of a record, which is not consumed
+     * @return the messages the record holds, as views onto its data
+     */
+    public static List<ByteBuffer> decode(final ByteBuffer data) {
+        if (!isBatch(data)) {
+            return Collections.singletonList(data.slice());
+        }
+        final ByteBuffer batch = data.duplicate();
+        batch.position(batch.position() + Integer.BYTES);
+        final List<ByteBuffer> messages = new ArrayList<>();
+        while (batch.hasRemaining()) {
+            final int length = batch.getInt();
+            if (length < 0 || length > batch.remaining()) {
+                throw new IllegalArgumentException(String.format(
+                        "Batch message of %d bytes overruns the %d bytes "
+                                + "left", length, batch.remaining()));
+            }
+            final ByteBuffer message = batch.slice();
+            message.limit(length);
+            messages.add(message);
+            batch.position(batch.position() + length);
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import org.postgresql.replication.LogSequenceNumber;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * Packs several serialized messages into one record, so that transactions
+ * touching a single row don't each cost a record. A batch is laid out as
+ * <pre>
+ * [int MAGIC]([int length][message])*
+ * </pre>
+ * and {@link SlotMessageBatchDecoder} splits it up again. A batch is handed
+ * on with the LSN of its last message, once the next message would take it
+ * past the size cap, or once its first message has waited for the maximum
+ * delay. A message which does not fit in a batch on its own is handed on
+ * as it is.
+ * <p>
+ * Methods are synchronized, as messages may be added by a pipeline thread
+ * while the thread reading the slot checks the deadline.
+ */
+public class SlotMessageBatcher {
+
+    /**
+     * "PG2B", which can never start a serialized message, as those are json
+     * objects.
+     */
+    public static final int MAGIC = 0x50473242;
+
+    private final int maxBytes;
+    private final long maxDelayNanos;
+    private final BiConsumer<ByteBuffer, LogSequenceNumber> sink;
+    private final ByteBuffer batch;
+    private LogSequenceNumber lastLsn;
+    private long firstAddedNanos;
+
+    /**
+     * @param maxBytesInput      largest batch to hand on
+     * @param maxDelayNanosInput longest time a message waits in a batch
+     * @param sinkInput          receives each batch, with the LSN of its
+     *                           last message
+     */
+    public SlotMessageBatcher(final int maxBytesInput,
+                              final long maxDelayNanosInput,
+                              final BiConsumer<ByteBuffer, LogSequenceNumber>
+                                      sinkInput) {
+        this.maxBytes = maxBytesInput;
+        this.maxDelayNanos = maxDelayNanosInput;
+        this.sink = sinkInput;
+        this.batch = ByteBuffer.allocate(maxBytesInput);
+    }
+
+    /**
+     * @param message serialized message, which is copied
+     * @param lsn     LSN of the message
+     */
+    public synchronized void add(final ByteBuffer message,
+                                 final LogSequenceNumber lsn) {
+        final int framedBytes = Integer.BYTES + message.remaining();
+        if (Integer.BYTES + framedBytes > maxBytes) {
+            flush();
+            sink.accept(message, lsn);
+            return;
+        }
+        if (batch.position() + framedBytes > maxBytes) {
+            flush();
+        }
+        if (batch.position() == 0) {
+            batch.putInt(MAGIC);
+            firstAddedNanos = System.nanoTime();
+        }
+        batch.putInt(message.remaining());
+        batch.put(message.duplicate());
+        lastLsn = lsn;
+    }
+
+    /**
+     * Hand on the current batch if its first message has waited for long
+     * enough.
+     */
+    public synchronized void flushIfDue() {
+        if (batch.position() > 0
+                && System.nanoTime() - firstAddedNanos >= maxDelayNanos) {
+            flush();
+        }
+    }
+
+    /**
+     * Hand on the current batch, if there is one.
+     */
+    public synchronized void flush() {
+        if (batch.position() == 0) {
+            return;
+        }
+        final ByteBuffer data = ByteBuffer.wrap(
+                Arrays.copyOf(batch.array(), batch.position()));
+        batch.clear();
+        sink.accept(data, lastLsn);
+    }
+
+    /**
+     * @return whether messages are waiting in a batch
+     */
+    public synchronized boolean isEmpty() {
+        return batch.position() == 0;
+    }
+}
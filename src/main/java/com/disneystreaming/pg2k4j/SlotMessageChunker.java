@@ -0,0 +1,145 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Splits a serialized message too large for a single Kinesis record into
+ * ordered chunks, each laid out as
+ * <pre>
+ * [int MAGIC][long xid][long message id][int index][int total][part]
+ * </pre>
+ * {@link SlotMessageReassembler} puts the message back together. The xid
+ * alone does not tell messages apart, as every change of a transaction
+ * carries it with one record per change, and snapshots carry a made up one,
+ * so chunks are put back together by message id. Message ids are taken from
+ * a sequence starting at a random value, so that they are not reused by a
+ * restarted writer.
+ */
+public final class SlotMessageChunker {
+
+    /**
+     * "PG2C", which can never start a serialized message, as those are json
+     * objects.
+     */
+    public static final int MAGIC = 0x50473243;
+    public static final int HEADER_BYTES = Integer.BYTES + Long.BYTES
+            + Long.BYTES + Integer.BYTES + Integer.BYTES;
+    public static final long UNKNOWN_XID = -1;
+
+    private static final AtomicLong messageIds =
+            new AtomicLong(ThreadLocalRandom.current().nextLong());
+
+    private static final String XID_FIELD = "xid";
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private SlotMessageChunker() {
+    }
+
+    /**
+     * @param message  serialized message, which is not consumed
+     * @param maxBytes largest chunk to make, header included
+     * @return the message's chunks in order, under the next message id
+     */
+    public static List<ByteBuffer> split(final ByteBuffer message,
+                                         final int maxBytes) {
+        return split(message, maxBytes, messageIds.incrementAndGet());
+    }
+
+    /**
+     * @param message   serialized message, which is not consumed
+     * @param maxBytes  largest chunk to make, header included
+     * @param messageId id telling the message apart from others split
+     * @return the message's chunks in order
+     */
+    public static List<ByteBuffer> split(final ByteBuffer message,
+                                         final int maxBytes,
+                                         final long messageId) {
+        if (maxBytes <= HEADER_BYTES) {
+            throw new IllegalArgumentException(
+                    "Chunks of " + maxBytes + " bytes leave no room for data");
+        }
+        final long xid = readXid(message);
+        final int partBytes = maxBytes - HEADER_BYTES;
+        final int total = (message.remaining() + partBytes - 1) / partBytes;
+        final List<ByteBuffer> chunks = new ArrayList<>(total);
+        final ByteBuffer remaining = message.duplicate();
+        for (int index = 0; index < total; index++) {
+            final ByteBuffer part = remaining.duplicate();
+            part.limit(part.position()
+                    + Math.min(partBytes, remaining.remaining()));
+            remaining.position(part.limit());
+            final ByteBuffer chunk = ByteBuffer.allocate(
+                    HEADER_BYTES + part.remaining());
+            chunk.putInt(MAGIC).putLong(xid).putLong(messageId).putInt(index)
+                    .putInt(total).put(part);
+            chunk.flip();
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    /**
+     * @param data data of a record, which is not consumed
+     * @return whether the record is a chunk of a message
+     */
+    public static boolean isChunk(final ByteBuffer data) {
+        return data.remaining() >= HEADER_BYTES
+                && data.getInt(data.position()) == MAGIC;
+    }
+
+    /**
+     * @param message serialized message, which is not consumed
+     * @return the xid the message starts with, or {@link #UNKNOWN_XID}
+     */
+    static long readXid(final ByteBuffer message) {
+        if (!message.hasArray()) {
+            return UNKNOWN_XID;
+        }
+        try (JsonParser parser = jsonFactory.createParser(message.array(),
+                message.arrayOffset() + message.position(),
+                message.remaining())) {
+            if (parser.nextToken() == JsonToken.START_OBJECT
+                    && parser.nextToken() == JsonToken.FIELD_NAME
+                    && XID_FIELD.equals(parser.getCurrentName())
+                    && parser.nextToken() == JsonToken.VALUE_NUMBER_INT) {
+                return parser.getLongValue();
+            }
+        } catch (IOException e) {
+            return UNKNOWN_XID;
+        }
+        return UNKNOWN_XID;
+    }
+}
@@ -0,0 +1,73 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+
+package com.disneystreaming.pg2k4j;
+
+import com.disneystreaming.pg2k4j.models.Change;
+
+import java.io.IOException;
+
+/**
+ * Receives the contents of a slot message one {@link Change} at a time so
+ * that a transaction never has to be held in memory as a whole.
+ */
+public interface SlotMessageHandler {
+
+    /**
+     * Called once before any change of the transaction is delivered.
+     *
+     * @param xid id of the transaction being decoded
+     * @throws IOException
+     */
+    void onBegin(long xid) throws IOException;
+
+    /**
+     * Called for every relevant change, in WAL order.
+     *
+     * @param change the decoded change
+     * @throws IOException
+     */
+    void onChange(Change change) throws IOException;
+
+    /**
+     * Called once after the last change of the transaction was delivered.
+     *
+     * @throws IOException
+     */
+    void onCommit() throws IOException;
+
+    /**
+     * Called for every logical decoding message written with
+     * pg_logical_emit_message, inside the transaction it was written in
+     * unless it is not transactional. Ignored unless overridden.
+     *
+     * @param prefix  prefix of the message
+     * @param content content of the message
+     * @throws IOException
+     */
+    default void onMessage(final String prefix, final String content)
+            throws IOException {
+    }
+}
@@ -0,0 +1,198 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+
+package com.disneystreaming.pg2k4j;
+
+import org.postgresql.replication.LogSequenceNumber;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Spreads the processing of messages read off the slot over a pool of
+ * workers, while handing the results on in the order the messages were read.
+ * <p>
+ * The thread reading the slot submits each message along with its LSN. A
+ * worker processes it, and a single sequencer thread takes the pending
+ * results off a bounded queue in submission order, waits for each to be
+ * done and passes it to the sink. Messages must therefore be processable
+ * independently of one another, as wal2json messages are.
+ *
+ * @param <T> result of processing a message
+ */
+public class SlotMessagePipeline<T> implements AutoCloseable {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(SlotMessagePipeline.class);
+    private static final long closeTimeoutSeconds = 5;
+
+    private final Stage<T> stage;
+    private final Sink<T> sink;
+    private final Consumer<Throwable> failureHandler;
+    private final ExecutorService workers;
+    private final BlockingQueue<Pending<T>> pending;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Thread sequencer;
+
+    /**
+     * @param workerCount      number of threads processing messages
+     * @param depth            number of messages which can be pending
+     * @param stageInput       processing done by the workers
+     * @param sinkInput        called by the sequencer with each result
+     * @param failureHandlerInput called once if processing a message or
+     *                            sinking its result fails, after which the
+     *                            pipeline stops
+     */
+    public SlotMessagePipeline(final int workerCount, final int depth,
+                               final Stage<T> stageInput,
+                               final Sink<T> sinkInput,
+                               final Consumer<Throwable> failureHandlerInput) {
+        this.stage = stageInput;
+        this.sink = sinkInput;
+        this.failureHandler = failureHandlerInput;
+        this.pending = new ArrayBlockingQueue<>(depth);
+        final AtomicInteger workerNumber = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+            final Thread thread = new Thread(runnable,
+                    "pg2k4j-worker-" + workerNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.sequencer = new Thread(this::sequence, "pg2k4j-sequencer");
+        this.sequencer.setDaemon(true);
+        this.sequencer.start();
+    }
+
+    /**
+     * Must only be called from the thread reading the slot, and only when
+     * {@link #hasCapacity()}, or it blocks until there is room.
+     *
+     * @param msg message read off the slot, which must not be reused
+     * @param lsn LSN the message was received at
+     * @throws InterruptedException
+     */
+    public void submit(final ByteBuffer msg, final LogSequenceNumber lsn)
+            throws InterruptedException {
+        inFlight.incrementAndGet();
+        final Future<T> result = workers.submit(() -> stage.process(msg));
+        pending.put(new Pending<>(result, lsn));
+    }
+
+    public boolean hasCapacity() {
+        return pending.remainingCapacity() > 0;
+    }
+
+    /**
+     * @return number of submitted messages which have not been passed to the
+     * sink yet
+     */
+    public int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    private void sequence() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                final Pending<T> next = pending.take();
+                sink.accept(next.result.get(), next.lsn);
+                inFlight.decrementAndGet();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ee) {
+            failureHandler.accept(ee.getCause());
+        } catch (Exception e) {
+            failureHandler.accept(e);
+        }
+    }
+
+    /**
+     * Stop the pipeline, discarding the messages still pending. Their LSNs
+     * were never confirmed, so they are read again after reconnecting.
+     * Returns only once the sequencer has exited, so that it never hands
+     * results to the sink alongside the sequencer of a later pipeline,
+     * unless the calling thread is interrupted while waiting.
+     */
+    @Override
+    public void close() {
+        workers.shutdownNow();
+        try {
+            sequencer.interrupt();
+            sequencer.join(TimeUnit.SECONDS.toMillis(closeTimeoutSeconds));
+            while (sequencer.isAlive()) {
+                logger.warn("Pipeline sequencer did not stop in time, "
+                        + "still waiting for it");
+                sequencer.interrupt();
+                sequencer.join(TimeUnit.SECONDS.toMillis(
+                        closeTimeoutSeconds));
+            }
+            if (!workers.awaitTermination(closeTimeoutSeconds,
+                    TimeUnit.SECONDS)) {
+                logger.warn("Pipeline workers did not stop in time");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return whether the sequencer has exited
+     */
+    boolean isSequencerStopped() {
+        return !sequencer.isAlive();
+    }
+
+    @FunctionalInterface
+    public interface Stage<T> {
+        T process(ByteBuffer msg) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface Sink<T> {
+        void accept(T result, LogSequenceNumber lsn) throws IOException;
+    }
+
+    private static final class Pending<T> {
+        private final Future<T> result;
+        private final LogSequenceNumber lsn;
+
+        private Pending(final Future<T> resultInput,
+                        final LogSequenceNumber lsnInput) {
+            this.result = resultInput;
+            this.lsn = lsnInput;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Puts messages split by {@link SlotMessageChunker} back together, for
+ * consumers of the stream. Chunks of a message are put with the same
+ * partition key, so they are read from the same shard, although not
+ * necessarily in order. Records which are not chunks are passed through.
+ * When messages are batched, batches are to be split up with
+ * {@link SlotMessageBatchDecoder} before their messages are handed here.
+ * <p>
+ * Chunks are matched by message id. A chunk received twice is only used
+ * once, and one of a message already put back together is dropped.
+ * Messages which are still missing chunks after the maximum age, or when
+ * more than the maximum number of them are pending, are given up on, oldest
+ * first, as their missing chunks will not come once a writer was restarted
+ * half way through putting them.
+ * <p>
+ * Not thread safe; use one per shard being read.
+ */
+public class SlotMessageReassembler {
+
+    public static final int DEFAULT_MAX_PENDING = 1024;
+    public static final long DEFAULT_MAX_AGE_MILLIS = 300000;
+
+    private final int maxPending;
+    private final long maxAgeNanos;
+    private final Map<Long, Pending> pending = new LinkedHashMap<>();
+    private final Map<Long, Boolean> completed;
+    private long evictedCount;
+    private long duplicateCount;
+
+    public SlotMessageReassembler() {
+        this(DEFAULT_MAX_PENDING, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    /**
+     * @param maxPendingInput   most messages to wait for chunks of at once
+     * @param maxAgeMillisInput longest to wait for the chunks of a message,
+     *                          from its first chunk
+     */
+    public SlotMessageReassembler(final int maxPendingInput,
+                                  final long maxAgeMillisInput) {
+        if (maxPendingInput < 1 || maxAgeMillisInput < 1) {
+            throw new IllegalArgumentException(
+                    "Pending messages and their age must be limited to at "
+                            + "least 1");
+        }
+        maxPending = maxPendingInput;
+        maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillisInput);
+        completed = new LinkedHashMap<Long, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(
+                    final Map.Entry<Long, Boolean> eldest) {
+                return size() > maxPending;
+            }
+        };
+    }
+
+    /**
+     * @param data data of a record, which is copied if it is a chunk
+     * @return the record if it is not a chunk, the whole message if it was
+     * the last chunk missing from it, or null if chunks are still missing or
+     * the chunk was already received
+     */
+    public ByteBuffer add(final ByteBuffer data) {
+        return add(data, System.nanoTime());
+    }
+
+    ByteBuffer add(final ByteBuffer data, final long nowNanos) {
+        if (!SlotMessageChunker.isChunk(data)) {
+            return data;
+        }
+        final ByteBuffer chunk = data.duplicate();
+        chunk.getInt();
+        final long xid = chunk.getLong();
+        final long messageId = chunk.getLong();
+        final int index = chunk.getInt();
+        final int total = chunk.getInt();
+        if (index < 0 || index >= total) {
+            throw new IllegalArgumentException(String.format(
+                    "Chunk %d of %d of message %d is out of range",
+                    index, total, messageId));
+        }
+        evict(nowNanos);
+        if (completed.containsKey(messageId)) {
+            duplicateCount++;
+            return null;
+        }
+        Pending message = pending.get(messageId);
+        if (message == null) {
+            if (pending.size() >= maxPending) {
+                evictEldest();
+            }
+            message = new Pending(xid, total, nowNanos);
+            pending.put(messageId, message);
+        }
+        if (message.xid != xid || message.parts.length != total) {
+            throw new IllegalArgumentException(String.format(
+                    "Chunk %d of %d of xid %d does not match the %d chunks of "
+                            + "message %d of xid %d", index, total, xid,
+                    message.parts.length, messageId, message.xid));
+        }
+        if (message.parts[index] != null) {
+            duplicateCount++;
+            return null;
+        }
+        final ByteBuffer part = ByteBuffer.allocate(chunk.remaining());
+        part.put(chunk).flip();
+        message.parts[index] = part;
+        message.size += part.remaining();
+        message.received++;
+        if (message.received < total) {
+            return null;
+        }
+        pending.remove(messageId);
+        completed.put(messageId, Boolean.TRUE);
+        final ByteBuffer whole = ByteBuffer.allocate(message.size);
+        for (ByteBuffer received : message.parts) {
+            whole.put(received);
+        }
+        whole.flip();
+        return whole;
+    }
+
+    private void evict(final long nowNanos) {
+        final Iterator<Pending> oldest = pending.values().iterator();
+        while (oldest.hasNext()
+                && nowNanos - oldest.next().firstNanos > maxAgeNanos) {
+            oldest.remove();
+            evictedCount++;
+        }
+    }
+
+    private void evictEldest() {
+        final Iterator<Pending> oldest = pending.values().iterator();
+        oldest.next();
+        oldest.remove();
+        evictedCount++;
+    }
+
+    /**
+     * @return number of messages some chunks of which were added
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return number of messages given up on with chunks still missing
+     */
+    public long getEvictedCount() {
+        return evictedCount;
+    }
+
+    /**
+     * @return number of chunks dropped as they were already received
+     */
+    public long getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    private static final class Pending {
+
+        private final long xid;
+        private final ByteBuffer[] parts;
+        private final long firstNanos;
+        private int received;
+        private int size;
+
+        Pending(final long xidInput, final int totalInput,
+                final long firstNanosInput) {
+            xid = xidInput;
+            parts = new ByteBuffer[totalInput];
+            firstNanos = firstNanosInput;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+
+package com.disneystreaming.pg2k4j;
+
+import com.disneystreaming.pg2k4j.models.Change;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * {@link SlotMessageHandler} which serializes the changes it receives
+ * straight back into the JSON representation of a
+ * {@link com.disneystreaming.pg2k4j.models.SlotMessage} as they arrive.
+ * Once the transaction is committed, the serialized bytes are passed to the
+ * payload consumer, provided at least one change was written.
+ * <p>
+ * By default a transaction is passed on as a single message, so its
+ * serialized changes are held in memory until it commits, however large it
+ * is. With a flush threshold, the changes serialized so far are passed on
+ * as a message of their own, carrying the xid of the transaction, as soon
+ * as they reach the threshold, so that memory use is bounded by the
+ * threshold and the largest change. Consumers then see a large transaction
+ * as several consecutive messages sharing its xid.
+ */
+public class SlotMessageWriter implements SlotMessageHandler {
+
+    private static final String XID_FIELD = "xid";
+    private static final String CHANGE_FIELD = "change";
+
+    private final ObjectMapper objectMapper;
+    private final ObjectWriter changeWriter;
+    private final Consumer<ByteBuffer> payloadConsumer;
+    private final int flushBytes;
+    private ByteArrayOutputStream outputStream;
+    private JsonGenerator generator;
+    private long xid;
+    private int changeCount;
+    private int messageChangeCount;
+
+    public SlotMessageWriter(final ObjectMapper objectMapperInput,
+                             final Consumer<ByteBuffer> payloadConsumerInput) {
+        this(objectMapperInput, payloadConsumerInput, 0);
+    }
+
+    /**
+     * @param objectMapperInput    {@link ObjectMapper}
+     * @param payloadConsumerInput receives the serialized messages
+     * @param flushBytesInput      size from which the changes serialized so
+     *                             far are passed on before the transaction
+     *                             commits, or 0 to pass each transaction on
+     *                             as a single message
+     */
+    public SlotMessageWriter(final ObjectMapper objectMapperInput,
+                             final Consumer<ByteBuffer> payloadConsumerInput,
+                             final int flushBytesInput) {
+        if (flushBytesInput < 0) {
+            throw new IllegalArgumentException(
+                    "Flush threshold must not be negative, was "
+                            + flushBytesInput);
+        }
+        this.objectMapper = objectMapperInput;
+        this.changeWriter = objectMapperInput.writerFor(Change.class);
+        this.payloadConsumer = payloadConsumerInput;
+        this.flushBytes = flushBytesInput;
+    }
+
+    @Override
+    public void onBegin(final long xidInput) throws IOException {
+        xid = xidInput;
+        outputStream = new ByteArrayOutputStream();
+        changeCount = 0;
+        startMessage();
+    }
+
+    @Override
+    public void onChange(final Change change) throws IOException {
+        changeWriter.writeValue(generator, change);
+        changeCount += 1;
+        messageChangeCount += 1;
+        if (flushBytes > 0) {
+            generator.flush();
+            if (outputStream.size() >= flushBytes) {
+                endMessage();
+                startMessage();
+            }
+        }
+    }
+
+    @Override
+    public void onCommit() throws IOException {
+        endMessage();
+        outputStream = null;
+        generator = null;
+    }
+
+    private void startMessage() throws IOException {
+        outputStream.reset();
+        generator = objectMapper.getFactory().createGenerator(outputStream);
+        generator.writeStartObject();
+        generator.writeNumberField(XID_FIELD, xid);
+        generator.writeArrayFieldStart(CHANGE_FIELD);
+        messageChangeCount = 0;
+    }
+
+    private void endMessage() throws IOException {
+        generator.writeEndArray();
+        generator.writeEndObject();
+        generator.close();
+        if (messageChangeCount > 0) {
+            payloadConsumer.accept(ByteBuffer.wrap(
+                    outputStream.toByteArray()));
+        }
+    }
+
+    public int getChangeCount() {
+        return changeCount;
+    }
+}
@@ -35,23 +35,36 @@ import org.postgresql.replication.LogSequenceNumber;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Acknowledges a record with the {@link LsnAcknowledgementTracker} once it is
+ * put on the stream, or marks the tracker as failed if it could not be.
+ */
 public class SlotReaderCallback implements FutureCallback<UserRecordResult> {
 
     private static final Logger logger =
             LoggerFactory.getLogger(SlotReaderCallback.class);
 
     private final LogSequenceNumber lsn;
-    private final PostgresConnector postgresConnector;
+    private final LsnAcknowledgementTracker lsnAcknowledgementTracker;
+    private final long sequence;
+    private final AdmissionController admissionController;
+    private final int size;
     private final SlotReaderKinesisWriter slotReaderKinesisWriter;
     private final UserRecord userRecord;
 
     protected SlotReaderCallback(
             final SlotReaderKinesisWriter slotReaderKinesisWriterInput,
-            final PostgresConnector postgresConnectorInput,
+            final LsnAcknowledgementTracker lsnAcknowledgementTrackerInput,
+            final long sequenceInput,
+            final LogSequenceNumber lsnInput,
+            final AdmissionController admissionControllerInput,
             final UserRecord userRecordInput) {
         this.slotReaderKinesisWriter = slotReaderKinesisWriterInput;
-        this.postgresConnector = postgresConnectorInput;
-        this.lsn = postgresConnector.getLastReceivedLsn();
+        this.lsnAcknowledgementTracker = lsnAcknowledgementTrackerInput;
+        this.sequence = sequenceInput;
+        this.lsn = lsnInput;
+        this.admissionController = admissionControllerInput;
+        this.size = userRecordInput.getData().remaining();
         this.userRecord = userRecordInput;
     }
 
@@ -65,12 +78,14 @@ public class SlotReaderCallback implements FutureCallback<UserRecordResult> {
             logger.error("Failed to put record. Error code '{}' : '{}'.",
                     last.getErrorCode(), last.getErrorMessage());
         }
+        admissionController.release(size);
+        lsnAcknowledgementTracker.fail(t);
     }
 
     @Override
     public void onSuccess(final UserRecordResult result) {
         if (logger.isTraceEnabled()) {
-            logger.trace("Setting stream last applied and last flush lsn to {}",
+            logger.trace("Acknowledging record {} with lsn {}", sequence,
                     lsn);
             logger.trace("Successfully Put record with data {} "
                            + "on stream to shard {} "
@@ -80,7 +95,8 @@ public class SlotReaderCallback implements FutureCallback<UserRecordResult> {
                     result.getSequenceNumber(),
                     result.getAttempts().size());
         }
-        postgresConnector.setStreamLsn(lsn);
+        admissionController.release(size);
+        lsnAcknowledgementTracker.acknowledge(sequence);
         slotReaderKinesisWriter.resetIdleCounter();
     }
 }
@@ -29,8 +29,8 @@ import com.amazonaws.services.kinesis.producer.KinesisProducer;
 import com.amazonaws.services.kinesis.producer.KinesisProducerConfiguration;
 import com.amazonaws.services.kinesis.producer.UserRecord;
 import com.amazonaws.services.kinesis.producer.UserRecordResult;
-import com.disneystreaming.pg2k4j.models.SlotMessage;
-import com.fasterxml.jackson.core.JsonProcessingException;
+import com.disneystreaming.pg2k4j.models.Change;
+import com.disneystreaming.pg2k4j.models.SchemaDictionary;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
@@ -40,12 +40,19 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.sql.SQLException;
-import java.util.Random;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class SlotReaderKinesisWriter {
@@ -54,14 +61,38 @@ public class SlotReaderKinesisWriter {
     private static final Logger logger = LoggerFactory.getLogger(
             SlotReaderKinesisWriter.class);
     private static final String recoveryModeSqlState = "57P03";
-    private static final int randomBigIntBits = 128;
-    private static final int bigIntToStringRadx = 10;
     private static final int recoveryModeSleepMillis = 5000;
+    private static final int maxAnnouncedSchemas = 65536;
+    private static final int hashKeyBits = 128;
 
     private final PostgresConfiguration postgresConfiguration;
     private final ReplicationConfiguration replicationConfiguration;
     private final KinesisProducerConfiguration kinesisProducerConfiguration;
     private final String streamName;
+    private final Wal2JsonParser wal2JsonParser;
+    private final boolean rawPassthrough;
+    private final PartitionKeyStrategy partitionKeyStrategy;
+    private final StreamRouter streamRouter;
+    private final IdleStrategy idleStrategy;
+    private final int maxRecordBytes;
+    private final int messageFlushBytes;
+    private final ReconnectBackoff reconnectBackoff;
+    private final IncrementalSnapshot incrementalSnapshot;
+    private final SchemaDeltaWriter.SchemaCatalog schemaCatalog;
+    private final long schemaAnnounceIntervalNanos;
+    private final int shardCount;
+    private final Map<String, Long> announcedSchemas =
+            new ConcurrentHashMap<>();
+    private KinesisProducer producer;
+    private SpillStage spillStage;
+    private SlotMessageDecoder slotMessageDecoder;
+    private SlotMessageHandler slotMessageHandler;
+    private volatile LsnAcknowledgementTracker lsnAcknowledgementTracker;
+    private AdmissionController admissionController;
+    private SlotMessagePipeline<List<UserRecord>> slotMessagePipeline;
+    private volatile SlotMessageBatcher slotMessageBatcher;
+    private long lastStatusUpdateTime;
+    private LogSequenceNumber appliedLsn;
     private long lastFlushedTime;
 
     public SlotReaderKinesisWriter(
@@ -76,14 +107,102 @@ public class SlotReaderKinesisWriter {
                 kinesisProducerConfigurationFactory
                         .getKinesisProducerConfiguration();
         this.streamName = streamNameInput;
+        this.wal2JsonParser = new Wal2JsonParser(objectMapper,
+                ChangeFilter.fromConfiguration(replicationConfigurationInput));
+        this.rawPassthrough = isRawPassthrough(replicationConfigurationInput);
+        this.partitionKeyStrategy = PartitionKeyStrategy.fromConfiguration(
+                replicationConfigurationInput);
+        this.streamRouter = StreamRouter.fromConfiguration(
+                replicationConfigurationInput);
+        if (streamRouter != null
+                && !replicationConfigurationInput.getRecordPerChange()) {
+            throw new IllegalArgumentException("Stream routes only apply to "
+                    + "records holding a single change, which requires "
+                    + "record per change");
+        }
+        if (replicationConfigurationInput.getSchemaDeltaEncoding()) {
+            if (!replicationConfigurationInput.getRecordPerChange()) {
+                throw new IllegalArgumentException("Schema delta encoding "
+                        + "only applies to records holding a single change, "
+                        + "which requires record per change");
+            }
+            if (PartitionKeyStrategy.LEGACY.equals(
+                    replicationConfigurationInput.getPartitionKeyStrategy())) {
+                throw new IllegalArgumentException("Schema delta encoding "
+                        + "requires a partition key strategy which puts the "
+                        + "records of a row on the same shard");
+            }
+            this.schemaCatalog =
+                    new SchemaDeltaWriter.SchemaCatalog(objectMapper);
+        } else {
+            this.schemaCatalog = null;
+        }
+        if (isBatched(replicationConfigurationInput)
+                && replicationConfigurationInput.getBatchMaxBytes()
+                > replicationConfigurationInput.getMaxRecordBytes()) {
+            throw new IllegalArgumentException("Batches of up to "
+                    + replicationConfigurationInput.getBatchMaxBytes()
+                    + " bytes would not fit in records of up to "
+                    + replicationConfigurationInput.getMaxRecordBytes()
+                    + " bytes, which requires batch max bytes not to exceed "
+                    + "max record bytes");
+        }
+        this.schemaAnnounceIntervalNanos = TimeUnit.MILLISECONDS.toNanos(
+                replicationConfigurationInput
+                        .getSchemaAnnounceIntervalMillis());
+        this.shardCount = replicationConfigurationInput.getShardCount();
+        this.idleStrategy = IdleStrategy.fromConfiguration(
+                replicationConfigurationInput);
+        this.maxRecordBytes = replicationConfigurationInput.getMaxRecordBytes();
+        this.messageFlushBytes =
+                replicationConfigurationInput.getMessageFlushBytes();
+        this.reconnectBackoff = new ReconnectBackoff(
+                replicationConfigurationInput.getReconnectMinBackoffMillis(),
+                replicationConfigurationInput.getReconnectMaxBackoffMillis());
+        this.appliedLsn = LogSequenceNumber.INVALID_LSN;
+        if (replicationConfigurationInput.getIncrementalSnapshots()) {
+            this.incrementalSnapshot =
+                    new IncrementalSnapshot(replicationConfigurationInput);
+        } else {
+            this.incrementalSnapshot = null;
+        }
+    }
+
+    /**
+     * Raw passthrough only applies to wal2json, and only when every message
+     * the slot hands us is already fully filtered, i.e. either no filter
+     * is configured or it has been pushed down to the server, and holds a
+     * whole transaction. wal2json can neither project columns nor filter
+     * rows, so column and row filters rule it out too. Incremental
+     * snapshots need every message decoded, to spot their watermarks.
+     *
+     * @param rc {@link ReplicationConfiguration}
+     * @return whether wal2json messages can be put on the stream as is
+     */
+    static boolean isRawPassthrough(final ReplicationConfiguration rc) {
+        final ChangeFilter changeFilter = ChangeFilter.fromConfiguration(rc);
+        return rc.getRawPassthrough() && !rc.isPgOutput()
+                && !rc.isWal2JsonIncremental()
+                && !rc.getIncrementalSnapshots()
+                && !rc.getRecordPerChange()
+                && !changeFilter.hasColumnFilters()
+                && !changeFilter.hasRowFilters()
+                && (rc.getPushDownFilters() || changeFilter.isPassAll());
     }
 
     /**
-     * Runs {@link #readSlotWriteToKinesis()} continuously in a loop.
+     * Runs {@link #readSlotWriteToKinesis()} continuously in a loop, backing
+     * off between attempts. The KinesisProducer outlives each replication
+     * connection and is only destroyed once the loop exits.
      */
     public void runLoop() {
-        while (true) {
-            readSlotWriteToKinesis();
+        try {
+            while (true) {
+                readSlotWriteToKinesis();
+                waitBeforeReconnect();
+            }
+        } finally {
+            destroyKinesisProducer();
         }
     }
 
@@ -108,28 +227,74 @@ public class SlotReaderKinesisWriter {
     }
 
     /**
-     * Initializes a KinesisProducer
+     * Initializes a KinesisProducer, unless one survived the previous call
      * Initializes a PostgresConnector
      * <p>
      * In a loop, call
      * {@link #readSlotWriteToKinesisHelper(KinesisProducer,
      * PostgresConnector)} until the helper
      * method throws an exception. In which case, exit from the method and
-     * log the error.
+     * log the error. Whenever the helper method finds nothing to do, wait
+     * as the {@link IdleStrategy} decides before calling it again.
+     * <p>
+     * SQL and IO errors only concern the replication connection, so the
+     * KinesisProducer is kept for the next call, along with its warm
+     * connections and the records it still holds. Records it has not
+     * confirmed yet were not flushed to the slot and will be read again.
+     * Any other error destroys the producer, so the next call starts from
+     * a fresh one.
+     * <p>
+     * Each connection resumes streaming right after the last LSN whose
+     * records were all acknowledged, rather than from the position the
+     * slot last heard of, which can lag by a whole status interval.
      */
 
     void readSlotWriteToKinesis() {
-        KinesisProducer kinesisProducer = null;
+        announcedSchemas.clear();
         try (PostgresConnector postgresConnector = createPostgresConnector(
-                postgresConfiguration, replicationConfiguration)) {
+                postgresConfiguration, replicationConfiguration,
+                getResumeLsn())) {
             resetIdleCounter();
-            kinesisProducer = createKinesisProducer(
-                    kinesisProducerConfiguration);
+            slotMessageDecoder = null;
+            slotMessageHandler = null;
+            lsnAcknowledgementTracker = new LsnAcknowledgementTracker(
+                    replicationConfiguration.getAcknowledgementWindowSize());
+            if (incrementalSnapshot != null) {
+                incrementalSnapshot.reset(appliedLsn);
+            }
+            getKinesisProducer();
+            if (spillStage == null
+                    && replicationConfiguration.getSpillDirectory() != null) {
+                spillStage = createSpillStage(producer);
+            }
+            if (isPipelined(replicationConfiguration)) {
+                closeSlotMessagePipeline();
+                if (slotMessagePipeline != null) {
+                    throw new IllegalStateException("The sequencer of the "
+                            + "previous pipeline has not stopped");
+                }
+                slotMessagePipeline = createSlotMessagePipeline(
+                        producer);
+            }
+            if (isBatched(replicationConfiguration)) {
+                slotMessageBatcher = createSlotMessageBatcher(producer);
+            }
             logger.info("Consuming from slot {}", replicationConfiguration
                     .getSlotName());
-            while (true) {
-                readSlotWriteToKinesisHelper(kinesisProducer,
-                        postgresConnector);
+            idleStrategy.reset();
+            try {
+                while (true) {
+                    if (readSlotWriteToKinesisHelper(producer,
+                            postgresConnector)) {
+                        idleStrategy.reset();
+                        reconnectBackoff.reset();
+                    } else {
+                        idleStrategy.idle();
+                    }
+                }
+            } finally {
+                reportConfirmedLsn(postgresConnector);
+                logSchemaDictionary();
             }
         } catch (SQLException sqlException) {
             logger.error("Received the following error pertaining to the "
@@ -148,25 +313,185 @@ public class SlotReaderKinesisWriter {
         } catch (Exception e) {
             logger.error("Received exception of type {}", e.getClass()
                     .toString(), e);
+            destroyKinesisProducer();
         } finally {
-            if (kinesisProducer != null) {
-                try {
-                    kinesisProducer.flushSync();
-                } catch (Exception e) {
-                    logger.error("Received exception when trying to flush the"
-                            + " producer", e);
-                }
-                try {
-                    kinesisProducer.destroy();
-                } catch (Exception e) {
-                    logger.error("Received exception when trying to destroy "
-                            + "the producer", e);
-                }
+            closeSlotMessagePipeline();
+            // Messages still waiting in a batch are read again from the
+            // slot, as they were never registered with the tracker
+            slotMessageBatcher = null;
+        }
+    }
+
+    /**
+     * Close the pipeline, if any, and forget about it once its sequencer has
+     * exited. A pipeline whose sequencer is still running, as closing it was
+     * interrupted, is kept to be closed again before the next pipeline is
+     * created, so that two sequencers never put records at the same time.
+     */
+    void closeSlotMessagePipeline() {
+        if (slotMessagePipeline != null) {
+            slotMessagePipeline.close();
+            if (slotMessagePipeline.isSequencerStopped()) {
+                slotMessagePipeline = null;
+            }
+        }
+    }
+
+    /**
+     * Creates the KinesisProducer, along with its {@link AdmissionController},
+     * unless one was kept from a previous connection.
+     *
+     * @return {@link KinesisProducer}
+     */
+    KinesisProducer getKinesisProducer() {
+        if (producer == null) {
+            admissionController = new AdmissionController(
+                    replicationConfiguration.getMaxOutstandingRecords(),
+                    replicationConfiguration.getMaxInFlightBytes());
+            producer = createKinesisProducer(kinesisProducerConfiguration);
+        }
+        return producer;
+    }
+
+    /**
+     * Puts the rows of the snapshot exported by a newly created slot on the
+     * stream, one record per row as for {@link ChangeMessageWriter}, and
+     * returns once they were all acknowledged, so that streaming only
+     * starts after the snapshot is complete. Records are registered under
+     * the slot's consistent point, which the slot starts streaming from.
+     *
+     * @param snapshotName    name of the exported snapshot
+     * @param consistentPoint LSN the slot starts streaming from
+     * @throws SQLException
+     * @throws IOException    if a row failed to be put on the stream
+     */
+    void readInitialSnapshot(final String snapshotName,
+                             final LogSequenceNumber consistentPoint)
+            throws SQLException, IOException {
+        final KinesisProducer kinesisProducer = getKinesisProducer();
+        lsnAcknowledgementTracker = new LsnAcknowledgementTracker(
+                replicationConfiguration.getAcknowledgementWindowSize());
+        createInitialSnapshot(() -> getRecordPerChangeWriter(
+                userRecord -> putSnapshotRecord(userRecord, kinesisProducer,
+                        consistentPoint)))
+                .read(snapshotName, consistentPoint);
+        idleStrategy.reset();
+        while (lsnAcknowledgementTracker.getInFlightCount() > 0) {
+            throwOnSnapshotFailure();
+            idleStrategy.idle();
+        }
+        throwOnSnapshotFailure();
+        logger.info("Put snapshot {} on the stream", snapshotName);
+    }
+
+    private void throwOnSnapshotFailure() throws IOException {
+        final Throwable failure = lsnAcknowledgementTracker.getFailure();
+        if (failure != null) {
+            throw new IOException("Failed to put the initial snapshot on the"
+                    + " stream", failure);
+        }
+    }
+
+    /**
+     * @param handlerSupplier supplies each snapshot worker with its
+     *                        {@link SlotMessageHandler}
+     * @return {@link InitialSnapshot}
+     */
+    InitialSnapshot createInitialSnapshot(
+            final Supplier<SlotMessageHandler> handlerSupplier) {
+        return new InitialSnapshot(postgresConfiguration,
+                replicationConfiguration, handlerSupplier);
+    }
+
+    /**
+     * Put a row of the initial snapshot on the stream, once the producer
+     * caught up. Snapshot workers take turns, as the
+     * {@link AdmissionController} and the {@link LsnAcknowledgementTracker}
+     * expect a single thread.
+     *
+     * @param userRecord      {@link UserRecord}
+     * @param kinesisProducer {@link KinesisProducer}
+     * @param consistentPoint LSN the slot starts streaming from
+     */
+    synchronized void putSnapshotRecord(final UserRecord userRecord,
+                                        final KinesisProducer kinesisProducer,
+                                        final LogSequenceNumber
+                                                consistentPoint) {
+        while (admissionController.isPaused(
+                kinesisProducer.getOutstandingRecordsCount())) {
+            idleStrategy.idle();
+        }
+        addUserRecord(userRecord, kinesisProducer, consistentPoint,
+                lsnAcknowledgementTracker);
+    }
+
+    /**
+     * Folds in whatever the previous connection's records confirmed since
+     * it was closed, as the producer keeps delivering them.
+     *
+     * @return LSN to resume streaming from, or
+     * {@link LogSequenceNumber#INVALID_LSN} before anything was confirmed
+     */
+    LogSequenceNumber getResumeLsn() {
+        if (lsnAcknowledgementTracker != null) {
+            final LogSequenceNumber confirmedLsn =
+                    lsnAcknowledgementTracker.getConfirmedLsn();
+            if (confirmedLsn.asLong() > appliedLsn.asLong()) {
+                appliedLsn = confirmedLsn;
             }
         }
+        return appliedLsn;
+    }
+
+    /**
+     * Sleeps for a jittered, exponentially growing delay before the next
+     * connection attempt. The delay resets once a connection reads again.
+     */
+    void waitBeforeReconnect() {
+        final long delayMillis = reconnectBackoff.nextDelayMillis();
+        logger.info("Reconnecting in {} ms", delayMillis);
+        try {
+            Thread.sleep(delayMillis);
+        } catch (InterruptedException ie) {
+            logger.error("Interrupted while sleeping", ie);
+        }
+    }
+
+    /**
+     * Flushes and destroys the KinesisProducer, if there is one, so that the
+     * next call to {@link #readSlotWriteToKinesis()} creates a new one.
+     */
+    void destroyKinesisProducer() {
+        if (spillStage != null) {
+            spillStage.close();
+            spillStage = null;
+        }
+        if (producer == null) {
+            return;
+        }
+        try {
+            producer.flushSync();
+        } catch (Exception e) {
+            logger.error("Received exception when trying to flush the"
+                    + " producer", e);
+        }
+        try {
+            producer.destroy();
+        } catch (Exception e) {
+            logger.error("Received exception when trying to destroy "
+                    + "the producer", e);
+        }
+        producer = null;
     }
 
     /**
+     * First applies the LSN confirmed by the {@link LsnAcknowledgementTracker}
+     * to the stream, see {@link #applyConfirmedLsn(PostgresConnector)}.
+     * <p>
+     * If the {@link AdmissionController} says too much data is in flight,
+     * the slot is not read at all, see
+     * {@link #waitForBackpressure(PostgresConnector)}.
+     * <p>
      * Using the PostgresConnector, reads a message from the WAL log.
      * <p>
      * If there is data to be read from the WAL, call
@@ -179,43 +504,244 @@ public class SlotReaderKinesisWriter {
      * exceeding `replicationConfiguration.getUpdateIdleSlotInterval`. If
      * this is the case then, get the latest LSN, and fast
      * forward the stream lsn to this value. Before doing this, make sure we
-     * read the remaining data flushed to the stream.
+     * read the remaining data flushed to the stream. The stream lsn is only
+     * fast forwarded when no records are in flight, as doing so would
+     * otherwise confirm records which may still fail.
      *
      * @param kinesisProducer   {@link KinesisProducer}
      * @param postgresConnector {@link PostgresConnector}
+     * @return whether a message was read off the slot
      * @throws SQLException
      * @throws IOException
      */
-    void readSlotWriteToKinesisHelper(final KinesisProducer kinesisProducer,
+    boolean readSlotWriteToKinesisHelper(final KinesisProducer kinesisProducer,
                                       final PostgresConnector
                                               postgresConnector) throws
             SQLException, IOException {
+        if (slotMessageBatcher != null) {
+            slotMessageBatcher.flushIfDue();
+        }
+        applyConfirmedLsn(postgresConnector);
+        boolean paused;
+        if (spillStage != null) {
+            paused = spillStage.isFull();
+        } else {
+            paused = admissionController.isPaused(
+                    kinesisProducer.getOutstandingRecordsCount());
+        }
+        if (paused || (slotMessagePipeline != null
+                && !slotMessagePipeline.hasCapacity())) {
+            waitForBackpressure(postgresConnector);
+            return false;
+        }
+        if (incrementalSnapshot != null) {
+            incrementalSnapshot.poll(postgresConnector,
+                    lsnAcknowledgementTracker.getConfirmedLsn());
+        }
         ByteBuffer msg = postgresConnector.readPending();
         if (msg != null) {
             processByteBuffer(msg, kinesisProducer, postgresConnector);
+            return true;
         } else if (System.currentTimeMillis() - lastFlushedTime
                 > TimeUnit.SECONDS.toMillis(replicationConfiguration
-                        .getUpdateIdleSlotInterval())) {
+                        .getUpdateIdleSlotInterval())
+                && !hasRecordsInFlight()) {
             LogSequenceNumber lsn = postgresConnector.getCurrentLSN();
             msg = postgresConnector.readPending();
             if (msg != null) {
                 processByteBuffer(msg, kinesisProducer, postgresConnector);
             }
+            if (hasRecordsInFlight()) {
+                resetIdleCounter();
+                return msg != null;
+            }
             logger.info("Fast forwarding stream lsn to {} due to stream "
                     + "inactivity", lsn.toString());
             postgresConnector.setStreamLsn(lsn);
+            appliedLsn = lsn;
             resetIdleCounter();
+            logSchemaDictionary();
+            return msg != null;
         }
+        return false;
+    }
+
+    private void logSchemaDictionary() {
+        final SchemaDictionary schemaDictionary =
+                wal2JsonParser.getSchemaDictionary();
+        logger.debug("Schema dictionary hit rates: {} of strings, {} of "
+                        + "schemas ({})", schemaDictionary.getStringHitRate(),
+                schemaDictionary.getSchemaHitRate(), schemaDictionary);
     }
 
     /**
-     * Parse this message and call {@link #getSlotMessage(byte[], int)} to
-     * get the bean representation of this WAL chunk.
-     * Pass this off to {@link #getUserRecords(SlotMessage)} )} to get the
-     * java stream of UserRecords to then put on the Kinesis Stream.
-     * Register the callback defined in
-     * {@link #getCallback(PostgresConnector, UserRecord)} to be invoked when
-     * the records succeed or fail to be placed on the stream by the prodcuer.
+     * Move the flushed LSN of the stream up to the LSN confirmed by the
+     * {@link LsnAcknowledgementTracker}, if it has advanced. This is done by
+     * the thread reading the slot rather than by the producer callbacks, so
+     * that the stream is only ever touched from one thread.
+     *
+     * @param postgresConnector {@link PostgresConnector}
+     * @throws IOException if a record failed to be put on the stream, in
+     *                     which case the slot has to be read again from the
+     *                     last confirmed LSN
+     */
+    void applyConfirmedLsn(final PostgresConnector postgresConnector)
+            throws IOException {
+        if (spillStage != null) {
+            spillStage.syncIfDue();
+        }
+        final Throwable failure = lsnAcknowledgementTracker.getFailure();
+        if (failure != null) {
+            throw new IOException("Failed to process or put a record on the "
+                    + "stream, reading again from " + appliedLsn, failure);
+        }
+        reportConfirmedLsn(postgresConnector);
+    }
+
+    /**
+     * Hand the LSN confirmed so far to the stream, if it advanced, for the
+     * next status update to report. Records that follow a failed one never
+     * get confirmed, so this holds even once a record failed.
+     *
+     * @param postgresConnector {@link PostgresConnector}
+     */
+    void reportConfirmedLsn(final PostgresConnector postgresConnector) {
+        final LogSequenceNumber confirmedLsn =
+                lsnAcknowledgementTracker.getConfirmedLsn();
+        if (confirmedLsn.asLong() > appliedLsn.asLong()) {
+            if (logger.isTraceEnabled()) {
+                logger.trace("Setting stream last applied and last flush lsn"
+                        + " to {}", confirmedLsn);
+            }
+            postgresConnector.setStreamLsn(confirmedLsn);
+            appliedLsn = confirmedLsn;
+        }
+    }
+
+    /**
+     * Called instead of reading the slot while the producer catches up.
+     * Keeps the replication connection alive by sending a status update
+     * every status interval, which also reports the LSN confirmed in the
+     * meantime. Waiting is left to the {@link IdleStrategy}.
+     *
+     * @param postgresConnector {@link PostgresConnector}
+     * @throws SQLException
+     */
+    void waitForBackpressure(final PostgresConnector postgresConnector)
+            throws SQLException {
+        final long now = System.currentTimeMillis();
+        if (now - lastStatusUpdateTime > replicationConfiguration
+                .getStatusIntervalTimeUnit().toMillis(
+                        replicationConfiguration.getStatusIntervalValue())) {
+            logger.debug("Slot reading paused with {} bytes in flight",
+                    admissionController.getInFlightBytes());
+            postgresConnector.forceUpdateStatus();
+            lastStatusUpdateTime = now;
+        }
+    }
+
+    boolean hasRecordsInFlight() {
+        // Records move from the pipeline to the batcher to the tracker, each
+        // handing a record on before letting go of it, so they are checked
+        // in that order. The rest of an open transaction is yet to be read,
+        // so fast forwarding past it would skip its records.
+        return (slotMessageDecoder != null
+                && slotMessageDecoder.isInTransaction())
+                || (slotMessagePipeline != null
+                && slotMessagePipeline.getInFlightCount() > 0)
+                || (slotMessageBatcher != null
+                && !slotMessageBatcher.isEmpty())
+                || lsnAcknowledgementTracker.getInFlightCount() > 0;
+    }
+
+    /**
+     * Batching packs whole serialized messages, so it does not apply when a
+     * record is put per change, whose partition key must be kept.
+     *
+     * @param rc {@link ReplicationConfiguration}
+     * @return whether messages are packed by a {@link SlotMessageBatcher}
+     */
+    static boolean isBatched(final ReplicationConfiguration rc) {
+        return rc.getBatchMaxBytes() > 0 && !rc.getRecordPerChange();
+    }
+
+    /**
+     * @param kinesisProducer {@link KinesisProducer}
+     * @return a batcher which puts each batch in a record of its own,
+     * acknowledged with the LSN of the last message in the batch, and
+     * registered with the {@link LsnAcknowledgementTracker} of the
+     * connection it was created for
+     */
+    SlotMessageBatcher createSlotMessageBatcher(
+            final KinesisProducer kinesisProducer) {
+        final LsnAcknowledgementTracker tracker = lsnAcknowledgementTracker;
+        return new SlotMessageBatcher(
+                replicationConfiguration.getBatchMaxBytes(),
+                TimeUnit.MILLISECONDS.toNanos(
+                        replicationConfiguration.getBatchMaxDelayMillis()),
+                (data, lsn) -> addUserRecord(
+                        partitionKeyStrategy.createUserRecord(streamName,
+                                null, data), kinesisProducer, lsn, tracker));
+    }
+
+    /**
+     * Messages are only decoded by a {@link SlotMessagePipeline} when more
+     * than one worker is configured, and when each message can be decoded on
+     * its own, which excludes pgoutput and incremental wal2json output as
+     * their transactions span several messages, and incremental snapshots,
+     * whose watermarks have to be seen in order. Raw passthrough does no
+     * decoding to begin with.
+     *
+     * @param rc {@link ReplicationConfiguration}
+     * @return whether messages are decoded by a pipeline of workers
+     */
+    static boolean isPipelined(final ReplicationConfiguration rc) {
+        return rc.getPipelineWorkers() > 1 && !rc.isPgOutput()
+                && !rc.isWal2JsonIncremental()
+                && !rc.getIncrementalSnapshots() && !isRawPassthrough(rc);
+    }
+
+    /**
+     * @param kinesisProducer {@link KinesisProducer}
+     * @return a pipeline which decodes messages with
+     * {@link #decodeUserRecords(ByteBuffer)} and puts the resulting records
+     * on the stream in the order the messages were read. Records are
+     * registered with the {@link LsnAcknowledgementTracker} of the
+     * connection the pipeline was created for, never with that of a later
+     * one, and a failure is reported through it, so that it surfaces on the
+     * thread reading the slot.
+     */
+    SlotMessagePipeline<List<UserRecord>> createSlotMessagePipeline(
+            final KinesisProducer kinesisProducer) {
+        final LsnAcknowledgementTracker tracker = lsnAcknowledgementTracker;
+        return new SlotMessagePipeline<>(
+                replicationConfiguration.getPipelineWorkers(),
+                replicationConfiguration.getPipelineDepth(),
+                this::decodeUserRecords,
+                (userRecords, lsn) -> userRecords.forEach(userRecord ->
+                        putUserRecord(userRecord, kinesisProducer, lsn,
+                                tracker)),
+                tracker::fail);
+    }
+
+    /**
+     * Decode this message with the {@link SlotMessageDecoder} of the current
+     * connection, streaming each relevant change into a
+     * {@link SlotMessageWriter} obtained from
+     * {@link #getSlotMessageHandler(Consumer)}. The
+     * WAL chunk is never bound to a whole
+     * {@link com.disneystreaming.pg2k4j.models.SlotMessage}, so memory use
+     * does not grow with the size of the transaction.
+     * <p>
+     * A transaction may span several messages, as is the case with the
+     * pgoutput plugin, so the decoder and writer are kept until a new
+     * connection is opened.
+     * <p>
+     * In raw passthrough mode the message is instead handed to
+     * {@link #getUserRecords(ByteBuffer)} as is, without being decoded or
+     * copied, unless it holds no changes at all. When a
+     * {@link SlotMessagePipeline} is used, the message is submitted to it,
+     * to be decoded by one of its workers.
      *
      * @param msg               Data coming off the WAL which will act as
      *                          UserRecord seed
@@ -227,75 +753,443 @@ public class SlotReaderKinesisWriter {
             kinesisProducer, final PostgresConnector postgresConnector)
             throws IOException {
         logger.debug("Processing chunk from wal");
-        int offset = msg.arrayOffset();
-        byte[] source = msg.array();
-        SlotMessage slotMessage = getSlotMessage(source, offset);
-        if (slotMessage.getChange().size() > 0) {
-            getUserRecords(slotMessage).forEach(
-                    userRecord -> {
-                        if (logger.isTraceEnabled()) {
-                            logger.trace("Writing record with data {} to "
-                                    + "stream", new String(userRecord.getData()
-                                    .array()));
-                        }
-                        ListenableFuture<UserRecordResult> f =
-                                kinesisProducer.addUserRecord(userRecord);
-                        final FutureCallback<UserRecordResult> callback =
-                                getCallback(postgresConnector, userRecord);
-                        Futures.addCallback(f, callback);
+        if (rawPassthrough) {
+            if (Wal2JsonParser.hasChanges(msg)) {
+                getUserRecords(msg.slice()).forEach(
+                        userRecord -> putUserRecord(userRecord,
+                                kinesisProducer,
+                                postgresConnector.getLastReceivedLsn(),
+                                lsnAcknowledgementTracker));
+            }
+            return;
+        }
+        if (slotMessagePipeline != null) {
+            try {
+                slotMessagePipeline.submit(msg,
+                        postgresConnector.getLastReceivedLsn());
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while submitting a "
+                        + "message to the pipeline", ie);
+            }
+            return;
+        }
+        if (slotMessageDecoder == null) {
+            slotMessageDecoder = createSlotMessageDecoder(postgresConnector);
+            final LsnAcknowledgementTracker tracker =
+                    lsnAcknowledgementTracker;
+            slotMessageHandler = getSlotMessageHandler(
+                    userRecord -> putUserRecord(userRecord, kinesisProducer,
+                            postgresConnector.getLastReceivedLsn(),
+                            tracker));
+            if (incrementalSnapshot != null) {
+                slotMessageHandler = incrementalSnapshot.wrap(
+                        slotMessageHandler,
+                        postgresConnector::getLastReceivedLsn);
+            }
+        }
+        slotMessageDecoder.decode(msg, slotMessageHandler);
+    }
+
+    /**
+     * @param postgresConnector {@link PostgresConnector}
+     * @return the {@link SlotMessageDecoder} for the configured output
+     * plugin and wal2json format
+     */
+    SlotMessageDecoder createSlotMessageDecoder(
+            final PostgresConnector postgresConnector) {
+        if (replicationConfiguration.isPgOutput()) {
+            return new PgOutputDecoder(
+                    ChangeFilter.fromConfiguration(replicationConfiguration),
+                    postgresConnector::getTypeName);
+        }
+        final int formatVersion =
+                replicationConfiguration.getWal2JsonFormatVersion();
+        switch (formatVersion) {
+            case ReplicationConfiguration.WAL2JSON_FORMAT_VERSION_1:
+                if (replicationConfiguration.getWal2JsonWriteInChunks()) {
+                    return new Wal2JsonChunkDecoder(wal2JsonParser);
+                }
+                return wal2JsonParser;
+            case ReplicationConfiguration.WAL2JSON_FORMAT_VERSION_2:
+                return new Wal2JsonV2Decoder(wal2JsonParser);
+            default:
+                throw new IllegalArgumentException(
+                        "Unsupported wal2json format version "
+                                + formatVersion);
+        }
+    }
+
+    /**
+     * @param userRecordConsumer receives the records to put on the stream
+     * @return a {@link ChangeMessageWriter} when every change is to be put
+     * on the stream on its own, a {@link SlotMessageWriter} otherwise
+     */
+    SlotMessageHandler getSlotMessageHandler(
+            final Consumer<UserRecord> userRecordConsumer) {
+        if (replicationConfiguration.getRecordPerChange()) {
+            return getRecordPerChangeWriter(userRecordConsumer);
+        }
+        return getSlotMessageWriter(userRecordConsumer);
+    }
+
+    /**
+     * @param userRecordConsumer receives the records to put on the stream
+     * @return a {@link SchemaDeltaWriter} with schema delta encoding, a
+     * {@link ChangeMessageWriter} otherwise
+     */
+    SlotMessageHandler getRecordPerChangeWriter(
+            final Consumer<UserRecord> userRecordConsumer) {
+        if (schemaCatalog != null) {
+            return getSchemaDeltaWriter(userRecordConsumer);
+        }
+        return getChangeMessageWriter(userRecordConsumer);
+    }
+
+    /**
+     * Returns a {@link SlotMessageWriter} which, once a transaction holding
+     * relevant changes has been serialized, or once the configured message
+     * flush threshold is reached, passes it off to
+     * {@link #getUserRecords(ByteBuffer)} and hands the resulting records to
+     * the consumer, which puts them on the Kinesis Stream.
+     *
+     * @param userRecordConsumer receives the records to put on the stream
+     * @return {@link SlotMessageWriter}
+     */
+    SlotMessageWriter getSlotMessageWriter(
+            final Consumer<UserRecord> userRecordConsumer) {
+        return new SlotMessageWriter(objectMapper,
+                payload -> getUserRecords(payload).forEach(
+                        userRecordConsumer), messageFlushBytes);
+    }
+
+    /**
+     * Returns a {@link ChangeMessageWriter} which hands the records for every
+     * relevant change, as returned by
+     * {@link #getUserRecords(Change, ByteBuffer)}, to the consumer as soon
+     * as the change is decoded.
+     *
+     * @param userRecordConsumer receives the records to put on the stream
+     * @return {@link ChangeMessageWriter}
+     */
+    ChangeMessageWriter getChangeMessageWriter(
+            final Consumer<UserRecord> userRecordConsumer) {
+        return new ChangeMessageWriter(objectMapper,
+                (change, payload) -> getUserRecords(change, payload).forEach(
+                        userRecordConsumer));
+    }
+
+    /**
+     * Returns a {@link SchemaDeltaWriter} which, like the
+     * {@link ChangeMessageWriter}, hands the records for every relevant
+     * change to the consumer as soon as it is decoded, each preceded by
+     * {@link SchemaRecord}s holding the schema messages it refers to, on the
+     * same shard. Those are only put on the stream by
+     * {@link #addUserRecord(UserRecord, KinesisProducer, LogSequenceNumber,
+     * LsnAcknowledgementTracker)} when the shard may not have seen them
+     * yet, or not for a while.
+     *
+     * @param userRecordConsumer receives the records to put on the stream
+     * @return {@link SchemaDeltaWriter}
+     */
+    SchemaDeltaWriter getSchemaDeltaWriter(
+            final Consumer<UserRecord> userRecordConsumer) {
+        return new SchemaDeltaWriter(objectMapper, schemaCatalog,
+                (change, schemaMessages, payload) -> {
+                    final List<UserRecord> userRecords =
+                            getUserRecords(change, payload)
+                                    .collect(Collectors.toList());
+                    for (SchemaDeltaWriter.SchemaMessage schemaMessage
+                            : schemaMessages) {
+                        userRecordConsumer.accept(new SchemaRecord(
+                                userRecords.get(0), schemaMessage,
+                                getShardCount(change)));
                     }
-            );
+                    userRecords.forEach(userRecordConsumer);
+                });
+    }
+
+    /**
+     * The work done by the workers of the {@link SlotMessagePipeline}: decode
+     * a wal2json message and turn it into the records to put on the stream.
+     *
+     * @param msg wal2json message
+     * @return the records to put on the stream
+     * @throws IOException
+     */
+    List<UserRecord> decodeUserRecords(final ByteBuffer msg)
+            throws IOException {
+        final List<UserRecord> userRecords = new ArrayList<>();
+        wal2JsonParser.decode(msg, getSlotMessageHandler(userRecords::add));
+        return userRecords;
+    }
+
+    /**
+     * Put a record on the stream, by way of the {@link SlotMessageBatcher}
+     * when messages are batched.
+     *
+     * @param userRecord      {@link UserRecord}
+     * @param kinesisProducer {@link KinesisProducer}
+     * @param lsn             LSN of the message the record was made from
+     * @param tracker         {@link LsnAcknowledgementTracker} of the
+     *                        connection the message was read on
+     */
+    void putUserRecord(final UserRecord userRecord,
+                       final KinesisProducer kinesisProducer,
+                       final LogSequenceNumber lsn,
+                       final LsnAcknowledgementTracker tracker) {
+        if (slotMessageBatcher != null) {
+            slotMessageBatcher.add(userRecord.getData(), lsn);
+            return;
         }
+        addUserRecord(userRecord, kinesisProducer, lsn, tracker);
+    }
+
+    /**
+     * Put a record on the stream, with the callback defined in
+     * {@link #getCallback(LogSequenceNumber, UserRecord,
+     * LsnAcknowledgementTracker)} invoked when it
+     * succeeds or fails to be placed on the stream by the producer. When
+     * records are spilled, hand it to the {@link SpillStage} instead.
+     *
+     * @param userRecord      {@link UserRecord}
+     * @param kinesisProducer {@link KinesisProducer}
+     * @param lsn             LSN of the message the record was made from
+     * @param tracker         {@link LsnAcknowledgementTracker} to register
+     *                        the record with
+     */
+    void addUserRecord(final UserRecord userRecord,
+                       final KinesisProducer kinesisProducer,
+                       final LogSequenceNumber lsn,
+                       final LsnAcknowledgementTracker tracker) {
+        if (userRecord instanceof SchemaRecord
+                && !announce((SchemaRecord) userRecord)) {
+            return;
+        }
+        if (logger.isTraceEnabled()) {
+            logger.trace("Writing record with data {} to "
+                    + "stream", new String(userRecord.getData()
+                    .array()));
+        }
+        if (spillStage != null) {
+            spillUserRecord(userRecord, lsn, tracker);
+            return;
+        }
+        final FutureCallback<UserRecordResult> callback =
+                getCallback(lsn, userRecord, tracker);
+        // The producer consumes the data buffer, so its size is taken first
+        admissionController.acquire(userRecord.getData().remaining());
+        ListenableFuture<UserRecordResult> f =
+                kinesisProducer.addUserRecord(userRecord);
+        Futures.addCallback(f, callback);
+    }
+
+    /**
+     * Records are put on the stream in order by a single thread at a time,
+     * so a schema message is handed to the producer ahead of any change put
+     * after it which refers to it. This relies on the producer putting the
+     * records of a shard in the order they were handed to it, which it does
+     * not guarantee when it retries a failed put, so a consumer may read a
+     * change before the schema message it refers to, and has to wait for
+     * that schema message rather than give up on the change.
+     * <p>
+     * A schema message is put on a shard again once the interval has passed
+     * since it last was, for consumers which start reading the shard past
+     * it. Forgetting which schema messages were put, as is done on every
+     * connection and once too many were, only costs putting them again.
+     *
+     * @param schemaRecord {@link SchemaRecord}
+     * @return whether the schema message has to be put on the stream
+     */
+    boolean announce(final SchemaRecord schemaRecord) {
+        return announce(schemaRecord, System.nanoTime());
+    }
+
+    boolean announce(final SchemaRecord schemaRecord, final long nowNanos) {
+        if (announcedSchemas.size() >= maxAnnouncedSchemas) {
+            announcedSchemas.clear();
+        }
+        final Long announced =
+                announcedSchemas.get(schemaRecord.getAnnouncement());
+        if (announced != null
+                && nowNanos - announced < schemaAnnounceIntervalNanos) {
+            return false;
+        }
+        announcedSchemas.put(schemaRecord.getAnnouncement(), nowNanos);
+        return true;
+    }
+
+    /**
+     * @param change a change
+     * @return number of shards of the stream the change is put on, or 0 if
+     * it is not known
+     */
+    int getShardCount(final Change change) {
+        if (streamRouter != null) {
+            final StreamRouter.Route route = streamRouter.route(change);
+            if (route != null) {
+                return route.getShardCount();
+            }
+        }
+        return shardCount;
     }
 
     public void resetIdleCounter() {
         lastFlushedTime = System.currentTimeMillis();
     }
 
-    Stream<UserRecord> getUserRecords(final SlotMessage slotMessage) throws
-            JsonProcessingException {
-        Stream<ByteBuffer> byteBuffers = Stream.of(ByteBuffer.wrap(
-                objectMapper.writeValueAsBytes(slotMessage)));
-        return byteBuffers.map(
-                byteBuffer -> {
-                    Random r = new Random();
-                    return new UserRecord(streamName, Long.toString(System
-                            .currentTimeMillis()),
-                            new BigInteger(randomBigIntBits, r)
-                                    .toString(bigIntToStringRadx), byteBuffer);
-                }
-        );
+    /**
+     * @param slotMessage serialized transaction
+     * @return the records to put on the stream, partitioned by the
+     * configured {@link PartitionKeyStrategy}
+     */
+    Stream<UserRecord> getUserRecords(final ByteBuffer slotMessage) {
+        return chunk(partitionKeyStrategy.createUserRecord(streamName,
+                null, slotMessage));
     }
 
-    FutureCallback<UserRecordResult> getCallback(final PostgresConnector
-                                                         postgresConnector,
-                                                 final UserRecord userRecord) {
-        return new SlotReaderCallback(this,
-                postgresConnector, userRecord);
+    /**
+     * @param change  the change serialized into the payload
+     * @param payload serialized change
+     * @return the records to put on the stream the {@link StreamRouter}
+     * routes the change to, if any, partitioned by the
+     * {@link PartitionKeyStrategy} of the route or the configured one, which
+     * may take the change into account
+     */
+    Stream<UserRecord> getUserRecords(final Change change,
+                                      final ByteBuffer payload) {
+        if (streamRouter != null) {
+            final StreamRouter.Route route = streamRouter.route(change);
+            if (route != null) {
+                return chunk(route.createUserRecord(change, payload));
+            }
+        }
+        return chunk(partitionKeyStrategy.createUserRecord(streamName,
+                change, payload));
     }
 
-    SlotMessage getSlotMessage(final byte[] walChunk, final int offset)
-            throws IOException {
-        SlotMessage slotMessage = objectMapper.readValue(walChunk, offset,
-                walChunk.length, SlotMessage.class);
-        Set<String> relevantTables = replicationConfiguration
-                .getRelevantTables();
-        if (relevantTables != null) {
-            slotMessage.getChange().removeIf(change -> !relevantTables
-                    .contains(change.getTable()));
+    /**
+     * Split a record too large for the stream into chunks, which keep its
+     * partition key and explicit hash key so that they land on the same
+     * shard. Every chunk is registered under the LSN of the message, which
+     * is therefore only confirmed once all of them are on the stream.
+     *
+     * @param userRecord {@link UserRecord}
+     * @return the record, or its chunks in order
+     */
+    private Stream<UserRecord> chunk(final UserRecord userRecord) {
+        if (userRecord.getData().remaining() <= maxRecordBytes) {
+            return Stream.of(userRecord);
         }
-        return slotMessage;
+        logger.info("Splitting a {} byte message into chunks",
+                userRecord.getData().remaining());
+        return SlotMessageChunker.split(userRecord.getData(), maxRecordBytes)
+                .stream()
+                .map(part -> new UserRecord(userRecord.getStreamName(),
+                        userRecord.getPartitionKey(),
+                        userRecord.getExplicitHashKey(), part));
+    }
+
+    FutureCallback<UserRecordResult> getCallback(
+            final LogSequenceNumber lsn, final UserRecord userRecord,
+            final LsnAcknowledgementTracker tracker) {
+        return new SlotReaderCallback(this, tracker, tracker.register(lsn),
+                lsn, admissionController, userRecord);
     }
 
     PostgresConnector createPostgresConnector(final PostgresConfiguration pc,
-                                              final ReplicationConfiguration rc)
-            throws SQLException {
-        return new PostgresConnector(pc, rc);
+                                              final ReplicationConfiguration rc,
+                                              final LogSequenceNumber startLsn)
+            throws SQLException, IOException {
+        if (rc.getInitialSnapshot()) {
+            return new PostgresConnector(pc, rc, startLsn,
+                    this::readInitialSnapshot);
+        }
+        return new PostgresConnector(pc, rc, startLsn);
+    }
+
+    /**
+     * Spill a record, and acknowledge it once it is on disk.
+     *
+     * @param userRecord {@link UserRecord}
+     * @param lsn        LSN of the message the record was made from
+     * @param tracker    {@link LsnAcknowledgementTracker} to register the
+     *                   record with
+     */
+    void spillUserRecord(final UserRecord userRecord,
+                         final LogSequenceNumber lsn,
+                         final LsnAcknowledgementTracker tracker) {
+        final long sequence = tracker.register(lsn);
+        try {
+            spillStage.append(userRecord, () -> tracker.acknowledge(sequence));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Opens the spill log left by a previous run, if any, so that records
+     * it did not drain yet are put on the stream first. Records appended
+     * past half the acknowledgement window are forced to disk straight
+     * away, so registering a record never waits on a sync.
+     *
+     * @param kinesisProducer {@link KinesisProducer} to drain records to
+     * @return a {@link SpillStage}
+     * @throws IOException
+     */
+    SpillStage createSpillStage(final KinesisProducer kinesisProducer)
+            throws IOException {
+        final SpillLog spillLog = new SpillLog(
+                Paths.get(replicationConfiguration.getSpillDirectory()),
+                replicationConfiguration.getSpillSegmentBytes(),
+                replicationConfiguration.getSpillMaxBytes());
+        return new SpillStage(spillLog, kinesisProducer, admissionController,
+                Math.max(1, replicationConfiguration
+                        .getAcknowledgementWindowSize() / 2));
     }
 
     KinesisProducer createKinesisProducer(final KinesisProducerConfiguration
                                                   kpc) {
         return new KinesisProducer(kpc);
     }
-}
 
+    /**
+     * A record holding a schema message, bound for the shard of the record
+     * of the change referring to it. When the number of shards of the stream
+     * is known, and they evenly split the hash key space, schema messages
+     * are announced once per shard, rather than once per hash key, of which
+     * the keycolumns strategy uses thousands.
+     */
+    static final class SchemaRecord extends UserRecord {
+        private final String announcement;
+
+        SchemaRecord(final UserRecord changeRecord,
+                     final SchemaDeltaWriter.SchemaMessage schemaMessage,
+                     final int shardCount) {
+            super(changeRecord.getStreamName(),
+                    changeRecord.getPartitionKey(),
+                    changeRecord.getExplicitHashKey(),
+                    schemaMessage.getData());
+            final String hashKey = changeRecord.getExplicitHashKey();
+            String shard;
+            if (hashKey == null) {
+                shard = changeRecord.getPartitionKey();
+            } else if (shardCount > 0) {
+                shard = "shard" + new BigInteger(hashKey)
+                        .multiply(BigInteger.valueOf(shardCount))
+                        .shiftRight(hashKeyBits);
+            } else {
+                shard = hashKey;
+            }
+            this.announcement = changeRecord.getStreamName() + "/" + shard
+                    + "/" + schemaMessage.getId();
+        }
+
+        /**
+         * @return the stream, shard or hash key, and schema id of the record
+         */
+        String getAnnouncement() {
+            return announcement;
+        }
+    }
+}
@@ -0,0 +1,475 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of records kept in memory-mapped segment files of a fixed
+ * size. Every record is framed by a header holding its length, its sequence
+ * number and a CRC of its payload:
+ * <pre>
+ * [int length][long sequence][int crc32c][payload]
+ * </pre>
+ * A single thread appends records, and a single thread drains them in the
+ * order they were appended with {@link #poll()}. A segment file is deleted,
+ * and unmapped, once it is full, every record in it was polled and every
+ * polled record was {@link #release(Entry) released}.
+ * <p>
+ * The sequence number below which every record was released is kept in a
+ * checkpoint file next to the segments, written through whenever the log
+ * is forced and when it is closed. When opened, the segments left in the
+ * directory are scanned, and each one is truncated at the first record
+ * whose header or CRC does not check out, as that record was being written
+ * when the process stopped. The records at or past the checkpoint are then
+ * polled again before any new ones, and those before it are skipped, as
+ * they were already delivered.
+ */
+public class SpillLog implements AutoCloseable {
+
+    static final int HEADER_BYTES = 16;
+    static final String SEGMENT_SUFFIX = ".spill";
+    static final String CHECKPOINT_FILE = "released.checkpoint";
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(SpillLog.class);
+    private static final int sequenceOffset = 4;
+    private static final int crcOffset = 12;
+    private static final String segmentNameFormat = "%020d" + SEGMENT_SUFFIX;
+    private static final Object unsafe;
+    private static final Method invokeCleaner;
+
+    static {
+        Object theUnsafe = null;
+        Method cleaner = null;
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            theUnsafe = field.get(null);
+            cleaner = unsafeClass.getMethod("invokeCleaner",
+                    ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.warn("Deleted spill segments will only be unmapped once "
+                    + "garbage collected", e);
+        }
+        unsafe = theUnsafe;
+        invokeCleaner = cleaner;
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long maxBytes;
+    private final AtomicLong sizeBytes = new AtomicLong();
+    private final CRC32C crc = new CRC32C();
+    private final List<Segment> unsynced = new ArrayList<>();
+    private final Set<Long> releasedAhead = new TreeSet<>();
+    private MappedByteBuffer checkpoint;
+    private Segment appendSegment;
+    private Segment pollSegment;
+    private long nextSequence;
+    private volatile long releasedUpTo;
+    private long checkpointedUpTo;
+
+    /**
+     * @param directoryInput    directory segment files are kept in, which is
+     *                          created if it does not exist
+     * @param segmentBytesInput size of each segment file
+     * @param maxBytesInput     total size of segment files past which the
+     *                          log reports itself full
+     * @throws IOException
+     */
+    public SpillLog(final Path directoryInput, final int segmentBytesInput,
+                    final long maxBytesInput) throws IOException {
+        if (segmentBytesInput <= HEADER_BYTES
+                || maxBytesInput < segmentBytesInput) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid spill log of %d byte segments up to %d bytes",
+                    segmentBytesInput, maxBytesInput));
+        }
+        this.directory = directoryInput;
+        this.segmentBytes = segmentBytesInput;
+        this.maxBytes = maxBytesInput;
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    /**
+     * Append a record. It is only durable once {@link #force()} returns.
+     *
+     * @param payload the record, which is read from its position to its
+     *                limit without being consumed
+     * @return sequence number of the record
+     * @throws IOException
+     */
+    public synchronized long append(final ByteBuffer payload)
+            throws IOException {
+        final int length = payload.remaining();
+        if (HEADER_BYTES + length > segmentBytes) {
+            throw new IllegalArgumentException(String.format(
+                    "Record of %d bytes does not fit in a %d byte segment",
+                    length, segmentBytes));
+        }
+        if (appendSegment.writePosition + HEADER_BYTES + length
+                > segmentBytes) {
+            roll();
+        }
+        final int position = appendSegment.writePosition;
+        crc.reset();
+        crc.update(payload.duplicate());
+        final ByteBuffer buffer = appendSegment.buffer.duplicate();
+        buffer.position(position + HEADER_BYTES);
+        buffer.put(payload.duplicate());
+        buffer.putLong(position + sequenceOffset, nextSequence);
+        buffer.putInt(position + crcOffset, (int) crc.getValue());
+        buffer.putInt(position, length);
+        appendSegment.writePosition = position + HEADER_BYTES + length;
+        if (!appendSegment.dirty) {
+            appendSegment.dirty = true;
+            unsynced.add(appendSegment);
+        }
+        return nextSequence++;
+    }
+
+    /**
+     * Write every record appended so far through to the segment files, and
+     * the sequence number below which every record was released through to
+     * the checkpoint file.
+     */
+    public synchronized void force() {
+        for (Segment segment : unsynced) {
+            segment.buffer.force();
+            segment.dirty = false;
+        }
+        unsynced.clear();
+        final long released = releasedUpTo;
+        if (released != checkpointedUpTo) {
+            checkpoint.putLong(0, released);
+            checkpoint.force();
+            checkpointedUpTo = released;
+        }
+    }
+
+    /**
+     * @return the next record in the log, or null if every record appended
+     * so far was polled already. Only to be called by the draining thread.
+     */
+    public Entry poll() {
+        Segment segment = pollSegment;
+        while (segment.readPosition >= segment.writePosition) {
+            if (!segment.sealed) {
+                return null;
+            }
+            // Once sealed a segment is written no more, so this is final
+            if (segment.readPosition < segment.writePosition) {
+                break;
+            }
+            pollSegment = segment.next;
+            segment.polled = true;
+            deleteIfDone(segment);
+            segment = pollSegment;
+        }
+        final int position = segment.readPosition;
+        final int length = segment.buffer.getInt(position);
+        final ByteBuffer payload = segment.buffer.duplicate();
+        payload.limit(position + HEADER_BYTES + length);
+        payload.position(position + HEADER_BYTES);
+        segment.readPosition = position + HEADER_BYTES + length;
+        segment.unreleased.incrementAndGet();
+        return new Entry(segment,
+                segment.buffer.getLong(position + sequenceOffset),
+                payload.slice());
+    }
+
+    /**
+     * Mark a polled record as delivered, so that it is not polled again
+     * once the log is reopened, and its segment can be deleted once all of
+     * its records are. Its payload is not to be read anymore. May be called
+     * from any thread.
+     *
+     * @param entry polled record
+     */
+    public void release(final Entry entry) {
+        advanceReleased(entry.sequence);
+        if (entry.segment.unreleased.decrementAndGet() == 0) {
+            deleteIfDone(entry.segment);
+        }
+    }
+
+    /**
+     * @return the sequence number below which every record was released
+     */
+    public long getReleasedUpTo() {
+        return releasedUpTo;
+    }
+
+    /**
+     * @return whether the segment files take up the maximum size or more
+     */
+    public boolean isFull() {
+        return sizeBytes.get() >= maxBytes;
+    }
+
+    public long getSizeBytes() {
+        return sizeBytes.get();
+    }
+
+    @Override
+    public void close() {
+        force();
+    }
+
+    private void advanceReleased(final long sequence) {
+        synchronized (releasedAhead) {
+            if (sequence != releasedUpTo) {
+                releasedAhead.add(sequence);
+                return;
+            }
+            long next = sequence + 1;
+            while (releasedAhead.remove(next)) {
+                next++;
+            }
+            releasedUpTo = next;
+        }
+    }
+
+    private void recover() throws IOException {
+        try (FileChannel channel = FileChannel.open(
+                directory.resolve(CHECKPOINT_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            checkpoint = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    Long.BYTES);
+        }
+        checkpointedUpTo = checkpoint.getLong(0);
+        long firstUnreleased = -1;
+        final List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+                directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        }
+        Collections.sort(paths);
+        Segment previous = null;
+        for (Path path : paths) {
+            final Segment segment = openSegment(path,
+                    (int) Files.size(path));
+            scan(segment);
+            segment.sealed = true;
+            if (segment.readPosition >= segment.writePosition) {
+                segment.polled = true;
+                deleteIfDone(segment);
+                continue;
+            }
+            if (firstUnreleased == -1) {
+                firstUnreleased = segment.buffer.getLong(
+                        segment.readPosition + sequenceOffset);
+            }
+            logger.info("Recovered {} bytes of unreleased records from {}",
+                    segment.writePosition - segment.readPosition, path);
+            if (previous == null) {
+                pollSegment = segment;
+            } else {
+                previous.next = segment;
+            }
+            previous = segment;
+        }
+        nextSequence = Math.max(nextSequence, checkpointedUpTo);
+        if (firstUnreleased == -1) {
+            firstUnreleased = nextSequence;
+        }
+        releasedUpTo = firstUnreleased;
+        appendSegment = openSegment(directory.resolve(
+                String.format(segmentNameFormat, nextSequence)), segmentBytes);
+        if (previous == null) {
+            pollSegment = appendSegment;
+        } else {
+            previous.next = appendSegment;
+        }
+    }
+
+    /**
+     * Find the end of the valid records in a recovered segment, and carry
+     * on numbering records from there, and the first record in it which is
+     * not covered by the checkpoint, to poll from there.
+     */
+    private void scan(final Segment segment) {
+        final MappedByteBuffer buffer = segment.buffer;
+        final int capacity = buffer.capacity();
+        int position = 0;
+        int readPosition = -1;
+        while (position + HEADER_BYTES <= capacity) {
+            final int length = buffer.getInt(position);
+            if (length <= 0 || length > capacity - position - HEADER_BYTES) {
+                break;
+            }
+            final long sequence = buffer.getLong(position + sequenceOffset);
+            if (position > 0 && sequence != nextSequence) {
+                break;
+            }
+            final ByteBuffer payload = buffer.duplicate();
+            payload.limit(position + HEADER_BYTES + length);
+            payload.position(position + HEADER_BYTES);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != buffer.getInt(position + crcOffset)) {
+                break;
+            }
+            if (readPosition == -1 && sequence >= checkpointedUpTo) {
+                readPosition = position;
+            }
+            nextSequence = Math.max(nextSequence, sequence + 1);
+            position += HEADER_BYTES + length;
+        }
+        segment.writePosition = position;
+        if (readPosition == -1) {
+            readPosition = position;
+        }
+        segment.readPosition = readPosition;
+    }
+
+    private void roll() throws IOException {
+        final Segment previous = appendSegment;
+        previous.buffer.force();
+        if (previous.dirty) {
+            previous.dirty = false;
+            unsynced.remove(previous);
+        }
+        appendSegment = openSegment(directory.resolve(
+                String.format(segmentNameFormat, nextSequence)), segmentBytes);
+        previous.next = appendSegment;
+        previous.sealed = true;
+    }
+
+    private Segment openSegment(final Path path, final int size)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            final MappedByteBuffer buffer =
+                    channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            sizeBytes.addAndGet(size);
+            return new Segment(path, buffer);
+        }
+    }
+
+    private void deleteIfDone(final Segment segment) {
+        if (segment.polled && segment.unreleased.get() == 0
+                && segment.deleted.compareAndSet(false, true)) {
+            try {
+                Files.deleteIfExists(segment.path);
+            } catch (IOException e) {
+                logger.error("Unable to delete spill segment {}",
+                        segment.path, e);
+            }
+            sizeBytes.addAndGet(-segment.buffer.capacity());
+            unmap(segment.buffer);
+        }
+    }
+
+    /**
+     * Release the mapping of a deleted segment straight away, rather than
+     * leaving it, and the disk space of the file, to the garbage collector.
+     */
+    private static void unmap(final MappedByteBuffer buffer) {
+        if (invokeCleaner == null) {
+            return;
+        }
+        try {
+            invokeCleaner.invoke(unsafe, buffer);
+        } catch (ReflectiveOperationException e) {
+            logger.warn("Unable to unmap a spill segment", e);
+        }
+    }
+
+    /**
+     * A record returned by {@link #poll()}.
+     */
+    public static final class Entry {
+
+        private final Segment segment;
+        private final long sequence;
+        private final ByteBuffer payload;
+
+        private Entry(final Segment segmentInput, final long sequenceInput,
+                      final ByteBuffer payloadInput) {
+            this.segment = segmentInput;
+            this.sequence = sequenceInput;
+            this.payload = payloadInput;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return the record, which stays readable until it is released
+         */
+        public ByteBuffer getPayload() {
+            return payload.duplicate();
+        }
+    }
+
+    private static final class Segment {
+
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private final AtomicInteger unreleased = new AtomicInteger();
+        private final AtomicBoolean deleted = new AtomicBoolean();
+        private volatile int writePosition;
+        private volatile boolean sealed;
+        private volatile Segment next;
+        private volatile boolean polled;
+        private int readPosition;
+        private boolean dirty;
+
+        private Segment(final Path pathInput,
+                        final MappedByteBuffer bufferInput) {
+            this.path = pathInput;
+            this.buffer = bufferInput;
+        }
+    }
+}
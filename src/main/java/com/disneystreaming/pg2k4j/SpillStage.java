@@ -0,0 +1,307 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import com.amazonaws.services.kinesis.producer.KinesisProducer;
+import com.amazonaws.services.kinesis.producer.UserRecord;
+import com.amazonaws.services.kinesis.producer.UserRecordResult;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sits between decoding slot messages and the {@link KinesisProducer}, so
+ * that a backlog builds up on local disk rather than in the WAL of the
+ * database while Kinesis falls behind.
+ * <p>
+ * Records are appended to a {@link SpillLog}, and are considered done with,
+ * as far as the slot is concerned, once the log has been forced to disk. A
+ * drainer thread reads them back and puts them on the producer, pausing as
+ * the {@link AdmissionController} decides. Records the producer fails to
+ * put are put again, since they can no longer be read from the slot.
+ * <p>
+ * So that records do not overtake one which failed, draining blocks on
+ * failed records: they are put again one at a time, in the order they were
+ * spilled, each once the one before it is on the stream, and no record is
+ * read from the log until all of them are. Only the records which were
+ * already handed to the producer when a record failed can land before it.
+ */
+public class SpillStage implements AutoCloseable {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(SpillStage.class);
+    private static final long syncIntervalNanos =
+            TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long drainerParkNanos =
+            TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long closeTimeoutSeconds = 5;
+    private static final int initialEncodingBytes = 4096;
+    private static final int noExplicitHashKey = -1;
+    private static final int initialRetriesCapacity = 16;
+
+    private final SpillLog spillLog;
+    private final KinesisProducer kinesisProducer;
+    private final AdmissionController admissionController;
+    private final int maxUnsyncedRecords;
+    private final List<Runnable> unsynced = new ArrayList<>();
+    private final Queue<SpillLog.Entry> retries =
+            new PriorityBlockingQueue<>(initialRetriesCapacity,
+                    Comparator.comparingLong(SpillLog.Entry::getSequence));
+    private final AtomicInteger failedCount = new AtomicInteger();
+    private final Thread drainer;
+    private volatile boolean running = true;
+    private volatile boolean retryInFlight;
+    private ByteBuffer encoding = ByteBuffer.allocate(initialEncodingBytes);
+    private long lastSyncNanos = System.nanoTime();
+
+    /**
+     * @param spillLogInput            log records are spilled to
+     * @param kinesisProducerInput     producer records are drained to
+     * @param admissionControllerInput decides when draining should pause
+     * @param maxUnsyncedRecordsInput  number of appended records past which
+     *                                 the log is forced to disk straight
+     *                                 away
+     */
+    public SpillStage(final SpillLog spillLogInput,
+                      final KinesisProducer kinesisProducerInput,
+                      final AdmissionController admissionControllerInput,
+                      final int maxUnsyncedRecordsInput) {
+        this.spillLog = spillLogInput;
+        this.kinesisProducer = kinesisProducerInput;
+        this.admissionController = admissionControllerInput;
+        this.maxUnsyncedRecords = maxUnsyncedRecordsInput;
+        this.drainer = new Thread(this::drain, "pg2k4j-spill-drainer");
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+    }
+
+    /**
+     * Spill a record.
+     *
+     * @param userRecord record to put on the stream eventually
+     * @param onDurable  run once the record is on disk
+     * @throws IOException
+     */
+    public synchronized void append(final UserRecord userRecord,
+                                    final Runnable onDurable)
+            throws IOException {
+        spillLog.append(encode(userRecord));
+        unsynced.add(onDurable);
+        if (unsynced.size() >= maxUnsyncedRecords) {
+            sync();
+        }
+    }
+
+    /**
+     * Force spilled records to disk if some have waited for it for long
+     * enough. Called on every pass of the loop reading the slot.
+     */
+    public synchronized void syncIfDue() {
+        if (!unsynced.isEmpty()
+                && System.nanoTime() - lastSyncNanos >= syncIntervalNanos) {
+            sync();
+        }
+    }
+
+    /**
+     * @return whether the log is too large to spill more records to
+     */
+    public boolean isFull() {
+        return spillLog.isFull();
+    }
+
+    /**
+     * Stops draining and forces spilled records to disk. Records still
+     * outstanding in the producer are drained again by the next stage
+     * opened on the same directory, unless they are put before then.
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            drainer.join(TimeUnit.SECONDS.toMillis(closeTimeoutSeconds));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            sync();
+        }
+        spillLog.close();
+    }
+
+    private void sync() {
+        spillLog.force();
+        for (Runnable onDurable : unsynced) {
+            onDurable.run();
+        }
+        unsynced.clear();
+        lastSyncNanos = System.nanoTime();
+    }
+
+    private void drain() {
+        while (running) {
+            if (admissionController.isPaused(
+                    kinesisProducer.getOutstandingRecordsCount())) {
+                LockSupport.parkNanos(drainerParkNanos);
+                continue;
+            }
+            final boolean retry = failedCount.get() > 0;
+            SpillLog.Entry entry = null;
+            if (!retry) {
+                entry = spillLog.poll();
+            } else if (!retryInFlight) {
+                entry = retries.poll();
+            }
+            if (entry == null) {
+                LockSupport.parkNanos(drainerParkNanos);
+                continue;
+            }
+            try {
+                put(entry, retry);
+            } catch (RuntimeException e) {
+                logger.error("Failed to hand spilled record {} to the "
+                        + "producer", entry.getSequence(), e);
+                fail(entry, retry);
+                LockSupport.parkNanos(drainerParkNanos);
+            }
+        }
+    }
+
+    private void put(final SpillLog.Entry entry, final boolean retry) {
+        final UserRecord userRecord = decode(entry.getPayload());
+        final int size = userRecord.getData().remaining();
+        admissionController.acquire(size);
+        final ListenableFuture<UserRecordResult> f;
+        try {
+            retryInFlight = retry;
+            f = kinesisProducer.addUserRecord(userRecord);
+        } catch (RuntimeException e) {
+            admissionController.release(size);
+            throw e;
+        }
+        Futures.addCallback(f, new FutureCallback<UserRecordResult>() {
+            @Override
+            public void onSuccess(final UserRecordResult result) {
+                admissionController.release(size);
+                spillLog.release(entry);
+                if (retry) {
+                    retryInFlight = false;
+                    failedCount.decrementAndGet();
+                }
+            }
+
+            @Override
+            public void onFailure(final Throwable t) {
+                logger.error("Failed to put spilled record {} onto the "
+                        + "stream, putting it again", entry.getSequence(), t);
+                admissionController.release(size);
+                fail(entry, retry);
+            }
+        });
+    }
+
+    /**
+     * Queue a record to be put again, blocking the drain until it is.
+     */
+    private void fail(final SpillLog.Entry entry, final boolean retry) {
+        if (!retry) {
+            failedCount.incrementAndGet();
+        }
+        retries.add(entry);
+        if (retry) {
+            retryInFlight = false;
+        }
+    }
+
+    /**
+     * Lay a record out as its stream name, partition key and explicit hash
+     * key, each preceded by its length in a short, followed by its data.
+     * An absent explicit hash key has a length of -1.
+     */
+    ByteBuffer encode(final UserRecord userRecord) {
+        final byte[] streamName =
+                userRecord.getStreamName().getBytes(StandardCharsets.UTF_8);
+        final byte[] partitionKey =
+                userRecord.getPartitionKey().getBytes(StandardCharsets.UTF_8);
+        byte[] explicitHashKey = null;
+        int size = Short.BYTES + streamName.length
+                + Short.BYTES + partitionKey.length
+                + Short.BYTES + userRecord.getData().remaining();
+        if (userRecord.getExplicitHashKey() != null) {
+            explicitHashKey = userRecord.getExplicitHashKey()
+                    .getBytes(StandardCharsets.UTF_8);
+            size += explicitHashKey.length;
+        }
+        if (encoding.capacity() < size) {
+            encoding = ByteBuffer.allocate(Math.max(size,
+                    encoding.capacity() * 2));
+        }
+        encoding.clear();
+        encoding.putShort((short) streamName.length).put(streamName);
+        encoding.putShort((short) partitionKey.length).put(partitionKey);
+        if (explicitHashKey == null) {
+            encoding.putShort((short) noExplicitHashKey);
+        } else {
+            encoding.putShort((short) explicitHashKey.length)
+                    .put(explicitHashKey);
+        }
+        encoding.put(userRecord.getData().duplicate());
+        encoding.flip();
+        return encoding;
+    }
+
+    static UserRecord decode(final ByteBuffer payload) {
+        final String streamName = getString(payload, payload.getShort());
+        final String partitionKey = getString(payload, payload.getShort());
+        final short explicitHashKeyLength = payload.getShort();
+        String explicitHashKey = null;
+        if (explicitHashKeyLength != noExplicitHashKey) {
+            explicitHashKey = getString(payload, explicitHashKeyLength);
+        }
+        return new UserRecord(streamName, partitionKey, explicitHashKey,
+                payload.slice());
+    }
+
+    private static String getString(final ByteBuffer payload,
+                                    final int length) {
+        final byte[] bytes = new byte[length];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
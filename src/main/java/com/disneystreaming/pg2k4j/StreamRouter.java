@@ -0,0 +1,187 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import com.amazonaws.services.kinesis.producer.UserRecord;
+import com.disneystreaming.pg2k4j.models.Change;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Sends the changes of some tables to streams of their own, so that busy
+ * tables can be given more shards without slowing down the others.
+ * <p>
+ * Routes are tried in order, and the first whose pattern matches the
+ * `schema.table` a change was made to decides the stream and
+ * {@link PartitionKeyStrategy} of its record. Changes no route matches go
+ * to the stream pg2k4j was started with. Every stream is written to by the
+ * same KinesisProducer, which batches records per stream and shard, and is
+ * covered by the same acknowledgement window and admission limits.
+ * <p>
+ * Routes are given as `pattern=stream`, or `pattern=stream:strategy`, or
+ * `pattern=stream:shardrange:shardcount`, where the pattern is a regular
+ * expression which must match the whole `schema.table`. Only records
+ * holding a single change can be routed.
+ */
+public class StreamRouter {
+
+    private static final char STREAM_SEPARATOR = '=';
+    private static final String OPTION_SEPARATOR = ":";
+    private static final int MAX_OPTIONS = 3;
+
+    private final List<Route> routes;
+
+    public StreamRouter(final List<Route> routesInput) {
+        this.routes = routesInput;
+    }
+
+    /**
+     * @param replicationConfiguration {@link ReplicationConfiguration}
+     * @return a router for the configured routes, or null if there are none
+     */
+    static StreamRouter fromConfiguration(
+            final ReplicationConfiguration replicationConfiguration) {
+        final List<String> routeSpecs =
+                replicationConfiguration.getStreamRoutes();
+        if (routeSpecs == null || routeSpecs.isEmpty()) {
+            return null;
+        }
+        final List<Route> routes = new ArrayList<>();
+        for (String routeSpec : routeSpecs) {
+            routes.add(Route.parse(routeSpec, replicationConfiguration));
+        }
+        return new StreamRouter(routes);
+    }
+
+    /**
+     * @param change the change to route
+     * @return the first route matching the table of the change, or null if
+     * none does
+     */
+    Route route(final Change change) {
+        final String qualifiedTable = change.getSchema() + "."
+                + change.getTable();
+        for (Route route : routes) {
+            if (route.matches(qualifiedTable)) {
+                return route;
+            }
+        }
+        return null;
+    }
+
+    public static final class Route {
+        private final Pattern pattern;
+        private final String streamName;
+        private final PartitionKeyStrategy partitionKeyStrategy;
+        private final int shardCount;
+
+        public Route(final Pattern patternInput, final String streamNameInput,
+                     final PartitionKeyStrategy partitionKeyStrategyInput) {
+            this(patternInput, streamNameInput, partitionKeyStrategyInput, 0);
+        }
+
+        /**
+         * @param patternInput              pattern of the tables routed
+         * @param streamNameInput           stream of the route
+         * @param partitionKeyStrategyInput strategy of the route
+         * @param shardCountInput           number of shards of the stream,
+         *                                  or 0 if it is not known
+         */
+        public Route(final Pattern patternInput, final String streamNameInput,
+                     final PartitionKeyStrategy partitionKeyStrategyInput,
+                     final int shardCountInput) {
+            this.pattern = patternInput;
+            this.streamName = streamNameInput;
+            this.partitionKeyStrategy = partitionKeyStrategyInput;
+            this.shardCount = shardCountInput;
+        }
+
+        /**
+         * @param routeSpec                route as given on the command line
+         * @param replicationConfiguration supplies the partition key
+         *                                 strategy of routes which do not
+         *                                 name one
+         * @return the route
+         */
+        static Route parse(final String routeSpec,
+                           final ReplicationConfiguration
+                                   replicationConfiguration) {
+            final int separator = routeSpec.lastIndexOf(STREAM_SEPARATOR);
+            if (separator <= 0 || separator == routeSpec.length() - 1) {
+                throw new IllegalArgumentException("Invalid stream route "
+                        + routeSpec + ", expected pattern=stream");
+            }
+            final String[] options = routeSpec.substring(separator + 1)
+                    .split(OPTION_SEPARATOR, -1);
+            if (options.length > MAX_OPTIONS) {
+                throw new IllegalArgumentException("Invalid stream route "
+                        + routeSpec + ", expected at most "
+                        + "pattern=stream:strategy:shardcount");
+            }
+            String strategy = replicationConfiguration
+                    .getPartitionKeyStrategy();
+            int shardCount = replicationConfiguration.getShardCount();
+            if (options.length > 1) {
+                strategy = options[1];
+            }
+            if (options.length > 2) {
+                shardCount = Integer.parseInt(options[2]);
+            }
+            return new Route(Pattern.compile(routeSpec.substring(0,
+                    separator)), options[0],
+                    PartitionKeyStrategy.fromName(strategy, shardCount),
+                    shardCount);
+        }
+
+        boolean matches(final String qualifiedTable) {
+            return pattern.matcher(qualifiedTable).matches();
+        }
+
+        String getStreamName() {
+            return streamName;
+        }
+
+        /**
+         * @return number of shards of the stream, or 0 if it is not known
+         */
+        int getShardCount() {
+            return shardCount;
+        }
+
+        /**
+         * @param change the only change held by the record
+         * @param data   data of the record
+         * @return the record, for the stream of this route
+         */
+        UserRecord createUserRecord(final Change change,
+                                    final ByteBuffer data) {
+            return partitionKeyStrategy.createUserRecord(streamName, change,
+                    data);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decoder for wal2json format version 1 output written with the
+ * `write-in-chunks` option, in which the server writes every change as soon
+ * as it is decoded rather than buffering the whole transaction first. A
+ * transaction then spans several messages:
+ * <pre>
+ * {"xid":1,"change":[
+ * {"kind":"insert",...}
+ * ,{"kind":"update",...}
+ * ]}
+ * </pre>
+ * Each message is parsed as it arrives with the {@link Wal2JsonParser}, so
+ * changes reach the {@link SlotMessageHandler} one at a time. Messages which
+ * hold a complete transaction, as wal2json writes for messages emitted
+ * outside of a transaction, are parsed as a whole.
+ * <p>
+ * Which part of a transaction a message holds depends on the messages before
+ * it, so a new decoder must be created for every connection.
+ */
+public class Wal2JsonChunkDecoder implements SlotMessageDecoder {
+
+    private final Wal2JsonParser wal2JsonParser;
+    private boolean inTransaction;
+
+    public Wal2JsonChunkDecoder(final Wal2JsonParser wal2JsonParserInput) {
+        this.wal2JsonParser = wal2JsonParserInput;
+    }
+
+    @Override
+    public void decode(final ByteBuffer msg, final SlotMessageHandler handler)
+            throws IOException {
+        final ByteBuffer chunk = msg.slice();
+        skipWhitespace(chunk);
+        if (!chunk.hasRemaining()) {
+            return;
+        }
+        final byte first = chunk.get(chunk.position());
+        if (!inTransaction) {
+            if (first != '{') {
+                throw new IOException("Expected the start of a "
+                        + "transaction but found " + (char) first);
+            }
+            if (isOpen(chunk)) {
+                wal2JsonParser.parseBegin(chunk, handler);
+                inTransaction = true;
+            } else {
+                wal2JsonParser.decode(chunk, handler);
+            }
+        } else if (first == ']') {
+            inTransaction = false;
+            handler.onCommit();
+        } else {
+            if (first == ',') {
+                chunk.get();
+            }
+            wal2JsonParser.parseChange(chunk, handler);
+        }
+    }
+
+    @Override
+    public boolean isInTransaction() {
+        return inTransaction;
+    }
+
+    /**
+     * @param chunk chunk, left untouched
+     * @return whether the chunk ends with the opening bracket of the
+     * `change` array, ignoring whitespace
+     */
+    private static boolean isOpen(final ByteBuffer chunk) {
+        final int index = Wal2JsonParser.skipWhitespaceBackwards(chunk,
+                chunk.limit() - 1);
+        return index >= chunk.position() && chunk.get(index) == '[';
+    }
+
+    private static void skipWhitespace(final ByteBuffer chunk) {
+        while (chunk.hasRemaining()
+                && Character.isWhitespace(chunk.get(chunk.position()))) {
+            chunk.get();
+        }
+    }
+}
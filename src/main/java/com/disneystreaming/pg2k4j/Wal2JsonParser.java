@@ -0,0 +1,601 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+
+package com.disneystreaming.pg2k4j;
+
+import com.disneystreaming.pg2k4j.models.Change;
+import com.disneystreaming.pg2k4j.models.DeleteChange;
+import com.disneystreaming.pg2k4j.models.InsertChange;
+import com.disneystreaming.pg2k4j.models.OldKeys;
+import com.disneystreaming.pg2k4j.models.SchemaDictionary;
+import com.disneystreaming.pg2k4j.models.TableSchema;
+import com.disneystreaming.pg2k4j.models.UpdateChange;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Incremental parser for the output of the wal2json plugin.
+ * <p>
+ * Rather than binding a whole WAL chunk to a
+ * {@link com.disneystreaming.pg2k4j.models.SlotMessage}, the chunk is walked
+ * with a streaming {@link JsonParser} and each element of the `change` array
+ * is bound and handed to a {@link SlotMessageHandler} on its own. Peak memory
+ * is therefore bounded by the size of a row rather than the size of a
+ * transaction.
+ * <p>
+ * wal2json writes the `xid` field ahead of the `change` array, which is what
+ * allows {@link SlotMessageHandler#onBegin(long)} to be called before the
+ * first change is delivered. Likewise each change starts with its `kind`,
+ * `schema` and `table`, so changes the {@link ChangeFilter} drops are
+ * skipped at the token level without their columns ever being bound. Column
+ * names are written ahead of column values, so the values of columns the
+ * {@link ChangeFilter} does not publish are skipped without being decoded.
+ */
+public class Wal2JsonParser implements SlotMessageDecoder {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(Wal2JsonParser.class);
+
+    private static final String XID_FIELD = "xid";
+    private static final String CHANGE_FIELD = "change";
+    private static final String KIND_FIELD = "kind";
+    private static final String SCHEMA_FIELD = "schema";
+    private static final String TABLE_FIELD = "table";
+    private static final String COLUMN_NAMES_FIELD = "columnnames";
+    private static final String COLUMN_TYPES_FIELD = "columntypes";
+    private static final String COLUMN_VALUES_FIELD = "columnvalues";
+    private static final String OLD_KEYS_FIELD = "oldkeys";
+    private static final String KEY_NAMES_FIELD = "keynames";
+    private static final String KEY_TYPES_FIELD = "keytypes";
+    private static final String KEY_VALUES_FIELD = "keyvalues";
+    private static final String PRIMARY_KEY_FIELD = "pk";
+    private static final String PRIMARY_KEY_NAMES_FIELD = "pknames";
+    private static final String INSERT_KIND = "insert";
+    private static final String UPDATE_KIND = "update";
+    private static final String DELETE_KIND = "delete";
+    private static final String MESSAGE_KIND = "message";
+    private static final String PREFIX_FIELD = "prefix";
+    private static final String CONTENT_FIELD = "content";
+
+    private final ObjectMapper objectMapper;
+    private final ChangeFilter changeFilter;
+    private final SchemaDictionary schemaDictionary;
+
+    public Wal2JsonParser(final ObjectMapper objectMapperInput,
+                          final ChangeFilter changeFilterInput) {
+        this(objectMapperInput, changeFilterInput, SchemaDictionary.shared());
+    }
+
+    /**
+     * @param schemaDictionaryInput {@link SchemaDictionary} interning the
+     *                              strings and shapes of the changes
+     */
+    public Wal2JsonParser(final ObjectMapper objectMapperInput,
+                          final ChangeFilter changeFilterInput,
+                          final SchemaDictionary schemaDictionaryInput) {
+        this.objectMapper = objectMapperInput;
+        this.changeFilter = changeFilterInput;
+        this.schemaDictionary = schemaDictionaryInput;
+    }
+
+    @Override
+    public void decode(final ByteBuffer msg, final SlotMessageHandler handler)
+            throws IOException {
+        parse(msg.array(), msg.arrayOffset() + msg.position(),
+                msg.remaining(), handler);
+    }
+
+    /**
+     * @param msg message as returned by
+     *            {@link PostgresConnector#readPending()}, left untouched
+     * @return a streaming parser over the remaining bytes of the message
+     * @throws IOException
+     */
+    JsonParser createParser(final ByteBuffer msg) throws IOException {
+        return objectMapper.getFactory().createParser(msg.array(),
+                msg.arrayOffset() + msg.position(), msg.remaining());
+    }
+
+    /**
+     * Parse the first chunk of a transaction written with `write-in-chunks`,
+     * which holds everything up to and including the opening bracket of the
+     * `change` array, and begin the transaction.
+     *
+     * @param chunk   first chunk of the transaction
+     * @param handler {@link SlotMessageHandler} receiving the changes
+     * @throws IOException
+     */
+    void parseBegin(final ByteBuffer chunk, final SlotMessageHandler handler)
+            throws IOException {
+        try (JsonParser parser = createParser(chunk)) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            long xid = 0;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String fieldName = parser.getCurrentName();
+                final JsonToken valueToken = parser.nextToken();
+                if (XID_FIELD.equals(fieldName)) {
+                    xid = parser.getLongValue();
+                } else if (CHANGE_FIELD.equals(fieldName)) {
+                    expect(parser, valueToken, JsonToken.START_ARRAY);
+                    handler.onBegin(xid);
+                    return;
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            throw new JsonParseException(parser,
+                    "Missing required field `change`");
+        }
+    }
+
+    /**
+     * Parse a chunk holding a single element of the `change` array, as
+     * written with `write-in-chunks`, passing it to the handler unless the
+     * {@link ChangeFilter} drops it.
+     *
+     * @param chunk   chunk positioned at the start of the change object
+     * @param handler {@link SlotMessageHandler} receiving the change
+     * @throws IOException
+     */
+    void parseChange(final ByteBuffer chunk, final SlotMessageHandler handler)
+            throws IOException {
+        try (JsonParser parser = createParser(chunk)) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            parseChange(parser, handler);
+        }
+    }
+
+    /**
+     * Parse a WAL chunk, passing each change let through by the
+     * {@link ChangeFilter} to the handler.
+     *
+     * @param walChunk array holding the chunk
+     * @param offset   offset of the chunk within the array
+     * @param length   length of the chunk
+     * @param handler  {@link SlotMessageHandler} receiving the changes
+     * @throws IOException
+     */
+    public void parse(final byte[] walChunk, final int offset,
+                      final int length, final SlotMessageHandler handler)
+            throws IOException {
+        try (JsonParser parser = objectMapper.getFactory()
+                .createParser(walChunk, offset, length)) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            long xid = 0;
+            boolean changesSeen = false;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String fieldName = parser.getCurrentName();
+                final JsonToken valueToken = parser.nextToken();
+                if (XID_FIELD.equals(fieldName)) {
+                    xid = parser.getLongValue();
+                } else if (CHANGE_FIELD.equals(fieldName)) {
+                    expect(parser, valueToken, JsonToken.START_ARRAY);
+                    handler.onBegin(xid);
+                    parseChanges(parser, handler);
+                    changesSeen = true;
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (!changesSeen) {
+                throw new JsonParseException(parser,
+                        "Missing required field `change`");
+            }
+            handler.onCommit();
+        }
+    }
+
+    private void parseChanges(final JsonParser parser,
+                              final SlotMessageHandler handler)
+            throws IOException {
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            parseChange(parser, handler);
+        }
+        expect(parser, parser.getCurrentToken(), JsonToken.END_ARRAY);
+    }
+
+    /**
+     * Bind the change object the parser is positioned at and pass it to the
+     * handler, unless it or its row is dropped by the {@link ChangeFilter}.
+     * As soon as its kind and table are known to be irrelevant, the
+     * remainder of the object is skipped. Logical decoding messages, which
+     * wal2json writes as changes of kind `message`, are passed to
+     * {@link SlotMessageHandler#onMessage(String, String)} instead.
+     *
+     * @param parser  parser positioned at the start of the change object
+     * @param handler {@link SlotMessageHandler} receiving the change
+     * @throws IOException
+     */
+    private void parseChange(final JsonParser parser,
+                             final SlotMessageHandler handler)
+            throws IOException {
+        final Change change = bindChange(parser, handler);
+        if (change != null && changeFilter.isRelevantRow(change)) {
+            handler.onChange(change);
+        }
+    }
+
+    private Change bindChange(final JsonParser parser,
+                              final SlotMessageHandler handler)
+            throws IOException {
+        String kind = null;
+        String schema = null;
+        String table = null;
+        List<String> columnNames = null;
+        List<String> columnTypes = null;
+        List<Object> columnValues = null;
+        boolean[] columnMask = null;
+        boolean[] valuesMask = null;
+        OldKeys oldKeys = null;
+        List<String> keyNames = null;
+        TableSchema latest = null;
+        String prefix = null;
+        String content = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String fieldName = parser.getCurrentName();
+            parser.nextToken();
+            if (KIND_FIELD.equals(fieldName)) {
+                kind = readText(parser);
+            } else if (SCHEMA_FIELD.equals(fieldName)) {
+                schema = readText(parser);
+            } else if (TABLE_FIELD.equals(fieldName)) {
+                table = readText(parser);
+                latest = schemaDictionary.getLatestRowSchema(table);
+            } else if (isFilteredOut(kind, table)) {
+                parser.skipChildren();
+                skipRemainingFields(parser);
+                return null;
+            } else if (COLUMN_NAMES_FIELD.equals(fieldName)) {
+                columnNames = readStrings(parser,
+                        expected(latest, TableSchema::getColumnNames));
+                columnMask = changeFilter.getColumnMask(table, columnNames);
+            } else if (COLUMN_TYPES_FIELD.equals(fieldName)) {
+                columnTypes = readStrings(parser,
+                        expected(latest, TableSchema::getColumnTypes));
+            } else if (COLUMN_VALUES_FIELD.equals(fieldName)) {
+                columnValues = readValues(parser, columnMask);
+                valuesMask = columnMask;
+            } else if (OLD_KEYS_FIELD.equals(fieldName)) {
+                oldKeys = readOldKeys(parser, table);
+            } else if (PRIMARY_KEY_FIELD.equals(fieldName)) {
+                keyNames = readPrimaryKeyNames(parser,
+                        expected(latest, TableSchema::getKeyNames));
+            } else if (PREFIX_FIELD.equals(fieldName)) {
+                prefix = parser.getText();
+            } else if (CONTENT_FIELD.equals(fieldName)) {
+                content = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (MESSAGE_KIND.equals(kind)) {
+            handler.onMessage(prefix, content);
+            return null;
+        }
+        if (kind == null || schema == null || table == null) {
+            throw new JsonParseException(parser, "Change is missing one of "
+                    + "the required fields `kind`, `schema` or `table`");
+        }
+        if (!changeFilter.isRelevant(kind, table)) {
+            return null;
+        }
+        if (columnMask != null) {
+            columnNames = ChangeFilter.project(columnNames, columnMask);
+            columnTypes = ChangeFilter.project(columnTypes, columnMask);
+            if (valuesMask == null) {
+                columnValues = ChangeFilter.project(columnValues, columnMask);
+            }
+        }
+        switch (kind) {
+            case INSERT_KIND:
+                return new InsertChange(kind, schemaDictionary.tableSchema(
+                        schema, table, required(parser, columnNames),
+                        required(parser, columnTypes), keyNames),
+                        required(parser, columnValues));
+            case UPDATE_KIND:
+                return new UpdateChange(kind, schemaDictionary.tableSchema(
+                        schema, table, required(parser, columnNames),
+                        required(parser, columnTypes), null),
+                        required(parser, columnValues),
+                        required(parser, oldKeys));
+            case DELETE_KIND:
+                return toDeleteChange(kind, schema, table,
+                        required(parser, oldKeys));
+            default:
+                logger.debug("Ignoring change of unknown kind {}", kind);
+                return null;
+        }
+    }
+
+    /**
+     * @return a delete whose shape is interned by this parser's
+     * {@link SchemaDictionary}
+     */
+    DeleteChange toDeleteChange(final String kind, final String schema,
+                                final String table, final OldKeys oldKeys) {
+        return new DeleteChange(kind, schemaDictionary.keySchema(schema,
+                table, oldKeys.getKeynames(), oldKeys.getKeytypes()),
+                oldKeys);
+    }
+
+    ChangeFilter getChangeFilter() {
+        return changeFilter;
+    }
+
+    SchemaDictionary getSchemaDictionary() {
+        return schemaDictionary;
+    }
+
+    private static List<String> expected(
+            final TableSchema latest,
+            final Function<TableSchema, List<String>> strings) {
+        if (latest == null) {
+            return null;
+        }
+        return strings.apply(latest);
+    }
+
+    boolean isFilteredOut(final String kind, final String table) {
+        return kind != null && table != null
+                && !changeFilter.isRelevant(kind, table);
+    }
+
+    private OldKeys readOldKeys(final JsonParser parser, final String table)
+            throws IOException {
+        expect(parser, parser.getCurrentToken(), JsonToken.START_OBJECT);
+        List<String> keyNames = null;
+        List<String> keyTypes = null;
+        List<Object> keyValues = null;
+        boolean[] keyMask = null;
+        boolean[] valuesMask = null;
+        final TableSchema latest = schemaDictionary.getLatestKeySchema(table);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String fieldName = parser.getCurrentName();
+            parser.nextToken();
+            if (KEY_NAMES_FIELD.equals(fieldName)) {
+                keyNames = readStrings(parser,
+                        expected(latest, TableSchema::getColumnNames));
+                keyMask = changeFilter.getColumnMask(table, keyNames);
+            } else if (KEY_TYPES_FIELD.equals(fieldName)) {
+                keyTypes = readStrings(parser,
+                        expected(latest, TableSchema::getColumnTypes));
+            } else if (KEY_VALUES_FIELD.equals(fieldName)) {
+                keyValues = readValues(parser, keyMask);
+                valuesMask = keyMask;
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (keyMask != null) {
+            keyNames = ChangeFilter.project(keyNames, keyMask);
+            keyTypes = ChangeFilter.project(keyTypes, keyMask);
+            if (valuesMask == null) {
+                keyValues = ChangeFilter.project(keyValues, keyMask);
+            }
+        }
+        return new OldKeys(required(parser, keyTypes),
+                required(parser, keyValues), required(parser, keyNames));
+    }
+
+    /**
+     * Read the `pk` object wal2json adds when started with `include-pk`.
+     */
+    private List<String> readPrimaryKeyNames(final JsonParser parser,
+                                             final List<String> expected)
+            throws IOException {
+        expect(parser, parser.getCurrentToken(), JsonToken.START_OBJECT);
+        List<String> keyNames = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String fieldName = parser.getCurrentName();
+            parser.nextToken();
+            if (PRIMARY_KEY_NAMES_FIELD.equals(fieldName)) {
+                keyNames = readStrings(parser, expected);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return keyNames;
+    }
+
+    /**
+     * Read an array of strings such as column names or types. While they
+     * match the strings expected from the last row of the table they are
+     * compared in the parser's buffer rather than allocated, and when all of
+     * them match the expected list itself is returned, which lets the
+     * {@link SchemaDictionary} find the shape of the row by identity.
+     *
+     * @param expected strings of the last row of the table, may be null
+     */
+    private List<String> readStrings(final JsonParser parser,
+                                     final List<String> expected)
+            throws IOException {
+        expect(parser, parser.getCurrentToken(), JsonToken.START_ARRAY);
+        List<String> strings = null;
+        int matched = 0;
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (strings == null && expected != null
+                    && matched < expected.size()
+                    && matches(parser, expected.get(matched))) {
+                matched++;
+            } else {
+                if (strings == null) {
+                    strings = copyPrefix(expected, matched);
+                }
+                strings.add(readText(parser));
+            }
+        }
+        if (strings != null) {
+            return strings;
+        }
+        if (expected != null && matched == expected.size()) {
+            return expected;
+        }
+        return copyPrefix(expected, matched);
+    }
+
+    private static List<String> copyPrefix(final List<String> list,
+                                           final int length) {
+        if (list == null) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(list.subList(0, length));
+    }
+
+    private static boolean matches(final JsonParser parser,
+                                   final String expected)
+            throws IOException {
+        return expected != null
+                && parser.getCurrentToken() == JsonToken.VALUE_STRING
+                && SchemaDictionary.matches(expected,
+                        parser.getTextCharacters(), parser.getTextOffset(),
+                        parser.getTextLength());
+    }
+
+    /**
+     * @return the current string value interned by the
+     * {@link SchemaDictionary}, only allocated on the first occurrence
+     */
+    String readText(final JsonParser parser) throws IOException {
+        if (parser.getCurrentToken() != JsonToken.VALUE_STRING) {
+            return parser.getValueAsString();
+        }
+        return schemaDictionary.intern(parser.getTextCharacters(),
+                parser.getTextOffset(), parser.getTextLength());
+    }
+
+    /**
+     * Read an array of column values, binding each value the way Jackson
+     * binds untyped values. Values the column mask leaves out are skipped,
+     * so that their text is never decoded.
+     */
+    private List<Object> readValues(final JsonParser parser,
+                                    final boolean[] columnMask)
+            throws IOException {
+        expect(parser, parser.getCurrentToken(), JsonToken.START_ARRAY);
+        final List<Object> values = new ArrayList<>();
+        JsonToken token = parser.nextToken();
+        int column = 0;
+        while (token != JsonToken.END_ARRAY) {
+            if (columnMask == null || column >= columnMask.length
+                    || columnMask[column]) {
+                values.add(readValue(parser, token));
+            } else {
+                parser.skipChildren();
+            }
+            column++;
+            token = parser.nextToken();
+        }
+        return values;
+    }
+
+    Object readValue(final JsonParser parser, final JsonToken token)
+            throws IOException {
+        switch (token) {
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+                return parser.getNumberValue();
+            case VALUE_NUMBER_FLOAT:
+                return parser.getDoubleValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_NULL:
+                return null;
+            default:
+                return objectMapper.readValue(parser, Object.class);
+        }
+    }
+
+    static void skipRemainingFields(final JsonParser parser)
+            throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            parser.nextToken();
+            parser.skipChildren();
+        }
+    }
+
+    static <T> T required(final JsonParser parser, final T value)
+            throws JsonParseException {
+        if (value == null) {
+            throw new JsonParseException(parser,
+                    "Change is missing a required field");
+        }
+        return value;
+    }
+
+    /**
+     * Cheaply tell whether a wal2json message holds any changes, without
+     * parsing it, by checking whether it ends in an empty `change` array.
+     * Messages which don't end the way wal2json writes them are assumed to
+     * hold changes.
+     *
+     * @param msg wal2json message, left untouched
+     * @return false if the message ends in `[]}`, ignoring whitespace
+     */
+    static boolean hasChanges(final ByteBuffer msg) {
+        int index = skipWhitespaceBackwards(msg, msg.limit() - 1);
+        if (index < msg.position() || msg.get(index) != '}') {
+            return true;
+        }
+        index = skipWhitespaceBackwards(msg, index - 1);
+        if (index < msg.position() || msg.get(index) != ']') {
+            return true;
+        }
+        index = skipWhitespaceBackwards(msg, index - 1);
+        return index < msg.position() || msg.get(index) != '[';
+    }
+
+    static int skipWhitespaceBackwards(final ByteBuffer msg,
+                                       final int from) {
+        int index = from;
+        while (index >= msg.position()
+                && Character.isWhitespace(msg.get(index))) {
+            index--;
+        }
+        return index;
+    }
+
+    static void expect(final JsonParser parser,
+                               final JsonToken actual,
+                               final JsonToken expected)
+            throws JsonParseException {
+        if (actual != expected) {
+            throw new JsonParseException(parser, String.format(
+                    "Expected %s but found %s", expected, actual));
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import com.disneystreaming.pg2k4j.models.Change;
+import com.disneystreaming.pg2k4j.models.InsertChange;
+import com.disneystreaming.pg2k4j.models.OldKeys;
+import com.disneystreaming.pg2k4j.models.SchemaDictionary;
+import com.disneystreaming.pg2k4j.models.UpdateChange;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decoder for wal2json format version 2 output, in which every row is a
+ * message of its own and transactions are framed by begin and commit
+ * messages, told apart by their `action`:
+ * <pre>
+ * {"action":"B","xid":1}
+ * {"action":"I","schema":"public","table":"t","columns":[...],"pk":[...]}
+ * {"action":"U","schema":"public","table":"t","columns":[...],
+ *     "identity":[...]}
+ * {"action":"C","xid":1}
+ * </pre>
+ * Rows are bound to the same {@link Change} models as format version 1
+ * output, with the `identity` of updated and deleted rows reported as
+ * `oldkeys`. Like the {@link Wal2JsonParser}, rows dropped by the
+ * {@link ChangeFilter} are skipped at the token level as soon as their
+ * action and table are known, as are the values of columns it does not
+ * publish. Logical decoding messages are passed to
+ * {@link SlotMessageHandler#onMessage(String, String)} and truncates are
+ * ignored. Actions, tables, column names and types are interned by the
+ * parser's {@link SchemaDictionary}.
+ * <p>
+ * Whether a transaction is open depends on the messages before it, so a
+ * new decoder must be created for every connection.
+ */
+public class Wal2JsonV2Decoder implements SlotMessageDecoder {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(Wal2JsonV2Decoder.class);
+
+    private static final String ACTION_FIELD = "action";
+    private static final String XID_FIELD = "xid";
+    private static final String SCHEMA_FIELD = "schema";
+    private static final String TABLE_FIELD = "table";
+    private static final String COLUMNS_FIELD = "columns";
+    private static final String IDENTITY_FIELD = "identity";
+    private static final String PRIMARY_KEY_FIELD = "pk";
+    private static final String NAME_FIELD = "name";
+    private static final String TYPE_FIELD = "type";
+    private static final String VALUE_FIELD = "value";
+    private static final String PREFIX_FIELD = "prefix";
+    private static final String CONTENT_FIELD = "content";
+    private static final String BEGIN_ACTION = "B";
+    private static final String COMMIT_ACTION = "C";
+    private static final String INSERT_ACTION = "I";
+    private static final String UPDATE_ACTION = "U";
+    private static final String DELETE_ACTION = "D";
+    private static final String MESSAGE_ACTION = "M";
+    private static final String INSERT_KIND = "insert";
+    private static final String UPDATE_KIND = "update";
+    private static final String DELETE_KIND = "delete";
+
+    private final Wal2JsonParser wal2JsonParser;
+    private boolean inTransaction;
+
+    public Wal2JsonV2Decoder(final Wal2JsonParser wal2JsonParserInput) {
+        this.wal2JsonParser = wal2JsonParserInput;
+    }
+
+    @Override
+    public void decode(final ByteBuffer msg, final SlotMessageHandler handler)
+            throws IOException {
+        try (JsonParser parser = wal2JsonParser.createParser(msg)) {
+            Wal2JsonParser.expect(parser, parser.nextToken(),
+                    JsonToken.START_OBJECT);
+            String action = null;
+            long xid = 0;
+            String schema = null;
+            String table = null;
+            Columns columns = null;
+            Columns identity = null;
+            List<String> keyNames = null;
+            String prefix = null;
+            String content = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String fieldName = parser.getCurrentName();
+                parser.nextToken();
+                if (ACTION_FIELD.equals(fieldName)) {
+                    action = wal2JsonParser.readText(parser);
+                } else if (XID_FIELD.equals(fieldName)) {
+                    xid = parser.getLongValue();
+                } else if (SCHEMA_FIELD.equals(fieldName)) {
+                    schema = wal2JsonParser.readText(parser);
+                } else if (TABLE_FIELD.equals(fieldName)) {
+                    table = wal2JsonParser.readText(parser);
+                } else if (wal2JsonParser.isFilteredOut(toKind(action),
+                        table)) {
+                    parser.skipChildren();
+                    Wal2JsonParser.skipRemainingFields(parser);
+                    return;
+                } else if (COLUMNS_FIELD.equals(fieldName)) {
+                    columns = readColumns(parser, table);
+                } else if (IDENTITY_FIELD.equals(fieldName)) {
+                    identity = readColumns(parser, table);
+                } else if (PRIMARY_KEY_FIELD.equals(fieldName)) {
+                    keyNames = readColumns(parser, null).names;
+                } else if (PREFIX_FIELD.equals(fieldName)) {
+                    prefix = parser.getText();
+                } else if (CONTENT_FIELD.equals(fieldName)) {
+                    content = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (action == null) {
+                throw new JsonParseException(parser,
+                        "Missing required field `action`");
+            }
+            switch (action) {
+                case BEGIN_ACTION:
+                    inTransaction = true;
+                    handler.onBegin(xid);
+                    break;
+                case COMMIT_ACTION:
+                    checkInTransaction(parser, action);
+                    inTransaction = false;
+                    handler.onCommit();
+                    break;
+                case INSERT_ACTION:
+                case UPDATE_ACTION:
+                case DELETE_ACTION:
+                    checkInTransaction(parser, action);
+                    final Change change = toChange(parser, toKind(action),
+                            schema, table, columns, identity, keyNames);
+                    if (change != null && wal2JsonParser.getChangeFilter()
+                            .isRelevantRow(change)) {
+                        handler.onChange(change);
+                    }
+                    break;
+                case MESSAGE_ACTION:
+                    handler.onMessage(prefix, content);
+                    break;
+                default:
+                    logger.trace("Ignoring wal2json message with action {}",
+                            action);
+            }
+        }
+    }
+
+    @Override
+    public boolean isInTransaction() {
+        return inTransaction;
+    }
+
+    private Change toChange(final JsonParser parser, final String kind,
+                            final String schema, final String table,
+                            final Columns columns, final Columns identity,
+                            final List<String> keyNames)
+            throws JsonParseException {
+        if (schema == null || table == null) {
+            throw new JsonParseException(parser, "Row is missing one of "
+                    + "the required fields `schema` or `table`");
+        }
+        if (wal2JsonParser.isFilteredOut(kind, table)) {
+            return null;
+        }
+        final SchemaDictionary schemaDictionary =
+                wal2JsonParser.getSchemaDictionary();
+        switch (kind) {
+            case INSERT_KIND:
+                final Columns inserted =
+                        Wal2JsonParser.required(parser, columns);
+                return new InsertChange(kind, schemaDictionary.tableSchema(
+                        schema, table, inserted.names, inserted.types,
+                        keyNames), inserted.values);
+            case UPDATE_KIND:
+                final Columns updated =
+                        Wal2JsonParser.required(parser, columns);
+                return new UpdateChange(kind, schemaDictionary.tableSchema(
+                        schema, table, updated.names, updated.types, null),
+                        updated.values,
+                        Wal2JsonParser.required(parser, identity)
+                                .toOldKeys());
+            default:
+                return wal2JsonParser.toDeleteChange(kind, schema, table,
+                        Wal2JsonParser.required(parser, identity)
+                                .toOldKeys());
+        }
+    }
+
+    private void checkInTransaction(final JsonParser parser,
+                                    final String action)
+            throws JsonParseException {
+        if (!inTransaction) {
+            throw new JsonParseException(parser, "Received action " + action
+                    + " outside of a transaction");
+        }
+    }
+
+    private static String toKind(final String action) {
+        if (INSERT_ACTION.equals(action)) {
+            return INSERT_KIND;
+        } else if (UPDATE_ACTION.equals(action)) {
+            return UPDATE_KIND;
+        } else if (DELETE_ACTION.equals(action)) {
+            return DELETE_KIND;
+        }
+        return null;
+    }
+
+    /**
+     * Read an array of `{"name":...,"type":...,"value":...}` objects, as
+     * used for `columns`, `identity` and `pk`. Each object starts with the
+     * column's name, so the values of columns which are not published are
+     * skipped without being decoded.
+     *
+     * @param parser parser positioned at the start of the array
+     * @param table  table whose column filter applies, or null to keep all
+     *               columns
+     */
+    private Columns readColumns(final JsonParser parser, final String table)
+            throws IOException {
+        Wal2JsonParser.expect(parser, parser.getCurrentToken(),
+                JsonToken.START_ARRAY);
+        final ChangeFilter changeFilter = wal2JsonParser.getChangeFilter();
+        final boolean filtered = table != null
+                && changeFilter.hasColumnFilter(table);
+        final Columns columns = new Columns();
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            String name = null;
+            String type = null;
+            Object value = null;
+            boolean relevant = true;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String fieldName = parser.getCurrentName();
+                final JsonToken valueToken = parser.nextToken();
+                if (NAME_FIELD.equals(fieldName)) {
+                    name = wal2JsonParser.readText(parser);
+                    relevant = !filtered
+                            || changeFilter.isRelevantColumn(table, name);
+                } else if (TYPE_FIELD.equals(fieldName)) {
+                    type = wal2JsonParser.readText(parser);
+                } else if (VALUE_FIELD.equals(fieldName) && relevant) {
+                    value = wal2JsonParser.readValue(parser, valueToken);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (relevant) {
+                columns.names.add(name);
+                columns.types.add(type);
+                columns.values.add(value);
+            }
+        }
+        Wal2JsonParser.expect(parser, parser.getCurrentToken(),
+                JsonToken.END_ARRAY);
+        return columns;
+    }
+
+    private static final class Columns {
+        private final List<String> names = new ArrayList<>();
+        private final List<String> types = new ArrayList<>();
+        private final List<Object> values = new ArrayList<>();
+
+        private OldKeys toOldKeys() {
+            return new OldKeys(types, values, names);
+        }
+    }
+}
@@ -27,6 +27,7 @@ package com.disneystreaming.pg2k4j.models;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonSubTypes;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
@@ -38,6 +39,7 @@ import java.util.List;
         property = "kind", visible = true)
 @JsonSubTypes({
         @JsonSubTypes.Type(value = InsertChange.class, name = "insert"),
+        @JsonSubTypes.Type(value = InsertChange.class, name = "read"),
         @JsonSubTypes.Type(value = UpdateChange.class, name = "update"),
         @JsonSubTypes.Type(value = DeleteChange.class, name = "delete")
 })
@@ -77,9 +79,23 @@ public abstract class Change {
 
     public abstract List<Object> getColumnvalues();
 
+    /**
+     * @return values of the columns identifying the changed row, or null if
+     * they are not known
+     */
+    @JsonIgnore
+    public abstract List<Object> getKeyvalues();
+
+    /**
+     * @return the shape of the changed row, shared with every other change
+     * to a row of the same shape
+     */
+    @JsonIgnore
+    public abstract TableSchema getTableSchema();
+
     public Object getValueForColumn(final String columnName)
             throws UnknownColumnNameException {
-        int columnIndex = getColumnnames().indexOf(columnName);
+        final int columnIndex = getTableSchema().indexOf(columnName);
         if (columnIndex != -1) {
             return getColumnvalues().get(columnIndex);
         } else {
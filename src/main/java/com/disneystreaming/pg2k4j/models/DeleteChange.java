@@ -34,6 +34,8 @@ import java.util.List;
 public class DeleteChange extends Change {
 
     private final OldKeys oldkeys;
+    @JsonIgnore
+    private final TableSchema tableSchema;
 
     @JsonCreator
     public DeleteChange(
@@ -48,6 +50,24 @@ public class DeleteChange extends Change {
     ) {
         super(kindInput,  tableInput, schemaInput);
         this.oldkeys = oldkeysInput;
+        this.tableSchema = TableSchema.plain(schemaInput, tableInput,
+                oldkeysInput.getKeynames(), oldkeysInput.getKeytypes(), null);
+    }
+
+    /**
+     * @param tableSchemaInput shape of the old keys, as interned by
+     *                         {@link SchemaDictionary#keySchema}
+     * @param oldkeysInput     key of the deleted row
+     */
+    public DeleteChange(
+            final String kindInput,
+            final TableSchema tableSchemaInput,
+            final OldKeys oldkeysInput
+    ) {
+        super(kindInput, tableSchemaInput.getTable(),
+                tableSchemaInput.getSchema());
+        this.oldkeys = oldkeysInput;
+        this.tableSchema = tableSchemaInput;
     }
 
     public OldKeys getOldkeys() {
@@ -65,4 +85,16 @@ public class DeleteChange extends Change {
     public List<Object> getColumnvalues() {
         return oldkeys.getKeyvalues();
     }
+
+    @Override
+    @JsonIgnore
+    public TableSchema getTableSchema() {
+        return tableSchema;
+    }
+
+    @Override
+    @JsonIgnore
+    public List<Object> getKeyvalues() {
+        return oldkeys.getKeyvalues();
+    }
 }
@@ -26,14 +26,15 @@
 package com.disneystreaming.pg2k4j.models;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import java.util.List;
 
 public class InsertChange extends Change {
     private final List<Object> columnvalues;
-    private final List<String> columnnames;
-    private final List<String> columntypes;
+    @JsonIgnore
+    private final TableSchema tableSchema;
 
     @JsonCreator
     public InsertChange(
@@ -50,10 +51,41 @@ public class InsertChange extends Change {
             @JsonProperty(value = "schema", required = true)
             final String schemaInput
     ) {
-        super(kindInput, tableInput, schemaInput);
+        this(kindInput, columnnamesInput, columntypesInput, tableInput,
+                columnvaluesInput, schemaInput, null);
+    }
+
+    /**
+     * @param keynamesInput names of the primary key columns, if known; the
+     *                      change holds the lists it is given, without
+     *                      interning them
+     */
+    public InsertChange(
+            final String kindInput,
+            final List<String> columnnamesInput,
+            final List<String> columntypesInput,
+            final String tableInput,
+            final List<Object> columnvaluesInput,
+            final String schemaInput,
+            final List<String> keynamesInput
+    ) {
+        this(kindInput, TableSchema.plain(schemaInput, tableInput,
+                columnnamesInput, columntypesInput, keynamesInput),
+                columnvaluesInput);
+    }
+
+    /**
+     * @param tableSchemaInput shape of the row
+     */
+    public InsertChange(
+            final String kindInput,
+            final TableSchema tableSchemaInput,
+            final List<Object> columnvaluesInput
+    ) {
+        super(kindInput, tableSchemaInput.getTable(),
+                tableSchemaInput.getSchema());
         this.columnvalues = columnvaluesInput;
-        this.columnnames = columnnamesInput;
-        this.columntypes = columntypesInput;
+        this.tableSchema = tableSchemaInput;
     }
 
     public List<Object> getColumnvalues() {
@@ -61,10 +93,27 @@ public class InsertChange extends Change {
     }
 
     public List<String> getColumnnames() {
-        return columnnames;
+        return tableSchema.getColumnNames();
     }
 
     public List<String> getColumntypes() {
-        return columntypes;
+        return tableSchema.getColumnTypes();
+    }
+
+    @JsonIgnore
+    public List<String> getKeynames() {
+        return tableSchema.getKeyNames();
+    }
+
+    @Override
+    @JsonIgnore
+    public TableSchema getTableSchema() {
+        return tableSchema;
+    }
+
+    @Override
+    @JsonIgnore
+    public List<Object> getKeyvalues() {
+        return tableSchema.getKeyValues(columnvalues);
     }
 }
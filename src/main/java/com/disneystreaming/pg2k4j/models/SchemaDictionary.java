@@ -0,0 +1,374 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+package com.disneystreaming.pg2k4j.models;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded interning dictionary for the parts of a change repeated on
+ * every row of a table: the kind, schema, table, column and type strings,
+ * and the {@link TableSchema} holding the lists of column names, types and
+ * key names.
+ * <p>
+ * Strings are kept in a direct-mapped table of {@link #getMaxEntries()}
+ * slots indexed by their hash, and can be looked up straight from a
+ * parser's character buffer, so that a string already in the dictionary is
+ * never allocated. A string hashing to an occupied slot replaces the one in
+ * it. Schemas are interned by their shape; once the dictionary holds
+ * {@link #getMaxEntries()} shapes it starts over, which only costs
+ * rebuilding the shapes still in use. The last shape of each table is also
+ * kept so that parsers can check the columns of a row against it as they
+ * read them, and hand back the interned lists when they match.
+ * <p>
+ * Hits and misses of both are counted, for the hit rates to be reported.
+ */
+public final class SchemaDictionary {
+
+    public static final int DEFAULT_MAX_ENTRIES = 4096;
+
+    private static final int HASH_MULTIPLIER = 31;
+
+    private static final SchemaDictionary SHARED =
+            new SchemaDictionary(DEFAULT_MAX_ENTRIES);
+
+    private final int maxEntries;
+    private final int mask;
+    private final AtomicReferenceArray<String> strings;
+    private final Map<Signature, TableSchema> schemas =
+            new ConcurrentHashMap<>();
+    private final Map<String, TableSchema> latestRowSchemas =
+            new ConcurrentHashMap<>();
+    private final Map<String, TableSchema> latestKeySchemas =
+            new ConcurrentHashMap<>();
+    private final LongAdder stringHits = new LongAdder();
+    private final LongAdder stringMisses = new LongAdder();
+    private final LongAdder schemaHits = new LongAdder();
+    private final LongAdder schemaMisses = new LongAdder();
+
+    /**
+     * @param maxEntriesInput most strings and most shapes to hold, the
+     *                        former rounded up to a power of two
+     */
+    public SchemaDictionary(final int maxEntriesInput) {
+        if (maxEntriesInput < 1) {
+            throw new IllegalArgumentException(
+                    "maxEntries must be positive, got " + maxEntriesInput);
+        }
+        this.maxEntries = maxEntriesInput;
+        int slots = 1;
+        while (slots < maxEntriesInput) {
+            slots <<= 1;
+        }
+        this.mask = slots - 1;
+        this.strings = new AtomicReferenceArray<>(slots);
+    }
+
+    /**
+     * @return the dictionary shared by the decoders and by changes built
+     * without one
+     */
+    public static SchemaDictionary shared() {
+        return SHARED;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * @param string string to intern, may be null
+     * @return the instance of the string held by the dictionary
+     */
+    public String intern(final String string) {
+        if (string == null) {
+            return null;
+        }
+        final int slot = slot(string.hashCode());
+        final String interned = strings.get(slot);
+        if (string.equals(interned)) {
+            stringHits.increment();
+            return interned;
+        }
+        stringMisses.increment();
+        strings.set(slot, string);
+        return string;
+    }
+
+    /**
+     * @param chars  buffer holding the string
+     * @param offset offset of the string in the buffer
+     * @param length length of the string
+     * @return the instance of the string held by the dictionary, only
+     * allocated if the dictionary did not hold it yet
+     */
+    public String intern(final char[] chars, final int offset,
+                         final int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = HASH_MULTIPLIER * hash + chars[i];
+        }
+        final int slot = slot(hash);
+        final String interned = strings.get(slot);
+        if (interned != null && matches(interned, chars, offset, length)) {
+            stringHits.increment();
+            return interned;
+        }
+        stringMisses.increment();
+        final String string = new String(chars, offset, length);
+        strings.set(slot, string);
+        return string;
+    }
+
+    /**
+     * @param string string to compare
+     * @param chars  buffer holding the other string
+     * @param offset offset of the other string in the buffer
+     * @param length length of the other string
+     * @return whether both strings are equal
+     */
+    public static boolean matches(final String string, final char[] chars,
+                                  final int offset, final int length) {
+        if (string.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (string.charAt(i) != chars[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int slot(final int hash) {
+        return (hash ^ (hash >>> Short.SIZE)) & mask;
+    }
+
+    /**
+     * @param schema      schema of the table
+     * @param table       name of the table
+     * @param columnNames names of the columns, may be null
+     * @param columnTypes types of the columns, may be null
+     * @param keyNames    names of the key columns, or null if not known
+     * @return the interned schema of that shape
+     */
+    public TableSchema tableSchema(final String schema, final String table,
+                                   final List<String> columnNames,
+                                   final List<String> columnTypes,
+                                   final List<String> keyNames) {
+        final TableSchema tableSchema = lookup(latestRowSchemas, schema,
+                table, columnNames, columnTypes, keyNames);
+        latestRowSchemas.put(table, tableSchema);
+        return tableSchema;
+    }
+
+    /**
+     * @param schema   schema of the table
+     * @param table    name of the table
+     * @param keyNames names of the columns of the replica identity
+     * @param keyTypes types of the columns of the replica identity
+     * @return the interned schema of the old keys of a row, whose columns
+     * are the replica identity and which has no key columns of its own
+     */
+    public TableSchema keySchema(final String schema, final String table,
+                                 final List<String> keyNames,
+                                 final List<String> keyTypes) {
+        final TableSchema tableSchema = lookup(latestKeySchemas, schema,
+                table, keyNames, keyTypes, null);
+        latestKeySchemas.put(table, tableSchema);
+        return tableSchema;
+    }
+
+    /**
+     * @param table name of the table
+     * @return the schema of the last row of the table, or null if none was
+     * interned yet
+     */
+    public TableSchema getLatestRowSchema(final String table) {
+        if (table == null) {
+            return null;
+        }
+        return latestRowSchemas.get(table);
+    }
+
+    /**
+     * @param table name of the table
+     * @return the schema of the last old keys of the table, or null if none
+     * were interned yet
+     */
+    public TableSchema getLatestKeySchema(final String table) {
+        if (table == null) {
+            return null;
+        }
+        return latestKeySchemas.get(table);
+    }
+
+    private TableSchema lookup(final Map<String, TableSchema> latestSchemas,
+                               final String schema, final String table,
+                               final List<String> columnNames,
+                               final List<String> columnTypes,
+                               final List<String> keyNames) {
+        final TableSchema latest = latestSchemas.get(table);
+        if (latest != null && latest.getColumnNames() == columnNames
+                && latest.getColumnTypes() == columnTypes
+                && Objects.equals(latest.getKeyNames(), keyNames)
+                && Objects.equals(latest.getSchema(), schema)) {
+            schemaHits.increment();
+            return latest;
+        }
+        final Signature signature = new Signature(schema, table, columnNames,
+                columnTypes, keyNames);
+        final TableSchema tableSchema = schemas.get(signature);
+        if (tableSchema != null) {
+            schemaHits.increment();
+            return tableSchema;
+        }
+        schemaMisses.increment();
+        if (schemas.size() >= maxEntries) {
+            schemas.clear();
+            latestRowSchemas.clear();
+            latestKeySchemas.clear();
+        }
+        final TableSchema created = new TableSchema(intern(schema),
+                intern(table), internAll(columnNames),
+                internAll(columnTypes), internAll(keyNames));
+        final TableSchema raced = schemas.putIfAbsent(new Signature(
+                created.getSchema(), created.getTable(),
+                created.getColumnNames(), created.getColumnTypes(),
+                created.getKeyNames()), created);
+        if (raced != null) {
+            return raced;
+        }
+        return created;
+    }
+
+    private List<String> internAll(final List<String> list) {
+        if (list == null) {
+            return null;
+        }
+        final String[] interned = new String[list.size()];
+        for (int i = 0; i < interned.length; i++) {
+            interned[i] = intern(list.get(i));
+        }
+        return Collections.unmodifiableList(Arrays.asList(interned));
+    }
+
+    public long getStringHits() {
+        return stringHits.sum();
+    }
+
+    public long getStringMisses() {
+        return stringMisses.sum();
+    }
+
+    public long getSchemaHits() {
+        return schemaHits.sum();
+    }
+
+    public long getSchemaMisses() {
+        return schemaMisses.sum();
+    }
+
+    /**
+     * @return share of string lookups answered by the dictionary, or 0 if
+     * there were none
+     */
+    public double getStringHitRate() {
+        return hitRate(getStringHits(), getStringMisses());
+    }
+
+    /**
+     * @return share of schema lookups answered by the dictionary, or 0 if
+     * there were none
+     */
+    public double getSchemaHitRate() {
+        return hitRate(getSchemaHits(), getSchemaMisses());
+    }
+
+    private static double hitRate(final long hits, final long misses) {
+        if (hits + misses == 0) {
+            return 0;
+        }
+        return (double) hits / (hits + misses);
+    }
+
+    @Override
+    public String toString() {
+        return "SchemaDictionary{stringHits=" + getStringHits()
+                + ", stringMisses=" + getStringMisses()
+                + ", schemaHits=" + getSchemaHits()
+                + ", schemaMisses=" + getSchemaMisses() + "}";
+    }
+
+    private static final class Signature {
+        private final String schema;
+        private final String table;
+        private final List<String> columnNames;
+        private final List<String> columnTypes;
+        private final List<String> keyNames;
+        private final int hash;
+
+        private Signature(final String schemaInput, final String tableInput,
+                          final List<String> columnNamesInput,
+                          final List<String> columnTypesInput,
+                          final List<String> keyNamesInput) {
+            this.schema = schemaInput;
+            this.table = tableInput;
+            this.columnNames = columnNamesInput;
+            this.columnTypes = columnTypesInput;
+            this.keyNames = keyNamesInput;
+            this.hash = Objects.hash(schemaInput, tableInput,
+                    columnNamesInput, columnTypesInput, keyNamesInput);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Signature)) {
+                return false;
+            }
+            final Signature other = (Signature) o;
+            return hash == other.hash
+                    && Objects.equals(schema, other.schema)
+                    && Objects.equals(table, other.table)
+                    && Objects.equals(columnNames, other.columnNames)
+                    && Objects.equals(columnTypes, other.columnTypes)
+                    && Objects.equals(keyNames, other.keyNames);
+        }
+    }
+}
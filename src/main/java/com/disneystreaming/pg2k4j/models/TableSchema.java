@@ -0,0 +1,181 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ ******************************************************************************/
+package com.disneystreaming.pg2k4j.models;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The shape of the rows of a table: its columns, their types and its key
+ * columns, shared by every {@link Change} to a row of that shape. Columns
+ * are looked up by name through a map built once per shape rather than by
+ * scanning the column names of every row.
+ * <p>
+ * Schemas are interned by a {@link SchemaDictionary}, so that rows of the
+ * same shape hold the same lists rather than a copy each. Those lists are
+ * shared and cannot be modified; schemas built with {@link #plain} hold the
+ * lists they are given.
+ */
+public final class TableSchema {
+
+    private final String schema;
+    private final String table;
+    private final List<String> columnNames;
+    private final List<String> columnTypes;
+    private final List<String> keyNames;
+    private final Map<String, Integer> columnIndexes;
+    private final int[] keyIndexes;
+
+    TableSchema(final String schemaInput, final String tableInput,
+                final List<String> columnNamesInput,
+                final List<String> columnTypesInput,
+                final List<String> keyNamesInput) {
+        this.schema = schemaInput;
+        this.table = tableInput;
+        this.columnNames = columnNamesInput;
+        this.columnTypes = columnTypesInput;
+        this.keyNames = keyNamesInput;
+        this.columnIndexes = new HashMap<>();
+        if (columnNames != null) {
+            for (int i = columnNames.size() - 1; i >= 0; i--) {
+                columnIndexes.put(columnNames.get(i), i);
+            }
+        }
+        this.keyIndexes = toKeyIndexes();
+    }
+
+    /**
+     * @param schema      schema of the table
+     * @param table       name of the table
+     * @param columnNames names of the columns, may be null
+     * @param columnTypes types of the columns, may be null
+     * @param keyNames    names of the key columns, or null if not known
+     * @return the schema of that shape interned by the shared
+     * {@link SchemaDictionary}
+     */
+    public static TableSchema of(final String schema, final String table,
+                                 final List<String> columnNames,
+                                 final List<String> columnTypes,
+                                 final List<String> keyNames) {
+        return SchemaDictionary.shared().tableSchema(schema, table,
+                columnNames, columnTypes, keyNames);
+    }
+
+    /**
+     * @param schema      schema of the table
+     * @param table       name of the table
+     * @param columnNames names of the columns, may be null
+     * @param columnTypes types of the columns, may be null
+     * @param keyNames    names of the key columns, or null if not known
+     * @return a schema of that shape which is not interned, holding the
+     * lists as given
+     */
+    public static TableSchema plain(final String schema, final String table,
+                                    final List<String> columnNames,
+                                    final List<String> columnTypes,
+                                    final List<String> keyNames) {
+        return new TableSchema(schema, table, columnNames, columnTypes,
+                keyNames);
+    }
+
+    /**
+     * @param schema   schema of the table
+     * @param table    name of the table
+     * @param keyNames names of the columns of the replica identity
+     * @param keyTypes types of the columns of the replica identity
+     * @return the schema of the old keys of a row interned by the shared
+     * {@link SchemaDictionary}
+     */
+    public static TableSchema ofKeys(final String schema, final String table,
+                                     final List<String> keyNames,
+                                     final List<String> keyTypes) {
+        return SchemaDictionary.shared().keySchema(schema, table, keyNames,
+                keyTypes);
+    }
+
+    private int[] toKeyIndexes() {
+        if (keyNames == null || keyNames.isEmpty()) {
+            return null;
+        }
+        final int[] indexes = new int[keyNames.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = indexOf(keyNames.get(i));
+            if (indexes[i] == -1) {
+                return null;
+            }
+        }
+        return indexes;
+    }
+
+    public String getSchema() {
+        return schema;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    public List<String> getColumnNames() {
+        return columnNames;
+    }
+
+    public List<String> getColumnTypes() {
+        return columnTypes;
+    }
+
+    public List<String> getKeyNames() {
+        return keyNames;
+    }
+
+    /**
+     * @param columnName name of the column
+     * @return index of the column, or -1 if there is no such column
+     */
+    public int indexOf(final String columnName) {
+        final Integer index = columnIndexes.get(columnName);
+        if (index == null) {
+            return -1;
+        }
+        return index;
+    }
+
+    /**
+     * @param columnValues values of a row of this shape
+     * @return values of the key columns of the row, or null if the key
+     * columns are not known or not all part of the row
+     */
+    public List<Object> getKeyValues(final List<Object> columnValues) {
+        if (keyIndexes == null) {
+            return null;
+        }
+        final Object[] keyValues = new Object[keyIndexes.length];
+        for (int i = 0; i < keyIndexes.length; i++) {
+            keyValues[i] = columnValues.get(keyIndexes[i]);
+        }
+        return Arrays.asList(keyValues);
+    }
+}
@@ -26,6 +26,7 @@
 package com.disneystreaming.pg2k4j.models;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import java.util.List;
@@ -56,7 +57,32 @@ public class UpdateChange extends InsertChange {
         this.oldkeys = oldkeysInput;
     }
 
+    /**
+     * @param tableSchemaInput shape of the row
+     * @param oldkeysInput     key the row had before the update
+     */
+    public UpdateChange(
+            final String kindInput,
+            final TableSchema tableSchemaInput,
+            final List<Object> columnvaluesInput,
+            final OldKeys oldkeysInput
+    ) {
+        super(kindInput, tableSchemaInput, columnvaluesInput);
+        this.oldkeys = oldkeysInput;
+    }
+
     public OldKeys getOldkeys() {
         return oldkeys;
     }
+
+    /**
+     * @return the key the row had before the update, so that the update is
+     * partitioned alongside earlier changes to the row even when the update
+     * changes its key
+     */
+    @Override
+    @JsonIgnore
+    public List<Object> getKeyvalues() {
+        return oldkeys.getKeyvalues();
+    }
 }
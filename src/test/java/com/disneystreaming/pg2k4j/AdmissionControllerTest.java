@@ -0,0 +1,69 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ *******************************************************************************/
+
+package com.disneystreaming.pg2k4j;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdmissionControllerTest {
+
+    @Test
+    public void testPausesAtHighWatermarkOfRecordsAndResumesAtLowWatermark() {
+        AdmissionController admissionController = new AdmissionController(100, 1000);
+        assertFalse(admissionController.isPaused(99));
+        assertTrue(admissionController.isPaused(100));
+        assertTrue(admissionController.isPaused(51));
+        assertFalse(admissionController.isPaused(50));
+        assertFalse(admissionController.isPaused(99));
+    }
+
+    @Test
+    public void testPausesAtHighWatermarkOfBytesAndResumesAtLowWatermark() {
+        AdmissionController admissionController = new AdmissionController(100, 1000);
+        admissionController.acquire(600);
+        assertFalse(admissionController.isPaused(0));
+        admissionController.acquire(400);
+        assertTrue(admissionController.isPaused(0));
+        admissionController.release(400);
+        assertTrue(admissionController.isPaused(0));
+        admissionController.release(100);
+        assertFalse(admissionController.isPaused(0));
+        assertEquals(500, admissionController.getInFlightBytes());
+    }
+
+    @Test
+    public void testResumesOnlyOnceBothAreBelowLowWatermark() {
+        AdmissionController admissionController = new AdmissionController(100, 1000);
+        admissionController.acquire(1000);
+        assertTrue(admissionController.isPaused(0));
+        admissionController.release(1000);
+        assertTrue(admissionController.isPaused(60));
+        assertFalse(admissionController.isPaused(40));
+    }
+}
@@ -0,0 +1,78 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ *******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import static org.junit.Assert.assertEquals;
+
+public class IdleStrategyTest {
+
+    @Test
+    public void testBackoffParksForExponentiallyLongerUpToTheMaximum() {
+        BackoffIdleStrategy backoffIdleStrategy = new BackoffIdleStrategy(2, 2, 1, 4);
+        for (int i = 0; i < 4; i++) {
+            backoffIdleStrategy.idle();
+            assertEquals(1, backoffIdleStrategy.getParkNanos());
+        }
+        backoffIdleStrategy.idle();
+        assertEquals(2, backoffIdleStrategy.getParkNanos());
+        backoffIdleStrategy.idle();
+        assertEquals(4, backoffIdleStrategy.getParkNanos());
+        backoffIdleStrategy.idle();
+        assertEquals(4, backoffIdleStrategy.getParkNanos());
+    }
+
+    @Test
+    public void testBackoffResetStartsSpinningAgain() {
+        BackoffIdleStrategy backoffIdleStrategy = new BackoffIdleStrategy(1, 1, 1, 4);
+        for (int i = 0; i < 4; i++) {
+            backoffIdleStrategy.idle();
+        }
+        assertEquals(4, backoffIdleStrategy.getParkNanos());
+        backoffIdleStrategy.reset();
+        assertEquals(1, backoffIdleStrategy.getParkNanos());
+        backoffIdleStrategy.idle();
+        backoffIdleStrategy.idle();
+        assertEquals(1, backoffIdleStrategy.getParkNanos());
+    }
+
+    @Test
+    public void testFromConfiguration() {
+        ReplicationConfiguration replicationConfiguration = Mockito.mock(ReplicationConfiguration.class);
+        Mockito.doReturn(IdleStrategy.BACKOFF).when(replicationConfiguration).getIdleStrategy();
+        assertEquals(BackoffIdleStrategy.class, IdleStrategy.fromConfiguration(replicationConfiguration).getClass());
+        Mockito.doReturn(IdleStrategy.SPIN).when(replicationConfiguration).getIdleStrategy();
+        assertEquals(BusySpinIdleStrategy.class, IdleStrategy.fromConfiguration(replicationConfiguration).getClass());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFromConfigurationRejectsUnknownStrategies() {
+        ReplicationConfiguration replicationConfiguration = Mockito.mock(ReplicationConfiguration.class);
+        Mockito.doReturn("sleep").when(replicationConfiguration).getIdleStrategy();
+        IdleStrategy.fromConfiguration(replicationConfiguration);
+    }
+}
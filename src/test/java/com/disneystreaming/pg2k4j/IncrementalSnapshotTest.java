@@ -0,0 +1,192 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ *******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import com.disneystreaming.pg2k4j.models.OldKeys;
+import com.disneystreaming.pg2k4j.models.UpdateChange;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+import org.postgresql.replication.LogSequenceNumber;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IncrementalSnapshotTest {
+
+    private static final String firstChunkSql = "select case when num_nulls(\"id\") = 0 then format('%s', \"id\") end, "
+            + "case when num_nulls(\"name\") = 0 then format('%s', \"name\") end from \"public\".\"users\" "
+            + "order by \"id\" limit 2";
+    private static final String nextChunkSql = "select case when num_nulls(\"id\") = 0 then format('%s', \"id\") end, "
+            + "case when num_nulls(\"name\") = 0 then format('%s', \"name\") end from \"public\".\"users\" "
+            + "where (\"id\") > (?::integer) order by \"id\" limit 2";
+    private static final LogSequenceNumber highWatermarkLsn = LogSequenceNumber.valueOf(100);
+
+    private PostgresConnector postgresConnector;
+    private Connection connection;
+    private PreparedStatement statement;
+    private IncrementalSnapshot incrementalSnapshot;
+    private Wal2JsonParserTest.RecordingHandler recorder;
+    private SlotMessageHandler handler;
+    private List<String> watermarks;
+
+    @Before
+    public void setUp() throws Exception {
+        ReplicationConfiguration replicationConfiguration = Mockito.mock(ReplicationConfiguration.class);
+        Mockito.doReturn(2).when(replicationConfiguration).getIncrementalSnapshotChunkRows();
+        Mockito.doReturn(null).when(replicationConfiguration).getRelevantTables();
+        postgresConnector = Mockito.mock(PostgresConnector.class);
+        connection = Mockito.mock(Connection.class);
+        statement = Mockito.mock(PreparedStatement.class);
+        Mockito.doReturn(connection).when(postgresConnector).getQueryConnection();
+        Mockito.doReturn(statement).when(connection).prepareStatement(Mockito.anyString());
+        incrementalSnapshot = new IncrementalSnapshot(replicationConfiguration) {
+            @Override
+            InitialSnapshot.SnapshotTable readTable(Connection connection, String schema, String name) {
+                if (!"public".equals(schema) || !"users".equals(name)) {
+                    return null;
+                }
+                InitialSnapshot.SnapshotTable table = new InitialSnapshot.SnapshotTable(schema, name, 0);
+                table.addColumn("id", "integer", PgTypes.INT4_OID, 1);
+                table.addColumn("name", "text", 25, 0);
+                return table;
+            }
+        };
+        recorder = new Wal2JsonParserTest.RecordingHandler();
+        handler = incrementalSnapshot.wrap(recorder, () -> highWatermarkLsn);
+        watermarks = new ArrayList<>();
+        Mockito.doAnswer(invocation -> {
+            watermarks.add((String) invocation.getArguments()[1]);
+            return null;
+        }).when(postgresConnector).emitMessage(Mockito.eq(IncrementalSnapshot.WATERMARK_PREFIX), Mockito.anyString());
+    }
+
+    @Test
+    public void testChunkIsSelectedBetweenWatermarksAndDeduplicatedAgainstTheStream() throws Exception {
+        ResultSet chunk = resultSet(new String[]{"1", "a"}, new String[]{"2", "b"});
+        Mockito.doReturn(chunk).when(statement).executeQuery();
+        handler.onMessage(IncrementalSnapshot.SIGNAL_PREFIX, "public.users");
+        incrementalSnapshot.poll(postgresConnector, LogSequenceNumber.INVALID_LSN);
+        InOrder inOrder = Mockito.inOrder(postgresConnector, connection);
+        inOrder.verify(postgresConnector).emitMessage(Mockito.eq(IncrementalSnapshot.WATERMARK_PREFIX),
+                Mockito.startsWith("low:"));
+        inOrder.verify(connection).prepareStatement(firstChunkSql);
+        inOrder.verify(postgresConnector).emitMessage(Mockito.eq(IncrementalSnapshot.WATERMARK_PREFIX),
+                Mockito.startsWith("high:"));
+
+        handler.onBegin(7);
+        handler.onChange(update("public", "users", 9));
+        handler.onCommit();
+        handler.onMessage(IncrementalSnapshot.WATERMARK_PREFIX, watermarks.get(0));
+        handler.onBegin(8);
+        handler.onChange(update("public", "users", 1));
+        handler.onChange(update("other", "users", 2));
+        handler.onCommit();
+        handler.onMessage(IncrementalSnapshot.WATERMARK_PREFIX, watermarks.get(1));
+
+        assertEquals(3, recorder.begins);
+        assertEquals(0, recorder.xid);
+        assertEquals(3, recorder.commits);
+        assertEquals(4, recorder.changes.size());
+        assertEquals(InitialSnapshot.READ_KIND, recorder.changes.get(3).getKind());
+        assertEquals(Arrays.asList(2, "b"), recorder.changes.get(3).getColumnvalues());
+    }
+
+    @Test
+    public void testNextChunkStartsAfterTheConfirmedOne() throws Exception {
+        ResultSet firstChunk = resultSet(new String[]{"1", "a"}, new String[]{"2", "b"});
+        ResultSet lastChunk = resultSet(new String[]{"3", "c"});
+        Mockito.doReturn(firstChunk).doReturn(lastChunk).when(statement).executeQuery();
+        incrementalSnapshot.request("users");
+        incrementalSnapshot.poll(postgresConnector, LogSequenceNumber.INVALID_LSN);
+        handler.onMessage(IncrementalSnapshot.WATERMARK_PREFIX, watermarks.get(0));
+        handler.onMessage(IncrementalSnapshot.WATERMARK_PREFIX, watermarks.get(1));
+        assertEquals(2, recorder.changes.size());
+
+        incrementalSnapshot.poll(postgresConnector, LogSequenceNumber.valueOf(highWatermarkLsn.asLong() - 1));
+        Mockito.verify(connection, Mockito.times(1)).prepareStatement(Mockito.anyString());
+
+        incrementalSnapshot.poll(postgresConnector, highWatermarkLsn);
+        Mockito.verify(connection, Mockito.times(1)).prepareStatement(nextChunkSql);
+        Mockito.verify(statement, Mockito.times(1)).setString(1, "2");
+        handler.onMessage(IncrementalSnapshot.WATERMARK_PREFIX, watermarks.get(2));
+        handler.onMessage(IncrementalSnapshot.WATERMARK_PREFIX, watermarks.get(3));
+        assertEquals(3, recorder.changes.size());
+
+        incrementalSnapshot.poll(postgresConnector, highWatermarkLsn);
+        Mockito.verify(connection, Mockito.times(2)).prepareStatement(Mockito.anyString());
+        assertEquals(4, watermarks.size());
+    }
+
+    @Test
+    public void testResetReadsAnUnconfirmedChunkAgain() throws Exception {
+        ResultSet firstChunk = resultSet(new String[]{"1", "a"}, new String[]{"2", "b"});
+        ResultSet firstChunkAgain = resultSet(new String[]{"1", "a"}, new String[]{"2", "b"});
+        Mockito.doReturn(firstChunk).doReturn(firstChunkAgain).when(statement).executeQuery();
+        incrementalSnapshot.request("public.users");
+        incrementalSnapshot.poll(postgresConnector, LogSequenceNumber.INVALID_LSN);
+        handler.onMessage(IncrementalSnapshot.WATERMARK_PREFIX, watermarks.get(0));
+        handler.onMessage(IncrementalSnapshot.WATERMARK_PREFIX, watermarks.get(1));
+        incrementalSnapshot.reset(LogSequenceNumber.INVALID_LSN);
+        incrementalSnapshot.poll(postgresConnector, LogSequenceNumber.INVALID_LSN);
+        Mockito.verify(connection, Mockito.times(2)).prepareStatement(firstChunkSql);
+        handler.onMessage(IncrementalSnapshot.WATERMARK_PREFIX, watermarks.get(0));
+        handler.onMessage(IncrementalSnapshot.WATERMARK_PREFIX, watermarks.get(1));
+        assertEquals(2, recorder.changes.size());
+    }
+
+    @Test
+    public void testUnknownTablesAreNotSnapshotted() throws Exception {
+        incrementalSnapshot.request("public.missing");
+        incrementalSnapshot.poll(postgresConnector, LogSequenceNumber.INVALID_LSN);
+        assertTrue(watermarks.isEmpty());
+        Mockito.verify(connection, Mockito.never()).prepareStatement(Mockito.anyString());
+    }
+
+    private static UpdateChange update(String schema, String table, int id) {
+        return new UpdateChange("update", Arrays.asList("id", "name"), Arrays.asList("integer", "text"), table,
+                Arrays.asList(id, "z"), schema, new OldKeys(Collections.singletonList("integer"),
+                Collections.singletonList(id), Collections.singletonList("id")));
+    }
+
+    private static ResultSet resultSet(String[]... rows) throws SQLException {
+        ResultSet rs = Mockito.mock(ResultSet.class);
+        int[] row = {-1};
+        Mockito.when(rs.next()).thenAnswer(invocation -> ++row[0] < rows.length);
+        Mockito.when(rs.getString(Mockito.anyInt()))
+                .thenAnswer(invocation -> rows[row[0]][(Integer) invocation.getArguments()[0] - 1]);
+        return rs;
+    }
+}
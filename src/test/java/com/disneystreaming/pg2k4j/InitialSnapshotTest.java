@@ -0,0 +1,158 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ *******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import com.disneystreaming.pg2k4j.models.Change;
+import com.disneystreaming.pg2k4j.models.InsertChange;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class InitialSnapshotTest {
+
+    private static final byte[] signature = "PGCOPY\n\377\r\n\0".getBytes(StandardCharsets.ISO_8859_1);
+
+    @Test
+    public void testSplit() {
+        assertEquals(Arrays.asList(25L, 50L, 75L), InitialSnapshot.split(0, 100, 4));
+        assertEquals(Collections.singletonList(2L), InitialSnapshot.split(1, 3, 4));
+        assertEquals(Collections.emptyList(), InitialSnapshot.split(5, 5, 4));
+        assertEquals(Collections.singletonList(-1L), InitialSnapshot.split(Long.MIN_VALUE, Long.MAX_VALUE, 2));
+    }
+
+    @Test
+    public void testIsSplittable() {
+        InitialSnapshot.SnapshotTable table = usersTable();
+        assertTrue(table.isSplittable());
+        InitialSnapshot.SnapshotTable textKeyed = new InitialSnapshot.SnapshotTable("public", "tags", 0);
+        textKeyed.addColumn("tag", "text", 25, 1);
+        assertFalse(textKeyed.isSplittable());
+        InitialSnapshot.SnapshotTable compositeKeyed = new InitialSnapshot.SnapshotTable("public", "pairs", 0);
+        compositeKeyed.addColumn("a", "integer", PgTypes.INT4_OID, 2);
+        compositeKeyed.addColumn("b", "integer", PgTypes.INT4_OID, 1);
+        assertFalse(compositeKeyed.isSplittable());
+        assertEquals(Arrays.asList("b", "a"),
+                ((InsertChange) compositeKeyed.toChange(Arrays.asList(1, 2))).getKeynames());
+    }
+
+    @Test
+    public void testToChangeLeavesOutUnpublishedKeyColumns() {
+        InitialSnapshot.SnapshotTable table = new InitialSnapshot.SnapshotTable("public", "users", 0);
+        table.addColumn("id", "integer", PgTypes.INT4_OID, 1, false);
+        table.addColumn("name", "text", 25, 0);
+        assertTrue(table.isSplittable());
+        assertEquals(Arrays.asList("id", "name"), table.getColumnNames());
+        Change change = table.toChange(Arrays.asList(1, "alice"));
+        assertEquals(Collections.singletonList("name"), change.getColumnnames());
+        assertEquals(Collections.singletonList("text"), ((InsertChange) change).getColumntypes());
+        assertEquals(Collections.singletonList("alice"), change.getColumnvalues());
+    }
+
+    @Test
+    public void testCopySql() {
+        InitialSnapshot.SnapshotTable table = usersTable();
+        table.addColumn("created", "timestamp with time zone", 1184, 0);
+        assertEquals("copy (select \"id\", \"na\"\"me\", "
+                        + "case when num_nulls(\"created\") = 0 then format('%s', \"created\") end "
+                        + "from \"public\".\"users\" where \"id\" >= 10 and \"id\" < 20) to stdout with (format binary)",
+                new InitialSnapshot.SnapshotRange(table, 10L, 20L).getCopySql());
+        assertEquals("copy (select \"id\", \"na\"\"me\", "
+                        + "case when num_nulls(\"created\") = 0 then format('%s', \"created\") end "
+                        + "from \"public\".\"users\") to stdout with (format binary)",
+                new InitialSnapshot.SnapshotRange(table, null, null).getCopySql());
+    }
+
+    @Test
+    public void testReadRows() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(signature);
+        out.writeInt(0);
+        out.writeInt(0);
+        writeRow(out, int4(1), "alice".getBytes(StandardCharsets.UTF_8));
+        writeRow(out, int4(2), null);
+        out.writeShort(-1);
+        SlotMessageHandler handler = Mockito.mock(SlotMessageHandler.class);
+        long rows = InitialSnapshot.readRows(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())),
+                usersTable(), handler);
+        assertEquals(2, rows);
+        ArgumentCaptor<Change> changes = ArgumentCaptor.forClass(Change.class);
+        Mockito.verify(handler, Mockito.times(2)).onChange(changes.capture());
+        Change first = changes.getAllValues().get(0);
+        assertEquals(InitialSnapshot.READ_KIND, first.getKind());
+        assertEquals("public", first.getSchema());
+        assertEquals("users", first.getTable());
+        assertEquals(Arrays.asList(1, "alice"), first.getColumnvalues());
+        assertEquals(Collections.singletonList("id"), ((InsertChange) first).getKeynames());
+        Change second = changes.getAllValues().get(1);
+        assertEquals(2, second.getColumnvalues().get(0));
+        assertNull(second.getColumnvalues().get(1));
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadRowsBadSignature() throws Exception {
+        InitialSnapshot.readRows(new DataInputStream(new ByteArrayInputStream(new byte[signature.length + 8])),
+                usersTable(), Mockito.mock(SlotMessageHandler.class));
+    }
+
+    private static InitialSnapshot.SnapshotTable usersTable() {
+        InitialSnapshot.SnapshotTable table = new InitialSnapshot.SnapshotTable("public", "users", 0);
+        table.addColumn("id", "integer", PgTypes.INT4_OID, 1);
+        table.addColumn("na\"me", "text", 25, 0);
+        return table;
+    }
+
+    private static byte[] int4(int value) {
+        return ByteBuffer.allocate(4).putInt(value).array();
+    }
+
+    private static void writeRow(DataOutputStream out, byte[]... values) throws IOException {
+        out.writeShort(values.length);
+        for (byte[] value : values) {
+            if (value == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(value.length);
+                out.write(value);
+            }
+        }
+    }
+}
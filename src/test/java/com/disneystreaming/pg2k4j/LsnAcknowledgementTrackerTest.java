@@ -0,0 +1,128 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ *******************************************************************************/
+
+package com.disneystreaming.pg2k4j;
+
+import org.junit.Test;
+import org.postgresql.replication.LogSequenceNumber;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LsnAcknowledgementTrackerTest {
+
+    @Test
+    public void testCapacityIsRoundedUpToPowerOfTwo() {
+        assertEquals(1, new LsnAcknowledgementTracker(1).getCapacity());
+        assertEquals(4, new LsnAcknowledgementTracker(4).getCapacity());
+        assertEquals(8, new LsnAcknowledgementTracker(5).getCapacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCapacityMustBePositive() {
+        new LsnAcknowledgementTracker(0);
+    }
+
+    @Test
+    public void testConfirmedLsnOnlyCoversContiguousAcknowledgements() {
+        LsnAcknowledgementTracker tracker = new LsnAcknowledgementTracker(4);
+        long first = tracker.register(LogSequenceNumber.valueOf(10));
+        long second = tracker.register(LogSequenceNumber.valueOf(20));
+        long third = tracker.register(LogSequenceNumber.valueOf(30));
+        assertEquals(LogSequenceNumber.INVALID_LSN, tracker.getConfirmedLsn());
+        tracker.acknowledge(third);
+        tracker.acknowledge(second);
+        assertEquals(LogSequenceNumber.INVALID_LSN, tracker.getConfirmedLsn());
+        assertEquals(3, tracker.getInFlightCount());
+        tracker.acknowledge(first);
+        assertEquals(LogSequenceNumber.valueOf(30), tracker.getConfirmedLsn());
+        assertEquals(0, tracker.getInFlightCount());
+    }
+
+    @Test
+    public void testSlotsAreReusedAroundTheRing() {
+        LsnAcknowledgementTracker tracker = new LsnAcknowledgementTracker(2);
+        for (int i = 1; i <= 10; i++) {
+            tracker.acknowledge(tracker.register(LogSequenceNumber.valueOf(i)));
+            assertEquals(LogSequenceNumber.valueOf(i), tracker.getConfirmedLsn());
+        }
+        long pending = tracker.register(LogSequenceNumber.valueOf(11));
+        tracker.acknowledge(tracker.register(LogSequenceNumber.valueOf(12)));
+        assertEquals(LogSequenceNumber.valueOf(10), tracker.getConfirmedLsn());
+        tracker.acknowledge(pending);
+        assertEquals(LogSequenceNumber.valueOf(12), tracker.getConfirmedLsn());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRegisterOnFullWindowThrowsOnceARecordFailed() {
+        LsnAcknowledgementTracker tracker = new LsnAcknowledgementTracker(1);
+        tracker.register(LogSequenceNumber.valueOf(1));
+        tracker.fail(new RuntimeException("throttled"));
+        tracker.register(LogSequenceNumber.valueOf(2));
+    }
+
+    @Test
+    public void testRegisterOnFullWindowThrowsWhenInterrupted() {
+        LsnAcknowledgementTracker tracker = new LsnAcknowledgementTracker(1);
+        tracker.register(LogSequenceNumber.valueOf(1));
+        Thread.currentThread().interrupt();
+        try {
+            tracker.register(LogSequenceNumber.valueOf(2));
+            fail("Expected registering on a full window to throw once interrupted");
+        } catch (IllegalStateException e) {
+            assertTrue(Thread.interrupted());
+        }
+    }
+
+    @Test
+    public void testConcurrentOutOfOrderAcknowledgements() throws Exception {
+        int records = 100000;
+        LsnAcknowledgementTracker tracker = new LsnAcknowledgementTracker(1024);
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        List<Long> batch = new ArrayList<>();
+        for (int i = 1; i <= records; i++) {
+            batch.add(tracker.register(LogSequenceNumber.valueOf(i)));
+            if (batch.size() == 64 || i == records) {
+                Collections.shuffle(batch);
+                for (long sequence : batch) {
+                    executorService.execute(() -> tracker.acknowledge(sequence));
+                }
+                batch = new ArrayList<>();
+            }
+        }
+        executorService.shutdown();
+        assertTrue(executorService.awaitTermination(30, TimeUnit.SECONDS));
+        assertEquals(LogSequenceNumber.valueOf(records), tracker.getConfirmedLsn());
+        assertEquals(0, tracker.getInFlightCount());
+    }
+}
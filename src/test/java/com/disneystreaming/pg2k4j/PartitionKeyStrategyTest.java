@@ -0,0 +1,144 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ *******************************************************************************/
+
+package com.disneystreaming.pg2k4j;
+
+import com.amazonaws.services.kinesis.producer.UserRecord;
+import com.disneystreaming.pg2k4j.models.DeleteChange;
+import com.disneystreaming.pg2k4j.models.InsertChange;
+import com.disneystreaming.pg2k4j.models.OldKeys;
+import com.disneystreaming.pg2k4j.models.UpdateChange;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class PartitionKeyStrategyTest {
+
+    private static final String streamName = "streamName";
+    private static final ByteBuffer data = ByteBuffer.wrap("data".getBytes());
+    private static final BigInteger hashKeySpace = BigInteger.ONE.shiftLeft(128);
+
+    @Test
+    public void testHashKeyRangesAreAtTheMiddleOfEvenlySplitRanges() {
+        HashKeyRangePartitionKeyStrategy strategy = new HashKeyRangePartitionKeyStrategy(4);
+        BigInteger rangeSize = hashKeySpace.divide(BigInteger.valueOf(4));
+        for (int i = 0; i < 4; i++) {
+            BigInteger hashKey = new BigInteger(strategy.getExplicitHashKey(i));
+            assertEquals(rangeSize.multiply(BigInteger.valueOf(i)).add(rangeSize.shiftRight(1)), hashKey);
+        }
+    }
+
+    @Test
+    public void testHashKeyRangeRecordsCoverEveryRange() {
+        HashKeyRangePartitionKeyStrategy strategy = new HashKeyRangePartitionKeyStrategy(3);
+        Set<String> hashKeys = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            UserRecord userRecord = strategy.createUserRecord(streamName, null, data);
+            assertEquals(streamName, userRecord.getStreamName());
+            assertEquals(data, userRecord.getData());
+            assertTrue(new BigInteger(userRecord.getExplicitHashKey()).compareTo(hashKeySpace) < 0);
+            hashKeys.add(userRecord.getExplicitHashKey());
+        }
+        assertEquals(3, hashKeys.size());
+    }
+
+    @Test
+    public void testKeyColumnsPutsChangesToARowInOneRange() {
+        KeyColumnsPartitionKeyStrategy strategy = new KeyColumnsPartitionKeyStrategy(4096);
+        InsertChange insert = new InsertChange("insert", Arrays.asList("id", "name"), Arrays.asList("integer", "text"),
+                "users", Arrays.asList(42, "a"), "public", Arrays.asList("id"));
+        UpdateChange update = new UpdateChange("update", Arrays.asList("id", "name"), Arrays.asList("integer", "text"),
+                "users", Arrays.asList(42, "b"), "public",
+                new OldKeys(Arrays.asList("integer"), Arrays.asList(42), Arrays.asList("id")));
+        DeleteChange delete = new DeleteChange("delete", "users", "public",
+                new OldKeys(Arrays.asList("integer"), Arrays.asList(42), Arrays.asList("id")));
+        String hashKey = strategy.createUserRecord(streamName, insert, data).getExplicitHashKey();
+        assertEquals(hashKey, strategy.createUserRecord(streamName, update, data).getExplicitHashKey());
+        assertEquals(hashKey, strategy.createUserRecord(streamName, delete, data).getExplicitHashKey());
+        DeleteChange otherTable = new DeleteChange("delete", "orders", "public",
+                new OldKeys(Arrays.asList("integer"), Arrays.asList(42), Arrays.asList("id")));
+        assertTrue(!hashKey.equals(strategy.createUserRecord(streamName, otherTable, data).getExplicitHashKey()));
+    }
+
+    @Test
+    public void testKeyColumnsSpreadsRowsOverRanges() {
+        KeyColumnsPartitionKeyStrategy strategy = new KeyColumnsPartitionKeyStrategy(16);
+        int[] counts = new int[16];
+        for (int i = 0; i < 16000; i++) {
+            DeleteChange delete = new DeleteChange("delete", "users", "public",
+                    new OldKeys(Arrays.asList("integer"), Arrays.asList(i), Arrays.asList("id")));
+            counts[strategy.getRange(delete, delete.getKeyvalues())]++;
+        }
+        for (int count : counts) {
+            assertTrue(count > 500 && count < 1500);
+        }
+    }
+
+    @Test
+    public void testKeyColumnsWithoutKeyFallsBackToRandomRange() {
+        KeyColumnsPartitionKeyStrategy strategy = new KeyColumnsPartitionKeyStrategy(4);
+        InsertChange withoutKey = new InsertChange("insert", Arrays.asList("id"), Arrays.asList("integer"), "users",
+                Arrays.asList(1), "public");
+        assertNotNull(strategy.createUserRecord(streamName, withoutKey, data).getExplicitHashKey());
+        assertNotNull(strategy.createUserRecord(streamName, null, data).getExplicitHashKey());
+    }
+
+    @Test
+    public void testLegacyGeneratesRandomHashKeys() {
+        UserRecord userRecord = new LegacyPartitionKeyStrategy().createUserRecord(streamName, null, data);
+        assertTrue(new BigInteger(userRecord.getExplicitHashKey()).compareTo(hashKeySpace) < 0);
+        assertNotNull(userRecord.getPartitionKey());
+    }
+
+    @Test
+    public void testFromConfiguration() {
+        ReplicationConfiguration replicationConfiguration = Mockito.mock(ReplicationConfiguration.class);
+        Mockito.doReturn(PartitionKeyStrategy.RANDOM).when(replicationConfiguration).getPartitionKeyStrategy();
+        assertEquals(HashKeyRangePartitionKeyStrategy.class, PartitionKeyStrategy.fromConfiguration(replicationConfiguration).getClass());
+        Mockito.doReturn(PartitionKeyStrategy.SHARD_RANGE).when(replicationConfiguration).getPartitionKeyStrategy();
+        Mockito.doReturn(8).when(replicationConfiguration).getShardCount();
+        assertEquals(8, ((HashKeyRangePartitionKeyStrategy) PartitionKeyStrategy.fromConfiguration(replicationConfiguration)).getRanges());
+        Mockito.doReturn(PartitionKeyStrategy.KEY_COLUMNS).when(replicationConfiguration).getPartitionKeyStrategy();
+        assertEquals(KeyColumnsPartitionKeyStrategy.class, PartitionKeyStrategy.fromConfiguration(replicationConfiguration).getClass());
+        Mockito.doReturn(PartitionKeyStrategy.LEGACY).when(replicationConfiguration).getPartitionKeyStrategy();
+        assertEquals(LegacyPartitionKeyStrategy.class, PartitionKeyStrategy.fromConfiguration(replicationConfiguration).getClass());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testShardRangeRequiresShardCount() {
+        ReplicationConfiguration replicationConfiguration = Mockito.mock(ReplicationConfiguration.class);
+        Mockito.doReturn(PartitionKeyStrategy.SHARD_RANGE).when(replicationConfiguration).getPartitionKeyStrategy();
+        PartitionKeyStrategy.fromConfiguration(replicationConfiguration);
+    }
+}
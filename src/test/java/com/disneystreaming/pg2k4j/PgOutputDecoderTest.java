@@ -0,0 +1,279 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ *******************************************************************************/
+
+package com.disneystreaming.pg2k4j;
+
+import com.disneystreaming.pg2k4j.models.Change;
+import com.disneystreaming.pg2k4j.models.DeleteChange;
+import com.disneystreaming.pg2k4j.models.InsertChange;
+import com.disneystreaming.pg2k4j.models.UpdateChange;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PgOutputDecoderTest {
+
+    private static final int relationId = 16384;
+    private static final int otherRelationId = 16390;
+
+    private PgOutputDecoder pgOutputDecoder;
+    private Wal2JsonParserTest.RecordingHandler handler;
+
+    @Before
+    public void setUp() throws Exception {
+        pgOutputDecoder = new PgOutputDecoder(new ChangeFilter(new HashSet<>(Collections.singletonList("apples")), null,
+                new HashSet<>(Arrays.asList("insert", "update", "delete"))),
+                (typeOid, typeModifier) -> typeOid == PgTypes.INT4_OID ? "integer" : "character varying(50)");
+        handler = new Wal2JsonParserTest.RecordingHandler();
+        decode(relation(relationId, "public", "apples"));
+        decode(relation(otherRelationId, "", "pears"));
+    }
+
+    @Test
+    public void testDecodeBeginInsertCommit() throws Exception {
+        decode(begin(1234));
+        decode(insert(relationId, text("1"), text("Fuji"), text("2")));
+        decode(commit());
+        assertEquals(1234, handler.xid);
+        assertEquals(1, handler.begins);
+        assertEquals(1, handler.commits);
+        assertEquals(1, handler.changes.size());
+        InsertChange insertChange = (InsertChange) handler.changes.get(0);
+        assertEquals("insert", insertChange.getKind());
+        assertEquals("public", insertChange.getSchema());
+        assertEquals("apples", insertChange.getTable());
+        assertEquals(Arrays.asList("id", "name", "quantity"), insertChange.getColumnnames());
+        assertEquals(Arrays.asList("integer", "character varying(50)", "integer"), insertChange.getColumntypes());
+        assertEquals(Arrays.asList(1, "Fuji", 2), insertChange.getColumnvalues());
+        assertEquals(Collections.singletonList("id"), insertChange.getKeynames());
+        assertEquals(Collections.singletonList(1), insertChange.getKeyvalues());
+    }
+
+    @Test
+    public void testDecodeUpdateWithoutOldTupleReportsKeyFromNewTuple() throws Exception {
+        decode(update(relationId, null, text("1"), text("Fuji"), text("3")));
+        UpdateChange updateChange = (UpdateChange) handler.changes.get(0);
+        assertEquals(Arrays.asList(1, "Fuji", 3), updateChange.getColumnvalues());
+        assertEquals(Collections.singletonList("id"), updateChange.getOldkeys().getKeynames());
+        assertEquals(Collections.singletonList("integer"), updateChange.getOldkeys().getKeytypes());
+        assertEquals(Collections.singletonList(1), updateChange.getOldkeys().getKeyvalues());
+    }
+
+    @Test
+    public void testDecodeUpdateWithKeyTupleAndUnchangedToast() throws Exception {
+        decode(update(relationId, 'K', text("7"), nul(), nul(), text("1"), unchanged(), text("3")));
+        UpdateChange updateChange = (UpdateChange) handler.changes.get(0);
+        assertEquals(Arrays.asList("id", "quantity"), updateChange.getColumnnames());
+        assertEquals(Arrays.asList(1, 3), updateChange.getColumnvalues());
+        assertEquals(Collections.singletonList(7), updateChange.getOldkeys().getKeyvalues());
+    }
+
+    @Test
+    public void testDecodeDeleteWithFullOldTuple() throws Exception {
+        decode(delete(relationId, 'O', text("1"), text("Fuji"), nul()));
+        DeleteChange deleteChange = (DeleteChange) handler.changes.get(0);
+        assertEquals(Arrays.asList("id", "name", "quantity"), deleteChange.getOldkeys().getKeynames());
+        assertEquals(Arrays.asList(1, "Fuji", null), deleteChange.getOldkeys().getKeyvalues());
+    }
+
+    @Test
+    public void testDecodeProjectsColumns() throws Exception {
+        pgOutputDecoder = new PgOutputDecoder(new ChangeFilter(null, null, null, null,
+                Collections.singletonMap("apples", new HashSet<>(Arrays.asList("name")))),
+                (typeOid, typeModifier) -> typeOid == PgTypes.INT4_OID ? "integer" : "character varying(50)");
+        decode(relation(relationId, "public", "apples"));
+        decode(insert(relationId, text("1"), text("Fuji"), text("2")));
+        decode(delete(relationId, 'O', text("1"), text("Fuji"), nul()));
+        InsertChange insertChange = (InsertChange) handler.changes.get(0);
+        assertEquals(Arrays.asList("id", "quantity"), insertChange.getColumnnames());
+        assertEquals(Arrays.asList("integer", "integer"), insertChange.getColumntypes());
+        assertEquals(Arrays.asList(1, 2), insertChange.getColumnvalues());
+        assertEquals(Collections.singletonList(1), insertChange.getKeyvalues());
+        DeleteChange deleteChange = (DeleteChange) handler.changes.get(1);
+        assertEquals(Arrays.asList("id", "quantity"), deleteChange.getOldkeys().getKeynames());
+        assertEquals(Arrays.asList(1, null), deleteChange.getOldkeys().getKeyvalues());
+    }
+
+    @Test
+    public void testDecodeSkipsIrrelevantTables() throws Exception {
+        decode(insert(otherRelationId, text("1"), text("Bosc"), text("2")));
+        assertTrue(handler.changes.isEmpty());
+    }
+
+    @Test
+    public void testDecodeMessage() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte('M');
+        out.writeByte(0);
+        out.writeLong(300);
+        writeString(out, "pg2k4j.watermark");
+        byte[] content = "high:1".getBytes(StandardCharsets.UTF_8);
+        out.writeInt(content.length);
+        out.write(content);
+        decode(bytes.toByteArray());
+        assertEquals(Arrays.asList("pg2k4j.watermark:high:1"), handler.messages);
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecodeUnknownRelationThrows() throws Exception {
+        decode(insert(99, text("1")));
+    }
+
+    @Test
+    public void testDecodedChangesSerializeLikeWal2Json() throws Exception {
+        decode(insert(relationId, text("1"), text("Fuji"), text("2")));
+        Change wal2JsonChange = SlotReaderKinesisWriter.objectMapper.readValue("{\"kind\":\"insert\",\"schema\":\"public\","
+                + "\"table\":\"apples\",\"columnnames\":[\"id\",\"name\",\"quantity\"],"
+                + "\"columntypes\":[\"integer\",\"character varying(50)\",\"integer\"],"
+                + "\"columnvalues\":[1,\"Fuji\",2]}", Change.class);
+        assertEquals(SlotReaderKinesisWriter.objectMapper.writeValueAsString(wal2JsonChange),
+                SlotReaderKinesisWriter.objectMapper.writeValueAsString(handler.changes.get(0)));
+    }
+
+    private void decode(byte[] msg) throws IOException {
+        pgOutputDecoder.decode(ByteBuffer.wrap(msg), handler);
+    }
+
+    private static byte[] relation(int id, String schema, String table) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte('R');
+        out.writeInt(id);
+        writeString(out, schema);
+        writeString(out, table);
+        out.writeByte('d');
+        out.writeShort(3);
+        writeColumn(out, 1, "id", PgTypes.INT4_OID, -1);
+        writeColumn(out, 0, "name", 1043, 54);
+        writeColumn(out, 0, "quantity", PgTypes.INT4_OID, -1);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] begin(int xid) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte('B');
+        out.writeLong(100);
+        out.writeLong(200);
+        out.writeInt(xid);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] commit() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte('C');
+        out.writeByte(0);
+        out.writeLong(100);
+        out.writeLong(110);
+        out.writeLong(200);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] insert(int id, byte[]... values) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte('I');
+        out.writeInt(id);
+        out.writeByte('N');
+        writeTuple(out, values);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] update(int id, Character oldType, byte[]... values) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte('U');
+        out.writeInt(id);
+        if (oldType != null) {
+            out.writeByte(oldType);
+            writeTuple(out, Arrays.copyOfRange(values, 0, values.length / 2));
+            values = Arrays.copyOfRange(values, values.length / 2, values.length);
+        }
+        out.writeByte('N');
+        writeTuple(out, values);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] delete(int id, char oldType, byte[]... values) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte('D');
+        out.writeInt(id);
+        out.writeByte(oldType);
+        writeTuple(out, values);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] text(String value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+        out.writeByte('t');
+        out.writeInt(encoded.length);
+        out.write(encoded);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] nul() {
+        return new byte[]{'n'};
+    }
+
+    private static byte[] unchanged() {
+        return new byte[]{'u'};
+    }
+
+    private static void writeTuple(DataOutputStream out, byte[]... values) throws IOException {
+        out.writeShort(values.length);
+        for (byte[] value : values) {
+            out.write(value);
+        }
+    }
+
+    private static void writeColumn(DataOutputStream out, int flags, String name, int typeOid, int typeModifier)
+            throws IOException {
+        out.writeByte(flags);
+        writeString(out, name);
+        out.writeInt(typeOid);
+        out.writeInt(typeModifier);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.write(value.getBytes(StandardCharsets.UTF_8));
+        out.writeByte(0);
+    }
+}
@@ -0,0 +1,106 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ *******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PgTypesTest {
+
+    @Test
+    public void testFromBinaryMatchesFromTextForIntegers() {
+        assertEquals(PgTypes.fromText(PgTypes.INT2_OID, "-7"),
+                PgTypes.fromBinary(PgTypes.INT2_OID, ByteBuffer.allocate(2).putShort((short) -7).array()));
+        assertEquals(PgTypes.fromText(PgTypes.INT4_OID, "42"),
+                PgTypes.fromBinary(PgTypes.INT4_OID, ByteBuffer.allocate(4).putInt(42).array()));
+        assertEquals(PgTypes.fromText(PgTypes.INT8_OID, "42"),
+                PgTypes.fromBinary(PgTypes.INT8_OID, ByteBuffer.allocate(8).putLong(42).array()));
+        assertEquals(PgTypes.fromText(PgTypes.INT8_OID, "9000000000"),
+                PgTypes.fromBinary(PgTypes.INT8_OID, ByteBuffer.allocate(8).putLong(9000000000L).array()));
+        assertEquals(PgTypes.fromText(PgTypes.OID_OID, "4294967295"),
+                PgTypes.fromBinary(PgTypes.OID_OID, ByteBuffer.allocate(4).putInt(-1).array()));
+    }
+
+    @Test
+    public void testFromBinaryMatchesFromTextForFloats() {
+        assertEquals(PgTypes.fromText(PgTypes.FLOAT4_OID, "0.1"),
+                PgTypes.fromBinary(PgTypes.FLOAT4_OID, ByteBuffer.allocate(4).putFloat(0.1f).array()));
+        assertEquals(PgTypes.fromText(PgTypes.FLOAT4_OID, "3"),
+                PgTypes.fromBinary(PgTypes.FLOAT4_OID, ByteBuffer.allocate(4).putFloat(3f).array()));
+        assertEquals(PgTypes.fromText(PgTypes.FLOAT4_OID, "1e+06"),
+                PgTypes.fromBinary(PgTypes.FLOAT4_OID, ByteBuffer.allocate(4).putFloat(1e6f).array()));
+        assertEquals(PgTypes.fromText(PgTypes.FLOAT8_OID, "1.5"),
+                PgTypes.fromBinary(PgTypes.FLOAT8_OID, ByteBuffer.allocate(8).putDouble(1.5).array()));
+        assertEquals(PgTypes.fromText(PgTypes.FLOAT8_OID, "-12"),
+                PgTypes.fromBinary(PgTypes.FLOAT8_OID, ByteBuffer.allocate(8).putDouble(-12).array()));
+        assertEquals(PgTypes.fromText(PgTypes.FLOAT8_OID, "1e+15"),
+                PgTypes.fromBinary(PgTypes.FLOAT8_OID, ByteBuffer.allocate(8).putDouble(1e15).array()));
+        assertNull(PgTypes.fromBinary(PgTypes.FLOAT8_OID, ByteBuffer.allocate(8).putDouble(Double.NaN).array()));
+    }
+
+    @Test
+    public void testFromBinaryMatchesFromTextForNumerics() {
+        assertEquals(PgTypes.fromText(PgTypes.NUMERIC_OID, "12345.60"),
+                PgTypes.fromBinary(PgTypes.NUMERIC_OID, numeric(3, 1, 0, 2, 1, 2345, 6000)));
+        assertEquals(PgTypes.fromText(PgTypes.NUMERIC_OID, "-20000"),
+                PgTypes.fromBinary(PgTypes.NUMERIC_OID, numeric(1, 1, 0x4000, 0, 2)));
+        assertEquals(0, PgTypes.fromBinary(PgTypes.NUMERIC_OID, numeric(0, 0, 0, 0)));
+        assertEquals(new BigInteger("100000000000000000000"),
+                PgTypes.fromBinary(PgTypes.NUMERIC_OID, numeric(1, 5, 0, 0, 1)));
+        assertNull(PgTypes.fromBinary(PgTypes.NUMERIC_OID, numeric(0, 0, 0xC000, 0)));
+    }
+
+    @Test
+    public void testFromBinaryForBooleansAndText() {
+        assertEquals(true, PgTypes.fromBinary(PgTypes.BOOL_OID, new byte[]{1}));
+        assertEquals(false, PgTypes.fromBinary(PgTypes.BOOL_OID, new byte[]{0}));
+        assertEquals("h\u00e9llo ", PgTypes.fromBinary(PgTypes.BPCHAR_OID, "h\u00e9llo ".getBytes(StandardCharsets.UTF_8)));
+        assertNull(PgTypes.fromBinary(PgTypes.TEXT_OID, null));
+    }
+
+    @Test
+    public void testHasBinaryFormat() {
+        assertTrue(PgTypes.hasBinaryFormat(PgTypes.NUMERIC_OID));
+        assertTrue(PgTypes.hasBinaryFormat(PgTypes.VARCHAR_OID));
+        assertFalse(PgTypes.hasBinaryFormat(1184));
+    }
+
+    private static byte[] numeric(int digits, int weight, int sign, int displayScale, int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 2 * values.length)
+                .putShort((short) digits).putShort((short) weight).putShort((short) sign).putShort((short) displayScale);
+        for (int value : values) {
+            buffer.putShort((short) value);
+        }
+        return buffer.array();
+    }
+}
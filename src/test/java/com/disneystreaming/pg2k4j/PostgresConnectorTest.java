@@ -28,6 +28,7 @@ package com.disneystreaming.pg2k4j;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.internal.util.reflection.Whitebox;
@@ -40,16 +41,25 @@ import org.postgresql.replication.LogSequenceNumber;
 import org.postgresql.replication.PGReplicationConnection;
 import org.postgresql.replication.PGReplicationStream;
 import org.postgresql.replication.fluent.ChainedCreateReplicationSlotBuilder;
+import org.postgresql.replication.fluent.ChainedStreamBuilder;
+import org.postgresql.replication.fluent.logical.ChainedLogicalStreamBuilder;
 import org.postgresql.replication.fluent.logical.ChainedLogicalCreateSlotBuilder;
 import org.postgresql.util.PSQLException;
 import org.postgresql.util.PSQLState;
 import org.powermock.api.mockito.PowerMockito;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.Properties;
 
 import static org.junit.Assert.*;
@@ -101,9 +111,13 @@ public class PostgresConnectorTest {
     @Rule
     public MockitoRule mockitoRule = MockitoJUnit.rule();
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private static final String outputPlugin = "wal2json";
     private static final String lsn = "10/5";
     private static final String slotName = "slotName";
+    private static final Path statePath = Paths.get("state", slotName + PostgresConnector.SNAPSHOT_STATE_SUFFIX);
     private static final int tries = 2;
     private static final String postgresUrl = "postgresUrl";
     private static final Properties queryConnectionProperties = new Properties();
@@ -132,6 +146,7 @@ public class PostgresConnectorTest {
         Mockito.doReturn(tries).when(replicationConfiguration).getExisitingProcessRetryLimit();
         Mockito.doReturn(sleepSeconds).when(replicationConfiguration).getExistingProcessRetrySleepSeconds();
         Mockito.doCallRealMethod().when(postgresConnector).getPgReplicationStream(replicationConfiguration, pgReplicationConnection);
+        Mockito.doReturn(statePath).when(postgresConnector).getSnapshotStatePath(replicationConfiguration);
     }
 
     @Test
@@ -187,6 +202,20 @@ public class PostgresConnectorTest {
         Mockito.verify(postgresConnector, Mockito.times(1)).getPgReplicationStreamHelper(replicationConfiguration, pgReplicationConnection);
     }
 
+    @Test
+    public void testGetPgReplicationStreamHelperStartsFromStartLsn() throws Exception {
+        LogSequenceNumber startLsn = LogSequenceNumber.valueOf(lsn);
+        ChainedLogicalStreamBuilder logicalStreamBuilder = testGetPgReplicationStreamHelper(startLsn);
+        Mockito.verify(logicalStreamBuilder, Mockito.times(1)).withStartPosition(startLsn);
+        Mockito.verify(pgReplicationStream, Mockito.times(1)).setFlushedLSN(startLsn);
+    }
+
+    @Test
+    public void testGetPgReplicationStreamHelperWithoutStartLsnStartsFromSlot() throws Exception {
+        ChainedLogicalStreamBuilder logicalStreamBuilder = testGetPgReplicationStreamHelper(LogSequenceNumber.INVALID_LSN);
+        Mockito.verify(logicalStreamBuilder, Mockito.times(0)).withStartPosition(Mockito.any(LogSequenceNumber.class));
+    }
+
     @Test
     public void testConstructorSuccess() throws Exception {
         testConstructor();
@@ -275,6 +304,163 @@ public class PostgresConnectorTest {
         Mockito.verify(queryConnection, Mockito.times(1)).close();
     }
 
+    @Test
+    public void testCreateReplicationSlotExportingSnapshot() throws Exception {
+        Statement streamingStatement = Mockito.mock(Statement.class);
+        Whitebox.setInternalState(postgresConnector, "streamingConnection", streamingConnection);
+        Mockito.doReturn(streamingStatement).when(streamingConnection).createStatement();
+        Mockito.doReturn(resultsPresentResultSet).when(streamingStatement)
+                .executeQuery("CREATE_REPLICATION_SLOT slotName LOGICAL wal2json EXPORT_SNAPSHOT");
+        Mockito.doReturn("00000003-00000002-1").when(resultsPresentResultSet).getString("snapshot_name");
+        Mockito.doReturn(lsn).when(resultsPresentResultSet).getString("consistent_point");
+        Mockito.doCallRealMethod().when(postgresConnector).createReplicationSlotExportingSnapshot(replicationConfiguration);
+        PostgresConnector.ExportedSnapshot exportedSnapshot =
+                postgresConnector.createReplicationSlotExportingSnapshot(replicationConfiguration);
+        assertEquals("00000003-00000002-1", exportedSnapshot.getName());
+        assertEquals(LogSequenceNumber.valueOf(lsn), exportedSnapshot.getConsistentPoint());
+        Mockito.verify(streamingStatement, Mockito.times(1)).close();
+    }
+
+    @Test
+    public void testReadSnapshot() throws Exception {
+        PostgresConnector.SnapshotReader snapshotReader = Mockito.mock(PostgresConnector.SnapshotReader.class);
+        PostgresConnector.ExportedSnapshot exportedSnapshot =
+                new PostgresConnector.ExportedSnapshot("snapshot", LogSequenceNumber.valueOf(lsn));
+        Mockito.doCallRealMethod().when(postgresConnector).readSnapshot(replicationConfiguration,
+                pgReplicationConnection, snapshotReader, exportedSnapshot);
+        postgresConnector.readSnapshot(replicationConfiguration, pgReplicationConnection, snapshotReader,
+                exportedSnapshot);
+        Mockito.verify(snapshotReader, Mockito.times(1)).read("snapshot", LogSequenceNumber.valueOf(lsn));
+        Mockito.verify(pgReplicationConnection, Mockito.never()).dropReplicationSlot(slotName);
+        Mockito.verify(postgresConnector, Mockito.never()).close();
+        Mockito.verify(postgresConnector, Mockito.times(1)).writeSnapshotState(statePath,
+                PostgresConnector.SnapshotState.READ, LogSequenceNumber.valueOf(lsn));
+    }
+
+    @Test
+    public void testReadSnapshotFailureDropsSlot() throws Exception {
+        PostgresConnector.SnapshotReader snapshotReader = Mockito.mock(PostgresConnector.SnapshotReader.class);
+        PostgresConnector.ExportedSnapshot exportedSnapshot =
+                new PostgresConnector.ExportedSnapshot("snapshot", LogSequenceNumber.valueOf(lsn));
+        IOException ioException = new IOException("snapshot failed");
+        Mockito.doThrow(ioException).when(snapshotReader).read("snapshot", LogSequenceNumber.valueOf(lsn));
+        Mockito.doThrow(sqlException).when(pgReplicationConnection).dropReplicationSlot(slotName);
+        Mockito.doCallRealMethod().when(postgresConnector).readSnapshot(replicationConfiguration,
+                pgReplicationConnection, snapshotReader, exportedSnapshot);
+        try {
+            postgresConnector.readSnapshot(replicationConfiguration, pgReplicationConnection, snapshotReader,
+                    exportedSnapshot);
+            fail("Expected the snapshot failure to be rethrown");
+        } catch (IOException e) {
+            assertSame(ioException, e);
+            assertSame(sqlException, e.getSuppressed()[0]);
+        }
+        Mockito.verify(pgReplicationConnection, Mockito.times(1)).dropReplicationSlot(slotName);
+        Mockito.verify(postgresConnector, Mockito.times(1)).close();
+        Mockito.verify(postgresConnector, Mockito.never()).writeSnapshotState(Mockito.any(Path.class),
+                Mockito.any(PostgresConnector.SnapshotState.class), Mockito.any(LogSequenceNumber.class));
+    }
+
+    @Test
+    public void testCreateReplicationSlotForSnapshotCreatesMissingSlot() throws Exception {
+        PostgresConnector.ExportedSnapshot exportedSnapshot = stubCreateReplicationSlotForSnapshot(false, null);
+        assertSame(exportedSnapshot,
+                postgresConnector.createReplicationSlotForSnapshot(replicationConfiguration, pgReplicationConnection));
+        Mockito.verify(postgresConnector, Mockito.times(1)).writeSnapshotState(statePath,
+                PostgresConnector.SnapshotState.READING, null);
+        Mockito.verify(pgReplicationConnection, Mockito.never()).dropReplicationSlot(slotName);
+    }
+
+    @Test
+    public void testCreateReplicationSlotForSnapshotKeepsSlotWhoseSnapshotWasRead() throws Exception {
+        stubCreateReplicationSlotForSnapshot(true, PostgresConnector.SnapshotState.READ);
+        assertNull(postgresConnector.createReplicationSlotForSnapshot(replicationConfiguration, pgReplicationConnection));
+        Mockito.verify(pgReplicationConnection, Mockito.never()).dropReplicationSlot(slotName);
+        Mockito.verify(postgresConnector, Mockito.never()).createReplicationSlotExportingSnapshot(replicationConfiguration);
+    }
+
+    @Test
+    public void testCreateReplicationSlotForSnapshotRecreatesSlotWhoseSnapshotWasNotRead() throws Exception {
+        PostgresConnector.ExportedSnapshot exportedSnapshot =
+                stubCreateReplicationSlotForSnapshot(true, PostgresConnector.SnapshotState.READING);
+        assertSame(exportedSnapshot,
+                postgresConnector.createReplicationSlotForSnapshot(replicationConfiguration, pgReplicationConnection));
+        Mockito.verify(pgReplicationConnection, Mockito.times(1)).dropReplicationSlot(slotName);
+        Mockito.verify(postgresConnector, Mockito.times(1)).writeSnapshotState(statePath,
+                PostgresConnector.SnapshotState.READING, null);
+    }
+
+    @Test
+    public void testCreateReplicationSlotForSnapshotKeepsSlotWithoutState() throws Exception {
+        stubCreateReplicationSlotForSnapshot(true, null);
+        assertNull(postgresConnector.createReplicationSlotForSnapshot(replicationConfiguration, pgReplicationConnection));
+        Mockito.verify(pgReplicationConnection, Mockito.never()).dropReplicationSlot(slotName);
+        Mockito.verify(postgresConnector, Mockito.never()).writeSnapshotState(Mockito.any(Path.class),
+                Mockito.any(PostgresConnector.SnapshotState.class), Mockito.any(LogSequenceNumber.class));
+        Mockito.verify(postgresConnector, Mockito.never()).createReplicationSlotExportingSnapshot(replicationConfiguration);
+    }
+
+    @Test
+    public void testSnapshotStateIsWrittenAndReadBack() throws Exception {
+        Path stateFile = temporaryFolder.getRoot().toPath().resolve("state").resolve(slotName + PostgresConnector.SNAPSHOT_STATE_SUFFIX);
+        Mockito.doCallRealMethod().when(postgresConnector).readSnapshotState(stateFile);
+        Mockito.doCallRealMethod().when(postgresConnector).writeSnapshotState(Mockito.eq(stateFile),
+                Mockito.any(PostgresConnector.SnapshotState.class), Mockito.any(LogSequenceNumber.class));
+        assertNull(postgresConnector.readSnapshotState(stateFile));
+        postgresConnector.writeSnapshotState(stateFile, PostgresConnector.SnapshotState.READING, null);
+        assertEquals(PostgresConnector.SnapshotState.READING, postgresConnector.readSnapshotState(stateFile));
+        postgresConnector.writeSnapshotState(stateFile, PostgresConnector.SnapshotState.READ, LogSequenceNumber.valueOf(lsn));
+        assertEquals(PostgresConnector.SnapshotState.READ, postgresConnector.readSnapshotState(stateFile));
+        assertEquals("READ " + LogSequenceNumber.valueOf(lsn).asString() + "\n",
+                new String(Files.readAllBytes(stateFile), StandardCharsets.UTF_8));
+        assertEquals(1, stateFile.getParent().toFile().list().length);
+    }
+
+    @Test
+    public void testSnapshotStatePathIsNamedAfterTheSlot() {
+        Mockito.doReturn("/var/lib/pg2k4j").when(replicationConfiguration).getSnapshotStateDirectory();
+        Mockito.doCallRealMethod().when(postgresConnector).getSnapshotStatePath(replicationConfiguration);
+        assertEquals(Paths.get("/var/lib/pg2k4j", slotName + ".snapshot"),
+                postgresConnector.getSnapshotStatePath(replicationConfiguration));
+    }
+
+    @Test
+    public void testGetPublishedActions() {
+        assertEquals("insert, delete, truncate", PostgresConnector.getPublishedActions(
+                new LinkedHashSet<>(Arrays.asList("insert", " Delete", "truncate"))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetPublishedActionsRejectsUnknownActions() {
+        PostgresConnector.getPublishedActions(new LinkedHashSet<>(Arrays.asList("insert", "update') --")));
+    }
+
+    private PostgresConnector.ExportedSnapshot stubCreateReplicationSlotForSnapshot(boolean slotExists,
+                                                                                   PostgresConnector.SnapshotState state)
+            throws Exception {
+        PostgresConnector.ExportedSnapshot exportedSnapshot =
+                new PostgresConnector.ExportedSnapshot("snapshot", LogSequenceNumber.valueOf(lsn));
+        Mockito.doReturn(slotExists).when(postgresConnector).slotExists(slotName);
+        Mockito.doReturn(state).when(postgresConnector).readSnapshotState(statePath);
+        Mockito.doReturn(exportedSnapshot).when(postgresConnector).createReplicationSlotExportingSnapshot(replicationConfiguration);
+        Mockito.doCallRealMethod().when(postgresConnector).createReplicationSlotForSnapshot(replicationConfiguration,
+                pgReplicationConnection);
+        return exportedSnapshot;
+    }
+
+    private ChainedLogicalStreamBuilder testGetPgReplicationStreamHelper(LogSequenceNumber startLsn) throws Exception {
+        ChainedStreamBuilder streamBuilder = Mockito.mock(ChainedStreamBuilder.class);
+        ChainedLogicalStreamBuilder logicalStreamBuilder = Mockito.mock(ChainedLogicalStreamBuilder.class,
+                (Answer<Object>) invocation -> invocation.getMethod().getReturnType().isInstance(invocation.getMock()) ? invocation.getMock() : null);
+        Mockito.doReturn(streamBuilder).when(pgReplicationConnection).replicationStream();
+        Mockito.doReturn(logicalStreamBuilder).when(streamBuilder).logical();
+        Mockito.doReturn(pgReplicationStream).when(logicalStreamBuilder).start();
+        Whitebox.setInternalState(postgresConnector, "startLsn", startLsn);
+        Mockito.doCallRealMethod().when(postgresConnector).getPgReplicationStreamHelper(replicationConfiguration, pgReplicationConnection);
+        assertEquals(pgReplicationStream, postgresConnector.getPgReplicationStreamHelper(replicationConfiguration, pgReplicationConnection));
+        return logicalStreamBuilder;
+    }
+
     private void testConstructor() throws Exception {
         PostgresConnector postgresConnector = new MockPostgresConnector(postgresConfiguration, replicationConfiguration);
         assertEquals(Whitebox.getInternalState(postgresConnector, "queryConnection"), queryConnection);
@@ -290,7 +476,7 @@ public class PostgresConnectorTest {
 
     class MockPostgresConnector extends PostgresConnector {
 
-        MockPostgresConnector(PostgresConfiguration postgresConfiguration, ReplicationConfiguration replicationConfiguration) throws SQLException {
+        MockPostgresConnector(PostgresConfiguration postgresConfiguration, ReplicationConfiguration replicationConfiguration) throws SQLException, IOException {
             super(postgresConfiguration, replicationConfiguration);
         }
 
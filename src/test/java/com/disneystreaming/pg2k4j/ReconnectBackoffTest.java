@@ -0,0 +1,67 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ *******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReconnectBackoffTest {
+
+    @Test
+    public void testDelaysStayWithinADoublingCeilingUpToTheMaximum() {
+        ReconnectBackoff reconnectBackoff = new ReconnectBackoff(10, 100);
+        long[] ceilings = {10, 20, 40, 80, 100, 100};
+        for (long ceiling : ceilings) {
+            assertEquals(ceiling, reconnectBackoff.getCeilingMillis());
+            long delay = reconnectBackoff.nextDelayMillis();
+            assertTrue(delay >= 10 && delay <= ceiling);
+        }
+    }
+
+    @Test
+    public void testResetStartsFromTheMinimumAgain() {
+        ReconnectBackoff reconnectBackoff = new ReconnectBackoff(10, 100);
+        for (int i = 0; i < 5; i++) {
+            reconnectBackoff.nextDelayMillis();
+        }
+        reconnectBackoff.reset();
+        assertEquals(10, reconnectBackoff.getCeilingMillis());
+        assertEquals(10, reconnectBackoff.nextDelayMillis());
+    }
+
+    @Test
+    public void testZeroMinimumStillBacksOff() {
+        ReconnectBackoff reconnectBackoff = new ReconnectBackoff(0, 4);
+        reconnectBackoff.nextDelayMillis();
+        assertEquals(1, reconnectBackoff.getCeilingMillis());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsMaximumBelowMinimum() {
+        new ReconnectBackoff(10, 5);
+    }
+}
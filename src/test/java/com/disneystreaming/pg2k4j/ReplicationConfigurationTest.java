@@ -0,0 +1,227 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ *******************************************************************************/
+
+package com.disneystreaming.pg2k4j;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReplicationConfigurationTest {
+
+    @Test
+    public void testDefaultSlotOptionsOnlyIncludeXids() {
+        Properties slotOptions = new TestReplicationConfiguration().getSlotOptions();
+        assertEquals(1, slotOptions.size());
+        assertEquals("true", slotOptions.getProperty("include-xids"));
+    }
+
+    @Test
+    public void testSlotOptionsPushDownFilters() {
+        TestReplicationConfiguration replicationConfiguration = new TestReplicationConfiguration();
+        replicationConfiguration.relevantTables = new LinkedHashSet<>(Arrays.asList("orders", "line.items"));
+        replicationConfiguration.excludedTables = new LinkedHashSet<>(Arrays.asList("audit log"));
+        replicationConfiguration.actions = new LinkedHashSet<>(Arrays.asList("insert", "update"));
+        Properties slotOptions = replicationConfiguration.getSlotOptions();
+        assertEquals("*.line\\.items,*.orders", slotOptions.getProperty("add-tables"));
+        assertEquals("*.audit\\ log", slotOptions.getProperty("filter-tables"));
+        assertEquals("insert,update", slotOptions.getProperty("actions"));
+    }
+
+    @Test
+    public void testFiltersAreNotPushedDownByDefault() {
+        ReplicationConfiguration replicationConfiguration = new ReplicationConfiguration() {
+            @Override
+            public String getSlotName() {
+                return "slotName";
+            }
+
+            @Override
+            public Set<String> getRelevantTables() {
+                return new LinkedHashSet<>(Arrays.asList("orders"));
+            }
+        };
+        assertFalse(replicationConfiguration.getPushDownFilters());
+        assertFalse(replicationConfiguration.getSlotOptions().containsKey("add-tables"));
+    }
+
+    @Test
+    public void testSnapshotStateDirectoryDefaultsToTheSpillDirectory() {
+        ReplicationConfiguration replicationConfiguration = new ReplicationConfiguration() {
+            @Override
+            public String getSlotName() {
+                return "slotName";
+            }
+        };
+        assertEquals(".", replicationConfiguration.getSnapshotStateDirectory());
+        ReplicationConfiguration spillingReplicationConfiguration = new ReplicationConfiguration() {
+            @Override
+            public String getSlotName() {
+                return "slotName";
+            }
+
+            @Override
+            public String getSpillDirectory() {
+                return "/var/spill";
+            }
+        };
+        assertEquals("/var/spill", spillingReplicationConfiguration.getSnapshotStateDirectory());
+    }
+
+    @Test
+    public void testPartitionKeyStrategyDefaultsToRandom() {
+        ReplicationConfiguration replicationConfiguration = new ReplicationConfiguration() {
+            @Override
+            public String getSlotName() {
+                return "slotName";
+            }
+        };
+        assertEquals(PartitionKeyStrategy.RANDOM, replicationConfiguration.getPartitionKeyStrategy());
+    }
+
+    @Test
+    public void testSlotOptionsWithoutPushDown() {
+        TestReplicationConfiguration replicationConfiguration = new TestReplicationConfiguration();
+        replicationConfiguration.relevantTables = new LinkedHashSet<>(Arrays.asList("orders"));
+        replicationConfiguration.pushDownFilters = false;
+        assertFalse(replicationConfiguration.getSlotOptions().containsKey("add-tables"));
+    }
+
+    @Test
+    public void testPgOutputSlotOptions() {
+        TestReplicationConfiguration replicationConfiguration = new TestReplicationConfiguration();
+        replicationConfiguration.outputPlugin = ReplicationConfiguration.PGOUTPUT_OUTPUT_PLUGIN;
+        replicationConfiguration.relevantTables = new LinkedHashSet<>(Arrays.asList("orders"));
+        Properties slotOptions = replicationConfiguration.getSlotOptions();
+        assertEquals(2, slotOptions.size());
+        assertEquals("1", slotOptions.getProperty("proto_version"));
+        assertEquals("\"pg2k4j\"", slotOptions.getProperty("publication_names"));
+    }
+
+    @Test
+    public void testPgOutputSlotOptionsIncludeMessagesForIncrementalSnapshots() {
+        TestReplicationConfiguration replicationConfiguration = new TestReplicationConfiguration();
+        replicationConfiguration.outputPlugin = ReplicationConfiguration.PGOUTPUT_OUTPUT_PLUGIN;
+        replicationConfiguration.incrementalSnapshots = true;
+        assertEquals("true", replicationConfiguration.getSlotOptions().getProperty("messages"));
+        replicationConfiguration.outputPlugin = ReplicationConfiguration.DEFAULT_OUTPUT_PLUGIN;
+        assertFalse(replicationConfiguration.getSlotOptions().containsKey("messages"));
+    }
+
+    @Test
+    public void testSlotOptionsIncludePrimaryKeyForRecordPerChange() {
+        TestReplicationConfiguration replicationConfiguration = new TestReplicationConfiguration();
+        replicationConfiguration.recordPerChange = true;
+        assertEquals("true", replicationConfiguration.getSlotOptions().getProperty("include-pk"));
+        replicationConfiguration.outputPlugin = ReplicationConfiguration.PGOUTPUT_OUTPUT_PLUGIN;
+        assertFalse(replicationConfiguration.getSlotOptions().containsKey("include-pk"));
+    }
+
+    @Test
+    public void testSlotOptionsForIncrementalWal2Json() {
+        TestReplicationConfiguration replicationConfiguration = new TestReplicationConfiguration();
+        assertFalse(replicationConfiguration.isWal2JsonIncremental());
+        replicationConfiguration.wal2JsonWriteInChunks = true;
+        assertEquals("true", replicationConfiguration.getSlotOptions().getProperty("write-in-chunks"));
+        assertTrue(replicationConfiguration.isWal2JsonIncremental());
+        replicationConfiguration.wal2JsonFormatVersion = ReplicationConfiguration.WAL2JSON_FORMAT_VERSION_2;
+        Properties slotOptions = replicationConfiguration.getSlotOptions();
+        assertEquals("2", slotOptions.getProperty("format-version"));
+        assertFalse(slotOptions.containsKey("write-in-chunks"));
+        assertEquals("true", slotOptions.getProperty("include-xids"));
+        replicationConfiguration.outputPlugin = ReplicationConfiguration.PGOUTPUT_OUTPUT_PLUGIN;
+        assertFalse(replicationConfiguration.getSlotOptions().containsKey("format-version"));
+        assertFalse(replicationConfiguration.isWal2JsonIncremental());
+    }
+
+    private static class TestReplicationConfiguration implements ReplicationConfiguration {
+        Set<String> relevantTables;
+        Set<String> excludedTables;
+        Set<String> actions;
+        boolean pushDownFilters = true;
+        boolean recordPerChange;
+        String outputPlugin = DEFAULT_OUTPUT_PLUGIN;
+        int wal2JsonFormatVersion = DEFAULT_WAL2JSON_FORMAT_VERSION;
+        boolean wal2JsonWriteInChunks;
+        boolean incrementalSnapshots;
+
+        @Override
+        public String getSlotName() {
+            return "slotName";
+        }
+
+        @Override
+        public String getOutputPlugin() {
+            return outputPlugin;
+        }
+
+        @Override
+        public Set<String> getRelevantTables() {
+            return relevantTables;
+        }
+
+        @Override
+        public Set<String> getExcludedTables() {
+            return excludedTables;
+        }
+
+        @Override
+        public Set<String> getActions() {
+            return actions;
+        }
+
+        @Override
+        public boolean getPushDownFilters() {
+            return pushDownFilters;
+        }
+
+        @Override
+        public boolean getRecordPerChange() {
+            return recordPerChange;
+        }
+
+        @Override
+        public int getWal2JsonFormatVersion() {
+            return wal2JsonFormatVersion;
+        }
+
+        @Override
+        public boolean getWal2JsonWriteInChunks() {
+            return wal2JsonWriteInChunks;
+        }
+
+        @Override
+        public boolean getIncrementalSnapshots() {
+            return incrementalSnapshots;
+        }
+    }
+}
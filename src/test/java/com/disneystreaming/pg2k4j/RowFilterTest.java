@@ -0,0 +1,165 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ *******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import com.disneystreaming.pg2k4j.models.Change;
+import com.disneystreaming.pg2k4j.models.DeleteChange;
+import com.disneystreaming.pg2k4j.models.InsertChange;
+import com.disneystreaming.pg2k4j.models.OldKeys;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RowFilterTest {
+
+    private static final List<String> columnNames = Arrays.asList("id", "tenant_id", "status", "amount", "deleted_at",
+            "active");
+
+    @Test
+    public void testComparisons() {
+        assertTrue(test("id = 1", row(1, 7, "open", 2.5, null, true)));
+        assertFalse(test("id != 1", row(1, 7, "open", 2.5, null, true)));
+        assertTrue(test("id <> 2", row(1, 7, "open", 2.5, null, true)));
+        assertTrue(test("amount < 3", row(1, 7, "open", 2.5, null, true)));
+        assertTrue(test("amount >= 2.50", row(1, 7, "open", 2.5, null, true)));
+        assertFalse(test("amount > 2.5", row(1, 7, "open", 2.5, null, true)));
+        assertTrue(test("id <= 9223372036854775808", row(1, 7, "open", 2.5, null, true)));
+        assertTrue(test("id > 1", row(new BigInteger("9223372036854775808"), 7, "open", 2.5, null, true)));
+        assertTrue(test("status = 'open'", row(1, 7, "open", 2.5, null, true)));
+        assertTrue(test("status < 'p'", row(1, 7, "open", 2.5, null, true)));
+        assertTrue(test("active = true", row(1, 7, "open", 2.5, null, true)));
+        assertFalse(test("active = 1", row(1, 7, "open", 2.5, null, true)));
+    }
+
+    @Test
+    public void testComparisonsWithNullDropTheRow() {
+        assertFalse(test("deleted_at = 'x'", row(1, 7, "open", 2.5, null, true)));
+        assertFalse(test("deleted_at != 'x'", row(1, 7, "open", 2.5, null, true)));
+        assertFalse(test("deleted_at < 'x'", row(1, 7, "open", 2.5, null, true)));
+        assertFalse(test("deleted_at in ('x')", row(1, 7, "open", 2.5, null, true)));
+        assertFalse(test("deleted_at not in ('x')", row(1, 7, "open", 2.5, null, true)));
+        assertTrue(test("deleted_at is null", row(1, 7, "open", 2.5, null, true)));
+        assertFalse(test("deleted_at is not null", row(1, 7, "open", 2.5, null, true)));
+    }
+
+    @Test
+    public void testComparisonsWithNullStayUnknownThroughNotAndOr() {
+        assertFalse(test("not deleted_at = 'x'", row(1, 7, "open", 2.5, null, true)));
+        assertFalse(test("not (deleted_at < 'x')", row(1, 7, "open", 2.5, null, true)));
+        assertFalse(test("not deleted_at in ('x')", row(1, 7, "open", 2.5, null, true)));
+        assertFalse(test("not active = 1", row(1, 7, "open", 2.5, null, true)));
+        assertFalse(test("not (deleted_at = 'x' and id = 1)", row(1, 7, "open", 2.5, null, true)));
+        assertTrue(test("not (deleted_at = 'x' and id = 2)", row(1, 7, "open", 2.5, null, true)));
+        assertFalse(test("deleted_at = 'x' or id = 2", row(1, 7, "open", 2.5, null, true)));
+        assertTrue(test("deleted_at = 'x' or id = 1", row(1, 7, "open", 2.5, null, true)));
+        assertFalse(test("not (deleted_at = 'x' or id = 2)", row(1, 7, "open", 2.5, null, true)));
+        assertTrue(test("not (deleted_at = 'x' or id = 2) or deleted_at is null", row(1, 7, "open", 2.5, null, true)));
+        assertTrue(test("not deleted_at = 'x'", row(1, 7, "open", 2.5, "y", true)));
+    }
+
+    @Test
+    public void testInLists() {
+        assertTrue(test("tenant_id in (1, 7, 9)", row(1, 7, "open", 2.5, null, true)));
+        assertTrue(test("tenant_id in (7.0)", row(1, 7L, "open", 2.5, null, true)));
+        assertFalse(test("tenant_id in (1, 2)", row(1, 7, "open", 2.5, null, true)));
+        assertTrue(test("tenant_id not in (1, 2)", row(1, 7, "open", 2.5, null, true)));
+        assertTrue(test("amount in (2.50)", row(1, 7, "open", 2.5, null, true)));
+        assertTrue(test("status in ('open', 'new')", row(1, 7, "open", 2.5, null, true)));
+        assertTrue(test("status in ('7')", row(1, 7, "7", 2.5, null, true)));
+        assertFalse(test("tenant_id in ('7')", row(1, 7, "open", 2.5, null, true)));
+    }
+
+    @Test
+    public void testBooleanOperatorsAndPrecedence() {
+        assertTrue(test("tenant_id = 7 and deleted_at is null", row(1, 7, "open", 2.5, null, true)));
+        assertFalse(test("tenant_id = 7 and deleted_at is not null", row(1, 7, "open", 2.5, null, true)));
+        assertTrue(test("id = 2 or id = 3 and tenant_id = 8 or status = 'open'", row(1, 7, "open", 2.5, null, true)));
+        assertFalse(test("(id = 2 or id = 3) and status = 'open'", row(1, 7, "open", 2.5, null, true)));
+        assertTrue(test("not status = 'archived'", row(1, 7, "open", 2.5, null, true)));
+        assertFalse(test("NOT (status = 'archived' OR amount < 5)", row(1, 7, "open", 2.5, null, true)));
+    }
+
+    @Test
+    public void testQuotingAndCase() {
+        InsertChange change = new InsertChange("insert", Arrays.asList("Name", "note"), Arrays.asList("text", "text"),
+                "users", Arrays.asList("O'Brien", "x"), "public", null);
+        assertTrue(new RowFilter(Collections.singletonMap("users", "\"Name\" = 'O''Brien' and NOTE = 'x'"))
+                .test(change));
+        assertTrue(new RowFilter(Collections.singletonMap("users", "Name = 'O''Brien'")).test(change));
+    }
+
+    @Test
+    public void testRowsMissingAFilteredColumnAreKept() {
+        RowFilter rowFilter = new RowFilter(Collections.singletonMap("users", "tenant_id = 1"));
+        DeleteChange delete = new DeleteChange("delete", "users", "public",
+                new OldKeys(Collections.singletonList("integer"), Collections.singletonList(5),
+                        Collections.singletonList("id")));
+        assertTrue(rowFilter.test(delete));
+        assertFalse(rowFilter.test(row(1, 7, "open", 2.5, null, true)));
+        assertTrue(rowFilter.test(delete));
+    }
+
+    @Test
+    public void testOtherTablesAreKept() {
+        RowFilter rowFilter = new RowFilter(Collections.singletonMap("orders", "id = 2"));
+        assertTrue(rowFilter.test(row(1, 7, "open", 2.5, null, true)));
+    }
+
+    @Test
+    public void testInvalidExpressionsAreRejected() {
+        for (String invalid : Arrays.asList("", "id", "id = ", "id = null", "id == 1", "id not = 1", "(id = 1",
+                "id = 1 id = 2", "id in ()", "status = 'open", "id is 1")) {
+            try {
+                new RowFilter(Collections.singletonMap("users", invalid));
+                throw new AssertionError("Accepted " + invalid);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid row filter"));
+            }
+        }
+    }
+
+    @Test
+    public void testToKey() {
+        assertEquals(7L, RowFilter.toKey(7));
+        assertEquals(7L, RowFilter.toKey(7.0));
+        assertEquals("7", RowFilter.toKey("7"));
+    }
+
+    private static boolean test(String filter, Change change) {
+        return new RowFilter(Collections.singletonMap("users", filter)).test(change);
+    }
+
+    private static Change row(Object... values) {
+        return new InsertChange("insert", columnNames, Collections.nCopies(columnNames.size(), "text"), "users",
+                Arrays.asList(values), "public", null);
+    }
+}
@@ -0,0 +1,174 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ *******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import com.disneystreaming.pg2k4j.models.Change;
+import com.disneystreaming.pg2k4j.models.DeleteChange;
+import com.disneystreaming.pg2k4j.models.InsertChange;
+import com.disneystreaming.pg2k4j.models.OldKeys;
+import com.disneystreaming.pg2k4j.models.SchemaDictionary;
+import com.disneystreaming.pg2k4j.models.TableSchema;
+import com.disneystreaming.pg2k4j.models.UpdateChange;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SchemaDeltaWriterTest {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final List<SchemaDeltaWriter.SchemaMessage> schemaMessages = new ArrayList<>();
+    private final List<ByteBuffer> payloads = new ArrayList<>();
+    private SchemaDeltaWriter.SchemaCatalog schemaCatalog;
+    private SchemaDeltaWriter writer;
+
+    @Before
+    public void setUp() {
+        schemaCatalog = new SchemaDeltaWriter.SchemaCatalog(objectMapper);
+        writer = new SchemaDeltaWriter(objectMapper, schemaCatalog, (change, changeSchemaMessages, payload) -> {
+            schemaMessages.addAll(changeSchemaMessages);
+            payloads.add(payload);
+        });
+    }
+
+    private static InsertChange insert(final int id, final String name) {
+        return new InsertChange("insert", Arrays.asList("id", "name"), Arrays.asList("integer", "text"), "users",
+                Arrays.asList(id, name), "public", Collections.singletonList("id"));
+    }
+
+    private static OldKeys oldKeys(final int id) {
+        return new OldKeys(Collections.singletonList("integer"), Collections.singletonList(id), Collections.singletonList("id"));
+    }
+
+    private void write(final Change change) throws Exception {
+        writer.onBegin(7);
+        writer.onChange(change);
+        writer.onCommit();
+    }
+
+    @Test
+    public void testChangesRoundTripThroughTheDecoder() throws Exception {
+        write(insert(1, "a"));
+        write(new UpdateChange("update", Arrays.asList("id", "name"), Arrays.asList("integer", "text"), "users",
+                Arrays.asList(1, "b"), "public", oldKeys(1)));
+        write(new DeleteChange("delete", "users", "public", oldKeys(1)));
+        SchemaDeltaDecoder decoder = new SchemaDeltaDecoder(objectMapper);
+        List<Change> changes = new ArrayList<>();
+        for (SchemaDeltaWriter.SchemaMessage schemaMessage : schemaMessages) {
+            assertTrue(decoder.decode(schemaMessage.getData()).isEmpty());
+        }
+        for (ByteBuffer payload : payloads) {
+            changes.addAll(decoder.decode(payload));
+        }
+        assertEquals(3, changes.size());
+        InsertChange insertChange = (InsertChange) changes.get(0);
+        assertEquals("public", insertChange.getSchema());
+        assertEquals("users", insertChange.getTable());
+        assertEquals(Arrays.asList("id", "name"), insertChange.getColumnnames());
+        assertEquals(Arrays.asList("integer", "text"), insertChange.getColumntypes());
+        assertEquals(Arrays.asList(1, "a"), insertChange.getColumnvalues());
+        assertEquals(Collections.singletonList(1), insertChange.getKeyvalues());
+        UpdateChange updateChange = (UpdateChange) changes.get(1);
+        assertEquals(Arrays.asList(1, "b"), updateChange.getColumnvalues());
+        assertEquals(Collections.singletonList("id"), updateChange.getOldkeys().getKeynames());
+        assertEquals(Collections.singletonList(1), updateChange.getOldkeys().getKeyvalues());
+        DeleteChange deleteChange = (DeleteChange) changes.get(2);
+        assertEquals("delete", deleteChange.getKind());
+        assertEquals(Collections.singletonList("id"), deleteChange.getColumnnames());
+        assertEquals(Collections.singletonList(1), deleteChange.getColumnvalues());
+    }
+
+    @Test
+    public void testChangesOnlyCarryTheirSchemaIdAndValues() throws Exception {
+        write(insert(1, "a"));
+        String payload = new String(payloads.get(0).array());
+        String id = schemaMessages.get(0).getId();
+        assertEquals("{\"xid\":7,\"change\":[{\"kind\":\"insert\",\"schemaid\":\"" + id + "\",\"columnvalues\":[1,\"a\"]}]}", payload);
+        assertTrue(payloads.get(0).remaining() < objectMapper.writeValueAsBytes(insert(1, "a")).length);
+    }
+
+    @Test
+    public void testSchemaIdsAreDerivedFromTheShape() throws Exception {
+        write(insert(1, "a"));
+        write(insert(2, "b"));
+        write(new InsertChange("insert", Arrays.asList("id", "name", "email"), Arrays.asList("integer", "text", "text"),
+                "users", Arrays.asList(3, "c", "c@example.com"), "public", Collections.singletonList("id")));
+        assertEquals(3, schemaMessages.size());
+        assertEquals(schemaMessages.get(0).getId(), schemaMessages.get(1).getId());
+        assertNotEquals(schemaMessages.get(0).getId(), schemaMessages.get(2).getId());
+        SchemaDeltaWriter.SchemaCatalog otherCatalog = new SchemaDeltaWriter.SchemaCatalog(objectMapper);
+        new SchemaDeltaWriter(objectMapper, otherCatalog, (change, changeSchemaMessages, payload) ->
+                assertEquals(schemaMessages.get(0).getId(), changeSchemaMessages.get(0).getId())).onChange(insert(4, "d"));
+    }
+
+    @Test
+    public void testDecoderReadsSchemasAndBindsChangesWrittenWithColumnNames() throws Exception {
+        write(insert(1, "a"));
+        SchemaDeltaDecoder decoder = new SchemaDeltaDecoder(objectMapper);
+        decoder.decode(schemaMessages.get(0).getData());
+        assertEquals(Arrays.asList("id", "name"), decoder.getTableSchema(schemaMessages.get(0).getId()).getColumnNames());
+        List<Change> changes = decoder.decode(ByteBuffer.wrap(("{\"xid\":1,\"change\":[{\"kind\":\"insert\",\"schema\":\"public\","
+                + "\"table\":\"users\",\"columnnames\":[\"id\"],\"columntypes\":[\"integer\"],\"columnvalues\":[5]}]}").getBytes()));
+        assertEquals(Collections.singletonList(5), changes.get(0).getColumnvalues());
+    }
+
+    @Test
+    public void testCatalogDescribesShapesIdenticallyAfterStartingOver() throws Exception {
+        TableSchema tableSchema = TableSchema.of("public", "users", Arrays.asList("id", "name"),
+                Arrays.asList("integer", "text"), Collections.singletonList("id"));
+        SchemaDeltaWriter.SchemaMessage first = schemaCatalog.get(tableSchema);
+        for (int i = 0; i < SchemaDictionary.DEFAULT_MAX_ENTRIES; i++) {
+            schemaCatalog.get(TableSchema.of("public", "table" + i, Collections.singletonList("id"),
+                    Collections.singletonList("integer"), null));
+        }
+        SchemaDeltaWriter.SchemaMessage again = schemaCatalog.get(tableSchema);
+        assertNotSame(first, again);
+        assertEquals(first.getId(), again.getId());
+        assertEquals(first.getData(), again.getData());
+    }
+
+    @Test
+    public void testDecoderReportsUnknownSchemas() throws Exception {
+        write(insert(1, "a"));
+        try {
+            new SchemaDeltaDecoder(objectMapper).decode(payloads.get(0));
+            fail();
+        } catch (UnknownSchemaException e) {
+            assertEquals(schemaMessages.get(0).getId(), e.getSchemaId());
+        }
+    }
+}
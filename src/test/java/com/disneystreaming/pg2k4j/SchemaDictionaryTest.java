@@ -0,0 +1,104 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ *******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import com.disneystreaming.pg2k4j.models.SchemaDictionary;
+import com.disneystreaming.pg2k4j.models.TableSchema;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class SchemaDictionaryTest {
+
+    @Test
+    public void testInternReturnsTheSameInstanceWithoutAllocating() {
+        final SchemaDictionary schemaDictionary = new SchemaDictionary(SchemaDictionary.DEFAULT_MAX_ENTRIES);
+        final char[] chars = "xxusersxx".toCharArray();
+        final String users = schemaDictionary.intern(chars, 2, 5);
+        assertEquals("users", users);
+        assertSame(users, schemaDictionary.intern(chars, 2, 5));
+        assertSame(users, schemaDictionary.intern(new String("users")));
+        assertNull(schemaDictionary.intern(null));
+        assertEquals(2, schemaDictionary.getStringHits());
+        assertEquals(1, schemaDictionary.getStringMisses());
+        assertEquals(2.0 / 3, schemaDictionary.getStringHitRate(), 0.0001);
+    }
+
+    @Test
+    public void testInternReplacesStringsHashingToTheSameSlot() {
+        final SchemaDictionary schemaDictionary = new SchemaDictionary(1);
+        final String first = schemaDictionary.intern(new String("first"));
+        final String second = schemaDictionary.intern(new String("second"));
+        assertEquals("second", second);
+        assertNotSame(first, schemaDictionary.intern(new String("first")));
+        assertEquals(0, schemaDictionary.getStringHits());
+    }
+
+    @Test
+    public void testTableSchemaInternsShapes() {
+        final SchemaDictionary schemaDictionary = new SchemaDictionary(SchemaDictionary.DEFAULT_MAX_ENTRIES);
+        final TableSchema tableSchema = schemaDictionary.tableSchema("public", "users", Arrays.asList("id", "name"), Arrays.asList("integer", "text"), Collections.singletonList("id"));
+        assertSame(tableSchema, schemaDictionary.tableSchema("public", "users", Arrays.asList("id", "name"), Arrays.asList("integer", "text"), Collections.singletonList("id")));
+        assertSame(tableSchema, schemaDictionary.tableSchema("public", "users", tableSchema.getColumnNames(), tableSchema.getColumnTypes(), tableSchema.getKeyNames()));
+        assertSame(tableSchema, schemaDictionary.getLatestRowSchema("users"));
+        assertNull(schemaDictionary.getLatestKeySchema("users"));
+        assertSame(tableSchema.getColumnNames().get(0), schemaDictionary.intern(new String("id")));
+        assertEquals(2, schemaDictionary.getSchemaHits());
+        assertEquals(1, schemaDictionary.getSchemaMisses());
+    }
+
+    @Test
+    public void testKeySchemaIsKeptApartFromRowSchema() {
+        final SchemaDictionary schemaDictionary = new SchemaDictionary(SchemaDictionary.DEFAULT_MAX_ENTRIES);
+        final TableSchema rowSchema = schemaDictionary.tableSchema("public", "users", Arrays.asList("id"), Arrays.asList("integer"), null);
+        final TableSchema keySchema = schemaDictionary.keySchema("public", "users", Arrays.asList("id"), Arrays.asList("integer"));
+        assertSame(rowSchema, keySchema);
+        assertSame(rowSchema, schemaDictionary.getLatestRowSchema("users"));
+        assertSame(keySchema, schemaDictionary.getLatestKeySchema("users"));
+        assertNull(keySchema.getKeyNames());
+    }
+
+    @Test
+    public void testTableSchemaStartsOverOnceFull() {
+        final SchemaDictionary schemaDictionary = new SchemaDictionary(2);
+        final TableSchema first = schemaDictionary.tableSchema("public", "first", Arrays.asList("id"), Arrays.asList("integer"), null);
+        schemaDictionary.tableSchema("public", "second", Arrays.asList("id"), Arrays.asList("integer"), null);
+        schemaDictionary.tableSchema("public", "third", Arrays.asList("id"), Arrays.asList("integer"), null);
+        assertNull(schemaDictionary.getLatestRowSchema("second"));
+        assertNotSame(first, schemaDictionary.tableSchema("public", "first", Arrays.asList("id"), Arrays.asList("integer"), null));
+        assertEquals(4, schemaDictionary.getSchemaMisses());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNonPositiveSize() {
+        new SchemaDictionary(0);
+    }
+}
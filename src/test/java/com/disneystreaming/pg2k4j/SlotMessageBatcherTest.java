@@ -0,0 +1,117 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ *******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import org.junit.Test;
+import org.postgresql.replication.LogSequenceNumber;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SlotMessageBatcherTest {
+
+    private final List<ByteBuffer> batches = new ArrayList<>();
+    private final List<LogSequenceNumber> lsns = new ArrayList<>();
+
+    @Test
+    public void testBatchIsHandedOnWithLastLsnOnceTheNextMessageDoesNotFit() {
+        SlotMessageBatcher slotMessageBatcher = batcher(4 + 3 * (4 + 10), TimeUnit.MINUTES.toNanos(1));
+        for (int i = 0; i < 4; i++) {
+            slotMessageBatcher.add(message("{\"i\":" + i + "}xxx"), LogSequenceNumber.valueOf(i + 1));
+        }
+        assertEquals(1, batches.size());
+        assertEquals(LogSequenceNumber.valueOf(3), lsns.get(0));
+        List<ByteBuffer> messages = SlotMessageBatchDecoder.decode(batches.get(0));
+        assertEquals(3, messages.size());
+        assertEquals("{\"i\":2}xxx", string(messages.get(2)));
+        assertFalse(slotMessageBatcher.isEmpty());
+        slotMessageBatcher.flush();
+        assertTrue(slotMessageBatcher.isEmpty());
+        assertEquals(LogSequenceNumber.valueOf(4), lsns.get(1));
+        assertEquals("{\"i\":3}xxx", string(SlotMessageBatchDecoder.decode(batches.get(1)).get(0)));
+    }
+
+    @Test
+    public void testBatchIsHandedOnOnceItsFirstMessageWaitedForTheMaximumDelay() throws Exception {
+        SlotMessageBatcher slotMessageBatcher = batcher(1000, TimeUnit.MILLISECONDS.toNanos(5));
+        slotMessageBatcher.add(message("{}"), LogSequenceNumber.valueOf(1));
+        slotMessageBatcher.flushIfDue();
+        assertEquals(0, batches.size());
+        Thread.sleep(10);
+        slotMessageBatcher.flushIfDue();
+        assertEquals(1, batches.size());
+        slotMessageBatcher.flushIfDue();
+        assertEquals(1, batches.size());
+    }
+
+    @Test
+    public void testMessageTooLargeForABatchIsHandedOnAsItIs() {
+        SlotMessageBatcher slotMessageBatcher = batcher(16, TimeUnit.MINUTES.toNanos(1));
+        slotMessageBatcher.add(message("{}"), LogSequenceNumber.valueOf(1));
+        slotMessageBatcher.add(message("{\"large\":true}"), LogSequenceNumber.valueOf(2));
+        assertEquals(2, batches.size());
+        assertTrue(SlotMessageBatchDecoder.isBatch(batches.get(0)));
+        assertFalse(SlotMessageBatchDecoder.isBatch(batches.get(1)));
+        assertEquals("{\"large\":true}", string(SlotMessageBatchDecoder.decode(batches.get(1)).get(0)));
+        assertEquals(LogSequenceNumber.valueOf(2), lsns.get(1));
+    }
+
+    @Test
+    public void testDecodeLeavesUnbatchedRecordsWhole() {
+        List<ByteBuffer> messages = SlotMessageBatchDecoder.decode(message("{\"xid\":1}"));
+        assertEquals(1, messages.size());
+        assertEquals("{\"xid\":1}", string(messages.get(0)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecodeRejectsTruncatedBatches() {
+        ByteBuffer batch = ByteBuffer.allocate(10).putInt(SlotMessageBatcher.MAGIC).putInt(5).putShort((short) 0);
+        batch.flip();
+        SlotMessageBatchDecoder.decode(batch);
+    }
+
+    private SlotMessageBatcher batcher(int maxBytes, long maxDelayNanos) {
+        return new SlotMessageBatcher(maxBytes, maxDelayNanos, (data, lsn) -> {
+            batches.add(data);
+            lsns.add(lsn);
+        });
+    }
+
+    private static ByteBuffer message(String value) {
+        return ByteBuffer.wrap(value.getBytes());
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return new String(bytes);
+    }
+}
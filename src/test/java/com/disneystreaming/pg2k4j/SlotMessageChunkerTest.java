@@ -0,0 +1,143 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ *******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SlotMessageChunkerTest {
+
+    private static final String message = "{\"xid\":1234,\"change\":[{\"kind\":\"insert\"}]}";
+
+    @Test
+    public void testSplitMakesOrderedChunksCarryingXidMessageIdIndexAndTotal() {
+        List<ByteBuffer> chunks = SlotMessageChunker.split(buffer(message), SlotMessageChunker.HEADER_BYTES + 10, 77L);
+        assertEquals(5, chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            ByteBuffer chunk = chunks.get(i);
+            assertTrue(SlotMessageChunker.isChunk(chunk));
+            assertEquals(SlotMessageChunker.MAGIC, chunk.getInt(0));
+            assertEquals(1234L, chunk.getLong(4));
+            assertEquals(77L, chunk.getLong(12));
+            assertEquals(i, chunk.getInt(20));
+            assertEquals(5, chunk.getInt(24));
+        }
+        assertEquals(SlotMessageChunker.HEADER_BYTES + 1, chunks.get(4).remaining());
+    }
+
+    @Test
+    public void testReassemblerPutsOutOfOrderChunksBackTogether() {
+        List<ByteBuffer> chunks = SlotMessageChunker.split(buffer(message), SlotMessageChunker.HEADER_BYTES + 10);
+        Collections.reverse(chunks);
+        SlotMessageReassembler slotMessageReassembler = new SlotMessageReassembler();
+        for (int i = 0; i < chunks.size() - 1; i++) {
+            assertNull(slotMessageReassembler.add(chunks.get(i)));
+        }
+        assertEquals(1, slotMessageReassembler.getPendingCount());
+        assertEquals(buffer(message), slotMessageReassembler.add(chunks.get(chunks.size() - 1)));
+        assertEquals(0, slotMessageReassembler.getPendingCount());
+    }
+
+    @Test
+    public void testSplitGivesEveryMessageItsOwnId() {
+        ByteBuffer first = SlotMessageChunker.split(buffer(message), SlotMessageChunker.HEADER_BYTES + 10).get(0);
+        ByteBuffer second = SlotMessageChunker.split(buffer(message), SlotMessageChunker.HEADER_BYTES + 10).get(0);
+        assertNotEquals(first.getLong(12), second.getLong(12));
+    }
+
+    @Test
+    public void testReassemblerPutsInterleavedMessagesOfTheSameXidBackTogether() {
+        String other = "{\"xid\":1234,\"change\":[{\"kind\":\"delete\"}]}";
+        List<ByteBuffer> first = SlotMessageChunker.split(buffer(message), SlotMessageChunker.HEADER_BYTES + 10);
+        List<ByteBuffer> second = SlotMessageChunker.split(buffer(other), SlotMessageChunker.HEADER_BYTES + 10);
+        SlotMessageReassembler slotMessageReassembler = new SlotMessageReassembler();
+        for (int i = 0; i < first.size() - 1; i++) {
+            assertNull(slotMessageReassembler.add(first.get(i)));
+            assertNull(slotMessageReassembler.add(second.get(i)));
+        }
+        assertEquals(2, slotMessageReassembler.getPendingCount());
+        assertEquals(buffer(other), slotMessageReassembler.add(second.get(second.size() - 1)));
+        assertEquals(buffer(message), slotMessageReassembler.add(first.get(first.size() - 1)));
+        assertEquals(0, slotMessageReassembler.getPendingCount());
+    }
+
+    @Test
+    public void testReassemblerDropsDuplicateChunks() {
+        List<ByteBuffer> chunks = SlotMessageChunker.split(buffer(message), SlotMessageChunker.HEADER_BYTES + 10);
+        SlotMessageReassembler slotMessageReassembler = new SlotMessageReassembler();
+        assertNull(slotMessageReassembler.add(chunks.get(0)));
+        assertNull(slotMessageReassembler.add(chunks.get(0)));
+        ByteBuffer reassembled = null;
+        for (int i = 1; i < chunks.size(); i++) {
+            reassembled = slotMessageReassembler.add(chunks.get(i));
+        }
+        assertEquals(buffer(message), reassembled);
+        assertNull(slotMessageReassembler.add(chunks.get(2)));
+        assertEquals(0, slotMessageReassembler.getPendingCount());
+        assertEquals(2, slotMessageReassembler.getDuplicateCount());
+    }
+
+    @Test
+    public void testReassemblerEvictsMessagesMissingChunksWhenTooOldOrTooMany() {
+        SlotMessageReassembler slotMessageReassembler = new SlotMessageReassembler(2, 1000);
+        long now = 0;
+        for (int i = 0; i < 3; i++) {
+            assertNull(slotMessageReassembler.add(SlotMessageChunker.split(buffer(message), SlotMessageChunker.HEADER_BYTES + 10).get(0), now));
+        }
+        assertEquals(2, slotMessageReassembler.getPendingCount());
+        assertEquals(1, slotMessageReassembler.getEvictedCount());
+        List<ByteBuffer> late = SlotMessageChunker.split(buffer(message), SlotMessageChunker.HEADER_BYTES + 10);
+        assertNull(slotMessageReassembler.add(late.get(0), TimeUnit.SECONDS.toNanos(2)));
+        assertEquals(1, slotMessageReassembler.getPendingCount());
+        assertEquals(3, slotMessageReassembler.getEvictedCount());
+    }
+
+    @Test
+    public void testReassemblerPassesWholeMessagesThrough() {
+        ByteBuffer whole = buffer(message);
+        assertSame(whole, new SlotMessageReassembler().add(whole));
+    }
+
+    @Test
+    public void testReadXidWithoutLeadingXidIsUnknown() {
+        assertEquals(1234L, SlotMessageChunker.readXid(buffer(message)));
+        assertEquals(SlotMessageChunker.UNKNOWN_XID, SlotMessageChunker.readXid(buffer("{\"change\":[]}")));
+        assertEquals(SlotMessageChunker.UNKNOWN_XID, SlotMessageChunker.readXid(buffer("not json")));
+    }
+
+    private static ByteBuffer buffer(String value) {
+        return ByteBuffer.wrap(value.getBytes());
+    }
+}
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ *******************************************************************************/
+
+package com.disneystreaming.pg2k4j;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.Test;
+import org.postgresql.replication.LogSequenceNumber;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SlotMessagePipelineTest {
+
+    @Test
+    public void testResultsAreSunkInSubmissionOrder() throws Exception {
+        int messages = 1000;
+        List<Long> sunk = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(messages);
+        try (SlotMessagePipeline<Integer> pipeline = new SlotMessagePipeline<>(4, 16, msg -> {
+            LockSupport.parkNanos(ThreadLocalRandom.current().nextInt(100000));
+            return msg.getInt(0);
+        }, (result, lsn) -> {
+            assertEquals(result.longValue(), lsn.asLong());
+            sunk.add(lsn.asLong());
+            done.countDown();
+        }, Throwable::printStackTrace)) {
+            for (int i = 0; i < messages; i++) {
+                pipeline.submit(ByteBuffer.allocate(4).putInt(0, i), LogSequenceNumber.valueOf(i));
+            }
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            for (int i = 0; i < messages; i++) {
+                assertEquals(i, sunk.get(i).longValue());
+            }
+            while (pipeline.getInFlightCount() > 0) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        }
+    }
+
+    @Test
+    public void testFailureIsReportedAndStopsThePipeline() throws Exception {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch failed = new CountDownLatch(1);
+        List<Integer> sunk = Collections.synchronizedList(new ArrayList<>());
+        try (SlotMessagePipeline<Integer> pipeline = new SlotMessagePipeline<>(2, 4, msg -> {
+            if (msg.getInt(0) == 1) {
+                throw new IOException("unparseable");
+            }
+            return msg.getInt(0);
+        }, (result, lsn) -> sunk.add(result), t -> {
+            failure.set(t);
+            failed.countDown();
+        })) {
+            for (int i = 0; i < 3; i++) {
+                pipeline.submit(ByteBuffer.allocate(4).putInt(0, i), LogSequenceNumber.valueOf(i));
+            }
+            assertTrue(failed.await(30, TimeUnit.SECONDS));
+            assertEquals("unparseable", failure.get().getMessage());
+            assertEquals(Collections.singletonList(0), sunk);
+            assertEquals(2, pipeline.getInFlightCount());
+        }
+    }
+
+    @Test
+    public void testCloseWaitsForTheSequencerToExit() throws Exception {
+        CountDownLatch sinking = new CountDownLatch(1);
+        AtomicReference<Boolean> exited = new AtomicReference<>(false);
+        SlotMessagePipeline<Integer> pipeline = new SlotMessagePipeline<>(1, 1, msg -> 0, (result, lsn) -> {
+            sinking.countDown();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(6);
+            while (System.nanoTime() < deadline) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                Thread.interrupted();
+            }
+            exited.set(true);
+        }, Throwable::printStackTrace);
+        pipeline.submit(ByteBuffer.allocate(0), LogSequenceNumber.valueOf(1));
+        assertTrue(sinking.await(30, TimeUnit.SECONDS));
+        pipeline.close();
+        assertTrue(exited.get());
+        assertTrue(pipeline.isSequencerStopped());
+    }
+
+    @Test
+    public void testHasCapacity() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        try (SlotMessagePipeline<Integer> pipeline = new SlotMessagePipeline<>(1, 1, msg -> {
+            Uninterruptibles.awaitUninterruptibly(release);
+            return 0;
+        }, (result, lsn) -> { }, Throwable::printStackTrace)) {
+            pipeline.submit(ByteBuffer.allocate(0), LogSequenceNumber.valueOf(1));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!pipeline.hasCapacity() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            pipeline.submit(ByteBuffer.allocate(0), LogSequenceNumber.valueOf(2));
+            assertFalse(pipeline.hasCapacity());
+            release.countDown();
+        }
+    }
+}
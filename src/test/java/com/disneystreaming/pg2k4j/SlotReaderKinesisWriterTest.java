@@ -31,6 +31,7 @@ import com.amazonaws.services.kinesis.producer.UserRecord;
 import com.amazonaws.services.kinesis.producer.UserRecordResult;
 import com.disneystreaming.pg2k4j.models.Change;
 import com.disneystreaming.pg2k4j.models.DeleteChange;
+import com.disneystreaming.pg2k4j.models.InsertChange;
 import com.disneystreaming.pg2k4j.models.OldKeys;
 import com.disneystreaming.pg2k4j.models.SlotMessage;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -39,6 +40,7 @@ import com.google.common.util.concurrent.ListenableFuture;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.junit.MockitoJUnit;
@@ -48,13 +50,22 @@ import org.postgresql.replication.PGReplicationStream;
 import org.powermock.reflect.Whitebox;
 
 import java.io.IOException;
+import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertSame;
+import static junit.framework.TestCase.assertTrue;
 
 
 public class SlotReaderKinesisWriterTest {
@@ -71,17 +82,25 @@ public class SlotReaderKinesisWriterTest {
     @Mock
     private KinesisProducerConfigurationFactory kinesisProducerConfigurationFactory;
 
+    @Mock
+    private IdleStrategy idleStrategy;
+
     @Mock
     private KinesisProducerConfiguration kinesisProducerConfiguration;
 
     @Mock
     private PostgresConnector postgresConnector;
 
+    @Mock
+    private SlotMessagePipeline<List<UserRecord>> slotMessagePipeline;
+
     @Mock
     private KinesisProducer kinesisProducer;
 
     private ByteBuffer byteBuffer = ByteBuffer.wrap(testByteArray);
 
+    private ByteBuffer slotMessageByteBuffer = ByteBuffer.wrap(testSlotMessageBytes);
+
     @Mock
     private UserRecord userRecord;
 
@@ -94,18 +113,6 @@ public class SlotReaderKinesisWriterTest {
     @Mock
     private PGReplicationStream pgReplicationStream;
 
-    @Mock
-    private ObjectMapper objectMapper;
-
-    @Mock
-    private SlotMessage slotMessage;
-
-    @Mock
-    private Change change1;
-
-    @Mock
-    private Change change2;
-
     @Mock
     private SQLException sqlException;
 
@@ -114,12 +121,18 @@ public class SlotReaderKinesisWriterTest {
 
     private LogSequenceNumber lsn = LogSequenceNumber.valueOf(1234);
 
-    private static final int testByteBufferOffset = 0;
+    private LsnAcknowledgementTracker lsnAcknowledgementTracker;
+
     private static final String streamName = "streamName";
     private static final int testIdleSlotRecreationSeconds = 10;
     private static final byte[] testByteArray = "testByteArray".getBytes();
     private static final String correctTableName = "correctTableName";
     private static final String incorrectTableName = "incorrectTableName";
+    private static final byte[] testSlotMessageBytes = ("{\"xid\":1,\"change\":["
+            + "{\"kind\":\"delete\",\"schema\":\"public\",\"table\":\"" + correctTableName + "\","
+            + "\"oldkeys\":{\"keynames\":[\"id\"],\"keytypes\":[\"integer\"],\"keyvalues\":[1]}},"
+            + "{\"kind\":\"delete\",\"schema\":\"public\",\"table\":\"" + incorrectTableName + "\","
+            + "\"oldkeys\":{\"keynames\":[\"id\"],\"keytypes\":[\"integer\"],\"keyvalues\":[2]}}]}").getBytes();
     private static final SlotMessage testSlotMessage = new SlotMessage(3147483647L,
             Arrays.asList(new DeleteChange("delete", "testTable", "mySchema",
                     new OldKeys(Arrays.asList("type"), Arrays.asList("value"), Arrays.asList("name")))));
@@ -129,38 +142,291 @@ public class SlotReaderKinesisWriterTest {
         Whitebox.setInternalState(slotReaderKinesisWriter, "replicationConfiguration", replicationConfiguration);
         Whitebox.setInternalState(slotReaderKinesisWriter, "postgresConfiguration", postgresConfiguration);
         Whitebox.setInternalState(slotReaderKinesisWriter, "kinesisProducerConfiguration", kinesisProducerConfiguration);
-        Whitebox.setInternalState(SlotReaderKinesisWriter.class, "objectMapper", objectMapper);
-        Mockito.doReturn(slotMessage).when(objectMapper).readValue(testByteArray, testByteBufferOffset, testByteArray.length, SlotMessage.class);
+        Whitebox.setInternalState(SlotReaderKinesisWriter.class, "objectMapper", new ObjectMapper());
+        Whitebox.setInternalState(slotReaderKinesisWriter, "wal2JsonParser",
+                new Wal2JsonParser(new ObjectMapper(), new ChangeFilter(new HashSet<>(Arrays.asList(correctTableName)), null, null)));
+        lsnAcknowledgementTracker = new LsnAcknowledgementTracker(16);
+        Whitebox.setInternalState(slotReaderKinesisWriter, "lsnAcknowledgementTracker", lsnAcknowledgementTracker);
+        Whitebox.setInternalState(slotReaderKinesisWriter, "appliedLsn", LogSequenceNumber.INVALID_LSN);
+        Whitebox.setInternalState(slotReaderKinesisWriter, "admissionController", new AdmissionController(100, 1000));
+        Whitebox.setInternalState(slotReaderKinesisWriter, "idleStrategy", idleStrategy);
+        Whitebox.setInternalState(slotReaderKinesisWriter, "maxRecordBytes", ReplicationConfiguration.DEFAULT_MAX_RECORD_BYTES);
+        Whitebox.setInternalState(slotReaderKinesisWriter, "reconnectBackoff", new ReconnectBackoff(0, 0));
+        Whitebox.setInternalState(slotReaderKinesisWriter, "announcedSchemas", new ConcurrentHashMap<String, Long>());
+        Mockito.doReturn(ByteBuffer.wrap(testByteArray)).when(userRecord).getData();
         Mockito.doReturn(kinesisProducerConfiguration).when(kinesisProducerConfigurationFactory).getKinesisProducerConfiguration();
-        Mockito.doReturn(Stream.of(userRecord)).when(slotReaderKinesisWriter).getUserRecords(slotMessage);
-        Mockito.doReturn(callback).when(slotReaderKinesisWriter).getCallback(postgresConnector, userRecord);
-        Mockito.doReturn(slotMessage).when(slotReaderKinesisWriter).getSlotMessage(testByteArray, testByteBufferOffset);
+        Mockito.doReturn(Stream.of(userRecord)).when(slotReaderKinesisWriter).getUserRecords(Mockito.any(ByteBuffer.class));
+        Mockito.doReturn(lsn).when(postgresConnector).getLastReceivedLsn();
+        Mockito.doReturn(callback).when(slotReaderKinesisWriter).getCallback(lsn, userRecord, lsnAcknowledgementTracker);
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).getSlotMessageHandler(Mockito.<Consumer<UserRecord>>any());
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).getSlotMessageWriter(Mockito.<Consumer<UserRecord>>any());
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).getChangeMessageWriter(Mockito.<Consumer<UserRecord>>any());
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).getRecordPerChangeWriter(Mockito.<Consumer<UserRecord>>any());
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).getSchemaDeltaWriter(Mockito.<Consumer<UserRecord>>any());
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).createSlotMessageDecoder(postgresConnector);
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).putUserRecord(userRecord, kinesisProducer, lsn, lsnAcknowledgementTracker);
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).addUserRecord(Mockito.any(UserRecord.class), Mockito.eq(kinesisProducer), Mockito.any(LogSequenceNumber.class), Mockito.any(LsnAcknowledgementTracker.class));
         Mockito.doReturn(future).when(kinesisProducer).addUserRecord(userRecord);
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).getKinesisProducer();
         Mockito.doReturn(pgReplicationStream).when(postgresConnector).getPgReplicationStream();
         Mockito.doReturn(testIdleSlotRecreationSeconds).when(replicationConfiguration).getUpdateIdleSlotInterval();
-        Mockito.doReturn(correctTableName).when(change1).getTable();
-        Mockito.doReturn(incorrectTableName).when(change2).getTable();
-        Mockito.doCallRealMethod().when(slotMessage).getChange();
-        Mockito.doReturn(new HashSet<>(Arrays.asList(correctTableName))).when(replicationConfiguration).getRelevantTables();
-        List<Change> changes = new ArrayList<>();
-        changes.add(change1);
-        changes.add(change2);
-        Whitebox.setInternalState(slotMessage, "change", changes);
+        Mockito.doReturn(16).when(replicationConfiguration).getAcknowledgementWindowSize();
+        Mockito.doReturn(ReplicationConfiguration.DEFAULT_WAL2JSON_FORMAT_VERSION).when(replicationConfiguration)
+                .getWal2JsonFormatVersion();
     }
 
     @Test
     public void testProcessByteBufferPutsOneToKinesisAddsCallbackPerUserRecord() throws Exception {
-        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).processByteBuffer(byteBuffer, kinesisProducer, postgresConnector);
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).processByteBuffer(slotMessageByteBuffer, kinesisProducer, postgresConnector);
         Mockito.doReturn(ByteBuffer.wrap(testByteArray)).when(userRecord).getData();
-        slotReaderKinesisWriter.processByteBuffer(byteBuffer, kinesisProducer, postgresConnector);
-        Mockito.verify(slotReaderKinesisWriter, Mockito.times(1)).getCallback(postgresConnector, userRecord);
+        slotReaderKinesisWriter.processByteBuffer(slotMessageByteBuffer, kinesisProducer, postgresConnector);
+        Mockito.verify(slotReaderKinesisWriter, Mockito.times(1)).getUserRecords(Mockito.any(ByteBuffer.class));
+        Mockito.verify(kinesisProducer, Mockito.times(1)).addUserRecord(userRecord);
+        Mockito.verify(slotReaderKinesisWriter, Mockito.times(1)).getCallback(lsn, userRecord, lsnAcknowledgementTracker);
+    }
+
+    @Test
+    public void testProcessByteBufferPutsNothingWhenNoRelevantChanges() throws Exception {
+        ByteBuffer irrelevant = ByteBuffer.wrap(("{\"xid\":1,\"change\":[{\"kind\":\"delete\",\"schema\":\"public\","
+                + "\"table\":\"" + incorrectTableName + "\",\"oldkeys\":{\"keynames\":[\"id\"],"
+                + "\"keytypes\":[\"integer\"],\"keyvalues\":[2]}}]}").getBytes());
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).processByteBuffer(irrelevant, kinesisProducer, postgresConnector);
+        slotReaderKinesisWriter.processByteBuffer(irrelevant, kinesisProducer, postgresConnector);
+        Mockito.verify(slotReaderKinesisWriter, Mockito.times(0)).getUserRecords(Mockito.any(ByteBuffer.class));
+        Mockito.verify(kinesisProducer, Mockito.times(0)).addUserRecord(Mockito.any(UserRecord.class));
+    }
+
+    @Test
+    public void testProcessByteBufferPassesRawMessageThroughWithoutCopying() throws Exception {
+        Whitebox.setInternalState(slotReaderKinesisWriter, "rawPassthrough", true);
+        byte[] padded = new byte[testSlotMessageBytes.length + 4];
+        System.arraycopy(testSlotMessageBytes, 0, padded, 4, testSlotMessageBytes.length);
+        ByteBuffer msg = ByteBuffer.wrap(padded, 4, testSlotMessageBytes.length);
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).processByteBuffer(msg, kinesisProducer, postgresConnector);
+        slotReaderKinesisWriter.processByteBuffer(msg, kinesisProducer, postgresConnector);
+        Mockito.verify(slotReaderKinesisWriter, Mockito.times(1)).getUserRecords(Mockito.argThat(
+                new org.mockito.ArgumentMatcher<ByteBuffer>() {
+                    @Override
+                    public boolean matches(Object argument) {
+                        ByteBuffer data = (ByteBuffer) argument;
+                        return data.array() == padded && data.remaining() == testSlotMessageBytes.length
+                                && data.get(0) == '{';
+                    }
+                }));
+        Mockito.verify(kinesisProducer, Mockito.times(1)).addUserRecord(userRecord);
+        Mockito.verify(slotReaderKinesisWriter, Mockito.times(0)).createSlotMessageDecoder(postgresConnector);
+    }
+
+    @Test
+    public void testProcessByteBufferPassthroughSkipsEmptyTransactions() throws Exception {
+        Whitebox.setInternalState(slotReaderKinesisWriter, "rawPassthrough", true);
+        ByteBuffer empty = ByteBuffer.wrap("{\"xid\":1,\"change\":[]}".getBytes());
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).processByteBuffer(empty, kinesisProducer, postgresConnector);
+        slotReaderKinesisWriter.processByteBuffer(empty, kinesisProducer, postgresConnector);
+        Mockito.verify(kinesisProducer, Mockito.times(0)).addUserRecord(Mockito.any(UserRecord.class));
+    }
+
+    @Test
+    public void testIsRawPassthroughOnlyWhenNothingIsLeftToFilter() throws Exception {
+        Mockito.doReturn(null).when(replicationConfiguration).getRelevantTables();
+        Mockito.doReturn(null).when(replicationConfiguration).getExcludedTables();
+        Mockito.doReturn(null).when(replicationConfiguration).getActions();
+        assertEquals(false, SlotReaderKinesisWriter.isRawPassthrough(replicationConfiguration));
+        Mockito.doReturn(true).when(replicationConfiguration).getRawPassthrough();
+        assertEquals(true, SlotReaderKinesisWriter.isRawPassthrough(replicationConfiguration));
+        Mockito.doReturn(new HashSet<>(Arrays.asList(correctTableName))).when(replicationConfiguration).getRelevantTables();
+        assertEquals(false, SlotReaderKinesisWriter.isRawPassthrough(replicationConfiguration));
+        Mockito.doReturn(true).when(replicationConfiguration).getPushDownFilters();
+        assertEquals(true, SlotReaderKinesisWriter.isRawPassthrough(replicationConfiguration));
+        Mockito.doReturn(true).when(replicationConfiguration).isWal2JsonIncremental();
+        assertEquals(false, SlotReaderKinesisWriter.isRawPassthrough(replicationConfiguration));
+        Mockito.doReturn(false).when(replicationConfiguration).isWal2JsonIncremental();
+        Mockito.doReturn(true).when(replicationConfiguration).getIncrementalSnapshots();
+        assertEquals(false, SlotReaderKinesisWriter.isRawPassthrough(replicationConfiguration));
+        Mockito.doReturn(false).when(replicationConfiguration).getIncrementalSnapshots();
+        Mockito.doReturn(Collections.singletonMap(correctTableName, Collections.singleton("id")))
+                .when(replicationConfiguration).getExcludedColumns();
+        assertEquals(false, SlotReaderKinesisWriter.isRawPassthrough(replicationConfiguration));
+        Mockito.doReturn(null).when(replicationConfiguration).getExcludedColumns();
+        Mockito.doReturn(true).when(replicationConfiguration).isPgOutput();
+        assertEquals(false, SlotReaderKinesisWriter.isRawPassthrough(replicationConfiguration));
+    }
+
+    @Test
+    public void testProcessByteBufferPutsOneRecordPerChangeWhenConfigured() throws Exception {
+        Mockito.doReturn(true).when(replicationConfiguration).getRecordPerChange();
+        Whitebox.setInternalState(slotReaderKinesisWriter, "wal2JsonParser",
+                new Wal2JsonParser(new ObjectMapper(), new ChangeFilter(null, null, null)));
+        Mockito.doAnswer(invocation -> Stream.of(userRecord)).when(slotReaderKinesisWriter)
+                .getUserRecords(Mockito.any(Change.class), Mockito.any(ByteBuffer.class));
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).processByteBuffer(slotMessageByteBuffer, kinesisProducer, postgresConnector);
+        slotReaderKinesisWriter.processByteBuffer(slotMessageByteBuffer, kinesisProducer, postgresConnector);
+        Mockito.verify(slotReaderKinesisWriter, Mockito.times(2)).getUserRecords(Mockito.any(Change.class), Mockito.any(ByteBuffer.class));
+        Mockito.verify(kinesisProducer, Mockito.times(2)).addUserRecord(userRecord);
+    }
+
+    @Test
+    public void testProcessByteBufferPutsSchemaRecordsOncePerShardWithSchemaDeltaEncoding() throws Exception {
+        Mockito.doReturn(true).when(replicationConfiguration).getRecordPerChange();
+        Whitebox.setInternalState(slotReaderKinesisWriter, "schemaCatalog", new SchemaDeltaWriter.SchemaCatalog(new ObjectMapper()));
+        Mockito.doAnswer(invocation -> Stream.of(userRecord)).when(slotReaderKinesisWriter)
+                .getUserRecords(Mockito.any(Change.class), Mockito.any(ByteBuffer.class));
+        Mockito.doReturn(future).when(kinesisProducer).addUserRecord(Mockito.any(SlotReaderKinesisWriter.SchemaRecord.class));
+        Mockito.doReturn(callback).when(slotReaderKinesisWriter).getCallback(Mockito.eq(lsn), Mockito.any(SlotReaderKinesisWriter.SchemaRecord.class), Mockito.any(LsnAcknowledgementTracker.class));
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).announce(Mockito.any(SlotReaderKinesisWriter.SchemaRecord.class));
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).announce(Mockito.any(SlotReaderKinesisWriter.SchemaRecord.class), Mockito.anyLong());
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).putUserRecord(Mockito.isA(SlotReaderKinesisWriter.SchemaRecord.class), Mockito.eq(kinesisProducer), Mockito.eq(lsn), Mockito.any(LsnAcknowledgementTracker.class));
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).processByteBuffer(Mockito.any(ByteBuffer.class), Mockito.eq(kinesisProducer), Mockito.eq(postgresConnector));
+        Whitebox.setInternalState(slotReaderKinesisWriter, "schemaAnnounceIntervalNanos", Long.MAX_VALUE);
+        slotReaderKinesisWriter.processByteBuffer(ByteBuffer.wrap(testSlotMessageBytes), kinesisProducer, postgresConnector);
+        slotReaderKinesisWriter.processByteBuffer(ByteBuffer.wrap(testSlotMessageBytes), kinesisProducer, postgresConnector);
+        Mockito.verify(kinesisProducer, Mockito.times(2)).addUserRecord(userRecord);
+        Mockito.verify(kinesisProducer, Mockito.times(1)).addUserRecord(Mockito.isA(SlotReaderKinesisWriter.SchemaRecord.class));
+    }
+
+    @Test
+    public void testAnnounceAnnouncesSchemasAgainOnceTheIntervalHasPassed() {
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).announce(Mockito.any(SlotReaderKinesisWriter.SchemaRecord.class), Mockito.anyLong());
+        Whitebox.setInternalState(slotReaderKinesisWriter, "schemaAnnounceIntervalNanos", 1000L);
+        final SlotReaderKinesisWriter.SchemaRecord schemaRecord = new SlotReaderKinesisWriter.SchemaRecord(
+                new UserRecord("stream", "key", null, ByteBuffer.wrap(testByteArray)), new SchemaDeltaWriter.SchemaMessage("id", testByteArray), 0);
+        assertTrue(slotReaderKinesisWriter.announce(schemaRecord, 0L));
+        assertFalse(slotReaderKinesisWriter.announce(schemaRecord, 999L));
+        assertTrue(slotReaderKinesisWriter.announce(schemaRecord, 1000L));
+        assertFalse(slotReaderKinesisWriter.announce(schemaRecord, 1999L));
+    }
+
+    @Test
+    public void testSchemaRecordsAreAnnouncedOncePerShardRangeWhenTheShardCountIsKnown() {
+        final SchemaDeltaWriter.SchemaMessage schemaMessage = new SchemaDeltaWriter.SchemaMessage("id", testByteArray);
+        final String firstShardKey = BigInteger.ONE.shiftLeft(125).toString();
+        final String otherFirstShardKey = BigInteger.ONE.shiftLeft(126).toString();
+        final String secondShardKey = BigInteger.ONE.shiftLeft(127).add(BigInteger.ONE).toString();
+        final SlotReaderKinesisWriter.SchemaRecord first = new SlotReaderKinesisWriter.SchemaRecord(
+                new UserRecord("stream", "key", firstShardKey, ByteBuffer.wrap(testByteArray)), schemaMessage, 2);
+        final SlotReaderKinesisWriter.SchemaRecord otherFirst = new SlotReaderKinesisWriter.SchemaRecord(
+                new UserRecord("stream", "key", otherFirstShardKey, ByteBuffer.wrap(testByteArray)), schemaMessage, 2);
+        final SlotReaderKinesisWriter.SchemaRecord second = new SlotReaderKinesisWriter.SchemaRecord(
+                new UserRecord("stream", "key", secondShardKey, ByteBuffer.wrap(testByteArray)), schemaMessage, 2);
+        final SlotReaderKinesisWriter.SchemaRecord unknownShards = new SlotReaderKinesisWriter.SchemaRecord(
+                new UserRecord("stream", "key", otherFirstShardKey, ByteBuffer.wrap(testByteArray)), schemaMessage, 0);
+        assertEquals(first.getAnnouncement(), otherFirst.getAnnouncement());
+        assertFalse(first.getAnnouncement().equals(second.getAnnouncement()));
+        assertFalse(otherFirst.getAnnouncement().equals(unknownShards.getAnnouncement()));
+    }
+
+    @Test
+    public void testGetUserRecordsForChangeUsesPartitionKeyStrategy() throws Exception {
+        PartitionKeyStrategy partitionKeyStrategy = Mockito.mock(PartitionKeyStrategy.class);
+        Whitebox.setInternalState(slotReaderKinesisWriter, "partitionKeyStrategy", partitionKeyStrategy);
+        Whitebox.setInternalState(slotReaderKinesisWriter, "streamName", streamName);
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).getUserRecords(Mockito.any(Change.class), Mockito.any(ByteBuffer.class));
+        Change change = testSlotMessage.getChange().get(0);
+        Mockito.doReturn(userRecord).when(partitionKeyStrategy).createUserRecord(streamName, change, byteBuffer);
+        List<UserRecord> userRecords = slotReaderKinesisWriter.getUserRecords(change, byteBuffer).collect(Collectors.toList());
+        assertEquals(Collections.singletonList(userRecord), userRecords);
+    }
+
+    @Test
+    public void testGetUserRecordsForChangeUsesMatchingStreamRoute() throws Exception {
+        PartitionKeyStrategy partitionKeyStrategy = Mockito.mock(PartitionKeyStrategy.class);
+        PartitionKeyStrategy routePartitionKeyStrategy = Mockito.mock(PartitionKeyStrategy.class);
+        Change change = testSlotMessage.getChange().get(0);
+        StreamRouter streamRouter = new StreamRouter(Collections.singletonList(new StreamRouter.Route(
+                Pattern.compile(Pattern.quote(change.getSchema() + "." + change.getTable())), "routed", routePartitionKeyStrategy)));
+        Whitebox.setInternalState(slotReaderKinesisWriter, "partitionKeyStrategy", partitionKeyStrategy);
+        Whitebox.setInternalState(slotReaderKinesisWriter, "streamName", streamName);
+        Whitebox.setInternalState(slotReaderKinesisWriter, "streamRouter", streamRouter);
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).getUserRecords(Mockito.any(Change.class), Mockito.any(ByteBuffer.class));
+        Mockito.doReturn(userRecord).when(routePartitionKeyStrategy).createUserRecord("routed", change, byteBuffer);
+        List<UserRecord> userRecords = slotReaderKinesisWriter.getUserRecords(change, byteBuffer).collect(Collectors.toList());
+        assertEquals(Collections.singletonList(userRecord), userRecords);
+        Mockito.verifyZeroInteractions(partitionKeyStrategy);
+    }
+
+    @Test
+    public void testProcessByteBufferSubmitsToPipelineWithLsnOfMessage() throws Exception {
+        Whitebox.setInternalState(slotReaderKinesisWriter, "slotMessagePipeline", slotMessagePipeline);
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).processByteBuffer(slotMessageByteBuffer, kinesisProducer, postgresConnector);
+        slotReaderKinesisWriter.processByteBuffer(slotMessageByteBuffer, kinesisProducer, postgresConnector);
+        Mockito.verify(slotMessagePipeline, Mockito.times(1)).submit(slotMessageByteBuffer, lsn);
+        Mockito.verify(kinesisProducer, Mockito.times(0)).addUserRecord(Mockito.any(UserRecord.class));
+    }
+
+    @Test
+    public void testDecodeUserRecordsReturnsRecordsForRelevantChanges() throws Exception {
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).decodeUserRecords(slotMessageByteBuffer);
+        assertEquals(Collections.singletonList(userRecord), slotReaderKinesisWriter.decodeUserRecords(slotMessageByteBuffer));
+        Mockito.verify(kinesisProducer, Mockito.times(0)).addUserRecord(Mockito.any(UserRecord.class));
+    }
+
+    @Test
+    public void testIsPipelinedOnlyForWal2JsonWithSeveralWorkers() throws Exception {
+        assertEquals(false, SlotReaderKinesisWriter.isPipelined(replicationConfiguration));
+        Mockito.doReturn(4).when(replicationConfiguration).getPipelineWorkers();
+        assertEquals(true, SlotReaderKinesisWriter.isPipelined(replicationConfiguration));
+        Mockito.doReturn(true).when(replicationConfiguration).isWal2JsonIncremental();
+        assertEquals(false, SlotReaderKinesisWriter.isPipelined(replicationConfiguration));
+        Mockito.doReturn(false).when(replicationConfiguration).isWal2JsonIncremental();
+        Mockito.doReturn(true).when(replicationConfiguration).getIncrementalSnapshots();
+        assertEquals(false, SlotReaderKinesisWriter.isPipelined(replicationConfiguration));
+        Mockito.doReturn(false).when(replicationConfiguration).getIncrementalSnapshots();
+        Mockito.doReturn(true).when(replicationConfiguration).isPgOutput();
+        assertEquals(false, SlotReaderKinesisWriter.isPipelined(replicationConfiguration));
+    }
+
+    @Test
+    public void testCreateSlotMessageDecoderMatchesOutputPlugin() throws Exception {
+        Mockito.doReturn(false).when(replicationConfiguration).isPgOutput();
+        assertEquals(Wal2JsonParser.class, slotReaderKinesisWriter.createSlotMessageDecoder(postgresConnector).getClass());
+        Mockito.doReturn(true).when(replicationConfiguration).isPgOutput();
+        assertEquals(PgOutputDecoder.class, slotReaderKinesisWriter.createSlotMessageDecoder(postgresConnector).getClass());
+    }
+
+    @Test
+    public void testCreateSlotMessageDecoderMatchesWal2JsonFormat() throws Exception {
+        Mockito.doReturn(true).when(replicationConfiguration).getWal2JsonWriteInChunks();
+        assertEquals(Wal2JsonChunkDecoder.class, slotReaderKinesisWriter.createSlotMessageDecoder(postgresConnector).getClass());
+        Mockito.doReturn(ReplicationConfiguration.WAL2JSON_FORMAT_VERSION_2).when(replicationConfiguration)
+                .getWal2JsonFormatVersion();
+        assertEquals(Wal2JsonV2Decoder.class, slotReaderKinesisWriter.createSlotMessageDecoder(postgresConnector).getClass());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateSlotMessageDecoderRejectsUnknownWal2JsonFormat() throws Exception {
+        Mockito.doReturn(3).when(replicationConfiguration).getWal2JsonFormatVersion();
+        slotReaderKinesisWriter.createSlotMessageDecoder(postgresConnector);
+    }
+
+    @Test
+    public void testProcessByteBufferAssemblesTransactionsSpanningMessages() throws Exception {
+        Mockito.doReturn(ReplicationConfiguration.WAL2JSON_FORMAT_VERSION_2).when(replicationConfiguration)
+                .getWal2JsonFormatVersion();
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).processByteBuffer(Mockito.any(ByteBuffer.class),
+                Mockito.eq(kinesisProducer), Mockito.eq(postgresConnector));
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).hasRecordsInFlight();
+        String row = "{\"action\":\"D\",\"schema\":\"public\",\"table\":\"" + correctTableName + "\","
+                + "\"identity\":[{\"name\":\"id\",\"type\":\"integer\",\"value\":1}]}";
+        for (String msg : Arrays.asList("{\"action\":\"B\",\"xid\":1}", row, row.replace("\"value\":1", "\"value\":2"))) {
+            slotReaderKinesisWriter.processByteBuffer(ByteBuffer.wrap(msg.getBytes()), kinesisProducer, postgresConnector);
+        }
+        Mockito.verify(kinesisProducer, Mockito.times(0)).addUserRecord(Mockito.any(UserRecord.class));
+        assertTrue(slotReaderKinesisWriter.hasRecordsInFlight());
+        slotReaderKinesisWriter.processByteBuffer(ByteBuffer.wrap("{\"action\":\"C\",\"xid\":1}".getBytes()),
+                kinesisProducer, postgresConnector);
+        ArgumentCaptor<ByteBuffer> payload = ArgumentCaptor.forClass(ByteBuffer.class);
+        Mockito.verify(slotReaderKinesisWriter, Mockito.times(1)).getUserRecords(payload.capture());
+        SlotMessage slotMessage = new ObjectMapper().readValue(payload.getValue().array(), SlotMessage.class);
+        assertEquals(1, slotMessage.getXid());
+        assertEquals(2, slotMessage.getChange().size());
+        Mockito.verify(kinesisProducer, Mockito.times(1)).addUserRecord(userRecord);
     }
 
     @Test
     public void testReadSlotWriteToKinesisHelperCallsProcessByteBufferWhenMsgNotNull() throws Exception {
         Mockito.doCallRealMethod().when(slotReaderKinesisWriter).readSlotWriteToKinesisHelper(kinesisProducer, postgresConnector);
         Mockito.doReturn(byteBuffer).when(postgresConnector).readPending();
-        slotReaderKinesisWriter.readSlotWriteToKinesisHelper(kinesisProducer, postgresConnector);
+        assertTrue(slotReaderKinesisWriter.readSlotWriteToKinesisHelper(kinesisProducer, postgresConnector));
         Mockito.verify(slotReaderKinesisWriter, Mockito.times(1)).processByteBuffer(byteBuffer, kinesisProducer, postgresConnector);
         Mockito.verify(postgresConnector, Mockito.times(1)).readPending();
         Mockito.verify(postgresConnector, Mockito.times(0)).getCurrentLSN();
@@ -174,7 +440,7 @@ public class SlotReaderKinesisWriterTest {
         Mockito.doReturn(null).when(postgresConnector).readPending();
         Mockito.doReturn(lsn).when(postgresConnector).getCurrentLSN();
         Whitebox.setInternalState(slotReaderKinesisWriter, "lastFlushedTime", System.currentTimeMillis() - 5 * 1000);
-        slotReaderKinesisWriter. readSlotWriteToKinesisHelper(kinesisProducer, postgresConnector);
+        assertFalse(slotReaderKinesisWriter.readSlotWriteToKinesisHelper(kinesisProducer, postgresConnector));
         Mockito.verify(slotReaderKinesisWriter, Mockito.times(0)).processByteBuffer(byteBuffer, kinesisProducer, postgresConnector);
         Mockito.verify(postgresConnector, Mockito.times(1)).readPending();
         Mockito.verify(postgresConnector, Mockito.times(0)).getCurrentLSN();
@@ -211,48 +477,83 @@ public class SlotReaderKinesisWriterTest {
     }
 
     @Test
-    public void testReadSlotWriteToKinesisCatchesSqlExceptionsDestroysProducer() throws Exception {
+    public void testReadSlotWriteToKinesisCatchesSqlExceptionsKeepsProducer() throws Exception {
         Mockito.doReturn("x").when(sqlException).getSQLState();
-        testReadSlotWriteToKinesisException(sqlException);
+        testReadSlotWriteToKinesisException(sqlException, 0);
     }
 
     @Test
-    public void testReadSlotWriteToKinesisCatchesSqlExceptionsRecoveryModeSleepsDestroysProducer() throws Exception {
+    public void testReadSlotWriteToKinesisCatchesSqlExceptionsRecoveryModeSleepsKeepsProducer() throws Exception {
         Mockito.doReturn("57P03").when(sqlException).getSQLState();
-        testReadSlotWriteToKinesisException(sqlException);
+        testReadSlotWriteToKinesisException(sqlException, 0);
     }
 
     @Test
-    public void testReadSlotWriteToKinesisCatchesIoExceptionsDestroysProducer() throws Exception {
-        testReadSlotWriteToKinesisException(new IOException("io exception"));
+    public void testReadSlotWriteToKinesisCatchesIoExceptionsKeepsProducer() throws Exception {
+        testReadSlotWriteToKinesisException(new IOException("io exception"), 0);
     }
 
     @Test
     public void testReadSlotWriteToKinesisCatchesExceptionsDestroysProducer() throws Exception {
-        testReadSlotWriteToKinesisException(new RuntimeException("exception"));
+        testReadSlotWriteToKinesisException(new RuntimeException("exception"), 1);
     }
 
     @Test
-    public void testGetSlotMessageFiltersOutNonRelevantTables() throws Exception {
-        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).getSlotMessage(testByteArray, testByteBufferOffset);
-        SlotMessage slotMessage = slotReaderKinesisWriter.getSlotMessage(testByteArray, testByteBufferOffset);
-        assertEquals(slotMessage.getChange().size(), 1);
-        assertEquals(slotMessage.getChange().get(0), change1);
+    public void testReadSlotWriteToKinesisReusesProducerAcrossReconnects() throws Exception {
+        testReadSlotWriteToKinesisException(new IOException("io exception"), 0);
+        slotReaderKinesisWriter.readSlotWriteToKinesis();
+        Mockito.verify(slotReaderKinesisWriter, Mockito.times(1)).createKinesisProducer(kinesisProducerConfiguration);
+        Mockito.verify(slotReaderKinesisWriter, Mockito.times(2)).createPostgresConnector(Mockito.eq(postgresConfiguration), Mockito.eq(replicationConfiguration), Mockito.any(LogSequenceNumber.class));
+        Mockito.verify(slotReaderKinesisWriter, Mockito.times(2)).readSlotWriteToKinesisHelper(kinesisProducer, postgresConnector);
+        Mockito.verify(kinesisProducer, Mockito.times(0)).destroy();
+    }
+
+    @Test
+    public void testReadSlotWriteToKinesisCreatesNewProducerAfterDestroyingIt() throws Exception {
+        testReadSlotWriteToKinesisException(new RuntimeException("exception"), 1);
+        slotReaderKinesisWriter.readSlotWriteToKinesis();
+        Mockito.verify(slotReaderKinesisWriter, Mockito.times(2)).createKinesisProducer(kinesisProducerConfiguration);
+        Mockito.verify(kinesisProducer, Mockito.times(2)).destroy();
     }
 
     @Test
     public void testGetUserRecordsReturnsOneUserRecordWithSlotMessageDataAndCorrectStreamName() throws Exception {
-        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).getUserRecords(testSlotMessage);
         ObjectMapper realObjectMapper = new ObjectMapper();
-        Whitebox.setInternalState(SlotReaderKinesisWriter.class, "objectMapper", realObjectMapper);
-        List<UserRecord> userRecords = slotReaderKinesisWriter.getUserRecords(testSlotMessage).collect(Collectors.toList());
+        ByteBuffer testSlotMessageBuffer = ByteBuffer.wrap(realObjectMapper.writeValueAsBytes(testSlotMessage));
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).getUserRecords(testSlotMessageBuffer);
+        Whitebox.setInternalState(slotReaderKinesisWriter, "partitionKeyStrategy", new HashKeyRangePartitionKeyStrategy(4));
+        List<UserRecord> userRecords = slotReaderKinesisWriter.getUserRecords(testSlotMessageBuffer).collect(Collectors.toList());
         assertEquals(userRecords.size(), 1);
         SlotMessage slotMessage = realObjectMapper.readValue(userRecords.get(0).getData().array(), SlotMessage.class);
         assertEquals(slotMessage.getXid(), testSlotMessage.getXid());
     }
 
+    @Test
+    public void testGetUserRecordsSplitsOversizedMessagesIntoChunksOnTheSameShard() throws Exception {
+        byte[] large = new byte[100];
+        Arrays.fill(large, (byte) 'x');
+        byte[] message = ("{\"xid\":42,\"change\":\"" + new String(large) + "\"}").getBytes();
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).getUserRecords(Mockito.any(ByteBuffer.class));
+        Whitebox.setInternalState(slotReaderKinesisWriter, "partitionKeyStrategy", new HashKeyRangePartitionKeyStrategy(4));
+        Whitebox.setInternalState(slotReaderKinesisWriter, "streamName", streamName);
+        Whitebox.setInternalState(slotReaderKinesisWriter, "maxRecordBytes", 50);
+        List<UserRecord> userRecords = slotReaderKinesisWriter.getUserRecords(ByteBuffer.wrap(message)).collect(Collectors.toList());
+        assertEquals(6, userRecords.size());
+        SlotMessageReassembler slotMessageReassembler = new SlotMessageReassembler();
+        ByteBuffer reassembled = null;
+        for (UserRecord chunk : userRecords) {
+            assertEquals(userRecords.get(0).getExplicitHashKey(), chunk.getExplicitHashKey());
+            assertEquals(userRecords.get(0).getPartitionKey(), chunk.getPartitionKey());
+            assertTrue(chunk.getData().remaining() <= 50);
+            reassembled = slotMessageReassembler.add(chunk.getData());
+        }
+        assertEquals(ByteBuffer.wrap(message), reassembled);
+    }
+
     @Test
     public void testConstructor() throws Exception {
+        Mockito.doReturn(PartitionKeyStrategy.KEY_COLUMNS).when(replicationConfiguration).getPartitionKeyStrategy();
+        Mockito.doReturn(IdleStrategy.BACKOFF).when(replicationConfiguration).getIdleStrategy();
         SlotReaderKinesisWriter slotReaderKinesisWriter = new SlotReaderKinesisWriter(postgresConfiguration,
                 replicationConfiguration, kinesisProducerConfigurationFactory, streamName);
         assertEquals(Whitebox.getInternalState(slotReaderKinesisWriter, "postgresConfiguration"), postgresConfiguration);
@@ -261,15 +562,256 @@ public class SlotReaderKinesisWriterTest {
         assertEquals(Whitebox.getInternalState(slotReaderKinesisWriter, "streamName"), streamName);
     }
 
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorRejectsBatchesLargerThanRecords() throws Exception {
+        Mockito.doReturn(PartitionKeyStrategy.RANDOM).when(replicationConfiguration).getPartitionKeyStrategy();
+        Mockito.doReturn(IdleStrategy.BACKOFF).when(replicationConfiguration).getIdleStrategy();
+        Mockito.doReturn(2000000).when(replicationConfiguration).getBatchMaxBytes();
+        Mockito.doReturn(1000000).when(replicationConfiguration).getMaxRecordBytes();
+        new SlotReaderKinesisWriter(postgresConfiguration, replicationConfiguration, kinesisProducerConfigurationFactory,
+                streamName);
+    }
+
+    @Test
+    public void testConstructorAcceptsBatchesLargerThanRecordsWithRecordPerChange() throws Exception {
+        Mockito.doReturn(PartitionKeyStrategy.RANDOM).when(replicationConfiguration).getPartitionKeyStrategy();
+        Mockito.doReturn(IdleStrategy.BACKOFF).when(replicationConfiguration).getIdleStrategy();
+        Mockito.doReturn(2000000).when(replicationConfiguration).getBatchMaxBytes();
+        Mockito.doReturn(1000000).when(replicationConfiguration).getMaxRecordBytes();
+        Mockito.doReturn(true).when(replicationConfiguration).getRecordPerChange();
+        new SlotReaderKinesisWriter(postgresConfiguration, replicationConfiguration, kinesisProducerConfigurationFactory,
+                streamName);
+    }
+
     @Test
     public void testGetCallback() throws Exception {
-        Mockito.doReturn(lsn).when(postgresConnector).getLastReceivedLsn();
-        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).getCallback(postgresConnector, userRecord);
-        SlotReaderCallback slotReaderCallback = (SlotReaderCallback) slotReaderKinesisWriter.getCallback(postgresConnector, userRecord);
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).getCallback(lsn, userRecord, lsnAcknowledgementTracker);
+        SlotReaderCallback slotReaderCallback = (SlotReaderCallback) slotReaderKinesisWriter.getCallback(lsn, userRecord, lsnAcknowledgementTracker);
         assertEquals(Whitebox.getInternalState(slotReaderCallback, "slotReaderKinesisWriter"), slotReaderKinesisWriter);
-        assertEquals(Whitebox.getInternalState(slotReaderCallback, "postgresConnector"), postgresConnector);
+        assertSame(lsnAcknowledgementTracker, Whitebox.getInternalState(slotReaderCallback, "lsnAcknowledgementTracker"));
         assertEquals(Whitebox.getInternalState(slotReaderCallback, "lsn"), lsn);
+        assertEquals((long) Whitebox.getInternalState(slotReaderCallback, "sequence"), 0L);
         assertEquals(Whitebox.getInternalState(slotReaderCallback, "userRecord"), userRecord);
+        SlotReaderCallback secondCallback = (SlotReaderCallback) slotReaderKinesisWriter.getCallback(lsn, userRecord, lsnAcknowledgementTracker);
+        assertEquals((long) Whitebox.getInternalState(secondCallback, "sequence"), 1L);
+    }
+
+    @Test
+    public void testReadSlotWriteToKinesisHelperPausesReadingUnderBackpressure() throws Exception {
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).readSlotWriteToKinesisHelper(kinesisProducer, postgresConnector);
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).waitForBackpressure(postgresConnector);
+        Mockito.doReturn(TimeUnit.SECONDS).when(replicationConfiguration).getStatusIntervalTimeUnit();
+        Mockito.doReturn(20).when(replicationConfiguration).getStatusIntervalValue();
+        Mockito.doReturn(100).when(kinesisProducer).getOutstandingRecordsCount();
+        Whitebox.setInternalState(slotReaderKinesisWriter, "lastFlushedTime", System.currentTimeMillis());
+        assertFalse(slotReaderKinesisWriter.readSlotWriteToKinesisHelper(kinesisProducer, postgresConnector));
+        slotReaderKinesisWriter.readSlotWriteToKinesisHelper(kinesisProducer, postgresConnector);
+        Mockito.verify(postgresConnector, Mockito.times(0)).readPending();
+        Mockito.verify(postgresConnector, Mockito.times(1)).forceUpdateStatus();
+        Mockito.verify(slotReaderKinesisWriter, Mockito.times(2)).applyConfirmedLsn(postgresConnector);
+        Mockito.doReturn(50).when(kinesisProducer).getOutstandingRecordsCount();
+        slotReaderKinesisWriter.readSlotWriteToKinesisHelper(kinesisProducer, postgresConnector);
+        Mockito.verify(postgresConnector, Mockito.times(1)).readPending();
+    }
+
+    @Test
+    public void testPutUserRecordAccountsForInFlightBytesUntilCallback() throws Exception {
+        AdmissionController admissionController = Whitebox.getInternalState(slotReaderKinesisWriter, "admissionController");
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).getCallback(lsn, userRecord, lsnAcknowledgementTracker);
+        Mockito.doAnswer(invocation -> {
+            userRecord.getData().position(testByteArray.length);
+            return future;
+        }).when(kinesisProducer).addUserRecord(userRecord);
+        slotReaderKinesisWriter.putUserRecord(userRecord, kinesisProducer, lsn, lsnAcknowledgementTracker);
+        assertEquals(testByteArray.length, admissionController.getInFlightBytes());
+        ArgumentCaptor<Runnable> listener = ArgumentCaptor.forClass(Runnable.class);
+        Mockito.verify(future).addListener(listener.capture(), Mockito.any(java.util.concurrent.Executor.class));
+        Mockito.doReturn(Mockito.mock(UserRecordResult.class)).when(future).get();
+        Mockito.doReturn(true).when(future).isDone();
+        listener.getValue().run();
+        assertEquals(0, admissionController.getInFlightBytes());
+    }
+
+    @Test
+    public void testPipelineRegistersRecordsWithTheTrackerItWasCreatedFor() throws Exception {
+        Mockito.doReturn(2).when(replicationConfiguration).getPipelineWorkers();
+        Mockito.doReturn(4).when(replicationConfiguration).getPipelineDepth();
+        Mockito.doReturn(Collections.singletonList(userRecord)).when(slotReaderKinesisWriter).decodeUserRecords(Mockito.any(ByteBuffer.class));
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).createSlotMessagePipeline(kinesisProducer);
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).getCallback(Mockito.any(LogSequenceNumber.class), Mockito.any(UserRecord.class),
+                Mockito.any(LsnAcknowledgementTracker.class));
+        try (SlotMessagePipeline<List<UserRecord>> pipeline = slotReaderKinesisWriter.createSlotMessagePipeline(kinesisProducer)) {
+            LsnAcknowledgementTracker nextTracker = new LsnAcknowledgementTracker(16);
+            Whitebox.setInternalState(slotReaderKinesisWriter, "lsnAcknowledgementTracker", nextTracker);
+            pipeline.submit(ByteBuffer.allocate(0), lsn);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (pipeline.getInFlightCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(1, lsnAcknowledgementTracker.getInFlightCount());
+            assertEquals(0, nextTracker.getInFlightCount());
+        }
+    }
+
+    @Test
+    public void testPutUserRecordBatchesMessagesAcknowledgedWithTheLastLsn() throws Exception {
+        LsnAcknowledgementTracker tracker = Whitebox.getInternalState(slotReaderKinesisWriter, "lsnAcknowledgementTracker");
+        LogSequenceNumber lastLsn = LogSequenceNumber.valueOf(lsn.asLong() + 1);
+        Mockito.doReturn(1000).when(replicationConfiguration).getBatchMaxBytes();
+        Mockito.doReturn(60000L).when(replicationConfiguration).getBatchMaxDelayMillis();
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).createSlotMessageBatcher(kinesisProducer);
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).hasRecordsInFlight();
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).getCallback(Mockito.any(LogSequenceNumber.class), Mockito.any(UserRecord.class), Mockito.any(LsnAcknowledgementTracker.class));
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).putUserRecord(Mockito.any(UserRecord.class), Mockito.eq(kinesisProducer), Mockito.any(LogSequenceNumber.class), Mockito.any(LsnAcknowledgementTracker.class));
+        Mockito.doReturn(future).when(kinesisProducer).addUserRecord(Mockito.any(UserRecord.class));
+        Whitebox.setInternalState(slotReaderKinesisWriter, "partitionKeyStrategy", new HashKeyRangePartitionKeyStrategy(4));
+        Whitebox.setInternalState(slotReaderKinesisWriter, "streamName", streamName);
+        SlotMessageBatcher slotMessageBatcher = slotReaderKinesisWriter.createSlotMessageBatcher(kinesisProducer);
+        Whitebox.setInternalState(slotReaderKinesisWriter, "slotMessageBatcher", slotMessageBatcher);
+        slotReaderKinesisWriter.putUserRecord(new UserRecord(streamName, "a", ByteBuffer.wrap("{\"a\":1}".getBytes())), kinesisProducer, lsn, tracker);
+        slotReaderKinesisWriter.putUserRecord(new UserRecord(streamName, "b", ByteBuffer.wrap("{\"b\":2}".getBytes())), kinesisProducer, lastLsn, tracker);
+        Mockito.verify(kinesisProducer, Mockito.times(0)).addUserRecord(Mockito.any(UserRecord.class));
+        assertTrue(slotReaderKinesisWriter.hasRecordsInFlight());
+        slotMessageBatcher.flush();
+        ArgumentCaptor<UserRecord> batch = ArgumentCaptor.forClass(UserRecord.class);
+        Mockito.verify(kinesisProducer, Mockito.times(1)).addUserRecord(batch.capture());
+        assertEquals(streamName, batch.getValue().getStreamName());
+        assertEquals(2, SlotMessageBatchDecoder.decode(batch.getValue().getData()).size());
+        assertEquals(1, tracker.getInFlightCount());
+        tracker.acknowledge(0);
+        assertEquals(lastLsn, tracker.getConfirmedLsn());
+    }
+
+    @Test
+    public void testPutUserRecordSpillsAndAcknowledgesOnceDurable() throws Exception {
+        LsnAcknowledgementTracker tracker = Whitebox.getInternalState(slotReaderKinesisWriter, "lsnAcknowledgementTracker");
+        SpillStage spillStage = Mockito.mock(SpillStage.class);
+        Whitebox.setInternalState(slotReaderKinesisWriter, "spillStage", spillStage);
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).spillUserRecord(userRecord, lsn, lsnAcknowledgementTracker);
+        slotReaderKinesisWriter.putUserRecord(userRecord, kinesisProducer, lsn, lsnAcknowledgementTracker);
+        ArgumentCaptor<Runnable> onDurable = ArgumentCaptor.forClass(Runnable.class);
+        Mockito.verify(spillStage).append(Mockito.eq(userRecord), onDurable.capture());
+        Mockito.verify(kinesisProducer, Mockito.times(0)).addUserRecord(userRecord);
+        assertEquals(1, tracker.getInFlightCount());
+        onDurable.getValue().run();
+        assertEquals(0, tracker.getInFlightCount());
+        assertEquals(lsn, tracker.getConfirmedLsn());
+    }
+
+    @Test
+    public void testApplyConfirmedLsnOnlySetsStreamLsnWhenItAdvances() throws Exception {
+        LsnAcknowledgementTracker tracker = Whitebox.getInternalState(slotReaderKinesisWriter, "lsnAcknowledgementTracker");
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).applyConfirmedLsn(postgresConnector);
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).reportConfirmedLsn(postgresConnector);
+        slotReaderKinesisWriter.applyConfirmedLsn(postgresConnector);
+        Mockito.verify(postgresConnector, Mockito.times(0)).setStreamLsn(Mockito.any(LogSequenceNumber.class));
+        long first = tracker.register(LogSequenceNumber.valueOf(100));
+        long second = tracker.register(lsn);
+        tracker.acknowledge(second);
+        slotReaderKinesisWriter.applyConfirmedLsn(postgresConnector);
+        Mockito.verify(postgresConnector, Mockito.times(0)).setStreamLsn(Mockito.any(LogSequenceNumber.class));
+        tracker.acknowledge(first);
+        slotReaderKinesisWriter.applyConfirmedLsn(postgresConnector);
+        slotReaderKinesisWriter.applyConfirmedLsn(postgresConnector);
+        Mockito.verify(postgresConnector, Mockito.times(1)).setStreamLsn(lsn);
+    }
+
+    @Test(expected = IOException.class)
+    public void testApplyConfirmedLsnThrowsOnceARecordFailed() throws Exception {
+        LsnAcknowledgementTracker tracker = Whitebox.getInternalState(slotReaderKinesisWriter, "lsnAcknowledgementTracker");
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).applyConfirmedLsn(postgresConnector);
+        tracker.register(lsn);
+        tracker.fail(new RuntimeException("throttled"));
+        slotReaderKinesisWriter.applyConfirmedLsn(postgresConnector);
+    }
+
+    @Test
+    public void testReadSlotWriteToKinesisHelperNotUpdatesLsnWhenRecordsInFlight() throws Exception {
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).readSlotWriteToKinesisHelper(kinesisProducer, postgresConnector);
+        Mockito.doReturn(true).when(slotReaderKinesisWriter).hasRecordsInFlight();
+        Mockito.doReturn(null).when(postgresConnector).readPending();
+        Whitebox.setInternalState(slotReaderKinesisWriter, "lastFlushedTime", System.currentTimeMillis() - 11 * 1000);
+        slotReaderKinesisWriter.readSlotWriteToKinesisHelper(kinesisProducer, postgresConnector);
+        Mockito.verify(postgresConnector, Mockito.times(0)).getCurrentLSN();
+        Mockito.verify(postgresConnector, Mockito.times(0)).setStreamLsn(Mockito.any(LogSequenceNumber.class));
+    }
+
+    @Test
+    public void testGetResumeLsnFoldsInWhatThePreviousConnectionConfirmed() throws Exception {
+        LsnAcknowledgementTracker tracker = Whitebox.getInternalState(slotReaderKinesisWriter, "lsnAcknowledgementTracker");
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).getResumeLsn();
+        assertEquals(LogSequenceNumber.INVALID_LSN, slotReaderKinesisWriter.getResumeLsn());
+        tracker.acknowledge(tracker.register(lsn));
+        assertEquals(lsn, slotReaderKinesisWriter.getResumeLsn());
+        Whitebox.setInternalState(slotReaderKinesisWriter, "lsnAcknowledgementTracker", new LsnAcknowledgementTracker(16));
+        assertEquals(lsn, slotReaderKinesisWriter.getResumeLsn());
+    }
+
+    @Test
+    public void testReadSlotWriteToKinesisResumesFromConfirmedLsnAndReportsItBeforeClosing() throws Exception {
+        LsnAcknowledgementTracker tracker = Whitebox.getInternalState(slotReaderKinesisWriter, "lsnAcknowledgementTracker");
+        tracker.acknowledge(tracker.register(lsn));
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).getResumeLsn();
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).reportConfirmedLsn(postgresConnector);
+        Mockito.doAnswer(invocation -> {
+            LsnAcknowledgementTracker current = Whitebox.getInternalState(slotReaderKinesisWriter, "lsnAcknowledgementTracker");
+            current.acknowledge(current.register(LogSequenceNumber.valueOf(lsn.asLong() + 1)));
+            throw new IOException("io exception");
+        }).when(slotReaderKinesisWriter).readSlotWriteToKinesisHelper(kinesisProducer, postgresConnector);
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).readSlotWriteToKinesis();
+        Mockito.doReturn(kinesisProducer).when(slotReaderKinesisWriter).createKinesisProducer(kinesisProducerConfiguration);
+        Mockito.doReturn(postgresConnector).when(slotReaderKinesisWriter).createPostgresConnector(postgresConfiguration, replicationConfiguration, lsn);
+        slotReaderKinesisWriter.readSlotWriteToKinesis();
+        Mockito.verify(slotReaderKinesisWriter, Mockito.times(1)).createPostgresConnector(postgresConfiguration, replicationConfiguration, lsn);
+        Mockito.verify(postgresConnector, Mockito.times(1)).setStreamLsn(LogSequenceNumber.valueOf(lsn.asLong() + 1));
+        Mockito.verify(postgresConnector, Mockito.times(1)).close();
+    }
+
+    @Test
+    public void testReadInitialSnapshotWaitsForRowsToBeAcknowledged() throws Exception {
+        InitialSnapshot initialSnapshot = Mockito.mock(InitialSnapshot.class);
+        Whitebox.setInternalState(slotReaderKinesisWriter, "producer", kinesisProducer);
+        Mockito.doReturn(initialSnapshot).when(slotReaderKinesisWriter).createInitialSnapshot(Mockito.<Supplier<SlotMessageHandler>>any());
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).readInitialSnapshot("snapshot", lsn);
+        Mockito.doAnswer(invocation -> {
+            LsnAcknowledgementTracker tracker = Whitebox.getInternalState(slotReaderKinesisWriter, "lsnAcknowledgementTracker");
+            long sequence = tracker.register(lsn);
+            Mockito.doAnswer(idle -> {
+                tracker.acknowledge(sequence);
+                return null;
+            }).when(idleStrategy).idle();
+            return null;
+        }).when(initialSnapshot).read("snapshot", lsn);
+        slotReaderKinesisWriter.readInitialSnapshot("snapshot", lsn);
+        Mockito.verify(idleStrategy, Mockito.times(1)).idle();
+        LsnAcknowledgementTracker tracker = Whitebox.getInternalState(slotReaderKinesisWriter, "lsnAcknowledgementTracker");
+        assertEquals(lsn, tracker.getConfirmedLsn());
+        Mockito.verify(slotReaderKinesisWriter, Mockito.never()).createKinesisProducer(kinesisProducerConfiguration);
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadInitialSnapshotThrowsWhenARowFails() throws Exception {
+        InitialSnapshot initialSnapshot = Mockito.mock(InitialSnapshot.class);
+        Whitebox.setInternalState(slotReaderKinesisWriter, "producer", kinesisProducer);
+        Mockito.doReturn(initialSnapshot).when(slotReaderKinesisWriter).createInitialSnapshot(Mockito.<Supplier<SlotMessageHandler>>any());
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).readInitialSnapshot("snapshot", lsn);
+        Mockito.doAnswer(invocation -> {
+            LsnAcknowledgementTracker tracker = Whitebox.getInternalState(slotReaderKinesisWriter, "lsnAcknowledgementTracker");
+            tracker.register(lsn);
+            tracker.fail(new RuntimeException("put failed"));
+            return null;
+        }).when(initialSnapshot).read("snapshot", lsn);
+        slotReaderKinesisWriter.readInitialSnapshot("snapshot", lsn);
+    }
+
+    @Test
+    public void testPutSnapshotRecordWaitsForTheProducerToCatchUp() throws Exception {
+        Mockito.when(kinesisProducer.getOutstandingRecordsCount()).thenReturn(100, 100, 0);
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).putSnapshotRecord(userRecord, kinesisProducer, lsn);
+        slotReaderKinesisWriter.putSnapshotRecord(userRecord, kinesisProducer, lsn);
+        Mockito.verify(idleStrategy, Mockito.times(2)).idle();
+        Mockito.verify(slotReaderKinesisWriter, Mockito.times(1)).addUserRecord(userRecord, kinesisProducer, lsn, lsnAcknowledgementTracker);
+        Mockito.verify(kinesisProducer, Mockito.times(1)).addUserRecord(userRecord);
     }
 
     @Test
@@ -280,18 +822,20 @@ public class SlotReaderKinesisWriterTest {
         assert((long) Whitebox.getInternalState(slotReaderKinesisWriter, "lastFlushedTime") > 0);
     }
 
-    private void testReadSlotWriteToKinesisException(Exception e) throws Exception {
+    private void testReadSlotWriteToKinesisException(Exception e, int destroyed) throws Exception {
         Mockito.doCallRealMethod().when(slotReaderKinesisWriter).readSlotWriteToKinesis();
+        Mockito.doCallRealMethod().when(slotReaderKinesisWriter).destroyKinesisProducer();
         Mockito.doReturn(kinesisProducer).when(slotReaderKinesisWriter).createKinesisProducer(kinesisProducerConfiguration);
-        Mockito.doReturn(postgresConnector).when(slotReaderKinesisWriter).createPostgresConnector(postgresConfiguration, replicationConfiguration);
+        Mockito.doReturn(postgresConnector).when(slotReaderKinesisWriter).createPostgresConnector(Mockito.eq(postgresConfiguration), Mockito.eq(replicationConfiguration), Mockito.any(LogSequenceNumber.class));
         Mockito.doThrow(e).when(slotReaderKinesisWriter).readSlotWriteToKinesisHelper(kinesisProducer, postgresConnector);
         slotReaderKinesisWriter.readSlotWriteToKinesis();
         Mockito.verify(slotReaderKinesisWriter, Mockito.times(1)).resetIdleCounter();
         Mockito.verify(slotReaderKinesisWriter, Mockito.times(1)).readSlotWriteToKinesisHelper(kinesisProducer, postgresConnector);
+        Mockito.verify(idleStrategy, Mockito.times(1)).reset();
         Mockito.verify(slotReaderKinesisWriter, Mockito.times(1)).createKinesisProducer(kinesisProducerConfiguration);
-        Mockito.verify(slotReaderKinesisWriter, Mockito.times(1)).createPostgresConnector(postgresConfiguration, replicationConfiguration);
-        Mockito.verify(kinesisProducer, Mockito.times(1)).flushSync();
-        Mockito.verify(kinesisProducer, Mockito.times(1)).destroy();
+        Mockito.verify(slotReaderKinesisWriter, Mockito.times(1)).createPostgresConnector(Mockito.eq(postgresConfiguration), Mockito.eq(replicationConfiguration), Mockito.any(LogSequenceNumber.class));
+        Mockito.verify(kinesisProducer, Mockito.times(destroyed)).flushSync();
+        Mockito.verify(kinesisProducer, Mockito.times(destroyed)).destroy();
     }
 
 }
@@ -0,0 +1,183 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ *******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SpillLogTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static final int segmentBytes = 64;
+
+    @Test
+    public void testPollReturnsAppendedRecordsInOrder() throws Exception {
+        try (SpillLog spillLog = new SpillLog(temporaryFolder.getRoot().toPath(), segmentBytes, segmentBytes * 4)) {
+            assertNull(spillLog.poll());
+            assertEquals(0, spillLog.append(payload("a")));
+            assertEquals(1, spillLog.append(payload("bb")));
+            SpillLog.Entry first = spillLog.poll();
+            assertEquals(0, first.getSequence());
+            assertEquals("a", string(first.getPayload()));
+            assertEquals("bb", string(spillLog.poll().getPayload()));
+            assertNull(spillLog.poll());
+        }
+    }
+
+    @Test
+    public void testSegmentsAreDeletedOnceDrainedAndReleased() throws Exception {
+        try (SpillLog spillLog = new SpillLog(temporaryFolder.getRoot().toPath(), segmentBytes, segmentBytes * 2)) {
+            for (int i = 0; i < 4; i++) {
+                spillLog.append(payload("0123456789"));
+            }
+            assertEquals(2, segmentCount());
+            assertTrue(spillLog.isFull());
+            SpillLog.Entry first = spillLog.poll();
+            SpillLog.Entry second = spillLog.poll();
+            SpillLog.Entry third = spillLog.poll();
+            spillLog.release(second);
+            spillLog.release(third);
+            assertEquals(2, segmentCount());
+            spillLog.release(first);
+            assertEquals(1, segmentCount());
+            assertFalse(spillLog.isFull());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAppendRejectsRecordsLargerThanASegment() throws Exception {
+        try (SpillLog spillLog = new SpillLog(temporaryFolder.getRoot().toPath(), segmentBytes, segmentBytes * 2)) {
+            spillLog.append(ByteBuffer.allocate(segmentBytes));
+        }
+    }
+
+    @Test
+    public void testReopeningSkipsReleasedRecordsPollsUnreleasedOnesAgainAndCarriesOnNumbering() throws Exception {
+        Path directory = temporaryFolder.getRoot().toPath();
+        try (SpillLog spillLog = new SpillLog(directory, segmentBytes, segmentBytes * 4)) {
+            spillLog.append(payload("a"));
+            spillLog.append(payload("b"));
+            spillLog.release(spillLog.poll());
+            spillLog.poll();
+            assertEquals(1, spillLog.getReleasedUpTo());
+        }
+        try (SpillLog spillLog = new SpillLog(directory, segmentBytes, segmentBytes * 4)) {
+            assertEquals(1, spillLog.getReleasedUpTo());
+            assertEquals("b", string(spillLog.poll().getPayload()));
+            assertNull(spillLog.poll());
+            assertEquals(2, spillLog.append(payload("c")));
+            assertEquals("c", string(spillLog.poll().getPayload()));
+        }
+    }
+
+    @Test
+    public void testCheckpointOnlyCoversReleasedPrefix() throws Exception {
+        Path directory = temporaryFolder.getRoot().toPath();
+        try (SpillLog spillLog = new SpillLog(directory, segmentBytes, segmentBytes * 4)) {
+            spillLog.append(payload("a"));
+            spillLog.append(payload("b"));
+            spillLog.append(payload("c"));
+            SpillLog.Entry first = spillLog.poll();
+            spillLog.release(spillLog.poll());
+            assertEquals(0, spillLog.getReleasedUpTo());
+            spillLog.force();
+            try (SpillLog reopened = new SpillLog(directory, segmentBytes, segmentBytes * 4)) {
+                assertEquals("a", string(reopened.poll().getPayload()));
+            }
+            spillLog.release(first);
+            assertEquals(2, spillLog.getReleasedUpTo());
+        }
+        try (SpillLog spillLog = new SpillLog(directory, segmentBytes, segmentBytes * 4)) {
+            assertEquals("c", string(spillLog.poll().getPayload()));
+            assertNull(spillLog.poll());
+        }
+    }
+
+    @Test
+    public void testReopeningFullyReleasedLogDeletesItsSegmentsAndCarriesOnNumbering() throws Exception {
+        Path directory = temporaryFolder.getRoot().toPath();
+        try (SpillLog spillLog = new SpillLog(directory, segmentBytes, segmentBytes * 4)) {
+            for (int i = 0; i < 4; i++) {
+                spillLog.append(payload("0123456789"));
+            }
+            for (int i = 0; i < 4; i++) {
+                spillLog.release(spillLog.poll());
+            }
+        }
+        try (SpillLog spillLog = new SpillLog(directory, segmentBytes, segmentBytes * 4)) {
+            assertNull(spillLog.poll());
+            assertEquals(1, segmentCount());
+            assertEquals(4, spillLog.append(payload("d")));
+            assertEquals(4, spillLog.poll().getSequence());
+        }
+    }
+
+    @Test
+    public void testReopeningTruncatesATornRecord() throws Exception {
+        Path directory = temporaryFolder.getRoot().toPath();
+        try (SpillLog spillLog = new SpillLog(directory, segmentBytes, segmentBytes * 4)) {
+            spillLog.append(payload("a"));
+            spillLog.append(payload("b"));
+        }
+        File segment = directory.toFile().listFiles((dir, name) -> name.endsWith(SpillLog.SEGMENT_SUFFIX))[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(SpillLog.HEADER_BYTES * 2 + 1);
+            file.write('x');
+        }
+        try (SpillLog spillLog = new SpillLog(directory, segmentBytes, segmentBytes * 4)) {
+            assertEquals("a", string(spillLog.poll().getPayload()));
+            assertNull(spillLog.poll());
+            assertEquals(1, spillLog.append(payload("c")));
+        }
+    }
+
+    private int segmentCount() {
+        return temporaryFolder.getRoot().list((dir, name) -> name.endsWith(SpillLog.SEGMENT_SUFFIX)).length;
+    }
+
+    private static ByteBuffer payload(String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ *******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import com.amazonaws.services.kinesis.producer.KinesisProducer;
+import com.amazonaws.services.kinesis.producer.UserRecord;
+import com.amazonaws.services.kinesis.producer.UserRecordResult;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SpillStageTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final KinesisProducer kinesisProducer = Mockito.mock(KinesisProducer.class);
+    private final List<SettableFuture<UserRecordResult>> futures = new CopyOnWriteArrayList<>();
+    private final List<UserRecord> putRecords = new CopyOnWriteArrayList<>();
+    private SpillLog spillLog;
+    private SpillStage spillStage;
+
+    @Before
+    public void setUp() throws Exception {
+        Mockito.doAnswer(invocation -> {
+            UserRecord userRecord = (UserRecord) invocation.getArguments()[0];
+            byte[] data = new byte[userRecord.getData().remaining()];
+            userRecord.getData().get(data);
+            SettableFuture<UserRecordResult> future = SettableFuture.create();
+            futures.add(future);
+            putRecords.add(new UserRecord(userRecord.getStreamName(), userRecord.getPartitionKey(),
+                    userRecord.getExplicitHashKey(), ByteBuffer.wrap(data)));
+            return future;
+        }).when(kinesisProducer).addUserRecord(Mockito.any(UserRecord.class));
+        spillLog = new SpillLog(temporaryFolder.getRoot().toPath(), 1024, 4096);
+        spillStage = new SpillStage(spillLog, kinesisProducer, new AdmissionController(100, 1000), 2);
+    }
+
+    @After
+    public void tearDown() {
+        spillStage.close();
+    }
+
+    @Test
+    public void testEncodeDecodeRoundTrips() {
+        UserRecord userRecord = new UserRecord("stream", "partitionKey", "12345", ByteBuffer.wrap("data".getBytes()));
+        UserRecord decoded = SpillStage.decode(spillStage.encode(userRecord));
+        assertEquals("stream", decoded.getStreamName());
+        assertEquals("partitionKey", decoded.getPartitionKey());
+        assertEquals("12345", decoded.getExplicitHashKey());
+        assertEquals(ByteBuffer.wrap("data".getBytes()), decoded.getData());
+        UserRecord withoutHashKey = new UserRecord("stream", "partitionKey", ByteBuffer.wrap("data".getBytes()));
+        assertNull(SpillStage.decode(spillStage.encode(withoutHashKey)).getExplicitHashKey());
+    }
+
+    @Test
+    public void testRecordsAreAcknowledgedOnceForcedToDisk() throws Exception {
+        AtomicInteger durable = new AtomicInteger();
+        spillStage.append(userRecord("a"), durable::incrementAndGet);
+        assertEquals(0, durable.get());
+        spillStage.append(userRecord("b"), durable::incrementAndGet);
+        assertEquals(2, durable.get());
+        spillStage.append(userRecord("c"), durable::incrementAndGet);
+        spillStage.syncIfDue();
+        Thread.sleep(20);
+        spillStage.syncIfDue();
+        assertEquals(3, durable.get());
+    }
+
+    @Test
+    public void testSpilledRecordsAreDrainedAndFailedOnesPutAgain() throws Exception {
+        spillStage.append(userRecord("a"), () -> { });
+        spillStage.append(userRecord("b"), () -> { });
+        awaitPuts(2);
+        assertEquals(ByteBuffer.wrap("a".getBytes()), putRecords.get(0).getData());
+        assertEquals(ByteBuffer.wrap("b".getBytes()), putRecords.get(1).getData());
+        futures.get(0).setException(new RuntimeException("throttled"));
+        futures.get(1).set(Mockito.mock(UserRecordResult.class));
+        awaitPuts(3);
+        assertEquals(ByteBuffer.wrap("a".getBytes()), putRecords.get(2).getData());
+    }
+
+    @Test
+    public void testDrainingBlocksOnFailedRecordsUntilTheyArePut() throws Exception {
+        spillStage.append(userRecord("a"), () -> { });
+        awaitPuts(1);
+        futures.get(0).setException(new RuntimeException("throttled"));
+        awaitPuts(2);
+        assertEquals(ByteBuffer.wrap("a".getBytes()), putRecords.get(1).getData());
+        spillStage.append(userRecord("b"), () -> { });
+        Thread.sleep(20);
+        assertEquals(2, putRecords.size());
+        futures.get(1).setException(new RuntimeException("throttled"));
+        awaitPuts(3);
+        assertEquals(ByteBuffer.wrap("a".getBytes()), putRecords.get(2).getData());
+        futures.get(2).set(Mockito.mock(UserRecordResult.class));
+        awaitPuts(4);
+        assertEquals(ByteBuffer.wrap("b".getBytes()), putRecords.get(3).getData());
+    }
+
+    private void awaitPuts(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (putRecords.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(count, putRecords.size());
+    }
+
+    private static UserRecord userRecord(String data) {
+        return new UserRecord("stream", "partitionKey", ByteBuffer.wrap(data.getBytes()));
+    }
+}
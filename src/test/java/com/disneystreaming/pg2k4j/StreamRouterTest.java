@@ -0,0 +1,98 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ *******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import com.amazonaws.services.kinesis.producer.UserRecord;
+import com.disneystreaming.pg2k4j.models.Change;
+import com.disneystreaming.pg2k4j.models.InsertChange;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StreamRouterTest {
+
+    private static final ByteBuffer data = ByteBuffer.wrap("data".getBytes());
+
+    private ReplicationConfiguration replicationConfiguration;
+
+    @Before
+    public void setUp() {
+        replicationConfiguration = Mockito.mock(ReplicationConfiguration.class);
+        Mockito.doReturn(PartitionKeyStrategy.RANDOM).when(replicationConfiguration).getPartitionKeyStrategy();
+    }
+
+    @Test
+    public void testFromConfigurationWithoutRoutes() {
+        Mockito.doReturn(null).when(replicationConfiguration).getStreamRoutes();
+        assertNull(StreamRouter.fromConfiguration(replicationConfiguration));
+        Mockito.doReturn(Collections.emptyList()).when(replicationConfiguration).getStreamRoutes();
+        assertNull(StreamRouter.fromConfiguration(replicationConfiguration));
+    }
+
+    @Test
+    public void testFirstMatchingRouteWins() {
+        Mockito.doReturn(Arrays.asList("public\\.(orders|order_lines)=orders", "public\\..*=public"))
+                .when(replicationConfiguration).getStreamRoutes();
+        StreamRouter streamRouter = StreamRouter.fromConfiguration(replicationConfiguration);
+        assertEquals("orders", streamRouter.route(change("public", "order_lines")).getStreamName());
+        assertEquals("public", streamRouter.route(change("public", "users")).getStreamName());
+        assertNull(streamRouter.route(change("audit", "orders")));
+        assertEquals("public", streamRouter.route(change("public", "orders_archive")).getStreamName());
+    }
+
+    @Test
+    public void testRouteUsesItsOwnPartitionKeyStrategy() {
+        Mockito.doReturn(Collections.singletonList("public\\.orders=orders:shardrange:4"))
+                .when(replicationConfiguration).getStreamRoutes();
+        StreamRouter.Route route = StreamRouter.fromConfiguration(replicationConfiguration)
+                .route(change("public", "orders"));
+        UserRecord userRecord = route.createUserRecord(change("public", "orders"), data);
+        assertEquals("orders", userRecord.getStreamName());
+        assertTrue(Arrays.asList("0", "1", "2", "3").contains(userRecord.getPartitionKey()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRouteWithoutStreamIsRejected() {
+        StreamRouter.Route.parse("public\\.orders=", replicationConfiguration);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRouteWithUnknownStrategyIsRejected() {
+        StreamRouter.Route.parse("public\\.orders=orders:sometimes", replicationConfiguration);
+    }
+
+    private static Change change(String schema, String table) {
+        return new InsertChange("insert", Collections.singletonList("id"), Collections.singletonList("integer"),
+                table, Collections.singletonList(1), schema, Collections.singletonList("id"));
+    }
+}
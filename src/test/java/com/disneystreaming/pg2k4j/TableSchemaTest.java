@@ -0,0 +1,99 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ *******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import com.disneystreaming.pg2k4j.models.InsertChange;
+import com.disneystreaming.pg2k4j.models.TableSchema;
+import com.disneystreaming.pg2k4j.models.UnknownColumnNameException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class TableSchemaTest {
+
+    @Test
+    public void testOfInternsSchemasOfTheSameShape() {
+        final TableSchema first = TableSchema.of("public", "interned", new ArrayList<>(Arrays.asList("id", "name")), Arrays.asList("integer", "text"), Collections.singletonList("id"));
+        final TableSchema second = TableSchema.of("public", "interned", Arrays.asList("id", "name"), new ArrayList<>(Arrays.asList("integer", "text")), Collections.singletonList("id"));
+        assertSame(first, second);
+        assertNotSame(first, TableSchema.of("public", "interned", Arrays.asList("id", "name"), Arrays.asList("integer", "varchar"), Collections.singletonList("id")));
+    }
+
+    @Test
+    public void testOfCopiesTheColumns() {
+        final ArrayList<String> columnNames = new ArrayList<>(Arrays.asList("id", "copied"));
+        final TableSchema tableSchema = TableSchema.of("public", "copied", columnNames, Arrays.asList("integer", "text"), null);
+        columnNames.add("added");
+        assertEquals(Arrays.asList("id", "copied"), tableSchema.getColumnNames());
+    }
+
+    @Test
+    public void testIndexOf() {
+        final TableSchema tableSchema = TableSchema.of("public", "indexed", Arrays.asList("id", "name", "id"), Arrays.asList("integer", "text", "integer"), null);
+        assertEquals(0, tableSchema.indexOf("id"));
+        assertEquals(1, tableSchema.indexOf("name"));
+        assertEquals(-1, tableSchema.indexOf("missing"));
+    }
+
+    @Test
+    public void testGetKeyValues() {
+        final TableSchema tableSchema = TableSchema.of("public", "keyed", Arrays.asList("name", "id", "tenant"), Arrays.asList("text", "integer", "integer"), Arrays.asList("tenant", "id"));
+        assertEquals(Arrays.asList(7, 1), tableSchema.getKeyValues(Arrays.asList("a", 1, 7)));
+        assertNull(TableSchema.of("public", "keyed", Arrays.asList("name", "id"), Arrays.asList("text", "integer"), Arrays.asList("tenant", "id")).getKeyValues(Arrays.asList("a", 1)));
+        assertNull(TableSchema.of("public", "keyed", Arrays.asList("name", "id"), Arrays.asList("text", "integer"), null).getKeyValues(Arrays.asList("a", 1)));
+    }
+
+    @Test
+    public void testChangesShareTheirSchema() throws UnknownColumnNameException {
+        final TableSchema tableSchema = TableSchema.of("public", "shared", Arrays.asList("id", "name"), Arrays.asList("integer", "text"), Collections.singletonList("id"));
+        final InsertChange first = new InsertChange("insert", tableSchema, Arrays.asList(1, "a"));
+        final InsertChange second = new InsertChange("insert", TableSchema.of("public", "shared", Arrays.asList("id", "name"), Arrays.asList("integer", "text"), Collections.singletonList("id")), Arrays.asList(2, "b"));
+        assertSame(first.getTableSchema(), second.getTableSchema());
+        assertSame(first.getColumnnames(), second.getColumnnames());
+        assertEquals("b", second.getValueForColumn("name"));
+        assertEquals(Collections.singletonList(2), second.getKeyvalues());
+    }
+
+    @Test
+    public void testChangesBuiltFromColumnsHoldTheirOwnLists() throws UnknownColumnNameException {
+        final ArrayList<String> columnNames = new ArrayList<>(Arrays.asList("id", "name"));
+        final InsertChange change = new InsertChange("insert", columnNames, Arrays.asList("integer", "text"), "plain", Arrays.asList(1, "a"), "public");
+        assertSame(columnNames, change.getColumnnames());
+        assertNotSame(TableSchema.of("public", "plain", columnNames, Arrays.asList("integer", "text"), null), change.getTableSchema());
+        assertEquals("a", change.getValueForColumn("name"));
+    }
+
+    @Test(expected = UnknownColumnNameException.class)
+    public void testGetValueForUnknownColumn() throws UnknownColumnNameException {
+        new InsertChange("insert", Arrays.asList("id"), Arrays.asList("integer"), "shared", Arrays.asList(1), "public", null).getValueForColumn("missing");
+    }
+}
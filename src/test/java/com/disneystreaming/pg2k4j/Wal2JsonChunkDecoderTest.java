@@ -0,0 +1,130 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ *******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import com.disneystreaming.pg2k4j.models.InsertChange;
+import com.disneystreaming.pg2k4j.models.UpdateChange;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Wal2JsonChunkDecoderTest {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static final String insert = "{\"kind\":\"insert\",\"schema\":\"public\",\"table\":\"users\","
+            + "\"columnnames\":[\"id\",\"name\"],\"columntypes\":[\"integer\",\"text\"],\"columnvalues\":[1,\"a\"]}";
+    private static final String update = "{\"kind\":\"update\",\"schema\":\"public\",\"table\":\"orders\","
+            + "\"columnnames\":[\"id\"],\"columntypes\":[\"integer\"],\"columnvalues\":[7],"
+            + "\"oldkeys\":{\"keynames\":[\"id\"],\"keytypes\":[\"integer\"],\"keyvalues\":[7]}}";
+
+    @Test
+    public void testDecodeStreamsChangesAsTheirChunksArrive() throws Exception {
+        Wal2JsonChunkDecoder decoder = decoder(null);
+        Wal2JsonParserTest.RecordingHandler handler = new Wal2JsonParserTest.RecordingHandler();
+        decode(decoder, "{\"xid\":3147483647,\"timestamp\":\"2019-01-01\",\"change\":[", handler);
+        assertEquals(1, handler.begins);
+        assertEquals(3147483647L, handler.xid);
+        assertTrue(decoder.isInTransaction());
+        decode(decoder, insert, handler);
+        assertEquals(1, handler.changes.size());
+        assertTrue(handler.changes.get(0) instanceof InsertChange);
+        decode(decoder, "," + update, handler);
+        assertTrue(handler.changes.get(1) instanceof UpdateChange);
+        assertEquals(0, handler.commits);
+        decode(decoder, "]}", handler);
+        assertEquals(1, handler.commits);
+        assertFalse(decoder.isInTransaction());
+    }
+
+    @Test
+    public void testDecodeToleratesPrettyPrintedChunks() throws Exception {
+        Wal2JsonChunkDecoder decoder = decoder(null);
+        Wal2JsonParserTest.RecordingHandler handler = new Wal2JsonParserTest.RecordingHandler();
+        decode(decoder, "{\n\t\"xid\": 1,\n\t\"change\": [\n", handler);
+        decode(decoder, "\t\t" + insert + "\n", handler);
+        decode(decoder, "\t\t,\n" + update, handler);
+        decode(decoder, "\n\t]\n}", handler);
+        assertEquals(2, handler.changes.size());
+        assertEquals(1, handler.commits);
+    }
+
+    @Test
+    public void testDecodeFiltersChunks() throws Exception {
+        Wal2JsonChunkDecoder decoder = decoder("orders");
+        Wal2JsonParserTest.RecordingHandler handler = new Wal2JsonParserTest.RecordingHandler();
+        for (String chunk : Arrays.asList("{\"xid\":1,\"change\":[", insert, "," + update, "]}")) {
+            decode(decoder, chunk, handler);
+        }
+        assertEquals(1, handler.changes.size());
+        assertEquals("orders", handler.changes.get(0).getTable());
+    }
+
+    @Test
+    public void testDecodeParsesWholeTransactions() throws Exception {
+        Wal2JsonChunkDecoder decoder = decoder(null);
+        Wal2JsonParserTest.RecordingHandler handler = new Wal2JsonParserTest.RecordingHandler();
+        decode(decoder, "{\"xid\":1,\"change\":[" + insert + "," + update + "]}", handler);
+        assertEquals(2, handler.changes.size());
+        assertEquals(1, handler.commits);
+        assertFalse(decoder.isInTransaction());
+    }
+
+    @Test
+    public void testDecodeHonoursBufferPosition() throws Exception {
+        Wal2JsonChunkDecoder decoder = decoder(null);
+        Wal2JsonParserTest.RecordingHandler handler = new Wal2JsonParserTest.RecordingHandler();
+        decode(decoder, "{\"xid\":1,\"change\":[", handler);
+        byte[] padded = ("xx," + insert + "xx").getBytes();
+        decoder.decode(ByteBuffer.wrap(padded, 2, padded.length - 4), handler);
+        assertEquals(1, handler.changes.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecodeRejectsChangeOutsideOfTransaction() throws Exception {
+        decode(decoder(null), "," + insert, new Wal2JsonParserTest.RecordingHandler());
+    }
+
+    private static Wal2JsonChunkDecoder decoder(final String relevantTable) {
+        HashSet<String> relevantTables = null;
+        if (relevantTable != null) {
+            relevantTables = new HashSet<>(Arrays.asList(relevantTable));
+        }
+        return new Wal2JsonChunkDecoder(new Wal2JsonParser(objectMapper, new ChangeFilter(relevantTables, null, null)));
+    }
+
+    private static void decode(final Wal2JsonChunkDecoder decoder, final String chunk,
+                               final SlotMessageHandler handler) throws IOException {
+        decoder.decode(ByteBuffer.wrap(chunk.getBytes()), handler);
+    }
+}
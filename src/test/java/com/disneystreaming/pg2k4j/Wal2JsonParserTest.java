@@ -0,0 +1,318 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ *******************************************************************************/
+
+package com.disneystreaming.pg2k4j;
+
+import com.disneystreaming.pg2k4j.models.Change;
+import com.disneystreaming.pg2k4j.models.DeleteChange;
+import com.disneystreaming.pg2k4j.models.InsertChange;
+import com.disneystreaming.pg2k4j.models.SchemaDictionary;
+import com.disneystreaming.pg2k4j.models.SlotMessage;
+import com.disneystreaming.pg2k4j.models.UpdateChange;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class Wal2JsonParserTest {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static final String insert = "{\"kind\":\"insert\",\"schema\":\"public\",\"table\":\"users\","
+            + "\"columnnames\":[\"id\",\"name\"],\"columntypes\":[\"integer\",\"text\"],\"columnvalues\":[1,\"a\"]}";
+    private static final String update = "{\"kind\":\"update\",\"schema\":\"public\",\"table\":\"users\","
+            + "\"columnnames\":[\"id\",\"name\"],\"columntypes\":[\"integer\",\"text\"],\"columnvalues\":[1,\"b\"],"
+            + "\"oldkeys\":{\"keynames\":[\"id\"],\"keytypes\":[\"integer\"],\"keyvalues\":[1]}}";
+    private static final String delete = "{\"kind\":\"delete\",\"schema\":\"public\",\"table\":\"orders\","
+            + "\"oldkeys\":{\"keynames\":[\"id\"],\"keytypes\":[\"integer\"],\"keyvalues\":[7]}}";
+    private static final byte[] walChunk = ("{\"xid\":3147483647,\"change\":[" + insert + "," + update + ","
+            + delete + "]}").getBytes();
+
+    @Test
+    public void testParseStreamsEveryChangeInOrder() throws Exception {
+        RecordingHandler handler = new RecordingHandler();
+        new Wal2JsonParser(objectMapper, new ChangeFilter(null, null, null)).parse(walChunk, 0, walChunk.length, handler);
+        assertEquals(3147483647L, handler.xid);
+        assertEquals(3, handler.changes.size());
+        assertTrue(handler.changes.get(0) instanceof InsertChange);
+        assertTrue(handler.changes.get(1) instanceof UpdateChange);
+        assertTrue(handler.changes.get(2) instanceof DeleteChange);
+        assertEquals(1, handler.begins);
+        assertEquals(1, handler.commits);
+    }
+
+    @Test
+    public void testParseReusesTheStringsAndListsOfRepeatedShapes() throws Exception {
+        RecordingHandler handler = new RecordingHandler();
+        SchemaDictionary schemaDictionary = new SchemaDictionary(SchemaDictionary.DEFAULT_MAX_ENTRIES);
+        Wal2JsonParser parser = new Wal2JsonParser(objectMapper, new ChangeFilter(null, null, null), schemaDictionary);
+        parser.parse(walChunk, 0, walChunk.length, handler);
+        parser.parse(walChunk, 0, walChunk.length, handler);
+        assertEquals(6, handler.changes.size());
+        assertSame(handler.changes.get(0).getTable(), handler.changes.get(3).getTable());
+        assertSame(handler.changes.get(0).getKind(), handler.changes.get(3).getKind());
+        assertSame(handler.changes.get(0).getTableSchema(), handler.changes.get(3).getTableSchema());
+        assertSame(handler.changes.get(0).getColumnnames(), handler.changes.get(1).getColumnnames());
+        assertSame(((InsertChange) handler.changes.get(0)).getColumntypes(), ((UpdateChange) handler.changes.get(4)).getColumntypes());
+        assertSame(handler.changes.get(2).getTableSchema(), handler.changes.get(5).getTableSchema());
+        assertSame(handler.changes.get(2).getTableSchema().getColumnNames(), ((DeleteChange) handler.changes.get(5)).getOldkeys().getKeynames());
+        assertEquals(Arrays.asList("id", "name"), handler.changes.get(3).getColumnnames());
+        assertEquals(2, schemaDictionary.getSchemaMisses());
+        assertTrue(schemaDictionary.getSchemaHitRate() > 0.5);
+        assertTrue(schemaDictionary.getStringHitRate() > 0.5);
+    }
+
+    @Test
+    public void testParsePassesMessagesToTheHandler() throws Exception {
+        RecordingHandler handler = new RecordingHandler();
+        byte[] message = ("{\"change\":[{\"kind\":\"message\",\"transactional\":false,"
+                + "\"prefix\":\"pg2k4j.snapshot\",\"content\":\"public.users\"}]}").getBytes();
+        new Wal2JsonParser(objectMapper, new ChangeFilter(new HashSet<>(Arrays.asList("orders")), null, null))
+                .parse(message, 0, message.length, handler);
+        assertEquals(Arrays.asList("pg2k4j.snapshot:public.users"), handler.messages);
+        assertTrue(handler.changes.isEmpty());
+        assertEquals(1, handler.commits);
+    }
+
+    @Test
+    public void testParseFiltersOutNonRelevantTables() throws Exception {
+        RecordingHandler handler = new RecordingHandler();
+        new Wal2JsonParser(objectMapper, new ChangeFilter(new HashSet<>(Arrays.asList("orders")), null, null))
+                .parse(walChunk, 0, walChunk.length, handler);
+        assertEquals(1, handler.changes.size());
+        assertEquals("orders", handler.changes.get(0).getTable());
+        assertEquals(1, handler.commits);
+    }
+
+    @Test
+    public void testParseFiltersOutExcludedTablesAndActions() throws Exception {
+        RecordingHandler handler = new RecordingHandler();
+        new Wal2JsonParser(objectMapper, new ChangeFilter(null, new HashSet<>(Arrays.asList("orders")),
+                new HashSet<>(Arrays.asList("insert", "delete")))).parse(walChunk, 0, walChunk.length, handler);
+        assertEquals(1, handler.changes.size());
+        assertTrue(handler.changes.get(0) instanceof InsertChange);
+    }
+
+    @Test
+    public void testParseProjectsColumnsAndOldKeys() throws Exception {
+        RecordingHandler handler = new RecordingHandler();
+        new Wal2JsonParser(objectMapper, new ChangeFilter(null, null, null,
+                Collections.singletonMap("users", new HashSet<>(Arrays.asList("name"))),
+                Collections.singletonMap("orders", new HashSet<>(Arrays.asList("id")))))
+                .parse(walChunk, 0, walChunk.length, handler);
+        assertEquals(3, handler.changes.size());
+        assertEquals(Arrays.asList("name"), handler.changes.get(0).getColumnnames());
+        assertEquals(Arrays.asList("text"), ((InsertChange) handler.changes.get(0)).getColumntypes());
+        assertEquals(Arrays.asList("a"), handler.changes.get(0).getColumnvalues());
+        assertEquals(Arrays.asList("b"), handler.changes.get(1).getColumnvalues());
+        assertTrue(((UpdateChange) handler.changes.get(1)).getOldkeys().getKeynames().isEmpty());
+        assertTrue(((DeleteChange) handler.changes.get(2)).getOldkeys().getKeyvalues().isEmpty());
+    }
+
+    @Test
+    public void testParseDropsRowsFailingTheirRowFilter() throws Exception {
+        RecordingHandler handler = new RecordingHandler();
+        new Wal2JsonParser(objectMapper, new ChangeFilter(null, null, null, null, null,
+                new RowFilter(Collections.singletonMap("users", "name = 'b'"))))
+                .parse(walChunk, 0, walChunk.length, handler);
+        assertEquals(2, handler.changes.size());
+        assertTrue(handler.changes.get(0) instanceof UpdateChange);
+        assertTrue(handler.changes.get(1) instanceof DeleteChange);
+    }
+
+    @Test
+    public void testParseHonoursOffsetAndLength() throws Exception {
+        byte[] padded = new byte[walChunk.length + 10];
+        System.arraycopy(walChunk, 0, padded, 5, walChunk.length);
+        RecordingHandler handler = new RecordingHandler();
+        new Wal2JsonParser(objectMapper, new ChangeFilter(null, null, null)).parse(padded, 5, walChunk.length, handler);
+        assertEquals(3, handler.changes.size());
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void testParseRejectsMessageWithoutChanges() throws Exception {
+        byte[] noChanges = "{\"xid\":1}".getBytes();
+        new Wal2JsonParser(objectMapper, new ChangeFilter(null, null, null)).parse(noChanges, 0, noChanges.length, new RecordingHandler());
+    }
+
+    @Test
+    public void testSlotMessageWriterRoundTripsParsedChunk() throws Exception {
+        List<ByteBuffer> payloads = new ArrayList<>();
+        new Wal2JsonParser(objectMapper, new ChangeFilter(null, null, null)).parse(walChunk, 0, walChunk.length,
+                new SlotMessageWriter(objectMapper, payloads::add));
+        assertEquals(1, payloads.size());
+        SlotMessage expected = objectMapper.readValue(walChunk, SlotMessage.class);
+        assertEquals(new String(objectMapper.writeValueAsBytes(expected)), new String(payloads.get(0).array()));
+    }
+
+    @Test
+    public void testSlotMessageWriterPassesOnMessagesOfTheSameXidPastTheFlushThreshold() throws Exception {
+        List<ByteBuffer> payloads = new ArrayList<>();
+        new Wal2JsonParser(objectMapper, new ChangeFilter(null, null, null)).parse(walChunk, 0, walChunk.length,
+                new SlotMessageWriter(objectMapper, payloads::add, 1));
+        SlotMessage expected = objectMapper.readValue(walChunk, SlotMessage.class);
+        assertEquals(expected.getChange().size(), payloads.size());
+        for (int i = 0; i < payloads.size(); i++) {
+            SlotMessage part = objectMapper.readValue(payloads.get(i).array(), SlotMessage.class);
+            assertEquals(expected.getXid(), part.getXid());
+            assertEquals(1, part.getChange().size());
+            assertEquals(new String(objectMapper.writeValueAsBytes(expected.getChange().get(i))),
+                    new String(objectMapper.writeValueAsBytes(part.getChange().get(0))));
+        }
+    }
+
+    @Test
+    public void testSlotMessageWriterSkipsEmptyTransactions() throws Exception {
+        List<ByteBuffer> payloads = new ArrayList<>();
+        new Wal2JsonParser(objectMapper, new ChangeFilter(new HashSet<>(Arrays.asList("unknown")), null, null))
+                .parse(walChunk, 0, walChunk.length, new SlotMessageWriter(objectMapper, payloads::add));
+        assertEquals(0, payloads.size());
+    }
+
+    @Test
+    public void testParseBindsValuesLikeJackson() throws Exception {
+        String values = "{\"kind\":\"insert\",\"schema\":\"public\",\"table\":\"users\","
+                + "\"columnnames\":[\"a\",\"b\",\"c\",\"d\",\"e\",\"f\",\"g\"],"
+                + "\"columntypes\":[\"integer\",\"bigint\",\"numeric\",\"numeric\",\"boolean\",\"json\",\"text\"],"
+                + "\"columnvalues\":[1,3147483647,18446744073709551616,1.5,true,{\"x\":[1,2]},null]}";
+        byte[] chunk = ("{\"xid\":1,\"change\":[" + values + "]}").getBytes();
+        RecordingHandler handler = new RecordingHandler();
+        new Wal2JsonParser(objectMapper, new ChangeFilter(null, null, null)).parse(chunk, 0, chunk.length, handler);
+        SlotMessage expected = objectMapper.readValue(chunk, SlotMessage.class);
+        assertEquals(((InsertChange) expected.getChange().get(0)).getColumnvalues(),
+                ((InsertChange) handler.changes.get(0)).getColumnvalues());
+    }
+
+    @Test
+    public void testParseSkipsIrrelevantChangesWithoutBindingThem() throws Exception {
+        String unbindable = "{\"kind\":\"insert\",\"schema\":\"public\",\"table\":\"audit\","
+                + "\"columnvalues\":[{\"nested\":[1,{\"deeper\":true}]}]}";
+        byte[] chunk = ("{\"xid\":1,\"change\":[" + unbindable + "," + delete + "]}").getBytes();
+        RecordingHandler handler = new RecordingHandler();
+        new Wal2JsonParser(objectMapper, new ChangeFilter(new HashSet<>(Arrays.asList("orders")), null, null))
+                .parse(chunk, 0, chunk.length, handler);
+        assertEquals(1, handler.changes.size());
+        assertEquals("orders", handler.changes.get(0).getTable());
+    }
+
+    @Test
+    public void testParseHandlesHeaderFieldsAfterColumns() throws Exception {
+        String reordered = "{\"columnnames\":[\"id\"],\"columntypes\":[\"integer\"],\"columnvalues\":[1],"
+                + "\"table\":\"users\",\"kind\":\"insert\",\"schema\":\"public\"}";
+        byte[] chunk = ("{\"xid\":1,\"change\":[" + reordered + "," + reordered.replace("users", "audit") + "]}")
+                .getBytes();
+        RecordingHandler handler = new RecordingHandler();
+        new Wal2JsonParser(objectMapper, new ChangeFilter(new HashSet<>(Arrays.asList("users")), null, null))
+                .parse(chunk, 0, chunk.length, handler);
+        assertEquals(1, handler.changes.size());
+        assertEquals(Arrays.asList("id"), ((InsertChange) handler.changes.get(0)).getColumnnames());
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void testParseRejectsRelevantChangeWithoutColumns() throws Exception {
+        byte[] chunk = "{\"xid\":1,\"change\":[{\"kind\":\"insert\",\"schema\":\"public\",\"table\":\"users\"}]}"
+                .getBytes();
+        new Wal2JsonParser(objectMapper, new ChangeFilter(null, null, null)).parse(chunk, 0, chunk.length, new RecordingHandler());
+    }
+
+    @Test
+    public void testHasChanges() throws Exception {
+        assertTrue(Wal2JsonParser.hasChanges(ByteBuffer.wrap(walChunk)));
+        assertFalse(Wal2JsonParser.hasChanges(ByteBuffer.wrap("{\"xid\":1,\"change\":[]}".getBytes())));
+        assertFalse(Wal2JsonParser.hasChanges(ByteBuffer.wrap("{\"xid\":1,\"change\":[\n\t]\n}\n".getBytes())));
+        assertTrue(Wal2JsonParser.hasChanges(ByteBuffer.wrap("[]}".getBytes(), 1, 2)));
+        assertTrue(Wal2JsonParser.hasChanges(ByteBuffer.wrap(new byte[0])));
+    }
+
+    @Test
+    public void testParseReadsPrimaryKeyOfInserts() throws Exception {
+        String withPk = insert.replace("}", ",\"pk\":{\"pknames\":[\"id\"],\"pktypes\":[\"integer\"]}}");
+        byte[] chunk = ("{\"xid\":1,\"change\":[" + withPk + "," + insert + "]}").getBytes();
+        RecordingHandler handler = new RecordingHandler();
+        new Wal2JsonParser(objectMapper, new ChangeFilter(null, null, null)).parse(chunk, 0, chunk.length, handler);
+        assertEquals(Arrays.asList(1), handler.changes.get(0).getKeyvalues());
+        assertEquals(null, handler.changes.get(1).getKeyvalues());
+        assertEquals(objectMapper.writeValueAsString(objectMapper.readValue(insert, Change.class)),
+                objectMapper.writeValueAsString(handler.changes.get(0)));
+    }
+
+    @Test
+    public void testChangeMessageWriterWritesOneMessagePerChange() throws Exception {
+        List<Change> changes = new ArrayList<>();
+        List<ByteBuffer> payloads = new ArrayList<>();
+        new Wal2JsonParser(objectMapper, new ChangeFilter(null, null, null)).parse(walChunk, 0, walChunk.length,
+                new ChangeMessageWriter(objectMapper, (change, payload) -> {
+                    changes.add(change);
+                    payloads.add(payload);
+                }));
+        assertEquals(3, payloads.size());
+        for (int i = 0; i < payloads.size(); i++) {
+            SlotMessage slotMessage = objectMapper.readValue(payloads.get(i).array(), SlotMessage.class);
+            assertEquals(3147483647L, slotMessage.getXid());
+            assertEquals(1, slotMessage.getChange().size());
+            assertEquals(changes.get(i).getTable(), slotMessage.getChange().get(0).getTable());
+        }
+    }
+
+    static class RecordingHandler implements SlotMessageHandler {
+        long xid;
+        int begins;
+        int commits;
+        final List<Change> changes = new ArrayList<>();
+        final List<String> messages = new ArrayList<>();
+
+        @Override
+        public void onBegin(long xidInput) {
+            xid = xidInput;
+            begins++;
+        }
+
+        @Override
+        public void onChange(Change change) {
+            changes.add(change);
+        }
+
+        @Override
+        public void onCommit() {
+            commits++;
+        }
+
+        @Override
+        public void onMessage(String prefix, String content) {
+            messages.add(prefix + ":" + content);
+        }
+    }
+}
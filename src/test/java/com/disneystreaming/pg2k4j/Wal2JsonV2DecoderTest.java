@@ -0,0 +1,188 @@
+/*******************************************************************************
+ Copyright 2018 Disney Streaming Services
+
+ Licensed under the Apache License, Version 2.0 (the "Apache License")
+ with the following modification; you may not use this file except in
+ compliance with the Apache License and the following modification to it:
+ Section 6. Trademarks. is deleted and replaced with:
+
+ 6. Trademarks. This License does not grant permission to use the trade
+ names, trademarks, service marks, or product names of the Licensor
+ and its affiliates, except as required to comply with Section 4(c) of
+ the License and to reproduce the content of the NOTICE file.
+
+ You may obtain a copy of the Apache License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the Apache License with the above modification is
+ distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied. See the Apache License for the specific
+ language governing permissions and limitations under the Apache License.
+
+ *******************************************************************************/
+package com.disneystreaming.pg2k4j;
+
+import com.disneystreaming.pg2k4j.models.DeleteChange;
+import com.disneystreaming.pg2k4j.models.InsertChange;
+import com.disneystreaming.pg2k4j.models.UpdateChange;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Wal2JsonV2DecoderTest {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static final String begin = "{\"action\":\"B\",\"xid\":3147483647}";
+    private static final String commit = "{\"action\":\"C\",\"xid\":3147483647}";
+    private static final String insert = "{\"action\":\"I\",\"schema\":\"public\",\"table\":\"users\","
+            + "\"columns\":[{\"name\":\"id\",\"type\":\"integer\",\"value\":1},"
+            + "{\"name\":\"name\",\"type\":\"text\",\"value\":\"a\"}],"
+            + "\"pk\":[{\"name\":\"id\",\"type\":\"integer\"}]}";
+    private static final String update = "{\"action\":\"U\",\"schema\":\"public\",\"table\":\"users\","
+            + "\"columns\":[{\"name\":\"id\",\"type\":\"integer\",\"value\":1},"
+            + "{\"name\":\"name\",\"type\":\"text\",\"value\":\"b\"}],"
+            + "\"identity\":[{\"name\":\"id\",\"type\":\"integer\",\"value\":1}]}";
+    private static final String delete = "{\"action\":\"D\",\"schema\":\"public\",\"table\":\"orders\","
+            + "\"identity\":[{\"name\":\"id\",\"type\":\"integer\",\"value\":7}]}";
+
+    @Test
+    public void testDecodeStreamsRowsAsTheyArrive() throws Exception {
+        Wal2JsonV2Decoder decoder = decoder(null);
+        Wal2JsonParserTest.RecordingHandler handler = new Wal2JsonParserTest.RecordingHandler();
+        decode(decoder, begin, handler);
+        assertEquals(1, handler.begins);
+        assertEquals(3147483647L, handler.xid);
+        assertTrue(decoder.isInTransaction());
+        decode(decoder, insert, handler);
+        InsertChange insertChange = (InsertChange) handler.changes.get(0);
+        assertEquals(Arrays.asList("id", "name"), insertChange.getColumnnames());
+        assertEquals(Arrays.asList("integer", "text"), insertChange.getColumntypes());
+        assertEquals(Arrays.asList(1, "a"), insertChange.getColumnvalues());
+        assertEquals(Arrays.asList(1), insertChange.getKeyvalues());
+        decode(decoder, update, handler);
+        UpdateChange updateChange = (UpdateChange) handler.changes.get(1);
+        assertEquals(Arrays.asList("id"), updateChange.getOldkeys().getKeynames());
+        assertEquals(Arrays.asList(1), updateChange.getOldkeys().getKeyvalues());
+        decode(decoder, delete, handler);
+        DeleteChange deleteChange = (DeleteChange) handler.changes.get(2);
+        assertEquals("orders", deleteChange.getTable());
+        assertEquals(Arrays.asList(7), deleteChange.getOldkeys().getKeyvalues());
+        assertEquals(0, handler.commits);
+        decode(decoder, commit, handler);
+        assertEquals(1, handler.commits);
+        assertFalse(decoder.isInTransaction());
+    }
+
+    @Test
+    public void testDecodeProjectsColumnsAndIdentity() throws Exception {
+        Wal2JsonV2Decoder decoder = new Wal2JsonV2Decoder(new Wal2JsonParser(objectMapper, new ChangeFilter(null, null,
+                null, null, Collections.singletonMap("users", new HashSet<>(Arrays.asList("id"))))));
+        Wal2JsonParserTest.RecordingHandler handler = new Wal2JsonParserTest.RecordingHandler();
+        decode(decoder, begin, handler);
+        decode(decoder, insert, handler);
+        decode(decoder, update, handler);
+        InsertChange insertChange = (InsertChange) handler.changes.get(0);
+        assertEquals(Arrays.asList("name"), insertChange.getColumnnames());
+        assertEquals(Arrays.asList("text"), insertChange.getColumntypes());
+        assertEquals(Arrays.asList("a"), insertChange.getColumnvalues());
+        assertEquals(Arrays.asList("id"), insertChange.getKeynames());
+        UpdateChange updateChange = (UpdateChange) handler.changes.get(1);
+        assertEquals(Arrays.asList("b"), updateChange.getColumnvalues());
+        assertTrue(updateChange.getOldkeys().getKeyvalues().isEmpty());
+    }
+
+    @Test
+    public void testSlotMessageWriterMatchesFormatVersion1() throws Exception {
+        List<ByteBuffer> v1Payloads = new ArrayList<>();
+        byte[] v1 = ("{\"xid\":3147483647,\"change\":["
+                + "{\"kind\":\"insert\",\"schema\":\"public\",\"table\":\"users\",\"columnnames\":[\"id\",\"name\"],"
+                + "\"columntypes\":[\"integer\",\"text\"],\"columnvalues\":[1,\"a\"]},"
+                + "{\"kind\":\"delete\",\"schema\":\"public\",\"table\":\"orders\",\"oldkeys\":{\"keynames\":[\"id\"],"
+                + "\"keytypes\":[\"integer\"],\"keyvalues\":[7]}}]}").getBytes();
+        new Wal2JsonParser(objectMapper, new ChangeFilter(null, null, null)).parse(v1, 0, v1.length,
+                new SlotMessageWriter(objectMapper, v1Payloads::add));
+        List<ByteBuffer> v2Payloads = new ArrayList<>();
+        Wal2JsonV2Decoder decoder = decoder(null);
+        SlotMessageWriter writer = new SlotMessageWriter(objectMapper, v2Payloads::add);
+        for (String msg : Arrays.asList(begin, insert.replace(",\"pk\":[{\"name\":\"id\",\"type\":\"integer\"}]", ""),
+                delete, commit)) {
+            decode(decoder, msg, writer);
+        }
+        assertEquals(1, v2Payloads.size());
+        assertEquals(new String(v1Payloads.get(0).array()), new String(v2Payloads.get(0).array()));
+    }
+
+    @Test
+    public void testDecodePassesMessagesToTheHandler() throws Exception {
+        Wal2JsonV2Decoder decoder = decoder("orders");
+        Wal2JsonParserTest.RecordingHandler handler = new Wal2JsonParserTest.RecordingHandler();
+        decode(decoder, "{\"action\":\"M\",\"transactional\":false,\"prefix\":\"pg2k4j.watermark\","
+                + "\"content\":\"low:1\"}", handler);
+        assertEquals(Arrays.asList("pg2k4j.watermark:low:1"), handler.messages);
+        assertFalse(decoder.isInTransaction());
+    }
+
+    @Test
+    public void testDecodeFiltersRows() throws Exception {
+        Wal2JsonV2Decoder decoder = decoder("orders");
+        Wal2JsonParserTest.RecordingHandler handler = new Wal2JsonParserTest.RecordingHandler();
+        for (String msg : Arrays.asList(begin, insert, update, delete, commit)) {
+            decode(decoder, msg, handler);
+        }
+        assertEquals(1, handler.changes.size());
+        assertEquals("orders", handler.changes.get(0).getTable());
+        assertEquals(1, handler.commits);
+    }
+
+    @Test
+    public void testDecodeIgnoresTruncatesAndMessages() throws Exception {
+        Wal2JsonV2Decoder decoder = decoder(null);
+        Wal2JsonParserTest.RecordingHandler handler = new Wal2JsonParserTest.RecordingHandler();
+        decode(decoder, "{\"action\":\"M\",\"transactional\":false,\"prefix\":\"p\",\"content\":\"c\"}", handler);
+        decode(decoder, begin, handler);
+        decode(decoder, "{\"action\":\"T\",\"schema\":\"public\",\"table\":\"users\"}", handler);
+        decode(decoder, commit, handler);
+        assertEquals(0, handler.changes.size());
+        assertEquals(1, handler.commits);
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void testDecodeRejectsRowOutsideOfTransaction() throws Exception {
+        decode(decoder(null), insert, new Wal2JsonParserTest.RecordingHandler());
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void testDecodeRejectsUpdateWithoutIdentity() throws Exception {
+        Wal2JsonV2Decoder decoder = decoder(null);
+        decode(decoder, begin, new Wal2JsonParserTest.RecordingHandler());
+        decode(decoder, update.replaceAll(",\"identity\":.*]", ""), new Wal2JsonParserTest.RecordingHandler());
+    }
+
+    private static Wal2JsonV2Decoder decoder(final String relevantTable) {
+        HashSet<String> relevantTables = null;
+        if (relevantTable != null) {
+            relevantTables = new HashSet<>(Arrays.asList(relevantTable));
+        }
+        return new Wal2JsonV2Decoder(new Wal2JsonParser(objectMapper, new ChangeFilter(relevantTables, null, null)));
+    }
+
+    private static void decode(final Wal2JsonV2Decoder decoder, final String msg,
+                               final SlotMessageHandler handler) throws IOException {
+        decoder.decode(ByteBuffer.wrap(msg.getBytes()), handler);
+    }
+}